@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.tum.in.camp.kuka.ros.CommandMailbox;
+
+/**
+ * Checks the CommandMailbox bookkeeping under contention. <br>
+ * Several poster threads post unique values as fast as they can, as the ROS callback threads do, while a
+ * reader thread takes them, as the control loop does. Once the posters are done, every posted value has to
+ * be either taken exactly once or counted as overwritten, and each poster's values have to be taken in the
+ * order they were posted.
+ * <p>
+ * Run with <i>benchmarks/run.sh CommandMailboxStressTest [rounds]</i>, exits with status 1 on failure.
+ */
+public class CommandMailboxStressTest {
+  private static final int VALUES_PER_POSTER = 200000;
+  private static final int MAX_POSTERS = 4;
+
+  public static void main(String[] args) throws Exception {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int failures = 0;
+    for (int round = 0; round < rounds; round++) {
+      failures += run(1 + round % MAX_POSTERS, round % 2 == 0);
+    }
+    System.out.println(failures == 0 ? "CommandMailbox: all " + rounds + " rounds passed" : "CommandMailbox: " + failures + " failures");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /**
+   * @param posters : number of posting threads.
+   * @param slowReader : if true, the reader yields between two takes, so that most values are overwritten.
+   * @return the number of failed checks.
+   */
+  private static int run(final int posters, final boolean slowReader) throws InterruptedException {
+    final CommandMailbox<Long> mailbox = new CommandMailbox<Long>(Long.valueOf(-1));
+    final int total = posters * VALUES_PER_POSTER;
+    final BitSet taken = new BitSet(total);
+    final long[] lastTaken = new long[posters];
+    final int[] takenCount = { 0 };
+    final int[] errors = { 0 };
+    final AtomicBoolean postersDone = new AtomicBoolean(false);
+    final CountDownLatch start = new CountDownLatch(1);
+
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Arrays.fill(lastTaken, -1);
+        try {
+          start.await();
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        while (true) {
+          boolean done = postersDone.get();
+          Long value = mailbox.take();
+          if (value != null) {
+            check(value.longValue());
+          }
+          else if (done) {
+            // Nothing left after the last post.
+            return;
+          }
+          if (slowReader) {
+            Thread.yield();
+          }
+        }
+      }
+
+      private void check(long value) {
+        int index = (int) value;
+        if (value < 0 || value >= total) {
+          error("took the initial or an unknown value " + value);
+          return;
+        }
+        if (taken.get(index)) {
+          error("took value " + value + " twice");
+        }
+        taken.set(index);
+        takenCount[0]++;
+        int poster = index / VALUES_PER_POSTER;
+        if (value <= lastTaken[poster]) {
+          error("took value " + value + " of poster " + poster + " after " + lastTaken[poster]);
+        }
+        lastTaken[poster] = value;
+      }
+
+      private void error(String message) {
+        if (errors[0]++ < 10) {
+          System.out.println("  reader " + message);
+        }
+      }
+    });
+
+    Thread[] posterThreads = new Thread[posters];
+    for (int p = 0; p < posters; p++) {
+      final long first = (long) p * VALUES_PER_POSTER;
+      posterThreads[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          for (long value = first; value < first + VALUES_PER_POSTER; value++) {
+            mailbox.post(Long.valueOf(value));
+            if (value % 64 == 0) {
+              // Lets the reader catch up from time to time, as the commands arrive in bursts.
+              Thread.yield();
+            }
+          }
+        }
+      });
+      posterThreads[p].start();
+    }
+    reader.start();
+    Thread.sleep(10);
+    start.countDown();
+    for (Thread poster : posterThreads) {
+      poster.join();
+    }
+    postersDone.set(true);
+    reader.join();
+
+    int failures = errors[0];
+    long overwritten = mailbox.getOverwrittenCount();
+    if (takenCount[0] + overwritten != total) {
+      System.out.println("  " + takenCount[0] + " taken + " + overwritten + " overwritten != " + total + " posted");
+      failures++;
+    }
+    if (mailbox.getVersion() != total) {
+      System.out.println("  version " + mailbox.getVersion() + " != " + total + " posted");
+      failures++;
+    }
+    if (mailbox.hasNew()) {
+      System.out.println("  a value is still pending after the last take");
+      failures++;
+    }
+    System.out.println(String.format("%d poster(s), %s reader: %8d taken %8d overwritten   %s", posters, slowReader ? "slow" : "fast", takenCount[0], overwritten,
+        failures == 0 ? "ok" : "FAILED"));
+    return failures;
+  }
+}
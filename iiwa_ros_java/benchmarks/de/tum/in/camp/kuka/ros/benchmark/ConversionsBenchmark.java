@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ros.time.WallTimeProvider;
+
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.geometricModel.math.Matrix;
+import com.kuka.roboticsAPI.geometricModel.math.Transformation;
+
+import de.tum.in.camp.kuka.ros.Conversions;
+import de.tum.in.camp.kuka.ros.MessageGenerator;
+import de.tum.in.camp.kuka.ros.RobotStateSnapshot;
+
+/**
+ * Benchmarks the conversions and message builders that run for every command received and for every state
+ * message published. <br>
+ * Run with <i>benchmarks/run.sh</i>, optionally passing a substring to select the benchmarks to run.
+ * <p>
+ * The MessageGenerator builders are measured through their RobotStateSnapshot overloads, that contain all
+ * the work done on the Java side; the LBR overloads additionally include the time spent by the Sunrise
+ * runtime to read the robot state, which can only be measured on the controller.
+ */
+public class ConversionsBenchmark {
+
+  public static void main(String[] args) {
+    String filter = args.length > 0 ? args[0] : "";
+
+    final MessageGenerator helper = new MessageGenerator("iiwa", new WallTimeProvider());
+
+    final geometry_msgs.Pose pose = helper.buildMessage(geometry_msgs.Pose._TYPE);
+    pose.getPosition().setX(0.5);
+    pose.getPosition().setY(-0.1);
+    pose.getPosition().setZ(0.6);
+    pose.getOrientation().setX(0.1);
+    pose.getOrientation().setY(0.7);
+    pose.getOrientation().setZ(0.1);
+    pose.getOrientation().setW(0.7);
+
+    final geometry_msgs.Pose resultPose = helper.buildMessage(geometry_msgs.Pose._TYPE);
+    final Transformation transformation = Conversions.rosPoseToKukaTransformation(pose);
+    final Matrix rotation = transformation.getRotationMatrix();
+    final double[] quaternion = new double[4];
+
+    final iiwa_msgs.JointQuantity jointQuantity = helper.buildMessage(iiwa_msgs.JointQuantity._TYPE);
+    Conversions.vectorToJointQuantity(new double[] { 0.1, 0.2, 0.3, -1.2, 0.5, 0.6, 0.7 }, jointQuantity);
+    final JointPosition jointPosition = new JointPosition(7);
+
+    final RobotStateSnapshot snapshot = new RobotStateSnapshot(7);
+    fillSnapshot(snapshot, helper);
+    final iiwa_msgs.CartesianPose cp = helper.buildMessage(iiwa_msgs.CartesianPose._TYPE);
+    final iiwa_msgs.CartesianWrench cw = helper.buildMessage(iiwa_msgs.CartesianWrench._TYPE);
+    final iiwa_msgs.JointPosition jp = helper.buildMessage(iiwa_msgs.JointPosition._TYPE);
+    final iiwa_msgs.JointPositionVelocity jpv = helper.buildMessage(iiwa_msgs.JointPositionVelocity._TYPE);
+    final iiwa_msgs.JointTorque jt = helper.buildMessage(iiwa_msgs.JointTorque._TYPE);
+    final sensor_msgs.JointState js = helper.buildMessage(sensor_msgs.JointState._TYPE);
+
+    List<MicroBenchmark> benchmarks = new ArrayList<MicroBenchmark>();
+    benchmarks.add(new MicroBenchmark("Conversions.quatToMatrix") {
+      @Override
+      protected double operation() {
+        return Conversions.quatToMatrix(0.1, 0.7, 0.1, 0.7).getMatrix().getElement00();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("Conversions.matrixToQuat(Quaternion)") {
+      @Override
+      protected double operation() {
+        Conversions.matrixToQuat(rotation, resultPose.getOrientation());
+        return resultPose.getOrientation().getW();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("Conversions.matrixToQuat(double[])") {
+      @Override
+      protected double operation() {
+        Conversions.matrixToQuat(rotation, quaternion);
+        return quaternion[3];
+      }
+    });
+    benchmarks.add(new MicroBenchmark("Conversions.rosPoseToKukaTransformation") {
+      @Override
+      protected double operation() {
+        return Conversions.rosPoseToKukaTransformation(pose).getX();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("Conversions.kukaTransformationToRosPose") {
+      @Override
+      protected double operation() {
+        Conversions.kukaTransformationToRosPose(transformation, resultPose);
+        return resultPose.getPosition().getX();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("Conversions.rosJointQuantityToKuka") {
+      @Override
+      protected double operation() {
+        Conversions.rosJointQuantityToKuka(jointQuantity, jointPosition);
+        return jointPosition.get(0);
+      }
+    });
+    benchmarks.add(new MicroBenchmark("MessageGenerator.getCurrentCartesianPose") {
+      @Override
+      protected double operation() {
+        helper.getCurrentCartesianPose(cp, snapshot);
+        return cp.getPoseStamped().getPose().getPosition().getX();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("MessageGenerator.getCurrentCartesianWrench") {
+      @Override
+      protected double operation() {
+        helper.getCurrentCartesianWrench(cw, snapshot);
+        return cw.getWrench().getForce().getX();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("MessageGenerator.getCurrentJointPosition") {
+      @Override
+      protected double operation() {
+        helper.getCurrentJointPosition(jp, snapshot);
+        return jp.getPosition().getA1();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("MessageGenerator.getCurrentJointPositionVelocity") {
+      @Override
+      protected double operation() {
+        helper.getCurrentJointPositionVelocity(jpv, snapshot);
+        return jpv.getVelocity().getA1();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("MessageGenerator.getCurrentJointTorque") {
+      @Override
+      protected double operation() {
+        helper.getCurrentJointTorque(jt, snapshot);
+        return jt.getTorque().getA1();
+      }
+    });
+    benchmarks.add(new MicroBenchmark("MessageGenerator.getCurrentJointState") {
+      @Override
+      protected double operation() {
+        helper.getCurrentJointState(js, snapshot);
+        return js.getPosition()[0];
+      }
+    });
+
+    for (MicroBenchmark benchmark : benchmarks) {
+      if (benchmark.getName().contains(filter)) {
+        benchmark.run();
+      }
+    }
+  }
+
+  /**
+   * Sets plausible values in the snapshot, as if it was sampled from a robot.
+   */
+  private static void fillSnapshot(RobotStateSnapshot snapshot, MessageGenerator helper) {
+    for (int i = 0; i < 7; i++) {
+      snapshot.getJointPosition()[i] = 0.1 * i;
+      snapshot.getJointVelocity()[i] = 0.01 * i;
+      snapshot.getMeasuredTorque()[i] = i;
+      snapshot.getExternalTorque()[i] = 0.5 * i;
+    }
+    for (int i = 0; i < 3; i++) {
+      snapshot.getCartesianPosition()[i] = 0.2 * i;
+      snapshot.getForce()[i] = i;
+      snapshot.getTorque()[i] = 0.1 * i;
+    }
+    snapshot.getCartesianOrientation()[3] = 1;
+  }
+}
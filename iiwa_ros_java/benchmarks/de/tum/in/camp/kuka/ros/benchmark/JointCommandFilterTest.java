@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import de.tum.in.camp.kuka.ros.DeadbandJointFilter;
+import de.tum.in.camp.kuka.ros.JointCommandFilter;
+import de.tum.in.camp.kuka.ros.JointCommandFilterChain;
+import de.tum.in.camp.kuka.ros.LimiterJointFilter;
+import de.tum.in.camp.kuka.ros.LowPassJointFilter;
+
+/**
+ * Checks the joint command filters and their chain, with a simulated clock. <br>
+ * The first command after a reset has to be filtered, ticking the chain has to bring its output to the last
+ * command and then stop, and the limiter has to keep the output within its limits.
+ * <p>
+ * Run with <i>benchmarks/run.sh JointCommandFilterTest</i>, exits with status 1 on failure.
+ */
+public class JointCommandFilterTest {
+  private static final int JOINT_COUNT = 2;
+  private static final double PERIOD = 0.005;
+  private static final long PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final double TOLERANCE = 1e-6;
+
+  private static int failures = 0;
+
+  public static void main(String[] args) {
+    firstCommandIsFiltered();
+    lowPassConvergesWhenTicked();
+    deadbandHoldsSmallChanges();
+    limiterKeepsLimits();
+    System.out.println(failures == 0 ? "JointCommandFilter: all checks passed" : "JointCommandFilter: " + failures + " failures");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  private static JointCommandFilterChain chain(JointCommandFilter filter) {
+    JointCommandFilterChain chain = new JointCommandFilterChain();
+    chain.setPeriod(PERIOD);
+    chain.add(filter);
+    return chain;
+  }
+
+  private static void firstCommandIsFiltered() {
+    double cutoff = 2.0;
+    JointCommandFilterChain chain = chain(new LowPassJointFilter(JOINT_COUNT, cutoff));
+    long now = 1000 * PERIOD_NS;
+    chain.reset(new double[JOINT_COUNT], now);
+    double[] command = { 1.0, -1.0 };
+    chain.filter(command, now);
+    // One period of a first order low-pass from 0 to 1.
+    double expected = 1.0 - Math.exp(-PERIOD * 2.0 * Math.PI * cutoff);
+    check("first command after a reset is filtered", Math.abs(command[0] - expected) < TOLERANCE && Math.abs(command[1] + expected) < TOLERANCE, command[0]
+        + " instead of " + expected);
+  }
+
+  private static void lowPassConvergesWhenTicked() {
+    JointCommandFilterChain chain = chain(new LowPassJointFilter(JOINT_COUNT, 5.0));
+    long now = 1000 * PERIOD_NS;
+    chain.reset(new double[JOINT_COUNT], now);
+    double[] command = { 0.5, 0.25 };
+    chain.filter(command, now);
+
+    check("no tick before a period has elapsed", !chain.tick(now + PERIOD_NS / 2, command), "ticked after half a period");
+    check("next tick is due in a period", chain.getNextTickDelayNs(now) == PERIOD_NS, "delay " + chain.getNextTickDelayNs(now) + " ns");
+    int ticks = 0;
+    double previous = command[0];
+    boolean monotonic = true;
+    while (ticks < 10000) {
+      now += PERIOD_NS;
+      if (!chain.tick(now, command)) {
+        break;
+      }
+      monotonic &= command[0] >= previous;
+      previous = command[0];
+      ticks++;
+    }
+    check("low-pass converges", ticks < 10000 && chain.getNextTickDelayNs(now) == -1, "still ticking after " + ticks + " ticks");
+    check("low-pass reaches the command", Math.abs(command[0] - 0.5) < TOLERANCE && Math.abs(command[1] - 0.25) < TOLERANCE, command[0] + ", "
+        + command[1]);
+    check("low-pass approaches the command monotonically", monotonic, "went back");
+  }
+
+  private static void deadbandHoldsSmallChanges() {
+    JointCommandFilterChain chain = chain(new DeadbandJointFilter(JOINT_COUNT, 0.01));
+    long now = 1000 * PERIOD_NS;
+    chain.reset(new double[JOINT_COUNT], now);
+    double[] command = { 0.005, 0.02 };
+    now += PERIOD_NS;
+    chain.filter(command, now);
+    check("deadband holds a small change", command[0] == 0.0, "moved to " + command[0]);
+    check("deadband passes a large change", command[1] == 0.02, "moved to " + command[1]);
+    now += PERIOD_NS;
+    // The output does not move anymore, the first tick finds the chain converged.
+    chain.tick(now, command);
+    check("deadband does not keep ticking", !chain.tick(now + PERIOD_NS, command), "ticked twice");
+  }
+
+  private static void limiterKeepsLimits() {
+    double maxVelocity = 1.0;
+    double maxAcceleration = 4.0;
+    JointCommandFilterChain chain = chain(new LimiterJointFilter(JOINT_COUNT, maxVelocity, maxAcceleration, 0.0));
+    long now = 1000 * PERIOD_NS;
+    chain.reset(new double[JOINT_COUNT], now);
+    double[] command = { 1.0, -0.2 };
+    chain.filter(command, now);
+
+    double[] position = command.clone();
+    double[] velocity = { position[0] / PERIOD, position[1] / PERIOD };
+    double peakVelocity = Math.max(Math.abs(velocity[0]), Math.abs(velocity[1]));
+    double peakAcceleration = peakVelocity / PERIOD;
+    int ticks = 0;
+    while (ticks < 10000) {
+      now += PERIOD_NS;
+      if (!chain.tick(now, command)) {
+        break;
+      }
+      for (int i = 0; i < JOINT_COUNT; i++) {
+        double v = (command[i] - position[i]) / PERIOD;
+        peakVelocity = Math.max(peakVelocity, Math.abs(v));
+        peakAcceleration = Math.max(peakAcceleration, Math.abs(v - velocity[i]) / PERIOD);
+        velocity[i] = v;
+        position[i] = command[i];
+      }
+      ticks++;
+    }
+    check("limiter converges", ticks < 10000, "still ticking after " + ticks + " ticks");
+    check("limiter reaches the command", Math.abs(position[0] - 1.0) < TOLERANCE && Math.abs(position[1] + 0.2) < TOLERANCE, position[0] + ", "
+        + position[1]);
+    check("limiter keeps the velocity limit", peakVelocity <= maxVelocity + TOLERANCE, "peak velocity " + peakVelocity);
+    check("limiter keeps the acceleration limit", peakAcceleration <= maxAcceleration + TOLERANCE, "peak acceleration " + peakAcceleration);
+    // Reaching 1 rad takes at least 1 s at 1 rad/s.
+    check("limiter is not ticked for nothing", ticks * PERIOD >= 1.0 && ticks * PERIOD < 2.0, ticks + " ticks");
+  }
+
+  private static void check(String name, boolean ok, String detail) {
+    System.out.println(String.format("%-50s %s", name, ok ? "ok" : "FAILED: " + detail));
+    if (!ok) {
+      failures++;
+    }
+  }
+}
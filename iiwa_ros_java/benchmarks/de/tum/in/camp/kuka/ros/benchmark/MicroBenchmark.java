@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Minimal micro-benchmark harness, to be run on a plain JVM against the bundled jars. <br>
+ * Each benchmark is run for some warm-up rounds, then measured in batches of operations: the time of the
+ * batches is used to compute the throughput, and the bytes allocated by the benchmarking thread are used to
+ * compute the allocation rate. The latency percentiles are then computed from operations timed one by one,
+ * they include the cost of reading the clock, which is printed as well.
+ * <p>
+ * Subclasses implement <i>operation</i>, which should return a value depending on the computed result so
+ * that it can not be optimized away.
+ */
+public abstract class MicroBenchmark {
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int MEASURED_ROUNDS = 200;
+  private static final int OPERATIONS_PER_ROUND = 5000;
+  private static final int LATENCY_SAMPLES = 200000;
+
+  // Results are accumulated here to keep the JIT from removing the benchmarked code.
+  private static volatile double sink;
+
+  private final String name;
+
+  public MicroBenchmark(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * A single operation to benchmark.
+   */
+  protected abstract double operation();
+
+  /**
+   * Runs the benchmark and prints its results on the standard output.
+   */
+  public void run() {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      round();
+    }
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = getAllocatedBytes(threads, threadId);
+
+    long totalNs = 0;
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      totalNs += round();
+    }
+
+    long allocated = getAllocatedBytes(threads, threadId) - allocatedBefore;
+    long operations = (long) MEASURED_ROUNDS * OPERATIONS_PER_ROUND;
+
+    long[] latencyNs = sampleLatencies();
+    long clockNs = clockOverhead();
+    Arrays.sort(latencyNs);
+
+    System.out.println(String.format("%-48s %12.0f ops/s   p50 %8d ns   p90 %8d ns   p99 %8d ns   max %8d ns   clock %3d ns   %s", name, operations * 1e9 / totalNs,
+        percentile(latencyNs, 0.5), percentile(latencyNs, 0.9), percentile(latencyNs, 0.99), latencyNs[latencyNs.length - 1], clockNs,
+        allocated < 0 ? "alloc n/a" : String.format("%8.1f B/op", (double) allocated / operations)));
+  }
+
+  /**
+   * Times every operation on its own.
+   */
+  private long[] sampleLatencies() {
+    long[] latencyNs = new long[LATENCY_SAMPLES];
+    double accumulator = 0;
+    for (int i = 0; i < latencyNs.length; i++) {
+      long start = System.nanoTime();
+      accumulator += operation();
+      latencyNs[i] = System.nanoTime() - start;
+    }
+    sink += accumulator;
+    return latencyNs;
+  }
+
+  /**
+   * Returns the median time between two consecutive reads of the clock, which is included in every latency
+   * sample.
+   */
+  private static long clockOverhead() {
+    long[] overheadNs = new long[1001];
+    for (int i = 0; i < overheadNs.length; i++) {
+      long start = System.nanoTime();
+      overheadNs[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(overheadNs);
+    return overheadNs[overheadNs.length / 2];
+  }
+
+  private long round() {
+    double accumulator = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+      accumulator += operation();
+    }
+    long elapsed = System.nanoTime() - start;
+    sink += accumulator;
+    return elapsed;
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+  }
+
+  /**
+   * Returns the bytes allocated so far by the given thread, or -1 if the JVM can not measure it.
+   */
+  static long getAllocatedBytes(ThreadMXBean threads, long threadId) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+      if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+        return sunThreads.getThreadAllocatedBytes(threadId);
+      }
+    }
+    return -1;
+  }
+}
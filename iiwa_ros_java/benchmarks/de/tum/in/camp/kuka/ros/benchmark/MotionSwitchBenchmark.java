@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ros.time.WallTimeProvider;
+
+import com.kuka.connectivity.motionModel.smartServo.SmartServo;
+
+import de.tum.in.camp.kuka.ros.Configuration;
+import de.tum.in.camp.kuka.ros.ControlModeHandler;
+import de.tum.in.camp.kuka.ros.PreparedMotions;
+import de.tum.in.camp.kuka.ros.iiwaPublisher;
+
+/**
+ * Measures how often a switch to a new SmartServo motion finds a prepared motion, with a SimulatedLBR. <br>
+ * Before every switch the robot moves to a random position in real time, as the previous motion would, then
+ * stays there for a given idle time. The switch takes the prepared motion from PreparedMotions, or creates
+ * it with ControlModeHandler as ControlModeHandler does on a miss. The motions are not started, that needs a
+ * controller, so the times only cover getting the motion: creating it on this JVM is much faster than on the
+ * robot controller, where the MOTION_SWITCH lines of the latency report give the times of the full switch.
+ * <p>
+ * Run with <i>benchmarks/run.sh MotionSwitchBenchmark [switches per idle time]</i>, with slf4j-api on
+ * BENCHMARK_CLASSPATH.
+ */
+public class MotionSwitchBenchmark {
+  private static final long[] IDLE_MS = { 0, 50, 100, 200, 500 };
+  // Largest random move of a joint before a switch.
+  private static final double MAX_MOVE = 0.2; // rad
+  private static final long TICK_MS = 1;
+
+  public static void main(String[] args) throws Exception {
+    int switches = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+    SimulatedLBR model = new SimulatedLBR("iiwa");
+    SimulatedLBRDevice robot = new SimulatedLBRDevice(model);
+    Configuration configuration = new Configuration(SimulatedSmartServoApplication.simulatedApplicationData("iiwa", new URI("http://localhost:11311")));
+    iiwaPublisher publisher = new iiwaPublisher(model, null, "iiwa", new WallTimeProvider());
+    ControlModeHandler controlModeHandler = new ControlModeHandler(robot, null, robot.getFlange(), publisher, null, configuration);
+    // Only the motions prepared here are taken.
+    controlModeHandler.dispose();
+    // The robot is not attached to the world frame, only the SmartServo motion can be prepared.
+    PreparedMotions preparedMotions = new PreparedMotions(robot, controlModeHandler, robot.getFlange());
+    Random random = new Random(1);
+
+    System.out.println(switches + " switches per idle time.");
+    try {
+      for (long idleMs : IDLE_MS) {
+        long[] preparedNs = new long[switches];
+        long[] createdNs = new long[switches];
+        int prepared = 0;
+        int created = 0;
+        for (int i = 0; i < switches; i++) {
+          moveToRandomPosition(model, random);
+          Thread.sleep(idleMs);
+
+          long start = System.nanoTime();
+          SmartServo motion = preparedMotions.takeSmartServo();
+          if (motion != null) {
+            preparedNs[prepared++] = System.nanoTime() - start;
+          }
+          else {
+            motion = controlModeHandler.createSmartServoMotion();
+            createdNs[created++] = System.nanoTime() - start;
+          }
+        }
+        System.out.println(String.format("idle %4d ms: prepared %3d%% (%d/%d)   prepared %s   created %s", idleMs, 100 * prepared / switches, prepared, switches,
+            summary(preparedNs, prepared), summary(createdNs, created)));
+      }
+    }
+    finally {
+      preparedMotions.dispose();
+    }
+  }
+
+  /**
+   * Moves every joint by up to MAX_MOVE, stepping the robot in real time until it reaches the destination.
+   */
+  private static void moveToRandomPosition(SimulatedLBR model, Random random) throws InterruptedException {
+    double[] destination = new double[SimulatedLBR.JOINT_COUNT];
+    double[] max = model.getMaxJointPosition();
+    model.readJointPosition(destination);
+    for (int i = 0; i < destination.length; i++) {
+      destination[i] = Math.max(-0.5 * max[i], Math.min(0.5 * max[i], destination[i] + MAX_MOVE * (2 * random.nextDouble() - 1)));
+    }
+    model.setDestination(destination);
+    long last = System.nanoTime();
+    while (!model.isDestinationReached()) {
+      Thread.sleep(TICK_MS);
+      long now = System.nanoTime();
+      model.step((now - last) / 1e9);
+      last = now;
+    }
+  }
+
+  private static String summary(long[] samples, int count) {
+    if (count == 0) { return String.format("%-30s", "-"); }
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    return String.format("p50 %8.1f us  max %8.1f us", sorted[count / 2] / 1e3, sorted[count - 1] / 1e3);
+  }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ros.RosCore;
+import org.ros.exception.ServiceException;
+import org.ros.node.ConnectedNode;
+import org.ros.node.DefaultNodeListener;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeListener;
+import org.ros.node.NodeMain;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.service.ServiceResponseBuilder;
+
+import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.roboticsAPI.persistenceModel.processDataModel.IProcessData;
+
+import de.tum.in.camp.kuka.ros.Configuration;
+import de.tum.in.camp.kuka.ros.NodeMainGroup;
+import de.tum.in.camp.kuka.ros.iiwaActionServer;
+import de.tum.in.camp.kuka.ros.iiwaPublisher;
+import de.tum.in.camp.kuka.ros.iiwaSubscriber;
+
+/**
+ * Compares the cost of the two layouts of the ROS nodes of ROSSmartServo: configuration, publisher, action
+ * server and subscriber as four separate nodes, or hosted in a single NodeMainGroup. <br>
+ * Every run starts a fresh JVM with a private master, starts the nodes of one layout and reports the time
+ * until all of them are started and what they added to the resident memory, threads and open sockets of the
+ * process. The robot is a SimulatedLBR, all the services of ROSSmartServo are registered.
+ * <p>
+ * Run with <i>benchmarks/run.sh NodeLayoutBenchmark [runs per layout]</i>.
+ */
+public class NodeLayoutBenchmark {
+  private static final String ROBOT_NAME = "iiwa";
+  private static final String[] LAYOUTS = { "separate", "single" };
+  private static final long TIMEOUT_S = 30;
+  // Time left to the nodes to settle before measuring, e.g. registration with the master.
+  private static final long SETTLE_MS = 2000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 1 && args[0].equals("child")) {
+      // The ROS threads are not daemons, exit even if the run fails.
+      try {
+        runLayout(args[1]);
+      }
+      finally {
+        System.exit(0);
+      }
+    }
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+    Map<String, List<long[]>> results = new HashMap<String, List<long[]>>();
+    for (String layout : LAYOUTS) {
+      results.put(layout, new ArrayList<long[]>());
+    }
+    // Alternate the layouts, so that both see the same conditions of the machine.
+    for (int i = 0; i < runs; i++) {
+      for (String layout : LAYOUTS) {
+        results.get(layout).add(runChild(layout));
+      }
+    }
+
+    System.out.println(String.format("%-10s %6s %12s %14s %10s %10s", "layout", "ports", "startup ms", "RSS delta KB", "threads", "sockets"));
+    for (String layout : LAYOUTS) {
+      List<long[]> samples = results.get(layout);
+      System.out.println(String.format("%-10s %6d %12.1f %14d %10d %10d", layout, layout.equals("single") ? 2 : 8, median(samples, 0) / 1e6,
+          median(samples, 1), median(samples, 2), median(samples, 3)));
+    }
+    System.out.println("Median of " + runs + " runs per layout, deltas measured after starting a private master.");
+  }
+
+  /**
+   * Runs a layout in a new JVM and returns [startup ns, RSS delta KB, threads delta, sockets delta].
+   */
+  private static long[] runChild(String layout) throws IOException, InterruptedException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), NodeLayoutBenchmark.class.getName(), "child", layout);
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    long[] result = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith("RESULT ")) {
+        String[] fields = line.split(" ");
+        result = new long[fields.length - 1];
+        for (int i = 1; i < fields.length; i++) {
+          result[i - 1] = Long.parseLong(fields[i]);
+        }
+      }
+    }
+    process.waitFor();
+    if (result == null) {
+      throw new IllegalStateException("Run of the " + layout + " layout failed");
+    }
+    return result;
+  }
+
+  private static void runLayout(String layout) throws Exception {
+    RosCore rosCore = RosCore.newPrivate();
+    rosCore.start();
+    if (!rosCore.awaitStart(TIMEOUT_S, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("ROS master did not start");
+    }
+    NodeMainExecutor executor = DefaultNodeMainExecutor.newDefault();
+    URI masterUri = rosCore.getUri();
+
+    Configuration configuration = new Configuration(applicationData(masterUri));
+    SimulatedLBR robot = new SimulatedLBR(ROBOT_NAME);
+    iiwaPublisher publisher = new iiwaPublisher(robot, null, ROBOT_NAME, configuration.getTimeProvider());
+    iiwaActionServer actionServer = new iiwaActionServer(null, null, configuration);
+    iiwaSubscriber subscriber = new iiwaSubscriber(robot.getJointCount(), ROBOT_NAME, configuration.getTimeProvider(), false);
+    subscriber.setConfiguration(configuration);
+    addServices(subscriber);
+    List<NodeMain> nodes = Arrays.<NodeMain> asList(configuration, publisher, actionServer, subscriber);
+
+    settle();
+    long[] before = sampleProcess();
+
+    long start = System.nanoTime();
+    if (layout.equals("single")) {
+      NodeMainGroup group = new NodeMainGroup(ROBOT_NAME + "/iiwa_ros");
+      for (NodeMain node : nodes) {
+        group.add(node);
+      }
+      nodes = Collections.<NodeMain> singletonList(group);
+    }
+    final CountDownLatch started = new CountDownLatch(nodes.size());
+    NodeListener listener = new DefaultNodeListener() {
+      @Override
+      public void onStart(ConnectedNode connectedNode) {
+        started.countDown();
+      }
+    };
+    for (NodeMain node : nodes) {
+      executor.execute(node, NodeConfiguration.newPrivate(masterUri), Collections.singleton(listener));
+    }
+    if (!started.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Nodes did not start");
+    }
+    long startup = System.nanoTime() - start;
+
+    settle();
+    long[] after = sampleProcess();
+    System.out.println("RESULT " + startup + " " + (after[0] - before[0]) + " " + (after[1] - before[1]) + " " + (after[2] - before[2]));
+  }
+
+  private static void settle() throws InterruptedException {
+    Thread.sleep(SETTLE_MS);
+    System.gc();
+    Thread.sleep(200);
+  }
+
+  /**
+   * Returns [RSS in KB, threads, open sockets] of this process, read from /proc.
+   */
+  private static long[] sampleProcess() throws IOException {
+    long[] sample = new long[3];
+    BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("VmRSS:")) {
+          sample[0] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+        else if (line.startsWith("Threads:")) {
+          sample[1] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    File[] descriptors = new File("/proc/self/fd").listFiles();
+    if (descriptors != null) {
+      for (File descriptor : descriptors) {
+        try {
+          if (Files.readSymbolicLink(descriptor.toPath()).toString().startsWith("socket:")) {
+            sample[2]++;
+          }
+        }
+        catch (IOException e) {
+          // Closed in the meantime.
+        }
+      }
+    }
+    return sample;
+  }
+
+  private static long median(List<long[]> samples, int field) {
+    long[] values = new long[samples.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = samples.get(i)[field];
+    }
+    Arrays.sort(values);
+    return values[values.length / 2];
+  }
+
+  /**
+   * Process data of the Sunrise project, as read by Configuration.
+   */
+  private static IApplicationData applicationData(URI masterUri) {
+    final Map<String, Serializable> values = new HashMap<String, Serializable>();
+    values.put("robot_name", ROBOT_NAME);
+    values.put("robot_ip", "127.0.0.1");
+    values.put("ntp", false);
+    values.put("debug", false);
+    values.put("master_ip", masterUri.getHost());
+    values.put("master_port", String.valueOf(masterUri.getPort()));
+
+    return (IApplicationData) Proxy.newProxyInstance(IApplicationData.class.getClassLoader(), new Class<?>[] { IApplicationData.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().endsWith("etProcessData") && values.containsKey(args[0])) {
+          return processData(values.get(args[0]));
+        }
+        return null;
+      }
+    });
+  }
+
+  private static IProcessData processData(final Serializable value) {
+    return (IProcessData) Proxy.newProxyInstance(IProcessData.class.getClassLoader(), new Class<?>[] { IProcessData.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getName().equals("getValue") ? value : null;
+      }
+    });
+  }
+
+  private static void addServices(iiwaSubscriber subscriber) {
+    subscriber.setEmergencyStopCallback(NodeLayoutBenchmark.<iiwa_msgs.EmergencyStopRequest, iiwa_msgs.EmergencyStopResponse> emptyService());
+    subscriber.setGetFramesCallback(NodeLayoutBenchmark.<iiwa_msgs.GetFramesRequest, iiwa_msgs.GetFramesResponse> emptyService());
+    subscriber.setConfigureControlModeCallback(NodeLayoutBenchmark.<iiwa_msgs.ConfigureControlModeRequest, iiwa_msgs.ConfigureControlModeResponse> emptyService());
+    subscriber.setTimeToDestinationCallback(NodeLayoutBenchmark.<iiwa_msgs.TimeToDestinationRequest, iiwa_msgs.TimeToDestinationResponse> emptyService());
+    subscriber.setSpeedOverrideCallback(NodeLayoutBenchmark.<iiwa_msgs.SetSpeedOverrideRequest, iiwa_msgs.SetSpeedOverrideResponse> emptyService());
+    subscriber.setSmartServoLimitsCallback(NodeLayoutBenchmark.<iiwa_msgs.SetSmartServoJointSpeedLimitsRequest, iiwa_msgs.SetSmartServoJointSpeedLimitsResponse> emptyService());
+    subscriber.setSmartServoLinLimitsCallback(NodeLayoutBenchmark.<iiwa_msgs.SetSmartServoLinSpeedLimitsRequest, iiwa_msgs.SetSmartServoLinSpeedLimitsResponse> emptyService());
+    subscriber.setPTPJointLimitsCallback(NodeLayoutBenchmark.<iiwa_msgs.SetPTPJointSpeedLimitsRequest, iiwa_msgs.SetPTPJointSpeedLimitsResponse> emptyService());
+    subscriber.setPTPCartesianLimitsCallback(NodeLayoutBenchmark.<iiwa_msgs.SetPTPCartesianSpeedLimitsRequest, iiwa_msgs.SetPTPCartesianSpeedLimitsResponse> emptyService());
+    subscriber.setWorkpieceCallback(NodeLayoutBenchmark.<iiwa_msgs.SetWorkpieceRequest, iiwa_msgs.SetWorkpieceResponse> emptyService());
+    subscriber.setEndpointFrameCallback(NodeLayoutBenchmark.<iiwa_msgs.SetEndpointFrameRequest, iiwa_msgs.SetEndpointFrameResponse> emptyService());
+  }
+
+  private static <REQUEST, RESPONSE> ServiceResponseBuilder<REQUEST, RESPONSE> emptyService() {
+    return new ServiceResponseBuilder<REQUEST, RESPONSE>() {
+      @Override
+      public void build(REQUEST request, RESPONSE response) throws ServiceException {
+      }
+    };
+  }
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.ros.internal.message.Message;
+import org.ros.internal.message.field.Field;
+import org.ros.message.Time;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+import org.ros.node.topic.PublisherListener;
+import org.ros.time.TimeProvider;
+import org.ros.time.WallTimeProvider;
+
+import de.tum.in.camp.kuka.ros.iiwaPublisher;
+
+/**
+ * Checks the allocations of iiwaPublisher.publishCurrentState, publishing the state of a moving SimulatedLBR
+ * on all the state topics. <br>
+ * The publishers are replaced by stand-ins that always have a subscriber and keep the last published message,
+ * so only the thread building the messages is measured. After the warm-up, every publishing cycle must reuse
+ * the same messages, with the same nested messages and arrays, and allocate at most the boxing floor of the
+ * rosjava messages. These are dynamic proxies: every setter call boxes its value into a new argument array, and
+ * the time provider returns a new Time for every cycle. The floor is measured in the same run, by calling the
+ * setter of every scalar field and header stamp of the published messages once per cycle.
+ * <p>
+ * Run with <i>benchmarks/run.sh PublisherAllocationTest</i>, exits with status 1 on failure.
+ */
+public class PublisherAllocationTest {
+  private static final String ROBOT_NAME = "iiwa";
+  private static final int WARMUP_CYCLES = 50000;
+  private static final int MEASURED_CYCLES = 100000;
+  private static final double STEP_S = 0.001;
+  // Below the size of the smallest object: allocations that are not made at every cycle, e.g. by the JIT.
+  private static final double TOLERANCE_BYTES = 8;
+
+  private static final String[] STATE_TOPICS = { "state/JointPosition", "state/JointPositionVelocity", "state/JointVelocity", "state/JointTorque",
+      "state/ExternalJointTorque", "state/CartesianPose", "state/CartesianWrench", "joint_states" };
+
+  private static int failures = 0;
+
+  public static void main(String[] args) throws InterruptedException {
+    SimulatedLBR model = new SimulatedLBR(ROBOT_NAME);
+    TimeProvider timeProvider = new WallTimeProvider();
+    iiwaPublisher publisher = new iiwaPublisher(model, null, ROBOT_NAME, timeProvider);
+    publisher.setPublishJointStates(true);
+    Map<String, RecordingPublisher> publishers = new HashMap<String, RecordingPublisher>();
+    publisher.onStart(standInNode(publishers));
+
+    double[] destination = new double[SimulatedLBR.JOINT_COUNT];
+    for (int i = 0; i < WARMUP_CYCLES; i++) {
+      cycle(publisher, model, destination, i);
+    }
+
+    List<Object> messages = new ArrayList<Object>();
+    boolean allPublished = true;
+    for (String topic : STATE_TOPICS) {
+      RecordingPublisher recorder = publishers.get(ROBOT_NAME + "/" + topic);
+      allPublished &= recorder != null && recorder.last != null;
+      if (recorder != null && recorder.last != null) {
+        messages.add(recorder.last);
+        recorder.distinctMessages = 1;
+      }
+    }
+    check("every state topic is published", allPublished, "a state topic has not been published");
+    if (!allPublished) {
+      System.exit(1);
+    }
+    Map<Object, Object> objectsBefore = reachableObjects(messages);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = MicroBenchmark.getAllocatedBytes(threads, threadId);
+    for (int i = 0; i < MEASURED_CYCLES; i++) {
+      cycle(publisher, model, destination, WARMUP_CYCLES + i);
+    }
+    long published = MicroBenchmark.getAllocatedBytes(threads, threadId) - allocatedBefore;
+
+    List<ScalarSetter> setters = new ArrayList<ScalarSetter>();
+    for (Object message : messages) {
+      collectScalarSetters(message, setters);
+    }
+    for (int i = 0; i < WARMUP_CYCLES; i++) {
+      setAll(setters, timeProvider);
+    }
+    allocatedBefore = MicroBenchmark.getAllocatedBytes(threads, threadId);
+    for (int i = 0; i < MEASURED_CYCLES; i++) {
+      setAll(setters, timeProvider);
+    }
+    long floor = MicroBenchmark.getAllocatedBytes(threads, threadId) - allocatedBefore;
+
+    boolean reused = true;
+    for (String topic : STATE_TOPICS) {
+      reused &= publishers.get(ROBOT_NAME + "/" + topic).distinctMessages == 1;
+    }
+    check("the same messages are published every cycle", reused, "a new message has been published");
+    Map<Object, Object> objectsAfter = reachableObjects(messages);
+    boolean sameObjects = objectsAfter.size() == objectsBefore.size();
+    for (Object object : objectsAfter.keySet()) {
+      sameObjects &= objectsBefore.containsKey(object);
+    }
+    check("no message or array is allocated after warm-up", sameObjects, objectsAfter.size() + " nested messages and arrays instead of "
+        + objectsBefore.size() + ", or new ones");
+    if (published < 0 || floor < 0) {
+      System.out.println("The JVM can not measure the allocated bytes, the allocation rate is not checked");
+    }
+    else {
+      double publishedPerCycle = (double) published / MEASURED_CYCLES;
+      double floorPerCycle = (double) floor / MEASURED_CYCLES;
+      check("publishing allocates at most the boxing floor", publishedPerCycle <= floorPerCycle + TOLERANCE_BYTES, String.format("%.3f B/op",
+          publishedPerCycle));
+      System.out.println(String.format("publishCurrentState %.3f B/op, boxing floor %.3f B/op (%d setters and a Time per cycle)", publishedPerCycle,
+          floorPerCycle, setters.size()));
+    }
+    System.out.println(failures == 0 ? "iiwaPublisher: all checks passed" : "iiwaPublisher: " + failures + " failures");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /**
+   * Moves the robot back and forth and publishes its state.
+   */
+  private static void cycle(iiwaPublisher publisher, SimulatedLBR model, double[] destination, int i) throws InterruptedException {
+    if (i % 1000 == 0) {
+      destination[0] = (i / 1000) % 2 == 0 ? 0.5 : -0.5;
+      destination[5] = -destination[0];
+      model.setDestination(destination);
+    }
+    model.step(STEP_S);
+    publisher.publishCurrentState();
+  }
+
+  /**
+   * Sets the current value of every field again, as a call to its setter does: a new boxed value in a new
+   * argument array, given to the invocation handler of the message proxy. The stamps are all set to a new Time.
+   */
+  private static void setAll(List<ScalarSetter> setters, TimeProvider timeProvider) {
+    Time stamp = timeProvider.getCurrentTime();
+    try {
+      for (ScalarSetter setter : setters) {
+        Object value = setter.field.getValue();
+        if (value instanceof Time) {
+          value = stamp;
+        }
+        else if (value instanceof Double) {
+          value = Double.valueOf(((Double) value).doubleValue());
+        }
+        else if (value instanceof Float) {
+          value = Float.valueOf(((Float) value).floatValue());
+        }
+        else if (value instanceof Long) {
+          value = Long.valueOf(((Long) value).longValue());
+        }
+        else if (value instanceof Integer) {
+          value = Integer.valueOf(((Integer) value).intValue());
+        }
+        setter.handler.invoke(setter.message, setter.method, new Object[] { value });
+      }
+    }
+    catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void collectScalarSetters(Object message, List<ScalarSetter> result) {
+    for (Field field : ((Message) message).toRawMessage().getFields()) {
+      Object value = field.getValue();
+      if (field.isConstant()) {
+        continue;
+      }
+      if (value instanceof Message) {
+        collectScalarSetters(value, result);
+      }
+      else if (value instanceof Number || value instanceof Boolean || value instanceof Time) {
+        result.add(new ScalarSetter(message, field));
+      }
+    }
+  }
+
+  /**
+   * The setter of a scalar or time field of a message proxy.
+   */
+  private static class ScalarSetter {
+    private final Object message;
+    private final Field field;
+    private final InvocationHandler handler;
+    private final Method method;
+
+    ScalarSetter(Object message, Field field) {
+      this.message = message;
+      this.field = field;
+      handler = Proxy.getInvocationHandler(message);
+      // The setters of a field named like remaining_distance are named like setRemainingDistance.
+      StringBuilder name = new StringBuilder("set");
+      for (String part : field.getName().split("_")) {
+        name.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+      }
+      Method setter = null;
+      for (Class<?> type : message.getClass().getInterfaces()) {
+        for (Method method : type.getMethods()) {
+          if (method.getName().equals(name.toString()) && method.getParameterTypes().length == 1) {
+            setter = method;
+          }
+        }
+      }
+      if (setter == null) {
+        throw new IllegalArgumentException("No setter for the field " + field.getName() + " of " + message.getClass());
+      }
+      this.method = setter;
+    }
+  }
+
+  /**
+   * Returns the identities of the given messages and of all the messages, arrays and lists they contain.
+   */
+  private static Map<Object, Object> reachableObjects(List<Object> messages) {
+    Map<Object, Object> result = new IdentityHashMap<Object, Object>();
+    for (Object message : messages) {
+      addReachableObjects(message, result);
+    }
+    return result;
+  }
+
+  private static void addReachableObjects(Object object, Map<Object, Object> result) {
+    if (object instanceof Message) {
+      result.put(object, object);
+      for (Field field : ((Message) object).toRawMessage().getFields()) {
+        if (!field.isConstant()) {
+          addReachableObjects(field.getValue(), result);
+        }
+      }
+    }
+    else if (object instanceof List) {
+      result.put(object, object);
+      for (Object element : (List<?>) object) {
+        addReachableObjects(element, result);
+      }
+    }
+    else if (object != null && object.getClass().isArray()) {
+      result.put(object, object);
+    }
+  }
+
+  /**
+   * A node whose publishers are RecordingPublishers, the other methods are not used by iiwaPublisher.onStart.
+   */
+  private static ConnectedNode standInNode(final Map<String, RecordingPublisher> publishers) {
+    return (ConnectedNode) Proxy.newProxyInstance(PublisherAllocationTest.class.getClassLoader(), new Class<?>[] { ConnectedNode.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("newPublisher")) {
+              RecordingPublisher publisher = new RecordingPublisher(args[0].toString(), (String) args[1]);
+              publishers.put(args[0].toString(), publisher);
+              return publisher;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * Always has a subscriber, keeps the last published message and counts the distinct ones.
+   */
+  private static class RecordingPublisher implements Publisher<Object> {
+    private final String topicName;
+    private final String messageType;
+    private Object last = null;
+    private int distinctMessages = 0;
+
+    RecordingPublisher(String topicName, String messageType) {
+      this.topicName = topicName;
+      this.messageType = messageType;
+    }
+
+    @Override
+    public void publish(Object message) {
+      if (message != last) {
+        distinctMessages++;
+        last = message;
+      }
+    }
+
+    @Override
+    public int getNumberOfSubscribers() {
+      return 1;
+    }
+
+    @Override
+    public boolean hasSubscribers() {
+      return true;
+    }
+
+    @Override
+    public GraphName getTopicName() {
+      return GraphName.of(topicName);
+    }
+
+    @Override
+    public String getTopicMessageType() {
+      return messageType;
+    }
+
+    @Override
+    public void setLatchMode(boolean enabled) {}
+
+    @Override
+    public boolean getLatchMode() {
+      return false;
+    }
+
+    @Override
+    public Object newMessage() {
+      throw new UnsupportedOperationException("newMessage");
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) {}
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public void addListener(PublisherListener<Object> listener) {}
+  }
+
+  private static void check(String name, boolean ok, String detail) {
+    System.out.println(String.format("%-50s %s", name, ok ? "ok" : "FAILED: " + detail));
+    if (!ok) {
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.tum.in.camp.kuka.ros.ConfigChangeQueue;
+
+/**
+ * Measures the latency of a configuration service, e.g. SetSpeedOverride, while the control loop is busy.
+ * <br>
+ * A control thread runs cycles of a fixed duration while holding its lock, as ROSBaseApplication.run does. A
+ * service thread issues a request at random intervals and measures how long the handler takes to return:
+ * <ul>
+ * <li><i>lock</i>: the handler takes the control mode lock and applies the change itself, as the services
+ * used to.</li>
+ * <li><i>queue</i>: the handler posts the change to a ConfigChangeQueue, the control thread applies it at the
+ * beginning of its next cycle. The time until the change is applied is reported too.</li>
+ * </ul>
+ * Run with <i>benchmarks/run.sh ServiceLatencyBenchmark [cycle duration in us]</i>.
+ */
+public class ServiceLatencyBenchmark {
+  private static final int WARMUP_REQUESTS = 200;
+  private static final int MEASURED_REQUESTS = 2000;
+  private static final long MAX_REQUEST_INTERVAL_US = 2000;
+
+  // The applied configuration value, as SpeedLimits would hold it.
+  private static volatile double overrideReduction = 1.0;
+
+  public static void main(String[] args) throws Exception {
+    long cycleNs = TimeUnit.MICROSECONDS.toNanos(args.length > 0 ? Long.parseLong(args[0]) : 2000);
+    System.out.println("Control cycle of " + TimeUnit.NANOSECONDS.toMicros(cycleNs) + "us, " + MEASURED_REQUESTS + " requests.");
+    run("lock", cycleNs);
+    run("queue", cycleNs);
+  }
+
+  private static void run(final String mode, final long cycleNs) throws InterruptedException {
+    final Lock controlModeLock = new ReentrantLock();
+    final ConfigChangeQueue configChanges = new ConfigChangeQueue(null);
+    final long[] appliedAtNs = new long[WARMUP_REQUESTS + MEASURED_REQUESTS];
+    final boolean[] running = { true };
+
+    Thread controlThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running[0]) {
+          controlModeLock.lock();
+          try {
+            configChanges.applyPending();
+            // Busy cycle, as SmartServo updates and motion switches are.
+            long end = System.nanoTime() + cycleNs;
+            while (System.nanoTime() < end) {
+              // Spin.
+            }
+          }
+          finally {
+            controlModeLock.unlock();
+          }
+        }
+      }
+    }, "control_loop");
+    controlThread.start();
+
+    long[] responseNs = new long[MEASURED_REQUESTS];
+    long[] postNs = new long[MEASURED_REQUESTS];
+    Random random = new Random(42);
+    for (int i = 0; i < WARMUP_REQUESTS + MEASURED_REQUESTS; i++) {
+      TimeUnit.MICROSECONDS.sleep(random.nextInt((int) MAX_REQUEST_INTERVAL_US));
+
+      final int request = i;
+      final double value = random.nextDouble();
+      ConfigChangeQueue.Change change = new ConfigChangeQueue.Change() {
+        @Override
+        public void apply() {
+          overrideReduction = value;
+          appliedAtNs[request] = System.nanoTime();
+        }
+      };
+
+      long start = System.nanoTime();
+      if (mode.equals("lock")) {
+        controlModeLock.lock();
+        try {
+          change.apply();
+        }
+        catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+        finally {
+          controlModeLock.unlock();
+        }
+      }
+      else {
+        configChanges.post(change);
+      }
+      long end = System.nanoTime();
+      if (i >= WARMUP_REQUESTS) {
+        responseNs[i - WARMUP_REQUESTS] = end - start;
+        postNs[i - WARMUP_REQUESTS] = start;
+      }
+    }
+
+    running[0] = false;
+    controlThread.join();
+    configChanges.applyPending();
+
+    long[] appliedNs = new long[MEASURED_REQUESTS];
+    for (int i = 0; i < MEASURED_REQUESTS; i++) {
+      appliedNs[i] = appliedAtNs[i + WARMUP_REQUESTS] - postNs[i];
+    }
+    print(mode + ", service response", responseNs);
+    print(mode + ", change applied", appliedNs);
+  }
+
+  private static void print(String name, long[] samples) {
+    Arrays.sort(samples);
+    System.out.println(String.format("%-28s p50 %10.1f us   p99 %10.1f us   p99.9 %10.1f us   max %10.1f us", name, percentile(samples, 0.5) / 1e3,
+        percentile(samples, 0.99) / 1e3, percentile(samples, 0.999) / 1e3, samples[samples.length - 1] / 1e3));
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+  }
+}
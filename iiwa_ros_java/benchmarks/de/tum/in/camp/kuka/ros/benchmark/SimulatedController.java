@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.kuka.common.ParameterSet;
+import com.kuka.roboticsAPI.RoboticsAPIContext;
+import com.kuka.roboticsAPI.commandModel.ICommandRuntimeData;
+import com.kuka.roboticsAPI.commandModel.IControllerCommand;
+import com.kuka.roboticsAPI.conditionModel.ICondition;
+import com.kuka.roboticsAPI.controllerModel.Controller;
+import com.kuka.roboticsAPI.controllerModel.ExecutionService;
+import com.kuka.roboticsAPI.controllerModel.RequestService;
+import com.kuka.roboticsAPI.deviceModel.Device;
+import com.kuka.roboticsAPI.deviceModel.JointLimits;
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.executionModel.ExecutionState;
+import com.kuka.roboticsAPI.executionModel.ICommandContainer;
+import com.kuka.roboticsAPI.executionModel.IContainerStateListener;
+import com.kuka.roboticsAPI.executionModel.IFiredConditionInfo;
+import com.kuka.roboticsAPI.motionModel.IMotion;
+import com.kuka.roboticsAPI.motionModel.IMotionContainer;
+import com.kuka.roboticsAPI.motionModel.IMotionContainerListener;
+import com.kuka.roboticsAPI.motionModel.MotionInstruction;
+import com.kuka.roboticsAPI.motionModel.PTP;
+import com.kuka.roboticsAPI.requestModel.GetDeviceListRequest;
+import com.kuka.roboticsAPI.requestModel.GetJointLimitRequest;
+import com.kuka.roboticsAPI.requestModel.IRequest;
+
+/**
+ * Controller of a SimulatedLBRDevice. <br>
+ * It answers the requests made while the device is initialized, with the joint limits of the SimulatedLBR.
+ * Joint space PTP motions started with moveAsync are executed one after the other, as by the motion queue of
+ * the real controller: the SimulatedLBR moves to their destination, then their container finishes and its
+ * listener is called. SmartServo motions are not started on the controller, they are run by
+ * SimulatedSmartServo instead, and other commands can not be executed.
+ */
+public class SimulatedController extends Controller {
+  private static final long MOTION_POLL_MS = 1;
+
+  private final SimulatedLBR model;
+  private final ExecutorService motionQueue = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "SimulatedController motions");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  // Motions started and not finished yet, in execution order.
+  private final List<MotionContainer> motions = new ArrayList<MotionContainer>();
+
+  public SimulatedController(SimulatedLBR model) {
+    super(new RoboticsAPIContext(SimulatedController.class, null) {}, "SimulatedController");
+    this.model = model;
+    setParameters(new ParameterSet());
+    initialize();
+  }
+
+  @Override
+  protected RequestService createRequestServiceInstance() {
+    return new RequestService() {
+      @Override
+      protected void onPerformRequest(IRequest request) {
+        if (request instanceof GetDeviceListRequest) {
+          // The device is created and initialized by SimulatedLBRDevice.
+          ((GetDeviceListRequest) request).setResult(new ArrayList<Device>(), new ArrayList<ParameterSet>());
+        }
+        else if (request instanceof GetJointLimitRequest) {
+          double[] max = model.getMaxJointPosition();
+          double[] min = new double[max.length];
+          for (int i = 0; i < max.length; i++) {
+            min[i] = -max[i];
+          }
+          ((GetJointLimitRequest) request).setResult(new JointLimits(new JointPosition(max), new JointPosition(min)));
+        }
+        else {
+          throw new UnsupportedOperationException("Request not simulated: " + request);
+        }
+      }
+    };
+  }
+
+  @Override
+  protected ExecutionService createExecutionServiceInstance() {
+    return new ExecutionService() {
+      @Override
+      public ICommandContainer beginExecution(IControllerCommand command, IContainerStateListener listener) {
+        if (command instanceof MotionInstruction && ((MotionInstruction) command).getAction() instanceof PTP) {
+          PTP ptp = (PTP) ((MotionInstruction) command).getAction();
+          if (ptp.getDestination() != null) {
+            MotionContainer container = new MotionContainer(command, ptp, listener);
+            synchronized (motions) {
+              motions.add(container);
+            }
+            motionQueue.execute(container);
+            return container;
+          }
+        }
+        throw new UnsupportedOperationException("Commands can not be executed on a simulated controller: " + command);
+      }
+
+      @Override
+      public void cancel(ICommandContainer container) {
+        container.cancel();
+      }
+
+      @Override
+      public void cancelAll() {
+        synchronized (motions) {
+          for (MotionContainer container : motions) {
+            container.cancel();
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * A PTP motion, executed by the motion queue thread.
+   */
+  private class MotionContainer implements IMotionContainer, Runnable {
+    private final IControllerCommand command;
+    private final PTP motion;
+    private final IContainerStateListener listener;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile ExecutionState state = ExecutionState.Queued;
+    private volatile boolean cancelled = false;
+
+    MotionContainer(IControllerCommand command, PTP motion, IContainerStateListener listener) {
+      this.command = command;
+      this.motion = motion;
+      this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+      if (!cancelled) {
+        setState(ExecutionState.Executing);
+        if (listener instanceof IMotionContainerListener) {
+          ((IMotionContainerListener) listener).motionStarted(motion);
+        }
+        model.setDestination(motion.getDestination().get());
+        try {
+          while (!cancelled && !model.isDestinationReached()) {
+            Thread.sleep(MOTION_POLL_MS);
+          }
+        }
+        catch (InterruptedException e) {
+          cancelled = true;
+        }
+      }
+      if (cancelled) {
+        // Stops where the robot is.
+        double[] position = new double[SimulatedLBR.JOINT_COUNT];
+        model.readJointPosition(position);
+        model.setDestination(position);
+      }
+
+      synchronized (motions) {
+        motions.remove(this);
+      }
+      setState(cancelled ? ExecutionState.Cancelled : ExecutionState.Finished);
+      finished.countDown();
+      if (listener instanceof IMotionContainerListener) {
+        ((IMotionContainerListener) listener).motionFinished(motion);
+        ((IMotionContainerListener) listener).containerFinished(this);
+      }
+    }
+
+    private void setState(ExecutionState newState) {
+      state = newState;
+      if (listener != null) {
+        listener.onStateChanged(this, newState);
+      }
+    }
+
+    @Override
+    public IMotion getCurrentMotion() {
+      return state == ExecutionState.Executing ? motion : null;
+    }
+
+    @Override
+    public IMotion getLastExecutedMotion() {
+      return state.isFinished() ? motion : null;
+    }
+
+    @Override
+    public void append(IMotion motion) {
+      throw new UnsupportedOperationException("Motions can not be appended on a simulated controller");
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+
+    @Override
+    public IControllerCommand getCommand() {
+      return command;
+    }
+
+    @Override
+    public ExecutionState getState() {
+      return state;
+    }
+
+    @Override
+    public void await() {
+      try {
+        finished.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void await(long timeout, TimeUnit unit) throws TimeoutException {
+      try {
+        if (!finished.await(timeout, unit)) {
+          throw new TimeoutException("The motion did not finish within " + unit.toMillis(timeout) + "ms");
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void validate() {}
+
+    @Override
+    public boolean isFinished() {
+      return finished.getCount() == 0;
+    }
+
+    @Override
+    public boolean hasError() {
+      return false;
+    }
+
+    @Override
+    public String getErrorMessage() {
+      return null;
+    }
+
+    @Override
+    public boolean hasFired(ICondition condition) {
+      return false;
+    }
+
+    @Override
+    public IFiredConditionInfo getFiredBreakConditionInfo() {
+      return null;
+    }
+
+    @Override
+    public ICommandRuntimeData getRuntimeData() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.Random;
+
+import javax.vecmath.GMatrix;
+import javax.vecmath.GVector;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Quat4d;
+
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+
+import de.tum.in.camp.kuka.ros.RobotStateSource;
+
+/**
+ * Kinematic model of an LBR iiwa 7 R800, to run the ROS stack without a cabinet. <br>
+ * The joints move towards the commanded position within the joint velocity and position limits of the real
+ * robot. Cartesian poses come from the forward kinematics of the flange, Cartesian destinations are converted
+ * to joint positions by damped least squares. Torques and wrench are synthetic signals: a gravity-like term
+ * depending on the configuration plus noise, enough to exercise the publishers with changing values.
+ * <p>
+ * <i>step</i> is called by the simulated control loop, the read methods by the publisher: all methods are
+ * synchronized. SimulatedLBRDevice and SimulatedSmartServo expose the model to the Sunrise application code.
+ */
+public class SimulatedLBR implements RobotStateSource {
+  static final int JOINT_COUNT = 7;
+
+  // Denavit-Hartenberg parameters of the iiwa 7 R800, in m and rad.
+  private static final double[] D = { 0.34, 0.0, 0.4, 0.0, 0.4, 0.0, 0.126 };
+  private static final double[] ALPHA = { -Math.PI / 2, Math.PI / 2, Math.PI / 2, -Math.PI / 2, -Math.PI / 2, Math.PI / 2, 0.0 };
+  private static final double[] MAX_POSITION = { Math.toRadians(170), Math.toRadians(120), Math.toRadians(170), Math.toRadians(120), Math.toRadians(170),
+      Math.toRadians(120), Math.toRadians(175) };
+  private static final double[] MAX_VELOCITY = { Math.toRadians(98), Math.toRadians(98), Math.toRadians(100), Math.toRadians(130), Math.toRadians(140),
+      Math.toRadians(180), Math.toRadians(180) };
+  // Amplitude of the synthetic gravity torque of every joint, in Nm.
+  private static final double[] GRAVITY_TORQUE = { 0.0, 45.0, 0.5, 20.0, 0.2, 2.0, 0.05 };
+  // Inverse kinematics: iterations, damping, largest joint step per iteration and tolerances in m and rad.
+  private static final int IK_ITERATIONS = 100;
+  private static final double IK_DAMPING = 0.01;
+  private static final double IK_MAX_STEP = 0.2;
+  private static final double IK_POSITION_TOLERANCE = 1e-6;
+  private static final double IK_ORIENTATION_TOLERANCE = 1e-5;
+
+  // Frame of the external wrench, built once as the state is read at every publishing cycle.
+  private final String wrenchFrameName;
+  private final Random noise = new Random(0);
+
+  private final double[] position = new double[JOINT_COUNT];
+  private final double[] destination = new double[JOINT_COUNT];
+
+  private final Matrix4d flange = new Matrix4d();
+  private final Matrix4d link = new Matrix4d();
+  private final Quat4d orientation = new Quat4d();
+
+  // Scratch objects of the inverse kinematics.
+  private final double[] solution = new double[JOINT_COUNT];
+  private final double[][] jointAxes = new double[JOINT_COUNT][3];
+  private final double[][] jointOrigins = new double[JOINT_COUNT][3];
+  private final GMatrix jacobian = new GMatrix(6, JOINT_COUNT);
+  private final GMatrix damped = new GMatrix(6, 6);
+  private final GVector error = new GVector(6);
+  private final GVector weightedError = new GVector(6);
+  private final GVector step = new GVector(JOINT_COUNT);
+
+  public SimulatedLBR(String robotName) {
+    wrenchFrameName = robotName + "_link_ee";
+    // Same as the candle position, slightly bent to stay away from singularities.
+    position[3] = Math.toRadians(-30);
+    System.arraycopy(position, 0, destination, 0, JOINT_COUNT);
+  }
+
+  /**
+   * Moves the joints towards the given position at their maximum velocity.
+   */
+  public synchronized void setDestination(double[] jointPosition) {
+    System.arraycopy(jointPosition, 0, destination, 0, JOINT_COUNT);
+  }
+
+  /**
+   * Reads the position the joints are moving to.
+   */
+  public synchronized void readDestination(double[] result) {
+    System.arraycopy(destination, 0, result, 0, JOINT_COUNT);
+  }
+
+  /**
+   * Moves the joints towards the position that puts the flange at the given pose. The position is searched
+   * from the current destination, so that a stream of close poses gives a continuous joint motion.
+   * 
+   * @param flangePose : pose of the flange in the robot base frame, in m.
+   * @return false if the pose can not be reached within the joint limits, the destination is then unchanged.
+   */
+  public synchronized boolean setCartesianDestination(Matrix4d flangePose) {
+    System.arraycopy(destination, 0, solution, 0, JOINT_COUNT);
+    for (int iteration = 0; iteration < IK_ITERATIONS; iteration++) {
+      jacobian(solution, flange);
+      poseError(flangePose, flange);
+      if (norm(error, 0) < IK_POSITION_TOLERANCE && norm(error, 3) < IK_ORIENTATION_TOLERANCE) {
+        System.arraycopy(solution, 0, destination, 0, JOINT_COUNT);
+        return true;
+      }
+
+      // step = J^T (J J^T + damping^2 I)^-1 error
+      damped.mulTransposeRight(jacobian, jacobian);
+      for (int i = 0; i < 6; i++) {
+        damped.setElement(i, i, damped.getElement(i, i) + IK_DAMPING * IK_DAMPING);
+      }
+      damped.invert();
+      weightedError.mul(damped, error);
+      step.mul(weightedError, jacobian);
+
+      double largest = 0.0;
+      for (int i = 0; i < JOINT_COUNT; i++) {
+        largest = Math.max(largest, Math.abs(step.getElement(i)));
+      }
+      double scale = largest > IK_MAX_STEP ? IK_MAX_STEP / largest : 1.0;
+      for (int i = 0; i < JOINT_COUNT; i++) {
+        solution[i] = clamp(solution[i] + scale * step.getElement(i), MAX_POSITION[i]);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the pose of the flange in the robot base frame, in m.
+   */
+  public synchronized void readFlangePose(Matrix4d result) {
+    forwardKinematics(position, result);
+  }
+
+  /**
+   * Reads the pose of the flange at the position the joints are moving to, in the robot base frame, in m.
+   */
+  public synchronized void readDestinationFlangePose(Matrix4d result) {
+    forwardKinematics(destination, result);
+  }
+
+  /**
+   * True once all the joints are at the destination.
+   */
+  public synchronized boolean isDestinationReached() {
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      if (Math.abs(destination[i] - position[i]) > 1e-9) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the upper joint limits in rad, the lower ones are the opposite.
+   */
+  public double[] getMaxJointPosition() {
+    return MAX_POSITION.clone();
+  }
+
+  /**
+   * Advances the simulation.
+   * 
+   * @param dt : elapsed time in s.
+   */
+  public synchronized void step(double dt) {
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      double delta = clamp(destination[i] - position[i], MAX_VELOCITY[i] * dt);
+      position[i] = clamp(position[i] + delta, MAX_POSITION[i]);
+    }
+  }
+
+  @Override
+  public int getJointCount() {
+    return JOINT_COUNT;
+  }
+
+  @Override
+  public synchronized void readJointPosition(double[] result) {
+    System.arraycopy(position, 0, result, 0, JOINT_COUNT);
+  }
+
+  @Override
+  public synchronized void readMeasuredTorque(double[] result) {
+    // Shoulder and elbow carry the weight of the arm, depending on how far it is from vertical.
+    double inclination = 0;
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      if (i % 2 == 1) {
+        inclination += position[i];
+      }
+      result[i] = GRAVITY_TORQUE[i] * Math.sin(inclination) + 0.05 * noise.nextGaussian();
+    }
+  }
+
+  @Override
+  public synchronized void readExternalTorque(double[] result) {
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      result[i] = 0.2 * noise.nextGaussian();
+    }
+  }
+
+  @Override
+  public synchronized void readCartesianPose(ObjectFrame frame, double[] resultPosition, double[] resultOrientation, double[] redundancy) {
+    forwardKinematics(position, flange);
+    resultPosition[0] = flange.m03;
+    resultPosition[1] = flange.m13;
+    resultPosition[2] = flange.m23;
+    orientation.set(flange);
+    resultOrientation[0] = orientation.x;
+    resultOrientation[1] = orientation.y;
+    resultOrientation[2] = orientation.z;
+    resultOrientation[3] = orientation.w;
+
+    // Status bits as defined by KUKA: shoulder, elbow and wrist configuration.
+    redundancy[0] = position[2];
+    redundancy[1] = (position[1] < 0 ? 1 : 0) | (position[3] >= 0 ? 2 : 0) | (position[5] < 0 ? 4 : 0);
+    int turn = 0;
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      if (position[i] < 0) {
+        turn |= 1 << i;
+      }
+    }
+    redundancy[2] = turn;
+  }
+
+  @Override
+  public synchronized String readExternalWrench(ObjectFrame frame, double[] force, double[] torque, double[] forceInaccuracy, double[] torqueInaccuracy) {
+    for (int i = 0; i < 3; i++) {
+      force[i] = 0.5 * noise.nextGaussian();
+      torque[i] = 0.05 * noise.nextGaussian();
+      forceInaccuracy[i] = 2.0;
+      torqueInaccuracy[i] = 0.5;
+    }
+    return wrenchFrameName;
+  }
+
+  private void forwardKinematics(double[] joints, Matrix4d result) {
+    result.setIdentity();
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      result.mul(link(joints[i], i));
+    }
+  }
+
+  private Matrix4d link(double angle, int joint) {
+    double ct = Math.cos(angle);
+    double st = Math.sin(angle);
+    double ca = Math.cos(ALPHA[joint]);
+    double sa = Math.sin(ALPHA[joint]);
+    link.setRow(0, ct, -st * ca, st * sa, 0.0);
+    link.setRow(1, st, ct * ca, -ct * sa, 0.0);
+    link.setRow(2, 0.0, sa, ca, D[joint]);
+    link.setRow(3, 0.0, 0.0, 0.0, 1.0);
+    return link;
+  }
+
+  /**
+   * Computes the geometric Jacobian of the flange at the given joint position, and the flange pose.
+   */
+  private void jacobian(double[] joints, Matrix4d result) {
+    result.setIdentity();
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      // Joint i turns around the z axis of the frame before its link.
+      for (int row = 0; row < 3; row++) {
+        jointAxes[i][row] = result.getElement(row, 2);
+        jointOrigins[i][row] = result.getElement(row, 3);
+      }
+      result.mul(link(joints[i], i));
+    }
+    for (int i = 0; i < JOINT_COUNT; i++) {
+      double[] z = jointAxes[i];
+      double rx = result.m03 - jointOrigins[i][0];
+      double ry = result.m13 - jointOrigins[i][1];
+      double rz = result.m23 - jointOrigins[i][2];
+      jacobian.setElement(0, i, z[1] * rz - z[2] * ry);
+      jacobian.setElement(1, i, z[2] * rx - z[0] * rz);
+      jacobian.setElement(2, i, z[0] * ry - z[1] * rx);
+      jacobian.setElement(3, i, z[0]);
+      jacobian.setElement(4, i, z[1]);
+      jacobian.setElement(5, i, z[2]);
+    }
+  }
+
+  /**
+   * Sets <i>error</i> to the position difference and the rotation vector from the current to the target pose.
+   */
+  private void poseError(Matrix4d target, Matrix4d current) {
+    error.setElement(0, target.m03 - current.m03);
+    error.setElement(1, target.m13 - current.m13);
+    error.setElement(2, target.m23 - current.m23);
+    for (int row = 3; row < 6; row++) {
+      error.setElement(row, 0.0);
+    }
+    // Half the sum of the cross products of the current and target axes.
+    for (int axis = 0; axis < 3; axis++) {
+      double cx = current.getElement(0, axis);
+      double cy = current.getElement(1, axis);
+      double cz = current.getElement(2, axis);
+      double tx = target.getElement(0, axis);
+      double ty = target.getElement(1, axis);
+      double tz = target.getElement(2, axis);
+      error.setElement(3, error.getElement(3) + 0.5 * (cy * tz - cz * ty));
+      error.setElement(4, error.getElement(4) + 0.5 * (cz * tx - cx * tz));
+      error.setElement(5, error.getElement(5) + 0.5 * (cx * ty - cy * tx));
+    }
+  }
+
+  private static double norm(GVector vector, int offset) {
+    double x = vector.getElement(offset);
+    double y = vector.getElement(offset + 1);
+    double z = vector.getElement(offset + 2);
+    return Math.sqrt(x * x + y * y + z * z);
+  }
+
+  private static double clamp(double value, double limit) {
+    return Math.max(-limit, Math.min(limit, value));
+  }
+}
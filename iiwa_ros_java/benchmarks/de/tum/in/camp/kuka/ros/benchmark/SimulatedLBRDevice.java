@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import javax.vecmath.Matrix4d;
+
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.deviceModel.PoseInformation;
+import com.kuka.roboticsAPI.geometricModel.ITransformationProvider;
+import com.kuka.roboticsAPI.geometricModel.Workpiece;
+import com.kuka.roboticsAPI.geometricModel.math.ITransformation;
+import com.kuka.roboticsAPI.geometricModel.math.Matrix;
+import com.kuka.roboticsAPI.geometricModel.math.Transformation;
+import com.kuka.roboticsAPI.geometricModel.math.Vector;
+
+import de.tum.in.camp.kuka.ros.Conversions;
+
+/**
+ * KUKA device model of a SimulatedLBR, for the application code that needs an LBR. <br>
+ * The joint count, the joint limits, the current joint position and the flange pose are the ones of the
+ * simulated robot, which is always ready to move. Sensors are not simulated here, the state is published from
+ * the SimulatedLBR itself.
+ */
+public class SimulatedLBRDevice extends LBR {
+  private final SimulatedLBR model;
+
+  public SimulatedLBRDevice(SimulatedLBR model) {
+    super(new SimulatedController(model), "SimulatedLBR");
+    this.model = model;
+    initialize();
+  }
+
+  /**
+   * Returns the simulated robot.
+   */
+  public SimulatedLBR getModel() {
+    return model;
+  }
+
+  @Override
+  public boolean isReadyToMove() {
+    return true;
+  }
+
+  @Override
+  protected int initializeJointCount() {
+    // Called by the constructor of Robot, before the model is set.
+    return SimulatedLBR.JOINT_COUNT;
+  }
+
+  @Override
+  protected void initGmsSensorLimits() {}
+
+  @Override
+  public void setESMState(String state) {}
+
+  @Override
+  public void setSafetyWorkpiece(Workpiece workpiece) {}
+
+  @Override
+  protected ITransformationProvider createBaseFlangeTransformationProvider() {
+    return new ITransformationProvider() {
+      @Override
+      public boolean isStatic() {
+        return false;
+      }
+
+      @Override
+      public PoseInformation getPoseInformation() {
+        double[] current = new double[SimulatedLBR.JOINT_COUNT];
+        double[] commanded = new double[SimulatedLBR.JOINT_COUNT];
+        Matrix4d currentPose = new Matrix4d();
+        Matrix4d commandedPose = new Matrix4d();
+        synchronized (model) {
+          model.readJointPosition(current);
+          model.readDestination(commanded);
+          model.readFlangePose(currentPose);
+          model.readDestinationFlangePose(commandedPose);
+        }
+        return new PoseInformation(toTransformation(currentPose), null, new JointPosition(current), toTransformation(commandedPose), null, new JointPosition(
+            commanded));
+      }
+
+      @Override
+      public ITransformation getTransformation() {
+        Matrix4d pose = new Matrix4d();
+        model.readFlangePose(pose);
+        return toTransformation(pose);
+      }
+
+      @Override
+      public String getUniqueName() {
+        return "SimulatedLBR/flange";
+      }
+    };
+  }
+
+  /**
+   * Converts a pose of the SimulatedLBR, in m, to a transformation of the device model, in mm.
+   */
+  static Transformation toTransformation(Matrix4d pose) {
+    Vector translation = Vector.of(Conversions.rosTranslationToKuka(pose.m03), Conversions.rosTranslationToKuka(pose.m13), Conversions
+        .rosTranslationToKuka(pose.m23));
+    return Transformation.of(translation, Matrix.ofRowFirst(pose.m00, pose.m01, pose.m02, pose.m10, pose.m11, pose.m12, pose.m20, pose.m21, pose.m22));
+  }
+
+  /**
+   * Converts a transformation of the device model, in mm, to a pose of the SimulatedLBR, in m.
+   */
+  static void toPose(ITransformation transformation, Matrix4d result) {
+    Transformation t = Transformation.of(transformation);
+    Matrix rotation = t.getRotationMatrix();
+    result.setRow(0, rotation.get(0, 0), rotation.get(0, 1), rotation.get(0, 2), Conversions.kukaTranslationToRos(t.getX()));
+    result.setRow(1, rotation.get(1, 0), rotation.get(1, 1), rotation.get(1, 2), Conversions.kukaTranslationToRos(t.getY()));
+    result.setRow(2, rotation.get(2, 0), rotation.get(2, 1), rotation.get(2, 2), Conversions.kukaTranslationToRos(t.getZ()));
+    result.setRow(3, 0.0, 0.0, 0.0, 1.0);
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import javax.vecmath.Matrix4d;
+
+import com.kuka.connectivity.motionModel.smartServo.IServoOnGoalReachedEvent;
+import com.kuka.connectivity.motionModel.smartServo.ISmartServoRuntime;
+import com.kuka.connectivity.motionModel.smartServo.SmartServo;
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.geometricModel.AbstractFrame;
+import com.kuka.roboticsAPI.geometricModel.Frame;
+import com.kuka.roboticsAPI.geometricModel.math.Vector;
+import com.kuka.roboticsAPI.motionModel.controlModeModel.IMotionControlMode;
+
+/**
+ * SmartServo motion whose runtime drives a SimulatedLBR. <br>
+ * It stands for a SmartServo motion started with moveAsync: joint destinations set through the runtime become
+ * the destination of the simulated robot, Cartesian destinations are converted to joint positions by its
+ * inverse kinematics. Cartesian poses are the ones of the flange, expressed in the robot root frame, whatever
+ * the frame they are asked for.
+ */
+public class SimulatedSmartServo extends SmartServo {
+  private final Runtime runtime;
+
+  public SimulatedSmartServo(SimulatedLBRDevice robot, JointPosition start) {
+    super(start);
+    runtime = new Runtime(robot);
+  }
+
+  @Override
+  public ISmartServoRuntime getRuntime() {
+    return runtime;
+  }
+
+  @Override
+  public ISmartServoRuntime getRuntime(boolean failIfNoRuntime) {
+    return runtime;
+  }
+
+  private static class Runtime implements ISmartServoRuntime {
+    private final SimulatedLBRDevice robot;
+    private final SimulatedLBR model;
+    private final double[] values = new double[SimulatedLBR.JOINT_COUNT];
+    private final Matrix4d pose = new Matrix4d();
+    private IServoOnGoalReachedEvent goalReachedHandler = null;
+    private double minimumTrajectoryExecutionTime = 0.0;
+    private long lastUpdateNs = 0;
+    private long lastDestinationNs = 0;
+
+    Runtime(SimulatedLBRDevice robot) {
+      this.robot = robot;
+      this.model = robot.getModel();
+    }
+
+    @Override
+    public long setDestination(JointPosition destination) {
+      model.setDestination(destination.get());
+      lastDestinationNs = System.nanoTime();
+      return lastDestinationNs;
+    }
+
+    @Override
+    public long setDestination(JointPosition destination, JointPosition velocity) {
+      // The simulated joints always move at their maximum velocity.
+      return setDestination(destination);
+    }
+
+    @Override
+    public long setDestination(AbstractFrame destination) {
+      SimulatedLBRDevice.toPose(robot.getRootFrame().transformationTo(destination), pose);
+      if (!model.setCartesianDestination(pose)) {
+        throw new IllegalArgumentException("The Cartesian destination can not be reached: " + destination);
+      }
+      lastDestinationNs = System.nanoTime();
+      return lastDestinationNs;
+    }
+
+    @Override
+    public void activateVelocityPlanning(boolean enable) {}
+
+    @Override
+    public long updateWithRealtimeSystem() {
+      lastUpdateNs = System.nanoTime();
+      return lastUpdateNs;
+    }
+
+    @Override
+    public boolean waitForTransferred() {
+      return true;
+    }
+
+    @Override
+    public long getTimeStampOfSetRealtimeDestination() {
+      return lastDestinationNs;
+    }
+
+    @Override
+    public long getTimeStampOfUpdate() {
+      return lastUpdateNs;
+    }
+
+    @Override
+    public int getFineIpoState() {
+      return 0;
+    }
+
+    @Override
+    public boolean isDestinationReached() {
+      return model.isDestinationReached();
+    }
+
+    @Override
+    public double getRemainingTime() {
+      return 0.0;
+    }
+
+    @Override
+    public JointPosition getCurrentJointDestination() {
+      model.readDestination(values);
+      return new JointPosition(values);
+    }
+
+    @Override
+    public JointPosition getCommandResultOfInterpolation() {
+      return getAxisQMsrOnController();
+    }
+
+    @Override
+    public JointPosition getAxisQMsrOnController() {
+      model.readJointPosition(values);
+      return new JointPosition(values);
+    }
+
+    @Override
+    public double[] getVariance() {
+      return new double[SimulatedLBR.JOINT_COUNT];
+    }
+
+    @Override
+    public double[] getExtForceMsr() {
+      return new double[6];
+    }
+
+    @Override
+    public Vector getExtForceVector() {
+      return Vector.of(0.0, 0.0, 0.0);
+    }
+
+    @Override
+    public Vector getExtTorqueVector() {
+      return Vector.of(0.0, 0.0, 0.0);
+    }
+
+    @Override
+    public double[] getAxisTauExtMsr() {
+      double[] torque = new double[SimulatedLBR.JOINT_COUNT];
+      model.readExternalTorque(torque);
+      return torque;
+    }
+
+    @Override
+    public Frame getCurrentCartesianDestination(AbstractFrame frame) {
+      model.readDestinationFlangePose(pose);
+      return new Frame(robot.getRootFrame(), SimulatedLBRDevice.toTransformation(pose));
+    }
+
+    @Override
+    public Frame getCurrentCartesianPosition(AbstractFrame frame, AbstractFrame reference) {
+      if (reference != robot.getRootFrame()) {
+        throw new UnsupportedOperationException("Cartesian positions are only simulated in the robot root frame");
+      }
+      return getCurrentCartesianPosition(frame);
+    }
+
+    @Override
+    public Frame getCurrentCartesianPosition(AbstractFrame frame) {
+      model.readFlangePose(pose);
+      return new Frame(robot.getRootFrame(), SimulatedLBRDevice.toTransformation(pose));
+    }
+
+    @Override
+    public void changeControlModeSettings(IMotionControlMode controlMode) {}
+
+    @Override
+    public boolean stopMotion() {
+      return true;
+    }
+
+    @Override
+    public void setMinimumTrajectoryExecutionTime(double time) {
+      minimumTrajectoryExecutionTime = time;
+    }
+
+    @Override
+    public double getMinimumTrajectoryExecutionTime() {
+      return minimumTrajectoryExecutionTime;
+    }
+
+    @Override
+    public void setDetailedOutput(int mode) {}
+
+    @Override
+    public void setGoalReachedEventHandler(IServoOnGoalReachedEvent handler) {
+      goalReachedHandler = handler;
+    }
+
+    @Override
+    public IServoOnGoalReachedEvent getTheGoalReachedListener() {
+      return goalReachedHandler;
+    }
+
+    @Override
+    public Double[] inquireComplianceParameter() {
+      return new Double[0];
+    }
+
+    @Override
+    public void waitForPauseState() {}
+
+    @Override
+    @Deprecated
+    public void activatewaitForPauseDuringSetDestination(boolean enable) {}
+
+    @Override
+    public boolean isPaused() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "SimulatedSmartServo runtime";
+    }
+  }
+}
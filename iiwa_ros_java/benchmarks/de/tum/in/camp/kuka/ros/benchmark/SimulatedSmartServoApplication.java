@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+
+import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.roboticsAPI.persistenceModel.processDataModel.IProcessData;
+
+import de.tum.in.camp.kuka.ros.Configuration;
+import de.tum.in.camp.kuka.ros.ControlModeHandler;
+import de.tum.in.camp.kuka.ros.FixedRateScheduler;
+import de.tum.in.camp.kuka.ros.LatencyMonitor;
+import de.tum.in.camp.kuka.ros.PublisherThread;
+import de.tum.in.camp.kuka.ros.app.ROSSmartServo;
+import de.tum.in.camp.kuka.ros.iiwaActionServer;
+import de.tum.in.camp.kuka.ros.iiwaPublisher;
+
+/**
+ * ROSSmartServo running against a SimulatedLBR, on a given ROS master. <br>
+ * <i>start</i> does what ROSBaseApplication.initialize and run do, without the Sunrise runtime: the process
+ * data are given to the constructor, the robot is a SimulatedLBRDevice, the SmartServo motion is a
+ * SimulatedSmartServo, and the state is published from the SimulatedLBR. The control loop, the command
+ * handling, Motions and ControlModeHandler are the ones of the application.
+ * <p>
+ * The SmartServo joint space and Cartesian commands are executed by SimulatedSmartServo, the Cartesian ones
+ * through the inverse kinematics of the SimulatedLBR. The joint position goals of the action server are PTP
+ * motions, executed by the SimulatedController. Switching to another SmartServo motion is not simulated:
+ * after a goal, or for the SmartServoLIN commands, the ControlModeHandler needs the Sunrise execution service.
+ * The robot is not attached to the world frame, so the SmartServo motions can not be prepared in advance and a
+ * warning is logged when the loop starts; MotionSwitchBenchmark measures the switches with prepared motions.
+ */
+public class SimulatedSmartServoApplication extends ROSSmartServo {
+  private static final long CONTROL_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long STATE_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final SimulatedLBR model;
+  private final IApplicationData applicationData;
+  private FixedRateScheduler publisherScheduler = null;
+  private Thread controlLoopThread = null;
+
+  /**
+   * @param model : the simulated robot.
+   * @param robotName : name of the robot, used as namespace of its topics and parameters.
+   * @param masterUri : ROS master to connect to.
+   */
+  public SimulatedSmartServoApplication(SimulatedLBR model, String robotName, URI masterUri) {
+    this.model = model;
+    applicationData = simulatedApplicationData(robotName, masterUri);
+  }
+
+  /**
+   * Returns application data holding the process data read by Configuration.
+   * 
+   * @param robotName : name of the robot, used as namespace of its topics and parameters.
+   * @param masterUri : ROS master to connect to.
+   */
+  static IApplicationData simulatedApplicationData(String robotName, URI masterUri) {
+    final Map<String, Object> processData = new HashMap<String, Object>();
+    processData.put("robot_name", robotName);
+    processData.put("robot_ip", masterUri.getHost());
+    processData.put("ntp", false);
+    processData.put("debug", false);
+    processData.put("master_ip", masterUri.getHost());
+    processData.put("master_port", String.valueOf(masterUri.getPort()));
+    return (IApplicationData) Proxy.newProxyInstance(SimulatedSmartServoApplication.class.getClassLoader(), new Class<?>[] { IApplicationData.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().endsWith("etProcessData") && processData.containsKey(args[0])) {
+              return processDataOf(processData.get(args[0]));
+            }
+            throw new UnsupportedOperationException(method.getName() + " is not simulated");
+          }
+        });
+  }
+
+  private static IProcessData processDataOf(final Object value) {
+    return (IProcessData) Proxy.newProxyInstance(SimulatedSmartServoApplication.class.getClassLoader(), new Class<?>[] { IProcessData.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getValue")) {
+              return value;
+            }
+            throw new UnsupportedOperationException(method.getName() + " is not simulated");
+          }
+        });
+  }
+
+  @Override
+  public IApplicationData getApplicationData() {
+    return applicationData;
+  }
+
+  @Override
+  protected NodeConfiguration configureNode(String nodeName, int tcpPort, int xmlPort) throws URISyntaxException {
+    NodeConfiguration nodeConfiguration = NodeConfiguration.newPrivate(configuration.getMasterURI());
+    nodeConfiguration.setTimeProvider(configuration.getTimeProvider());
+    nodeConfiguration.setNodeName(configuration.getRobotName() + nodeName);
+    return nodeConfiguration;
+  }
+
+  /**
+   * Starts the ROS nodes, waits for the connection to the master and starts the control loop.
+   */
+  public void start() throws URISyntaxException, InterruptedException {
+    SimulatedLBRDevice device = new SimulatedLBRDevice(model);
+    robot = device;
+    configuration = new Configuration(applicationData);
+    publisher = new iiwaPublisher(model, null, configuration.getRobotName(), configuration.getTimeProvider());
+    actionServer = new iiwaActionServer(robot, configuration);
+    actionServer.setGoalSignal(controlLoopSignal);
+
+    configurationNodeConfiguration = configureNode("/iiwa_configuration", 0, 0);
+    publisherNodeConfiguration = configureNode("/iiwa_publisher", 0, 0);
+    actionServerNodeConfiguration = configureNode("/iiwa_action_server", 0, 0);
+    configureNodes();
+    nodeMainExecutor = DefaultNodeMainExecutor.newDefault();
+    executeNode(configuration, configurationNodeConfiguration);
+    executeNode(publisher, publisherNodeConfiguration);
+    executeNode(actionServer, actionServerNodeConfiguration);
+    addNodesToExecutor(nodeMainExecutor);
+    initializeApp();
+    configuration.waitForInitialization();
+
+    toolFrameID = configuration.getRobotName() + toolFrameIDSuffix;
+    toolFrame = robot.getFlange();
+    endpointFrame = toolFrame;
+    controlModeHandler = new ControlModeHandler(robot, tool, endpointFrame, publisher, actionServer, configuration);
+    // Stands for the motion created by the ControlModeHandler and started with moveAsync.
+    motion = new SimulatedSmartServo(device, robot.getCurrentJointPosition());
+    publisher.setPublishJointStates(configuration.getPublishJointStates());
+    beforeControlLoop();
+
+    actionServer.setFeedbackPeriod(configuration.getActionFeedbackPeriod());
+    publisher.setActionServer(actionServer);
+    publisherScheduler = new FixedRateScheduler("iiwa_publisher", STATE_PERIOD_NS, TimeUnit.NANOSECONDS, new PublisherThread(publisher, endpointFrame));
+    publisherScheduler.start();
+    running = true;
+    controlLoopThread = new Thread("iiwa_control_loop") {
+      @Override
+      public void run() {
+        runControlLoop();
+      }
+    };
+    controlLoopThread.setDaemon(true);
+    controlLoopThread.start();
+  }
+
+  /**
+   * Same loop as the event driven one of ROSBaseApplication.run, waking up at least every control period to
+   * advance the simulated robot. While streaming it also waits, where the controller would block in
+   * setDestination.
+   */
+  private void runControlLoop() {
+    long last = System.nanoTime();
+    while (running) {
+      long timeout = CONTROL_PERIOD_NS;
+      long nextCycleDelay = getNextCycleDelayNs();
+      if (nextCycleDelay >= 0 && nextCycleDelay < timeout) {
+        timeout = nextCycleDelay;
+      }
+      controlLoopSignal.await(timeout, TimeUnit.NANOSECONDS);
+
+      controlModeLock.lock();
+      try {
+        configChanges.applyPending();
+        controlLoop();
+      }
+      finally {
+        controlModeLock.unlock();
+      }
+
+      long now = System.nanoTime();
+      model.step((now - last) / 1e9);
+      last = now;
+    }
+  }
+
+  /**
+   * Returns the latency monitor of the simulated robot.
+   */
+  public LatencyMonitor getLatencyMonitor() {
+    return publisher.getLatencyMonitor();
+  }
+
+  /**
+   * Stops the control loop, the publisher and the ROS nodes.
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    controlLoopSignal.signal();
+    if (controlLoopThread != null) {
+      controlLoopThread.join();
+    }
+    if (publisherScheduler != null) {
+      publisherScheduler.requestStop();
+    }
+    if (controlModeHandler != null) {
+      controlModeHandler.dispose();
+    }
+    if (nodeMainExecutor != null) {
+      nodeMainExecutor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,484 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Quat4d;
+
+import org.ros.RosCore;
+import org.ros.message.Duration;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.topic.Publisher;
+import org.ros.node.topic.Subscriber;
+
+import com.github.rosjava_actionlib.ActionClient;
+import com.github.rosjava_actionlib.ActionClientListener;
+
+import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
+import de.tum.in.camp.kuka.ros.Conversions;
+import de.tum.in.camp.kuka.ros.LatencyHistogram;
+import de.tum.in.camp.kuka.ros.LatencyMonitor;
+
+/**
+ * Load test of the stack against a SimulatedLBR, on a private local master. <br>
+ * ROSSmartServo runs as a SimulatedSmartServoApplication: its control loop executes the commands through
+ * Motions, and iiwaPublisher publishes the simulated state at 1 kHz. A client node streams one SmartServo
+ * command type per phase at 1 kHz and subscribes to all the state topics, so that they are all published.
+ * The last phase sends MoveToJointPosition goals one after the other, and measures the time until their result.
+ * <p>
+ * For every phase it reports the command pickup and end to end latencies measured by LatencyMonitor, and
+ * rate and inter-arrival times of every state topic as seen by the client. <br>
+ * Run with <i>benchmarks/run.sh SimulatedStackBenchmark [phase filter] [phase duration in s]</i>.
+ * <p>
+ * The goals run last: the SimulatedSmartServoApplication can not switch back to a SmartServo motion after
+ * them. Switching between motions is measured by MotionSwitchBenchmark.
+ */
+public class SimulatedStackBenchmark {
+  private static final String ROBOT_NAME = "iiwa";
+  private static final long COMMAND_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(1);
+  // Points per JointPositionBatch message, each one COMMAND_PERIOD_NS after the previous one.
+  private static final int BATCH_SIZE = 10;
+  private static final long TIMEOUT_S = 10;
+  private static final double FEEDBACK_PERIOD_S = 0.05;
+
+  private static final String[] STATE_TOPICS = { "state/JointPosition", "state/JointPositionVelocity", "state/JointVelocity", "state/JointTorque",
+      "state/ExternalJointTorque", "state/CartesianPose", "state/CartesianWrench", "joint_states" };
+  private static final String[] STATE_TYPES = { iiwa_msgs.JointPosition._TYPE, iiwa_msgs.JointPositionVelocity._TYPE, iiwa_msgs.JointVelocity._TYPE,
+      iiwa_msgs.JointTorque._TYPE, iiwa_msgs.JointTorque._TYPE, iiwa_msgs.CartesianPose._TYPE, iiwa_msgs.CartesianWrench._TYPE, sensor_msgs.JointState._TYPE };
+
+  public static void main(String[] args) throws Exception {
+    String filter = args.length > 0 ? args[0] : "";
+    double duration = args.length > 1 ? Double.parseDouble(args[1]) : 5.0;
+    try {
+      Class.forName("org.slf4j.LoggerFactory");
+    }
+    catch (ClassNotFoundException e) {
+      System.out.println("The KUKA device model logs through slf4j, add slf4j-api to BENCHMARK_CLASSPATH");
+      return;
+    }
+
+    RosCore rosCore = RosCore.newPrivate();
+    rosCore.start();
+    if (!rosCore.awaitStart(TIMEOUT_S, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("ROS master did not start");
+    }
+    NodeMainExecutor executor = DefaultNodeMainExecutor.newDefault();
+    // The client sets the parameters read by the application while it starts.
+    LoadClient client = new LoadClient();
+    executor.execute(client, NodeConfiguration.newPrivate(rosCore.getUri()));
+    SimulatedSmartServoApplication application = new SimulatedSmartServoApplication(new SimulatedLBR(ROBOT_NAME), ROBOT_NAME, rosCore.getUri());
+
+    try {
+      if (!client.awaitStart()) {
+        System.out.println("The load client did not start");
+        return;
+      }
+      application.start();
+      application.getLatencyMonitor().setEnabled(true);
+      if (!client.awaitConnection()) {
+        System.out.println("Connection to the simulated robot failed");
+        return;
+      }
+
+      for (CommandType phase : new CommandType[] { CommandType.SMART_SERVO_JOINT_POSITION, CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY,
+          CommandType.SMART_SERVO_JOINT_VELOCITY, CommandType.SMART_SERVO_JOINT_POSITION_BATCH, CommandType.SMART_SERVO_CARTESIAN_POSE }) {
+        if (phase.toString().contains(filter)) {
+          runPhase(phase, duration, client, application.getLatencyMonitor());
+        }
+      }
+      if (CommandType.POINT_TO_POINT_JOINT_POSITION.toString().contains(filter)) {
+        runGoals(duration, client);
+      }
+    }
+    finally {
+      application.stop();
+      executor.shutdown();
+      rosCore.shutdown();
+      // The ROS threads are not daemons, exit even if the run fails.
+      System.exit(0);
+    }
+  }
+
+  private static void runPhase(CommandType phase, double duration, LoadClient client, LatencyMonitor latencyMonitor) throws InterruptedException {
+    // Discard what has been measured before this phase.
+    latencyMonitor.drainReport();
+    client.resetStatistics();
+    double[] bufferState = client.getBatchBufferState();
+
+    long start = System.nanoTime();
+    long end = start + (long) (duration * 1e9);
+    long next = start;
+    long sent = 0;
+    while (next - end < 0) {
+      while (System.nanoTime() - next < 0) {
+        Thread.yield();
+      }
+      double t = (next - start) / 1e9;
+      if (phase == CommandType.SMART_SERVO_JOINT_POSITION_BATCH) {
+        client.sendBatch(t, COMMAND_PERIOD_NS / 1e9);
+        next += BATCH_SIZE * COMMAND_PERIOD_NS;
+      }
+      else {
+        client.sendCommand(phase, t);
+        next += COMMAND_PERIOD_NS;
+      }
+      sent++;
+    }
+    if (phase == CommandType.SMART_SERVO_JOINT_POSITION_BATCH) {
+      // Let the buffered points play out, reaching the end of the trajectory is not an underrun.
+      client.endBatch();
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(10 * BATCH_SIZE * COMMAND_PERIOD_NS));
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(String.format("%s: %d messages sent in %.1f s", phase, sent, elapsed));
+    System.out.print(latencyMonitor.drainReport());
+    if (phase == CommandType.SMART_SERVO_JOINT_POSITION_BATCH) {
+      // [buffered points, capacity, buffered time in s, underruns, overflows]
+      double[] state = client.getBatchBufferState();
+      System.out.println(String.format("  buffer underruns %d, overflows %d", (long) (state[3] - bufferState[3]), (long) (state[4] - bufferState[4])));
+    }
+    client.printStatistics(elapsed);
+    System.out.println();
+  }
+
+  private static void runGoals(double duration, LoadClient client) throws InterruptedException {
+    client.resetStatistics();
+    LatencyHistogram goalTime = new LatencyHistogram();
+    long start = System.nanoTime();
+    long end = start + (long) (duration * 1e9);
+    int sent = 0;
+    int succeeded = 0;
+    long feedback = 0;
+    while (System.nanoTime() - end < 0) {
+      // Back and forth between the two ends of the joint position commands.
+      double[] destination = LoadClient.position(sent % 2 == 0 ? 1.0 / (4 * LoadClient.FREQUENCY) : 3.0 / (4 * LoadClient.FREQUENCY));
+      long sentNs = System.nanoTime();
+      iiwa_msgs.MoveToJointPositionResult result = client.moveToJointPosition(destination);
+      if (result == null) {
+        System.out.println("No result received for the goal " + sent);
+        break;
+      }
+      goalTime.record(System.nanoTime() - sentNs);
+      sent++;
+      if (result.getSuccess()) {
+        succeeded++;
+      }
+      feedback += client.drainFeedbackCount();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    LatencyHistogram.Summary summary = goalTime.drain();
+    System.out.println(String.format("%s: %d goals sent in %.1f s, %d succeeded, %d feedback messages", CommandType.POINT_TO_POINT_JOINT_POSITION, sent,
+        elapsed, succeeded, feedback));
+    System.out.println(String.format("  goal to result p50 %8.1f ms   p99 %8.1f ms   max %8.1f ms", summary.p50Ns / 1e6, summary.p99Ns / 1e6,
+        summary.maxNs / 1e6));
+    client.printStatistics(elapsed);
+    System.out.println();
+  }
+
+  /**
+   * Streams the commands and counts the state messages.
+   */
+  private static class LoadClient extends AbstractNodeMain {
+    private static final double[] HOME = { 0.0, 0.0, 0.0, Math.toRadians(-30), 0.0, 0.0, 0.0 };
+    private static final double AMPLITUDE = 0.2;
+    private static final double FREQUENCY = 0.2;
+    // In m.
+    private static final double CIRCLE_RADIUS = 0.05;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final List<TopicStatistics> statistics = new ArrayList<TopicStatistics>();
+    private Publisher<iiwa_msgs.JointPosition> jointPosition;
+    private Publisher<iiwa_msgs.JointPositionVelocity> jointPositionVelocity;
+    private Publisher<iiwa_msgs.JointVelocity> jointVelocity;
+    private Publisher<std_msgs.Float64MultiArray> jointPositionBatch;
+    private Publisher<geometry_msgs.PoseStamped> cartesianPose;
+    private ActionClient<iiwa_msgs.MoveToJointPositionActionGoal, iiwa_msgs.MoveToJointPositionActionFeedback, iiwa_msgs.MoveToJointPositionActionResult> jointPositionClient;
+    private final Object resultLock = new Object();
+    private iiwa_msgs.MoveToJointPositionResult result = null;
+    private final AtomicLong feedbackCount = new AtomicLong(0);
+    private volatile double[] batchBufferState = new double[5];
+    // Flange pose at HOME, the Cartesian pose commands circle around it.
+    private final Matrix4d homePose = new Matrix4d();
+    private final Quat4d homeOrientation = new Quat4d();
+
+    @Override
+    public GraphName getDefaultNodeName() {
+      return GraphName.of("load_client");
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+      connectedNode.getParameterTree().set(ROBOT_NAME + "/publishJointStates", true);
+      connectedNode.getParameterTree().set(ROBOT_NAME + "/jointPositionBatchPrefill", 0.02);
+      connectedNode.getParameterTree().set(ROBOT_NAME + "/ActionServer/feedbackPeriod", FEEDBACK_PERIOD_S);
+      jointPosition = connectedNode.newPublisher(ROBOT_NAME + "/command/JointPosition", iiwa_msgs.JointPosition._TYPE);
+      jointPositionVelocity = connectedNode.newPublisher(ROBOT_NAME + "/command/JointPositionVelocity", iiwa_msgs.JointPositionVelocity._TYPE);
+      jointVelocity = connectedNode.newPublisher(ROBOT_NAME + "/command/JointVelocity", iiwa_msgs.JointVelocity._TYPE);
+      jointPositionBatch = connectedNode.newPublisher(ROBOT_NAME + "/command/JointPositionBatch", std_msgs.Float64MultiArray._TYPE);
+      cartesianPose = connectedNode.newPublisher(ROBOT_NAME + "/command/CartesianPose", geometry_msgs.PoseStamped._TYPE);
+      SimulatedLBR home = new SimulatedLBR(ROBOT_NAME);
+      home.setDestination(HOME);
+      home.readDestinationFlangePose(homePose);
+      homeOrientation.set(homePose);
+
+      jointPositionClient = new ActionClient<iiwa_msgs.MoveToJointPositionActionGoal, iiwa_msgs.MoveToJointPositionActionFeedback, iiwa_msgs.MoveToJointPositionActionResult>(
+          connectedNode, ROBOT_NAME + "/action/move_to_joint_position", iiwa_msgs.MoveToJointPositionActionGoal._TYPE,
+          iiwa_msgs.MoveToJointPositionActionFeedback._TYPE, iiwa_msgs.MoveToJointPositionActionResult._TYPE);
+      jointPositionClient.attachListener(new ActionClientListener<iiwa_msgs.MoveToJointPositionActionFeedback, iiwa_msgs.MoveToJointPositionActionResult>() {
+        @Override
+        public void resultReceived(iiwa_msgs.MoveToJointPositionActionResult message) {
+          synchronized (resultLock) {
+            result = message.getResult();
+            resultLock.notifyAll();
+          }
+        }
+
+        @Override
+        public void feedbackReceived(iiwa_msgs.MoveToJointPositionActionFeedback message) {
+          feedbackCount.incrementAndGet();
+        }
+
+        @Override
+        public void statusReceived(actionlib_msgs.GoalStatusArray status) {}
+      });
+
+      for (int i = 0; i < STATE_TOPICS.length; i++) {
+        final TopicStatistics topic = new TopicStatistics(STATE_TOPICS[i]);
+        statistics.add(topic);
+        Subscriber<Object> subscriber = connectedNode.newSubscriber(ROBOT_NAME + "/" + STATE_TOPICS[i], STATE_TYPES[i]);
+        subscriber.addMessageListener(new MessageListener<Object>() {
+          @Override
+          public void onNewMessage(Object message) {
+            topic.received();
+          }
+        }, 16);
+      }
+      Subscriber<std_msgs.Float64MultiArray> batchBuffer = connectedNode.newSubscriber(ROBOT_NAME + "/state/JointPositionBatchBuffer",
+          std_msgs.Float64MultiArray._TYPE);
+      batchBuffer.addMessageListener(new MessageListener<std_msgs.Float64MultiArray>() {
+        @Override
+        public void onNewMessage(std_msgs.Float64MultiArray message) {
+          batchBufferState = message.getData();
+        }
+      });
+      started.countDown();
+    }
+
+    /**
+     * Waits until the node has started and set the parameters.
+     */
+    boolean awaitStart() throws InterruptedException {
+      return started.await(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits until the commands can be sent and all the state topics are being received.
+     */
+    boolean awaitConnection() throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+      while (System.nanoTime() < deadline) {
+        boolean connected = jointPosition.getNumberOfSubscribers() > 0 && jointPositionVelocity.getNumberOfSubscribers() > 0
+            && jointVelocity.getNumberOfSubscribers() > 0 && jointPositionBatch.getNumberOfSubscribers() > 0 && cartesianPose.getNumberOfSubscribers() > 0;
+        for (TopicStatistics topic : statistics) {
+          connected &= topic.count.get() > 0;
+        }
+        if (connected) {
+          return jointPositionClient.waitForActionServerToStart(new Duration((deadline - System.nanoTime()) / 1e9));
+        }
+        Thread.sleep(100);
+      }
+      return false;
+    }
+
+    void sendCommand(CommandType type, double t) {
+      switch (type) {
+        case SMART_SERVO_JOINT_POSITION: {
+          iiwa_msgs.JointPosition message = jointPosition.newMessage();
+          Conversions.vectorToJointQuantity(position(t), message.getPosition());
+          jointPosition.publish(message);
+          break;
+        }
+        case SMART_SERVO_JOINT_POSITION_VELOCITY: {
+          iiwa_msgs.JointPositionVelocity message = jointPositionVelocity.newMessage();
+          Conversions.vectorToJointQuantity(position(t), message.getPosition());
+          Conversions.vectorToJointQuantity(velocity(t), message.getVelocity());
+          jointPositionVelocity.publish(message);
+          break;
+        }
+        case SMART_SERVO_JOINT_VELOCITY: {
+          iiwa_msgs.JointVelocity message = jointVelocity.newMessage();
+          Conversions.vectorToJointQuantity(velocity(t), message.getVelocity());
+          jointVelocity.publish(message);
+          break;
+        }
+        case SMART_SERVO_CARTESIAN_POSE: {
+          geometry_msgs.PoseStamped message = cartesianPose.newMessage();
+          // The robot base frame, used as it is.
+          message.getHeader().setFrameId(ROBOT_NAME + "_link_0");
+          double angle = 2 * Math.PI * FREQUENCY * t;
+          message.getPose().getPosition().setX(homePose.m03 + CIRCLE_RADIUS * Math.sin(angle));
+          message.getPose().getPosition().setY(homePose.m13);
+          message.getPose().getPosition().setZ(homePose.m23 + CIRCLE_RADIUS * (Math.cos(angle) - 1));
+          message.getPose().getOrientation().setX(homeOrientation.x);
+          message.getPose().getOrientation().setY(homeOrientation.y);
+          message.getPose().getOrientation().setZ(homeOrientation.z);
+          message.getPose().getOrientation().setW(homeOrientation.w);
+          cartesianPose.publish(message);
+          break;
+        }
+        default: {
+          throw new IllegalArgumentException("commandType: " + type);
+        }
+      }
+    }
+
+    void sendBatch(double t, double dt) {
+      int rowLength = HOME.length + 1;
+      double[] data = new double[BATCH_SIZE * rowLength];
+      for (int row = 0; row < BATCH_SIZE; row++) {
+        data[row * rowLength] = dt;
+        System.arraycopy(position(t + row * dt), 0, data, row * rowLength + 1, HOME.length);
+      }
+      std_msgs.Float64MultiArray message = jointPositionBatch.newMessage();
+      message.setData(data);
+      jointPositionBatch.publish(message);
+    }
+
+    void endBatch() {
+      std_msgs.Float64MultiArray message = jointPositionBatch.newMessage();
+      message.setData(new double[0]);
+      jointPositionBatch.publish(message);
+    }
+
+    /**
+     * Sends a MoveToJointPosition goal and waits for its result, null if none is received in time.
+     */
+    iiwa_msgs.MoveToJointPositionResult moveToJointPosition(double[] destination) throws InterruptedException {
+      iiwa_msgs.MoveToJointPositionActionGoal goal = jointPositionClient.newGoalMessage();
+      Conversions.vectorToJointQuantity(destination, goal.getGoal().getJointPosition().getPosition());
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+      synchronized (resultLock) {
+        result = null;
+        jointPositionClient.sendGoal(goal);
+        while (result == null) {
+          long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (remaining <= 0) {
+            return null;
+          }
+          resultLock.wait(remaining);
+        }
+        return result;
+      }
+    }
+
+    /**
+     * Returns the number of feedback messages received since the last call.
+     */
+    long drainFeedbackCount() {
+      return feedbackCount.getAndSet(0);
+    }
+
+    /**
+     * Returns the last state of the JointPositionBatch buffer, as published by the robot.
+     */
+    double[] getBatchBufferState() {
+      return batchBufferState.clone();
+    }
+
+    private static double[] position(double t) {
+      double[] q = new double[HOME.length];
+      for (int i = 0; i < q.length; i++) {
+        q[i] = HOME[i] + AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * t);
+      }
+      return q;
+    }
+
+    private static double[] velocity(double t) {
+      double[] qd = new double[HOME.length];
+      for (int i = 0; i < qd.length; i++) {
+        qd[i] = 2 * Math.PI * FREQUENCY * AMPLITUDE * Math.cos(2 * Math.PI * FREQUENCY * t);
+      }
+      return qd;
+    }
+
+    void resetStatistics() {
+      for (TopicStatistics topic : statistics) {
+        topic.drain();
+      }
+    }
+
+    void printStatistics(double elapsed) {
+      for (TopicStatistics topic : statistics) {
+        long count = topic.count.get();
+        LatencyHistogram.Summary interArrival = topic.drain();
+        System.out.println(String.format("  %-32s %8.1f msg/s   inter-arrival p50 %8.1f us   p99 %8.1f us   max %8.1f us", topic.name, count / elapsed,
+            interArrival.p50Ns / 1e3, interArrival.p99Ns / 1e3, interArrival.maxNs / 1e3));
+      }
+    }
+  }
+
+  private static class TopicStatistics {
+    private final String name;
+    private final AtomicLong count = new AtomicLong(0);
+    private final LatencyHistogram interArrival = new LatencyHistogram();
+    private volatile long lastReceivedNs = 0;
+
+    TopicStatistics(String name) {
+      this.name = name;
+    }
+
+    void received() {
+      long now = System.nanoTime();
+      long last = lastReceivedNs;
+      if (last != 0) {
+        interArrival.record(now - last);
+      }
+      lastReceivedNs = now;
+      count.incrementAndGet();
+    }
+
+    LatencyHistogram.Summary drain() {
+      count.set(0);
+      return interArrival.drain();
+    }
+  }
+}
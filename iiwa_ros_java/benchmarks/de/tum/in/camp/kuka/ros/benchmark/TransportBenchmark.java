@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ros.RosCore;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.topic.Publisher;
+import org.ros.node.topic.Subscriber;
+
+import de.tum.in.camp.kuka.ros.TransportSettings;
+
+/**
+ * Measures the round-trip latency of a JointPosition command over a local TCPROS loopback, for different
+ * transport settings. <br>
+ * A client node publishes ping messages at a fixed rate, an echo node publishes them back as pong: both
+ * subscribers use the transport settings under test, so they apply to both directions. The index of every
+ * message travels in its first joint value.
+ * <p>
+ * Run with <i>benchmarks/run.sh TransportBenchmark</i>, optionally followed by a substring to select the
+ * settings to run. On the loopback the numbers only show the overhead of the Java stack and the effect of
+ * Nagle's algorithm; run the echo side on the cabinet to include the real link.
+ */
+public class TransportBenchmark {
+  private static final int WARMUP_MESSAGES = 500;
+  private static final int MEASURED_MESSAGES = 5000;
+  private static final long PUBLISHING_PERIOD_NS = TimeUnit.MICROSECONDS.toNanos(1000);
+  private static final long TIMEOUT_S = 10;
+
+  public static void main(String[] args) throws Exception {
+    String filter = args.length > 0 ? args[0] : "";
+
+    TransportSettings[] settings = { new TransportSettings(false, 1), new TransportSettings(true, 1), new TransportSettings(false, 16),
+        new TransportSettings(true, 16) };
+
+    RosCore rosCore = RosCore.newPrivate();
+    rosCore.start();
+    if (!rosCore.awaitStart(TIMEOUT_S, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("ROS master did not start");
+    }
+    NodeMainExecutor executor = DefaultNodeMainExecutor.newDefault();
+
+    try {
+      for (int i = 0; i < settings.length; i++) {
+        String name = "JointPosition round trip, " + settings[i];
+        if (name.contains(filter)) {
+          run(executor, rosCore, "/benchmark_" + i, name, settings[i]);
+        }
+      }
+    }
+    finally {
+      executor.shutdown();
+      rosCore.shutdown();
+    }
+  }
+
+  private static void run(NodeMainExecutor executor, RosCore rosCore, String namespace, String name, TransportSettings settings) throws InterruptedException {
+    EchoNode echo = new EchoNode(namespace, settings);
+    ClientNode client = new ClientNode(namespace, settings, WARMUP_MESSAGES + MEASURED_MESSAGES);
+    executor.execute(echo, NodeConfiguration.newPrivate(rosCore.getUri()));
+    executor.execute(client, NodeConfiguration.newPrivate(rosCore.getUri()));
+
+    try {
+      if (!client.started.await(TIMEOUT_S, TimeUnit.SECONDS) || !client.awaitConnection()) {
+        System.out.println(String.format("%-60s connection failed", name));
+        return;
+      }
+
+      // Publish at a fixed rate, as a planner would.
+      long next = System.nanoTime();
+      for (int i = 0; i < WARMUP_MESSAGES + MEASURED_MESSAGES; i++) {
+        while (System.nanoTime() - next < 0) {
+          Thread.yield();
+        }
+        client.ping(i);
+        next += PUBLISHING_PERIOD_NS;
+      }
+      // Leave some time to the last messages.
+      Thread.sleep(500);
+
+      double[] roundTripUs = new double[MEASURED_MESSAGES];
+      int received = 0;
+      for (int i = WARMUP_MESSAGES; i < WARMUP_MESSAGES + MEASURED_MESSAGES; i++) {
+        if (client.receivedNs[i] != 0) {
+          roundTripUs[received++] = (client.receivedNs[i] - client.sentNs[i]) / 1e3;
+        }
+      }
+      if (received == 0) {
+        System.out.println(String.format("%-60s no message received", name));
+        return;
+      }
+      roundTripUs = Arrays.copyOf(roundTripUs, received);
+      Arrays.sort(roundTripUs);
+
+      System.out.println(String.format("%-60s p50 %8.1f us   p90 %8.1f us   p99 %8.1f us   max %8.1f us   lost %d/%d", name, percentile(roundTripUs, 0.5),
+          percentile(roundTripUs, 0.9), percentile(roundTripUs, 0.99), roundTripUs[roundTripUs.length - 1], MEASURED_MESSAGES - received, MEASURED_MESSAGES));
+    }
+    finally {
+      executor.shutdownNodeMain(client);
+      executor.shutdownNodeMain(echo);
+    }
+  }
+
+  private static double percentile(double[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+  }
+
+  /**
+   * Publishes back every received ping.
+   */
+  private static class EchoNode extends AbstractNodeMain {
+    private final String namespace;
+    private final TransportSettings settings;
+
+    EchoNode(String namespace, TransportSettings settings) {
+      this.namespace = namespace;
+      this.settings = settings;
+    }
+
+    @Override
+    public GraphName getDefaultNodeName() {
+      return GraphName.of(namespace + "/echo");
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+      final Publisher<iiwa_msgs.JointPosition> pong = connectedNode.newPublisher(namespace + "/pong", iiwa_msgs.JointPosition._TYPE);
+      Subscriber<iiwa_msgs.JointPosition> ping = connectedNode.newSubscriber(namespace + "/ping", iiwa_msgs.JointPosition._TYPE, settings.toTransportHints());
+      ping.addMessageListener(new MessageListener<iiwa_msgs.JointPosition>() {
+        @Override
+        public void onNewMessage(iiwa_msgs.JointPosition message) {
+          pong.publish(message);
+        }
+      }, settings.getQueueLength());
+    }
+  }
+
+  /**
+   * Publishes the pings and records when their pongs come back.
+   */
+  private static class ClientNode extends AbstractNodeMain {
+    private final String namespace;
+    private final TransportSettings settings;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final long[] sentNs;
+    private final long[] receivedNs;
+    private Publisher<iiwa_msgs.JointPosition> ping;
+
+    ClientNode(String namespace, TransportSettings settings, int messages) {
+      this.namespace = namespace;
+      this.settings = settings;
+      sentNs = new long[messages];
+      receivedNs = new long[messages];
+    }
+
+    @Override
+    public GraphName getDefaultNodeName() {
+      return GraphName.of(namespace + "/client");
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+      ping = connectedNode.newPublisher(namespace + "/ping", iiwa_msgs.JointPosition._TYPE);
+      Subscriber<iiwa_msgs.JointPosition> pong = connectedNode.newSubscriber(namespace + "/pong", iiwa_msgs.JointPosition._TYPE, settings.toTransportHints());
+      pong.addMessageListener(new MessageListener<iiwa_msgs.JointPosition>() {
+        @Override
+        public void onNewMessage(iiwa_msgs.JointPosition message) {
+          long now = System.nanoTime();
+          int index = (int) message.getPosition().getA1();
+          if (index >= 0) {
+            receivedNs[index] = now;
+          }
+          else {
+            connected.countDown();
+          }
+        }
+      }, settings.getQueueLength());
+      started.countDown();
+    }
+
+    /**
+     * Sends probes with a negative index until one comes back, i.e. until both connections are up.
+     */
+    boolean awaitConnection() throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+      while (System.nanoTime() < deadline) {
+        ping(-1);
+        if (connected.await(100, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void ping(int index) {
+      iiwa_msgs.JointPosition message = ping.newMessage();
+      message.getPosition().setA1(index);
+      message.getPosition().setA2(0.2f);
+      message.getPosition().setA3(0.3f);
+      message.getPosition().setA4(-1.2f);
+      message.getPosition().setA5(0.5f);
+      message.getPosition().setA6(0.6f);
+      message.getPosition().setA7(0.7f);
+      if (index >= 0) {
+        sentNs[index] = System.nanoTime();
+      }
+      ping.publish(message);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ros.time.WallTimeProvider;
+
+import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
+import de.tum.in.camp.kuka.ros.Conversions;
+import de.tum.in.camp.kuka.ros.LatencyMonitor;
+import de.tum.in.camp.kuka.ros.Motions;
+import de.tum.in.camp.kuka.ros.VelocityCommandServo;
+import de.tum.in.camp.kuka.ros.iiwaPublisher;
+
+/**
+ * Checks the integration of the velocity commands by VelocityCommandServo, with a SimulatedLBR following the
+ * integrated destinations. <br>
+ * The servo is first stepped with a simulated clock: one destination per period, the command timeout, the
+ * step limit of a stalled loop. Then the joint velocity commands go through Motions to a SimulatedLBRDevice in
+ * real time, checking the soft joint limits and the latency instrumentation.
+ * <p>
+ * Run with <i>benchmarks/run.sh VelocityCommandServoTest</i>, with slf4j-api on BENCHMARK_CLASSPATH, exits with
+ * status 1 on failure.
+ */
+public class VelocityCommandServoTest {
+  private static final double PERIOD = 0.005;
+  private static final double TIMEOUT = 0.2;
+  private static final long TICK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private static int failures = 0;
+
+  public static void main(String[] args) throws InterruptedException {
+    stepsOncePerPeriod();
+    robotFollowsAndStopsAtTimeout();
+    stalledLoopFallsBehind();
+    motionsKeepSoftJointLimits();
+    System.out.println(failures == 0 ? "VelocityCommandServo: all checks passed" : "VelocityCommandServo: " + failures + " failures");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  private static VelocityCommandServo servo(double velocity) {
+    VelocityCommandServo servo = new VelocityCommandServo(SimulatedLBR.JOINT_COUNT);
+    servo.setTiming(PERIOD, TIMEOUT);
+    servo.getVelocity()[0] = velocity;
+    return servo;
+  }
+
+  private static void stepsOncePerPeriod() {
+    VelocityCommandServo servo = servo(0.5);
+    double[] destination = new double[SimulatedLBR.JOINT_COUNT];
+    long now = 1000 * PERIOD_NS;
+    check("first command starts the servo", servo.command(now), "already active");
+    check("renewed command does not restart it", !servo.command(now), "restarted");
+    check("no destination before a period", !servo.step(now + PERIOD_NS / 2, destination), "stepped after half a period");
+    check("next step is due after the period", servo.getNextStepDelayNs(now) == PERIOD_NS, servo.getNextStepDelayNs(now) + " ns");
+    check("destination after a period", servo.step(now + PERIOD_NS, destination), "did not step");
+    check("integrates the velocity over the period", Math.abs(destination[0] - 0.5 * PERIOD) < 1e-12 && destination[1] == 0.0, destination[0] + "");
+    servo.stop();
+    check("stop ends the stepping", !servo.step(now + 10 * PERIOD_NS, destination) && servo.getNextStepDelayNs(now) == -1, "still stepping");
+  }
+
+  private static void robotFollowsAndStopsAtTimeout() {
+    double velocity = 0.2;
+    VelocityCommandServo servo = servo(velocity);
+    SimulatedLBR robot = new SimulatedLBR("iiwa");
+    double[] destination = new double[SimulatedLBR.JOINT_COUNT];
+    double[] position = new double[SimulatedLBR.JOINT_COUNT];
+    long start = 1000 * PERIOD_NS;
+    long lastCommand = start;
+    long now = start;
+    // Commands renewed every 10 ms for 0.5 s, then no more commands for 0.5 s.
+    for (int tick = 0; tick < 1000; tick++) {
+      now = start + tick * TICK_NS;
+      if (tick < 500 && tick % 10 == 0) {
+        servo.command(now);
+        lastCommand = now;
+      }
+      if (servo.step(now, destination)) {
+        robot.setDestination(destination);
+      }
+      robot.step(TICK_NS / 1e9);
+    }
+    robot.readJointPosition(position);
+    // Integrated until the last command timed out, within a period.
+    double expected = velocity * ((lastCommand - start) / 1e9 + TIMEOUT);
+    check("robot follows the velocity command", Math.abs(position[0] - expected) <= velocity * PERIOD, position[0] + " instead of " + expected);
+    check("other joints do not move", position[1] == 0.0, "joint 2 at " + position[1]);
+    check("timed out command stops the servo", !servo.isActive() && servo.getTimeoutCount() == 1 && servo.getNextStepDelayNs(now) == -1, "active "
+        + servo.isActive() + ", " + servo.getTimeoutCount() + " timeouts");
+  }
+
+  private static void stalledLoopFallsBehind() {
+    VelocityCommandServo servo = servo(1.0);
+    servo.setTiming(PERIOD, 10.0);
+    double[] destination = new double[SimulatedLBR.JOINT_COUNT];
+    long now = 1000 * PERIOD_NS;
+    servo.command(now);
+    servo.step(now + TimeUnit.SECONDS.toNanos(1), destination);
+    check("stalled loop integrates at most 100 ms", Math.abs(destination[0] - 0.1) < 1e-12, destination[0] + "");
+  }
+
+  private static void motionsKeepSoftJointLimits() throws InterruptedException {
+    SimulatedLBR model = new SimulatedLBR("iiwa");
+    SimulatedLBRDevice robot = new SimulatedLBRDevice(model);
+    iiwaPublisher publisher = new iiwaPublisher(model, null, "iiwa", new WallTimeProvider());
+    SimulatedSmartServo motion = new SimulatedSmartServo(robot, robot.getCurrentJointPosition());
+    Motions motions = new Motions(robot, "iiwa_link_0", motion, robot.getFlange(), publisher, null);
+    motions.setVelocityCommandTiming(PERIOD, TIMEOUT);
+    LatencyMonitor latencyMonitor = publisher.getLatencyMonitor();
+    latencyMonitor.setEnabled(true);
+
+    // Far beyond the joint velocity limit of the robot, the destination reaches the limit within 0.1 s.
+    double[] velocity = new double[SimulatedLBR.JOINT_COUNT];
+    velocity[6] = 40.0;
+    iiwa_msgs.JointVelocity command = publisher.getMessageGenerator().buildMessage(iiwa_msgs.JointVelocity._TYPE);
+    Conversions.vectorToJointQuantity(velocity, command.getVelocity());
+
+    double[] destination = new double[SimulatedLBR.JOINT_COUNT];
+    long start = System.nanoTime();
+    long lastCommand = 0;
+    long lastStep = start;
+    while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300)) {
+      long now = System.nanoTime();
+      if (now - lastCommand > TimeUnit.MILLISECONDS.toNanos(10)) {
+        latencyMonitor.commandPickedUp(CommandType.SMART_SERVO_JOINT_VELOCITY, now);
+        motions.jointVelocityMotion(motion, command);
+        latencyMonitor.commandFinished();
+        lastCommand = now;
+      }
+      else {
+        motions.jointVelocityServoMotion(motion);
+      }
+      model.step((now - lastStep) / 1e9);
+      lastStep = now;
+      Thread.sleep(1);
+    }
+    model.readDestination(destination);
+    double limit = model.getMaxJointPosition()[6] - Math.toRadians(1.0);
+    check("destination stops at the soft joint limit", Math.abs(destination[6] - limit) < 1e-4, destination[6] + " instead of " + limit);
+    check("setDestination durations are recorded", latencyMonitor.getHistogram(CommandType.SMART_SERVO_JOINT_VELOCITY,
+        LatencyMonitor.Stage.SET_DESTINATION).drain().count > 0, "none recorded");
+    check("end to end latencies are recorded", latencyMonitor.getHistogram(CommandType.SMART_SERVO_JOINT_VELOCITY, LatencyMonitor.Stage.END_TO_END)
+        .drain().count > 0, "none recorded");
+  }
+
+  private static void check(String name, boolean ok, String detail) {
+    System.out.println(String.format("%-50s %s", name, ok ? "ok" : "FAILED: " + detail));
+    if (!ok) {
+      failures++;
+    }
+  }
+}
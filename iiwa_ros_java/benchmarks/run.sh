@@ -0,0 +1,50 @@
+#!/bin/bash
+# Builds and runs the micro-benchmarks on a plain JVM, against the jars bundled with iiwa_ros_java.
+# Usage: benchmarks/run.sh [ConversionsBenchmark|TransportBenchmark|SimulatedStackBenchmark|NodeLayoutBenchmark|ServiceLatencyBenchmark|CommandMailboxStressTest|MotionSwitchBenchmark|VelocityCommandServoTest|PublisherAllocationTest] [benchmark name filter]
+# The classes running the KUKA device model need slf4j-api, which is looked up in the local Maven repository,
+# the Maven installation and /usr/share/java unless BENCHMARK_CLASSPATH provides it.
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+CP=$(ls "$ROOT"/KUKAJavaLib/*.jar "$ROOT"/ROSJavaLib/*.jar | grep -v javadoc | tr '\n' ':')
+# Jars provided by the controller at runtime, e.g. slf4j-api for the simulated robot.
+CP="$CP${BENCHMARK_CLASSPATH:+:$BENCHMARK_CLASSPATH}"
+if ! echo "$CP" | grep -q "slf4j-api"; then
+  MAVEN_LIB=
+  if command -v mvn > /dev/null 2>&1; then
+    MAVEN_LIB="$(dirname "$(readlink -f "$(command -v mvn)")")/../lib"
+  fi
+  SLF4J=$(ls "$HOME"/.m2/repository/org/slf4j/slf4j-api/*/slf4j-api-*.jar $MAVEN_LIB/slf4j-api-*.jar "$HOME"/.sdkman/candidates/maven/*/lib/slf4j-api-*.jar \
+    /usr/share/java/slf4j-api*.jar 2> /dev/null | grep -v "sources\|javadoc" | head -n 1 || true)
+  CP="$CP${SLF4J:+:$SLF4J}"
+fi
+# Some sources are encoded in Latin-1 and some in UTF-8, non-ASCII characters only appear in comments.
+SOURCES="$(ls "$ROOT"/src/de/tum/in/camp/kuka/ros/*.java) $(find "$ROOT/benchmarks" -name "*.java")"
+# ROSSmartServo, run by SimulatedSmartServoApplication. It is compiled from a copy without the byte order
+# mark, which javac rejects, and javax.annotation is not part of Java 11 and later.
+APP="$OUT/app"
+mkdir -p "$APP/javax/annotation"
+for APP_SOURCE in ROSBaseApplication ROSSmartServo; do
+  sed '1s/^\xEF\xBB\xBF//' "$ROOT/src/de/tum/in/camp/kuka/ros/app/$APP_SOURCE.java" > "$APP/$APP_SOURCE.java"
+  SOURCES="$SOURCES $APP/$APP_SOURCE.java"
+done
+if ! javap javax.annotation.PostConstruct > /dev/null 2>&1; then
+  echo "package javax.annotation; public @interface PostConstruct {}" > "$APP/javax/annotation/PostConstruct.java"
+  SOURCES="$SOURCES $APP/javax/annotation/PostConstruct.java"
+fi
+
+MAIN=ConversionsBenchmark
+if [ -n "$1" ] && [ -f "$ROOT/benchmarks/de/tum/in/camp/kuka/ros/benchmark/$1.java" ]; then
+  MAIN=$1
+  shift
+fi
+
+if ! echo "$CP" | grep -q "slf4j-api" && grep -q "SimulatedLBRDevice\|SimulatedSmartServoApplication" "$ROOT/benchmarks/de/tum/in/camp/kuka/ros/benchmark/$MAIN.java"; then
+  echo "$MAIN runs the KUKA device model, which logs through slf4j: add slf4j-api to BENCHMARK_CLASSPATH" >&2
+  exit 1
+fi
+
+javac -nowarn -encoding ISO-8859-1 -d "$OUT" -cp "$CP" $SOURCES
+java -cp "$OUT:$CP" de.tum.in.camp.kuka.ros.benchmark.$MAIN "$@"
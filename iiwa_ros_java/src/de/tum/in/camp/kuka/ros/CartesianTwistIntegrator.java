@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import javax.vecmath.Quat4d;
+
+import com.kuka.roboticsAPI.geometricModel.Frame;
+
+/**
+ * Integrates a Cartesian twist into a destination frame. <br>
+ * The orientation is kept as a quaternion and rotated by the exponential of the angular velocity, so that
+ * large and combined rotations are integrated correctly. Twists can be expressed in the parent frame of
+ * the destination or in the destination frame itself, e.g. the tool frame. Nothing is allocated after
+ * construction.
+ * <p>
+ * Twists are given as [linear x, y, z in m/s, angular x, y, z in rad/s], positions are kept in mm like in
+ * KUKA frames.
+ */
+public class CartesianTwistIntegrator {
+  private final double[] position = new double[3];
+  private final Quat4d orientation = new Quat4d();
+  private final Quat4d rotation = new Quat4d();
+  private final double[] linear = new double[3];
+
+  /**
+   * Starts integrating from the given frame.
+   */
+  public void reset(Frame destination) {
+    position[0] = destination.getX();
+    position[1] = destination.getY();
+    position[2] = destination.getZ();
+    setFromABC(orientation, destination.getAlphaRad(), destination.getBetaRad(), destination.getGammaRad());
+  }
+
+  /**
+   * Integrates a constant twist over the given time.
+   * 
+   * @param twist : [linear x, y, z in m/s, angular x, y, z in rad/s].
+   * @param inDestinationFrame : true if the twist is expressed in the destination frame, false if it is
+   *          expressed in its parent frame.
+   * @param dt : in s.
+   */
+  public void integrate(double[] twist, boolean inDestinationFrame, double dt) {
+    for (int i = 0; i < 3; i++) {
+      linear[i] = Conversions.rosTranslationToKuka(twist[i]) * dt;
+    }
+    if (inDestinationFrame) {
+      rotate(orientation, linear);
+    }
+    for (int i = 0; i < 3; i++) {
+      position[i] += linear[i];
+    }
+
+    double wx = twist[3] * dt;
+    double wy = twist[4] * dt;
+    double wz = twist[5] * dt;
+    double angle = Math.sqrt(wx * wx + wy * wy + wz * wz);
+    if (angle > 0.0) {
+      double s = Math.sin(angle / 2.0) / angle;
+      rotation.set(wx * s, wy * s, wz * s, Math.cos(angle / 2.0));
+      if (inDestinationFrame) {
+        orientation.mul(rotation);
+      }
+      else {
+        orientation.mul(rotation, orientation);
+      }
+      orientation.normalize();
+    }
+  }
+
+  /**
+   * Writes the integrated position and orientation into the given frame.
+   */
+  public void writeTo(Frame destination) {
+    destination.setX(position[0]);
+    destination.setY(position[1]);
+    destination.setZ(position[2]);
+
+    double x = orientation.getX();
+    double y = orientation.getY();
+    double z = orientation.getZ();
+    double w = orientation.getW();
+    double r00 = 1.0 - 2.0 * (y * y + z * z);
+    double r01 = 2.0 * (x * y - w * z);
+    double r10 = 2.0 * (x * y + w * z);
+    double r11 = 1.0 - 2.0 * (x * x + z * z);
+    double r20 = 2.0 * (x * z - w * y);
+    double r21 = 2.0 * (y * z + w * x);
+    double r22 = 1.0 - 2.0 * (x * x + y * y);
+
+    // KUKA angles: rotation of A around Z, then B around the new Y, then C around the new X.
+    double cosB = Math.sqrt(r00 * r00 + r10 * r10);
+    double b = Math.atan2(-r20, cosB);
+    double a;
+    double c;
+    if (cosB > 1e-9) {
+      a = Math.atan2(r10, r00);
+      c = Math.atan2(r21, r22);
+    }
+    else {
+      // Singular for B = +-90 degrees, only A + C or A - C is defined.
+      a = Math.atan2(-r01, r11);
+      c = 0.0;
+    }
+    destination.setAlphaRad(a);
+    destination.setBetaRad(b);
+    destination.setGammaRad(c);
+  }
+
+  private static void setFromABC(Quat4d q, double a, double b, double c) {
+    double ca = Math.cos(a / 2.0);
+    double sa = Math.sin(a / 2.0);
+    double cb = Math.cos(b / 2.0);
+    double sb = Math.sin(b / 2.0);
+    double cc = Math.cos(c / 2.0);
+    double sc = Math.sin(c / 2.0);
+    // Rz(a) * Ry(b) * Rx(c)
+    q.set(ca * cb * sc - sa * sb * cc, ca * sb * cc + sa * cb * sc, sa * cb * cc - ca * sb * sc, ca * cb * cc + sa * sb * sc);
+  }
+
+  /**
+   * Rotates a vector in place by a unit quaternion.
+   */
+  private static void rotate(Quat4d q, double[] v) {
+    double x = q.getX();
+    double y = q.getY();
+    double z = q.getZ();
+    double w = q.getW();
+    // t = 2 * (q.xyz x v), v' = v + w * t + q.xyz x t
+    double tx = 2.0 * (y * v[2] - z * v[1]);
+    double ty = 2.0 * (z * v[0] - x * v[2]);
+    double tz = 2.0 * (x * v[1] - y * v[0]);
+    double vx = v[0] + w * tx + (y * tz - z * ty);
+    double vy = v[1] + w * ty + (z * tx - x * tz);
+    double vz = v[2] + w * tz + (x * ty - y * tx);
+    v[0] = vx;
+    v[1] = vy;
+    v[2] = vz;
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a stream of position commands going when the next command is late. <br>
+ * The velocity is estimated from the last two commands. Once no command has arrived for 1.5 command
+ * periods, the last command is extrapolated at that velocity for the configured horizon, then the velocity
+ * is linearly ramped down to zero over the deceleration time and the last extrapolated position is held.
+ * <p>
+ * Only streams of at least 10 commands per second are extrapolated, isolated commands are never moved.
+ * Must be used by a single thread, the counters can be read by any thread.
+ */
+public class CommandExtrapolator {
+  // Slowest command period considered a stream.
+  private static final long MAX_STREAM_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  // A command is late when it has not arrived after this many command periods.
+  private static final double GAP_THRESHOLD = 1.5;
+
+  private final double[] lastCommand;
+  private final double[] velocity;
+
+  private long horizonNs = 0;
+  private long decelerationNs = 0;
+
+  private long updates = 0;
+  private long lastUpdateNs = 0;
+  private long lastTickNs = 0;
+  private long periodNs = 0;
+  // Time over which the extrapolated velocity has been applied at the last tick, in s.
+  private double lastExtrapolationTime = 0.0;
+  private volatile boolean inGap = false;
+  private volatile boolean holding = false;
+
+  private volatile long gaps = 0;
+  private volatile long extrapolatedTicks = 0;
+  private volatile long exhaustedGaps = 0;
+
+  /**
+   * @param dimension : number of values of the commands, e.g. the number of joints.
+   */
+  public CommandExtrapolator(int dimension) {
+    lastCommand = new double[dimension];
+    velocity = new double[dimension];
+  }
+
+  /**
+   * Sets how long a late command is extrapolated, disabled if the horizon is 0.
+   * 
+   * @param horizon : time over which the last velocity is kept, in s.
+   * @param decelerationTime : time over which the velocity is then ramped down to zero, in s.
+   */
+  public void setHorizon(double horizon, double decelerationTime) {
+    horizonNs = (long) (Math.max(0.0, horizon) * 1e9);
+    decelerationNs = (long) (Math.max(0.0, decelerationTime) * 1e9);
+  }
+
+  public boolean isEnabled() {
+    return horizonNs > 0;
+  }
+
+  /**
+   * Forgets the current stream, e.g. when the robot is commanded in another way.
+   */
+  public void reset() {
+    updates = 0;
+    inGap = false;
+    holding = false;
+  }
+
+  /**
+   * Registers a new command of the stream.
+   * 
+   * @param command : the received command.
+   * @param nowNs : System.nanoTime() at which the command is executed.
+   * @return the interval used to estimate the velocity in s, 0 if the velocity is not known.
+   */
+  public double update(double[] command, long nowNs) {
+    double interval = 0.0;
+    if (updates > 0) {
+      long elapsedNs = nowNs - lastUpdateNs;
+      if (updates == 1 || elapsedNs < 3 * periodNs) {
+        // Commands arriving after a gap do not tell anything about the period of the stream.
+        periodNs = updates == 1 ? elapsedNs : periodNs + (elapsedNs - periodNs) / 8;
+      }
+      if (elapsedNs <= MAX_STREAM_PERIOD_NS && periodNs <= MAX_STREAM_PERIOD_NS) {
+        // Commands arriving in a burst after a delay are assumed to be one period apart.
+        interval = Math.max(elapsedNs, periodNs) / 1e9;
+      }
+    }
+    for (int i = 0; i < lastCommand.length; i++) {
+      velocity[i] = interval > 0.0 ? (command[i] - lastCommand[i]) / interval : 0.0;
+      lastCommand[i] = command[i];
+    }
+    updates++;
+    lastUpdateNs = nowNs;
+    lastTickNs = nowNs;
+    inGap = false;
+    holding = false;
+    return interval;
+  }
+
+  /**
+   * Computes the extrapolated command if the next command is late and a new destination is due.
+   * 
+   * @param nowNs : System.nanoTime() of the current control cycle.
+   * @param result : set to the extrapolated command if true is returned.
+   * @return true if a new destination should be set.
+   */
+  public boolean extrapolate(long nowNs, double[] result) {
+    if (!isStreaming() || holding) { return false; }
+    long elapsedNs = nowNs - lastUpdateNs;
+    if (elapsedNs < GAP_THRESHOLD * periodNs) { return false; }
+    if (!inGap) {
+      inGap = true;
+      gaps++;
+    }
+    else if (nowNs - lastTickNs < periodNs) { return false; }
+
+    lastTickNs = nowNs;
+    lastExtrapolationTime = extrapolationTime(elapsedNs);
+    for (int i = 0; i < lastCommand.length; i++) {
+      result[i] = lastCommand[i] + velocity[i] * lastExtrapolationTime;
+    }
+    extrapolatedTicks++;
+    if (elapsedNs >= horizonNs + decelerationNs) {
+      holding = true;
+      exhaustedGaps++;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the time over which the velocity has been applied at the last extrapolated command, in s. Used to
+   * extrapolate quantities that are not part of the commands, e.g. orientations.
+   */
+  public double getLastExtrapolationTime() {
+    return lastExtrapolationTime;
+  }
+
+  /**
+   * Returns in how many ns the next call to <i>extrapolate</i> may set a new destination, -1 if it will not
+   * until a new command arrives.
+   */
+  public long getNextTickDelayNs(long nowNs) {
+    if (!isStreaming() || holding) { return -1; }
+    long nextTickNs = inGap ? lastTickNs + periodNs : lastUpdateNs + (long) (GAP_THRESHOLD * periodNs);
+    return Math.max(0, nextTickNs - nowNs);
+  }
+
+  /**
+   * True while a late command is being extrapolated.
+   */
+  public boolean isExtrapolating() {
+    return inGap && !holding;
+  }
+
+  private boolean isStreaming() {
+    return isEnabled() && updates > 1 && periodNs > 0 && periodNs <= MAX_STREAM_PERIOD_NS;
+  }
+
+  /**
+   * Integral of the velocity profile normalized to the initial velocity: constant up to the horizon, then
+   * linearly decreasing to zero over the deceleration time.
+   */
+  private double extrapolationTime(long elapsedNs) {
+    double t = elapsedNs / 1e9;
+    double horizon = horizonNs / 1e9;
+    double deceleration = decelerationNs / 1e9;
+    if (t <= horizon) { return t; }
+    double braking = Math.min(t - horizon, deceleration);
+    if (deceleration <= 0.0) { return horizon; }
+    return horizon + braking - braking * braking / (2.0 * deceleration);
+  }
+
+  /**
+   * Returns how many times the next command has been late.
+   */
+  public long getGapCount() {
+    return gaps;
+  }
+
+  /**
+   * Returns how many destinations have been extrapolated.
+   */
+  public long getExtrapolatedTickCount() {
+    return extrapolatedTicks;
+  }
+
+  /**
+   * Returns how many times the robot has been stopped because no command arrived within the horizon and the
+   * deceleration time.
+   */
+  public long getExhaustedGapCount() {
+    return exhaustedGaps;
+  }
+}
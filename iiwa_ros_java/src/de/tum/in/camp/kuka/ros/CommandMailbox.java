@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the latest value received on a command stream. <br>
+ * The ROS callback threads <i>post</i> new values, the control loop <i>takes</i> them. Neither side ever
+ * blocks: posting replaces the previous value, which is counted as overwritten if it was never taken.
+ * <p>
+ * Value and version are published together in a single entry, so that a reader always gets a consistent
+ * pair. Each entry ends up either taken by the reader or overwritten by a newer one, whichever claims it
+ * first, so that no value is counted twice. The posted values must not be modified afterwards.
+ */
+public class CommandMailbox<T> {
+
+  private static final int PENDING = 0;
+  private static final int TAKEN = 1;
+  private static final int OVERWRITTEN = 2;
+
+  private static final class Entry<T> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+    private final T value;
+    private final long version;
+    private final long postTimeNs;
+    private volatile int state;
+
+    private Entry(T value, long version, long postTimeNs, int state) {
+      this.value = value;
+      this.version = version;
+      this.postTimeNs = postTimeNs;
+      this.state = state;
+    }
+
+    private boolean claim(int newState) {
+      return STATE.compareAndSet(this, PENDING, newState);
+    }
+  }
+
+  private final AtomicReference<Entry<T>> latest;
+  private final AtomicLong overwritten = new AtomicLong(0);
+
+  /**
+   * @param initialValue : value returned by <i>peek</i> until the first value is posted, it is never
+   *          returned by <i>take</i>.
+   */
+  public CommandMailbox(T initialValue) {
+    latest = new AtomicReference<Entry<T>>(new Entry<T>(initialValue, 0, 0, TAKEN));
+  }
+
+  /**
+   * Makes the given value the latest one.
+   * 
+   * @return the version assigned to the value.
+   */
+  public long post(T value) {
+    long now = System.nanoTime();
+    while (true) {
+      Entry<T> previous = latest.get();
+      Entry<T> next = new Entry<T>(value, previous.version + 1, now, PENDING);
+      if (latest.compareAndSet(previous, next)) {
+        if (previous.claim(OVERWRITTEN)) {
+          overwritten.incrementAndGet();
+        }
+        return next.version;
+      }
+    }
+  }
+
+  /**
+   * Returns the latest value if it has not been taken yet, null otherwise. <br>
+   * Must only be called by the reader thread.
+   */
+  public T take() {
+    Entry<T> entry = latest.get();
+    if (entry.claim(TAKEN)) {
+      return entry.value;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the latest value, whether it has already been taken or not.
+   */
+  public T peek() {
+    return latest.get().value;
+  }
+
+  /**
+   * True if a value has been posted since the last <i>take</i>.
+   */
+  public boolean hasNew() {
+    return latest.get().state == PENDING;
+  }
+
+  /**
+   * Returns the version of the latest value, i.e. the number of values posted so far.
+   */
+  public long getVersion() {
+    return latest.get().version;
+  }
+
+  /**
+   * Returns the System.nanoTime() at which the latest value has been posted, 0 if none has been posted yet.
+   */
+  public long getPostTimeNs() {
+    return latest.get().postTimeNs;
+  }
+
+  /**
+   * Returns how many values have been replaced by a newer one before being taken.
+   */
+  public long getOverwrittenCount() {
+    return overwritten.get();
+  }
+}
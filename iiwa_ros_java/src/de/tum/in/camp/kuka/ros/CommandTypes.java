@@ -35,6 +35,7 @@ public class CommandTypes {
     SMART_SERVO_JOINT_POSITION,
     SMART_SERVO_JOINT_POSITION_VELOCITY,
     SMART_SERVO_JOINT_VELOCITY,
+    SMART_SERVO_JOINT_POSITION_BATCH,
     POINT_TO_POINT_CARTESIAN_POSE,
     POINT_TO_POINT_CARTESIAN_POSE_LIN,
     POINT_TO_POINT_CARTESIAN_SPLINE,
@@ -53,7 +54,8 @@ public class CommandTypes {
         || commandType == CommandType.SMART_SERVO_CARTESIAN_VELOCITY
         || commandType == CommandType.SMART_SERVO_JOINT_POSITION
         || commandType == CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY
-        || commandType == CommandType.SMART_SERVO_JOINT_VELOCITY;
+        || commandType == CommandType.SMART_SERVO_JOINT_VELOCITY
+        || commandType == CommandType.SMART_SERVO_JOINT_POSITION_BATCH;
   }
 
   static public boolean isSmartServoLin(CommandType commandType) {
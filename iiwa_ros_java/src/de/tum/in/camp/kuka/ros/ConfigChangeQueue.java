@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands configuration changes from the ROS service threads to the control loop. <br>
+ * The service handlers <i>post</i> changes and answer right away, the control loop <i>applies</i> them at
+ * the beginning of its next cycle, in the order they were posted. Neither side waits for the other, so the
+ * latency of a service does not depend on how long the control loop holds its lock. <br>
+ * A service that has to report whether its change succeeded uses <i>postAndWait</i> instead, which blocks it
+ * until the next cycle, but still never blocks the control loop. A change it gave up waiting for is dropped, so
+ * its answer always matches what the control loop did.
+ * <p>
+ * A change carries all its values and must not be modified after being posted.
+ */
+public class ConfigChangeQueue {
+
+  /**
+   * A configuration change, applied by the control loop thread.
+   */
+  public interface Change {
+    void apply() throws Exception;
+  }
+
+  private static final class Entry {
+    private final Change change;
+    private final long postTimeNs;
+    // Only set for the changes whose result is waited for.
+    private final CountDownLatch done;
+    private volatile Exception error = null;
+
+    private Entry(Change change, long postTimeNs, CountDownLatch done) {
+      this.change = change;
+      this.postTimeNs = postTimeNs;
+      this.done = done;
+    }
+  }
+
+  private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+  private final WakeupSignal signal;
+
+  // Statistics, only written by the control loop thread.
+  private volatile long applied = 0;
+  private volatile long failed = 0;
+  private volatile long maxApplyDelayNs = 0;
+
+  /**
+   * @param signal : signaled at every posted change, so that an event driven control loop applies it
+   *          without waiting for its timeout. Can be null.
+   */
+  public ConfigChangeQueue(WakeupSignal signal) {
+    this.signal = signal;
+  }
+
+  /**
+   * Queues a change, to be applied at the next control cycle.
+   */
+  public void post(Change change) {
+    post(new Entry(change, System.nanoTime(), null));
+  }
+
+  /**
+   * Queues a change and waits until the control loop has applied it. <br>
+   * Must not be called by the control loop thread.
+   * 
+   * @throws Exception the exception thrown by the change, if it failed.
+   * @throws TimeoutException if the control loop did not start applying the change within the timeout. The
+   *           change is then dropped and never applied.
+   */
+  public void postAndWait(Change change, long timeout, TimeUnit unit) throws Exception {
+    Entry entry = new Entry(change, System.nanoTime(), new CountDownLatch(1));
+    post(entry);
+    if (!entry.done.await(timeout, unit)) {
+      if (pending.remove(entry)) {
+        throw new TimeoutException("The configuration change was not applied within " + unit.toMillis(timeout)
+            + "ms, it has been dropped.");
+      }
+      // The control loop is applying it right now.
+      entry.done.await();
+    }
+    if (entry.error != null) {
+      throw entry.error;
+    }
+  }
+
+  private void post(Entry entry) {
+    pending.add(entry);
+    if (signal != null) {
+      signal.signal();
+    }
+  }
+
+  /**
+   * Applies all the changes posted so far. A change that fails is logged and skipped. <br>
+   * Must only be called by the control loop thread, at the boundary of a cycle.
+   * 
+   * @return the number of changes applied.
+   */
+  public int applyPending() {
+    int count = 0;
+    Entry entry;
+    while ((entry = pending.poll()) != null) {
+      try {
+        entry.change.apply();
+        applied++;
+      }
+      catch (Exception e) {
+        failed++;
+        entry.error = e;
+        Logger.error("Could not apply configuration change: " + e.getClass().getName() + ": " + e.getMessage());
+      }
+      if (entry.done != null) {
+        entry.done.countDown();
+      }
+      long delay = System.nanoTime() - entry.postTimeNs;
+      if (delay > maxApplyDelayNs) {
+        maxApplyDelayNs = delay;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * True if some changes have been posted and not applied yet.
+   */
+  public boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+   * Returns the number of changes applied successfully.
+   */
+  public long getAppliedCount() {
+    return applied;
+  }
+
+  /**
+   * Returns the number of changes that failed to apply.
+   */
+  public long getFailedCount() {
+    return failed;
+  }
+
+  /**
+   * Returns the largest time between posting a change and applying it, in nanoseconds.
+   */
+  public long getMaxApplyDelayNs() {
+    return maxApplyDelayNs;
+  }
+}
@@ -34,8 +34,10 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
@@ -50,6 +52,7 @@ import org.ros.time.TimeProvider;
 import org.ros.time.WallTimeProvider;
 
 import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.roboticsAPI.persistenceModel.processDataModel.IProcessData;
 import com.kuka.roboticsAPI.uiModel.IApplicationUI;
 import com.kuka.roboticsAPI.uiModel.userKeys.IUserKey;
 import com.kuka.roboticsAPI.uiModel.userKeys.IUserKeyBar;
@@ -90,6 +93,20 @@ public class Configuration extends AbstractNodeMain {
     checkConfiguration();
   }
 
+  /**
+   * Returns the configuration of another robot connected to the same controller. <br>
+   * The ROS master, the addresses and the time provider are shared with this configuration, parameters are
+   * read from the namespace of the given robot name.
+   * 
+   * @param robotName : name of the robot, used as namespace of its topics and parameters.
+   */
+  public Configuration forRobot(String robotName) {
+    Configuration configuration = new Configuration(applicationData);
+    configuration.robotName = robotName;
+    configuration.timeProvider = getTimeProvider();
+    return configuration;
+  }
+
   public void checkConfiguration() {
     if (!configurationSuccessful) {
       configure();
@@ -195,6 +212,53 @@ public class Configuration extends AbstractNodeMain {
     return robotName;
   }
 
+  /**
+   * Get the robots commanded by a multi-robot application, value obtained from the SmartPad process data
+   * <b>robots</b>, with format "<robot name>=<Sunrise device name>,<robot name>=<Sunrise device name>".
+   * 
+   * @return Sunrise device names by robot name, in the configured order. Empty if not defined.
+   */
+  public Map<String, String> getGroupRobots() {
+    Map<String, String> robots = new LinkedHashMap<String, String>();
+    IProcessData processData = applicationData.tryGetProcessData("robots");
+    if (processData == null) { return robots; }
+    String value = processData.getValue();
+    for (String entry : value.split(",")) {
+      String[] names = entry.split("=");
+      if (names.length != 2 || names[0].trim().isEmpty() || names[1].trim().isEmpty()) {
+        Logger.error("Invalid entry \"" + entry + "\" in the robots process data, expecting <robot name>=<Sunrise device name>");
+        continue;
+      }
+      robots.put(names[0].trim(), names[1].trim());
+    }
+    return robots;
+  }
+
+  /**
+   * Get the name of the group of robots commanded by a multi-robot application, value obtained from the
+   * SmartPad process data <b>group_name</b>.
+   * 
+   * @return name of the group, "iiwa_group" if not defined.
+   */
+  public String getGroupName() {
+    IProcessData processData = applicationData.tryGetProcessData("group_name");
+    if (processData == null) { return "iiwa_group"; }
+    return processData.getValue();
+  }
+
+  /**
+   * Return if the ROS nodes of the application should all be hosted in a single one, value obtained from the
+   * SmartPad process data <b>single_node</b>.
+   * 
+   * @return true if a single ROS node should be used, false if not defined.
+   */
+  public boolean getSingleRosNode() {
+    IProcessData processData = applicationData.tryGetProcessData("single_node");
+    if (processData == null) { return false; }
+    Boolean value = processData.getValue();
+    return value;
+  }
+
   /**
    * Return if an external NTP server should be used, value obtained from the SmartPad process data.
    * 
@@ -253,6 +317,158 @@ public class Configuration extends AbstractNodeMain {
     return getBooleanParameter(robotName, "publishJointStates", false);
   }
 
+  /**
+   * Get the period at which the robot state is published, reading <b>statePublisherPeriod</b> from the ROS
+   * parameter server.
+   *
+   * @return the publishing period in seconds
+   */
+  public Double getStatePublisherPeriod() {
+    return getDoubleParameter(robotName, "statePublisherPeriod", 0.001);
+  }
+
+  /**
+   * Get the transport settings of a topic, reading <b>tcpNoDelay</b> and <b>queueLength</b> under
+   * <b>transport/&lt;topic&gt;</b> from the ROS parameter server. Values under <b>transport/default</b> apply to
+   * all the topics without their own settings.
+   * <p>
+   * Meant for the nodes that create their topics in onStart, before this node is initialized: the parameters
+   * are read through the parameter tree of the calling node, which is already connected to the ROS master.
+   *
+   * @param parameterTree : parameter tree of the calling node
+   * @param topic : name of the topic without the robot name, e.g. "command/JointPosition"
+   * @param defaults : settings of the topic if nothing is configured
+   * @return the transport settings
+   */
+  public TransportSettings getTransportSettings(ParameterTree parameterTree, String topic, TransportSettings defaults) {
+    String defaultNamespace = robotName + "/transport/default/";
+    String topicNamespace = robotName + "/transport/" + topic + "/";
+    boolean tcpNoDelay = parameterTree.getBoolean(defaultNamespace + "tcpNoDelay", defaults.getTcpNoDelay());
+    int queueLength = parameterTree.getInteger(defaultNamespace + "queueLength", defaults.getQueueLength());
+    tcpNoDelay = parameterTree.getBoolean(topicNamespace + "tcpNoDelay", tcpNoDelay);
+    queueLength = parameterTree.getInteger(topicNamespace + "queueLength", queueLength);
+    return new TransportSettings(tcpNoDelay, queueLength);
+  }
+
+  /**
+   * Get how much motion has to be buffered from the JointPositionBatch topic before its playback starts,
+   * reading <b>jointPositionBatchPrefill</b> from the ROS parameter server.
+   *
+   * @return the prefill time in seconds
+   */
+  public Double getJointPositionBatchPrefill() {
+    return getDoubleParameter(robotName, "jointPositionBatchPrefill", 0.01);
+  }
+
+  /**
+   * Get if the control loop should sleep until a new command, goal or hand guidance event arrives instead of
+   * polling continuously, reading <b>eventDrivenControlLoop</b> from the ROS parameter server.
+   *
+   * @return true if the control loop is event driven
+   */
+  public boolean getEventDrivenControlLoop() {
+    return getBooleanParameter(robotName, "eventDrivenControlLoop", false);
+  }
+
+  /**
+   * Get the maximum time the event driven control loop sleeps without any event, reading
+   * <b>controlLoopTimeout</b> from the ROS parameter server.
+   *
+   * @return the timeout in seconds
+   */
+  public Double getControlLoopTimeout() {
+    return getDoubleParameter(robotName, "controlLoopTimeout", 0.01);
+  }
+
+  /**
+   * Get the period at which the command latency histograms are published, reading
+   * <b>latencyDiagnosticsPeriod</b> from the ROS parameter server. A period of zero disables the latency
+   * measurements.
+   *
+   * @return the publishing period in seconds
+   */
+  public Double getLatencyDiagnosticsPeriod() {
+    return getDoubleParameter(robotName, "latencyDiagnosticsPeriod", 0.0);
+  }
+
+  /**
+   * Get if the action goals are queued and executed in order instead of replacing the goal being executed,
+   * reading <b>queueGoals</b> from the ROS parameter server. Consecutive PTP, LIN and joint position goals
+   * are then executed as one blended motion batch.
+   *
+   * @return true if the goals are queued
+   */
+  public boolean getQueueActionGoals() {
+    return getBooleanParameter(robotName + "/ActionServer", "queueGoals", false);
+  }
+
+  /**
+   * Get the Cartesian distance in mm within which queued goals are blended into the next one, reading
+   * <b>blendingRadius</b> from the ROS parameter server. A value of zero stops at every goal.
+   *
+   * @return the blending radius
+   */
+  public Double getGoalBlendingRadius() {
+    return getDoubleParameter(robotName + "/ActionServer", "blendingRadius", 0.0);
+  }
+
+  /**
+   * Get the period in seconds of the feedback published for the goal being executed, reading
+   * <b>feedbackPeriod</b> from the ROS parameter server. A value of zero disables the feedback.
+   *
+   * @return the feedback period
+   */
+  public Double getActionFeedbackPeriod() {
+    return getDoubleParameter(robotName + "/ActionServer", "feedbackPeriod", 0.0);
+  }
+
+  /**
+   * Get the maximum number of points of a JointSpline executed as one motion, reading <b>chunkSize</b> from
+   * the ROS parameter server. Longer splines are executed as a sequence of windows of this size, zero executes
+   * every spline as one motion.
+   *
+   * @return the number of points per window
+   */
+  public Integer getJointSplineChunkSize() {
+    return getIntegerParameter(robotName + "/JointSpline", "chunkSize", 0);
+  }
+
+  /**
+   * Get the relative blending between two consecutive windows of a JointSpline, reading
+   * <b>chunkBlending</b> from the ROS parameter server.
+   *
+   * @return the relative blending, in [0, 1]
+   */
+  public Double getJointSplineChunkBlending() {
+    return getDoubleParameter(robotName + "/JointSpline", "chunkBlending", 0.1);
+  }
+
+  /**
+   * Get the joint velocities the robot reaches at a relative joint velocity of 1, used to execute the timed
+   * JointSpline segments, reading <b>maxJointVelocity</b> from the ROS parameter server.
+   * 
+   * @return the joint velocities in rad/s
+   */
+  public double[] getJointSplineMaxJointVelocity() {
+    // Rated joint velocities of the LBR iiwa 7 R800, in deg/s.
+    final double[] ratedJointVelocity = new double[] { 98, 98, 100, 130, 140, 180, 180 };
+    List<?> maxJointVelocityList = getListParameter(robotName + "/JointSpline", "maxJointVelocity");
+
+    boolean valid = maxJointVelocityList != null && maxJointVelocityList.size() == ratedJointVelocity.length;
+    for (int i = 0; valid && i < ratedJointVelocity.length; i++) {
+      valid = maxJointVelocityList.get(i) instanceof Number;
+    }
+    if (maxJointVelocityList != null && !valid) {
+      Logger.warn("The ROS parameter 'maxJointVelocity' has to have " + ratedJointVelocity.length + " numeric components, using its default values.");
+    }
+
+    double[] maxJointVelocity = new double[ratedJointVelocity.length];
+    for (int i = 0; i < maxJointVelocity.length; i++) {
+      maxJointVelocity[i] = valid ? ((Number) maxJointVelocityList.get(i)).doubleValue() : Math.toRadians(ratedJointVelocity[i]);
+    }
+    return maxJointVelocity;
+  }
+
   /**
    * Get the minimum trajectory execute time for SmartServo object, reading <b>minTrajExecTime</b> from the
    * ROS parameter server.
@@ -263,6 +479,97 @@ public class Configuration extends AbstractNodeMain {
     return getDoubleParameter(robotName + "/SmartServo", "minTrajExecTime", 0.1);
   }
 
+  /**
+   * Get for how long the last JointPosition or CartesianPose command is extrapolated at its velocity when the
+   * next one is late, reading <b>extrapolationHorizon</b> from the ROS parameter server. A horizon of zero
+   * disables the extrapolation.
+   * 
+   * @return the extrapolation horizon in seconds
+   */
+  public Double getCommandExtrapolationHorizon() {
+    return getDoubleParameter(robotName + "/SmartServo", "extrapolationHorizon", 0.0);
+  }
+
+  /**
+   * Get over how much time the extrapolated command velocity is ramped down to zero after the extrapolation
+   * horizon, reading <b>extrapolationDecelerationTime</b> from the ROS parameter server.
+   * 
+   * @return the deceleration time in seconds
+   */
+  public Double getCommandExtrapolationDecelerationTime() {
+    return getDoubleParameter(robotName + "/SmartServo", "extrapolationDecelerationTime", 0.1);
+  }
+
+  /**
+   * Get the minimum time between two destinations computed from a joint or Cartesian velocity command, or by
+   * the filters of the JointPosition commands, reading <b>velocityServoPeriod</b> from the ROS parameter server.
+   * 
+   * @return the period in seconds
+   */
+  public Double getVelocityServoPeriod() {
+    return getDoubleParameter(robotName + "/SmartServo", "velocityServoPeriod", 0.005);
+  }
+
+  /**
+   * Get after how much time a joint or Cartesian velocity command that has not been renewed stops the robot,
+   * reading <b>velocityCommandTimeout</b> from the ROS parameter server.
+   * 
+   * @return the timeout in seconds
+   */
+  public Double getVelocityCommandTimeout() {
+    return getDoubleParameter(robotName + "/SmartServo", "velocityCommandTimeout", 0.2);
+  }
+
+  /**
+   * Get the deadband of the filter of the JointPosition commands, changes smaller than it are ignored,
+   * reading <b>jointFilterDeadband</b> from the ROS parameter server. A value of zero disables it.
+   * 
+   * @return the deadband in rad
+   */
+  public Double getJointFilterDeadband() {
+    return getDoubleParameter(robotName + "/SmartServo", "jointFilterDeadband", 0.0);
+  }
+
+  /**
+   * Get the cutoff frequency of the first order low-pass filter of the JointPosition commands, reading
+   * <b>jointFilterLowPassCutoff</b> from the ROS parameter server. A value of zero disables it.
+   * 
+   * @return the cutoff frequency in Hz
+   */
+  public Double getJointFilterLowPassCutoff() {
+    return getDoubleParameter(robotName + "/SmartServo", "jointFilterLowPassCutoff", 0.0);
+  }
+
+  /**
+   * Get the maximum joint velocity allowed by the filter of the JointPosition commands, reading
+   * <b>jointFilterMaxVelocity</b> from the ROS parameter server. A value of zero disables it.
+   * 
+   * @return the maximum velocity in rad/s
+   */
+  public Double getJointFilterMaxVelocity() {
+    return getDoubleParameter(robotName + "/SmartServo", "jointFilterMaxVelocity", 0.0);
+  }
+
+  /**
+   * Get the maximum joint acceleration allowed by the filter of the JointPosition commands, reading
+   * <b>jointFilterMaxAcceleration</b> from the ROS parameter server. A value of zero disables it.
+   * 
+   * @return the maximum acceleration in rad/s^2
+   */
+  public Double getJointFilterMaxAcceleration() {
+    return getDoubleParameter(robotName + "/SmartServo", "jointFilterMaxAcceleration", 0.0);
+  }
+
+  /**
+   * Get the maximum joint jerk allowed by the filter of the JointPosition commands, reading
+   * <b>jointFilterMaxJerk</b> from the ROS parameter server. A value of zero disables it.
+   * 
+   * @return the maximum jerk in rad/s^3
+   */
+  public Double getJointFilterMaxJerk() {
+    return getDoubleParameter(robotName + "/SmartServo", "jointFilterMaxJerk", 0.0);
+  }
+
   /**
    * Get the timeout after goal reached for SmartServo, reading <b>timeoutAfterGoalReach</b> from the ROS
    * parameter server.
@@ -587,6 +894,26 @@ public class Configuration extends AbstractNodeMain {
     return ret;
   }
 
+  /**
+   * Read an integer parameters from the ROS parameter server given its name and namespace.
+   * 
+   * @param namespace - ROS namespace under which the parameter lives.
+   * @param argname - Name of the ROS parameter to get.
+   * @return an integer
+   */
+  public Integer getIntegerParameter(String namespace, String argname, int defaultValue) {
+    parameters = getParameterTree();
+    Integer ret = null;
+    if (parameters == null) { return defaultValue; }
+    try {
+      ret = parameters.getInteger(namespace + "/" + argname);
+    }
+    catch (ParameterNotFoundException e) {
+      ret = defaultValue;
+    }
+    return ret;
+  }
+
   /**
    * Read a boolean parameters from the ROS parameter server given its name and namespace.
    * 
@@ -63,6 +63,12 @@ public class ControlModeHandler {
 
   IMotionControlMode currentControlMode = null;
 
+  // Motions created in the background for the next switch.
+  private PreparedMotions preparedMotions = null;
+  // Start of the switch in progress and whether it uses a prepared motion, recorded by switchMotion.
+  private long switchStartNs = 0;
+  private boolean switchPrepared = false;
+
   public ControlModeHandler(LBR robot, Tool tool, ObjectFrame endpointFrame, iiwaPublisher publisher, iiwaActionServer actionServer, Configuration configuration) {
     this.robot = robot;
     this.tool = tool;
@@ -71,10 +77,20 @@ public class ControlModeHandler {
     this.configuration = configuration;
     helper = new MessageGenerator(configuration.getRobotName(), configuration.getTimeProvider());
     handler = new GoalReachedEventListener(this.publisher, actionServer);
+    preparedMotions = new PreparedMotions(robot, this, endpointFrame);
+    preparedMotions.prepare();
   }
 
   public void setEndpointFrame(ObjectFrame endpointFrame) {
     this.endpointFrame = endpointFrame;
+    preparedMotions.invalidate(endpointFrame);
+  }
+
+  /**
+   * Stops the preparation of the motions in the background.
+   */
+  public void dispose() {
+    preparedMotions.dispose();
   }
 
   public void setWorkpiece(Workpiece workpiece) {
@@ -87,7 +103,7 @@ public class ControlModeHandler {
 
   public SmartServo changeSmartServoControlMode(SmartServo motion, IMotionControlMode controlMode) {
     SmartServo oldMotion = motion;
-    motion = createSmartServoMotion();
+    motion = nextSmartServoMotion();
     if (controlMode == null || controlMode instanceof PositionControlMode) {
       motion.setMode(new PositionControlMode());
     }
@@ -101,7 +117,7 @@ public class ControlModeHandler {
 
   public SmartServoLIN changeSmartServoControlMode(SmartServoLIN motion, IMotionControlMode controlMode) {
     SmartServoLIN oldMotion = motion;
-    motion = createSmartServoLinMotion();
+    motion = nextSmartServoLinMotion();
     if (controlMode == null || controlMode instanceof PositionControlMode) {
       motion.setMode(new PositionControlMode());
     }
@@ -115,7 +131,7 @@ public class ControlModeHandler {
 
   public SmartServo changeSmartServoControlMode(SmartServo motion, iiwa_msgs.ConfigureControlModeRequest request) {
     SmartServo oldMotion = motion;
-    motion = createSmartServoMotion();
+    motion = nextSmartServoMotion();
     if (request != null) {
       if (request.getControlMode() != iiwa_msgs.ControlMode.POSITION_CONTROL) {
         validateForImpedanceMode();
@@ -137,7 +153,7 @@ public class ControlModeHandler {
 
   public SmartServoLIN changeSmartServoControlMode(SmartServoLIN motion, iiwa_msgs.ConfigureControlModeRequest request) {
     SmartServoLIN oldMotion = motion;
-    motion = createSmartServoLinMotion();
+    motion = nextSmartServoLinMotion();
     if (request != null) {
       if (request.getControlMode() != iiwa_msgs.ControlMode.POSITION_CONTROL) {
         validateForImpedanceMode();
@@ -157,7 +173,10 @@ public class ControlModeHandler {
     return motion;
   }
 
-  // TODO: doc
+  /**
+   * Stops the old motion and starts the new one. The motions for the next switch are prepared once the robot
+   * has settled.
+   */
   @SuppressWarnings("rawtypes")
   public void switchMotion(ServoMotion motion, ServoMotion oldMotion) {
     if (oldMotion != null) {
@@ -165,12 +184,37 @@ public class ControlModeHandler {
     }
 
     while (((SunriseExecutionService) robot.getController().getExecutionService()).isPaused()) {
-      ThreadUtil.milliSleep(10);
+      ThreadUtil.milliSleep(1);
     }
 
     endpointFrame.moveAsync(motion);
     motion.getRuntime(true).updateWithRealtimeSystem();
     motion.getRuntime().setGoalReachedEventHandler(handler);
+
+    publisher.getLatencyMonitor().motionSwitched(switchPrepared, switchStartNs);
+    switchStartNs = 0;
+  }
+
+  /**
+   * Returns the prepared SmartServo motion if it can be used, a new one otherwise, and starts timing the
+   * switch.
+   */
+  private SmartServo nextSmartServoMotion() {
+    switchStartNs = publisher.getLatencyMonitor().now();
+    SmartServo motion = preparedMotions.takeSmartServo();
+    switchPrepared = (motion != null);
+    return switchPrepared ? motion : createSmartServoMotion();
+  }
+
+  /**
+   * Returns the prepared SmartServoLIN motion if it can be used, a new one otherwise, and starts timing the
+   * switch.
+   */
+  private SmartServoLIN nextSmartServoLinMotion() {
+    switchStartNs = publisher.getLatencyMonitor().now();
+    SmartServoLIN motion = preparedMotions.takeSmartServoLin();
+    switchPrepared = (motion != null);
+    return switchPrepared ? motion : createSmartServoLinMotion();
   }
 
   /**
@@ -185,7 +229,7 @@ public class ControlModeHandler {
       validateForImpedanceMode();
     }
 
-    SmartServo newMotion = createSmartServoMotion();
+    SmartServo newMotion = nextSmartServoMotion();
     newMotion.setMode(currentMode);
     currentControlMode = currentMode;
     switchMotion(newMotion, linearMotion);
@@ -205,7 +249,7 @@ public class ControlModeHandler {
       validateForImpedanceMode();
     }
 
-    SmartServoLIN newMotion = createSmartServoLinMotion();
+    SmartServoLIN newMotion = nextSmartServoLinMotion();
     newMotion.setMode(currentMode);
     currentControlMode = currentMode;
     switchMotion(newMotion, motion);
@@ -243,6 +287,16 @@ public class ControlModeHandler {
   }
 
   public SmartServoLIN createSmartServoLinMotion() {
+    return createSmartServoLinMotion(endpointFrame);
+  }
+
+  /**
+   * Generates a new SmartServoLIN motion starting at the current pose of the given endpoint frame.
+   * 
+   * @param endpointFrame
+   * @return
+   */
+  public SmartServoLIN createSmartServoLinMotion(ObjectFrame endpointFrame) {
     SmartServoLIN linearMotion = new SmartServoLIN(robot.getCurrentCartesianPosition(endpointFrame));
     linearMotion.setReferenceFrame(World.Current.getRootFrame());
     linearMotion.setMinimumTrajectoryExecutionTime(configuration.getMinTrajExecTime());
@@ -149,6 +149,22 @@ public final class Conversions {
    * @param quaternion : the resulting quaternion
    */
   public static void matrixToQuat(Matrix matrix, Quaternion quaternion) {
+    double[] q = new double[4];
+    matrixToQuat(matrix, q);
+
+    quaternion.setX(q[0]);
+    quaternion.setY(q[1]);
+    quaternion.setZ(q[2]);
+    quaternion.setW(q[3]);
+  }
+
+  /**
+   * Generates a quaternion from a Matrix.
+   * 
+   * @param matrix : the starting matrix
+   * @param quaternion : the resulting quaternion, as an array in the order x, y, z, w
+   */
+  public static void matrixToQuat(Matrix matrix, double[] quaternion) {
 
     double xx = matrix.getElement00();
     double xy = matrix.getElement01();
@@ -198,10 +214,10 @@ public final class Conversions {
       w = (yx - xy) * s;
     }
 
-    quaternion.setX(x);
-    quaternion.setY(y);
-    quaternion.setZ(z);
-    quaternion.setW(w);
+    quaternion[0] = x;
+    quaternion[1] = y;
+    quaternion[2] = z;
+    quaternion[3] = w;
   }
 
   /**
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task periodically on a dedicated thread, pacing every tick against an absolute System.nanoTime()
+ * deadline, so that the rate does not drift.
+ * <p>
+ * Unlike java.util.Timer.scheduleAtFixedRate, ticks that could not be started within their period (e.g.
+ * because the task took too long) are skipped instead of being executed back to back to catch up. Late and
+ * missed ticks are counted, so that the jitter of the loop can be monitored.
+ */
+public class FixedRateScheduler extends Thread {
+  // Interval between two reports of the tick statistics in the log.
+  private static final long REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+
+  private final Runnable task;
+  private final long periodNs;
+  // A tick starting later than this after its deadline is counted as late.
+  private final long lateThresholdNs;
+
+  private volatile boolean running = false;
+
+  // Statistics, only written by the scheduler thread.
+  private volatile long ticks = 0;
+  private volatile long lateTicks = 0;
+  private volatile long missedTicks = 0;
+  private volatile long maxLatenessNs = 0;
+
+  /**
+   * @param name : name of the scheduler thread.
+   * @param period : period between two executions of the task.
+   * @param unit : time unit of <i>period</i>.
+   * @param task : task to execute periodically.
+   */
+  public FixedRateScheduler(String name, long period, TimeUnit unit, Runnable task) {
+    super(name);
+    if (period <= 0) { throw new IllegalArgumentException("The period of " + name + " has to be positive."); }
+    this.task = task;
+    this.periodNs = unit.toNanos(period);
+    this.lateThresholdNs = periodNs / 2;
+    setDaemon(true);
+  }
+
+  @Override
+  public synchronized void start() {
+    running = true;
+    super.start();
+  }
+
+  /**
+   * Requests the scheduler to stop and waits for the currently running tick to finish.
+   */
+  public void requestStop() {
+    running = false;
+    LockSupport.unpark(this);
+    if (Thread.currentThread() != this) {
+      try {
+        join(1000);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    long nextDeadline = System.nanoTime();
+    long nextReport = nextDeadline + REPORT_INTERVAL_NS;
+    long reportedLateTicks = 0;
+    long reportedMissedTicks = 0;
+
+    while (running) {
+      long now = System.nanoTime();
+      while (running && nextDeadline - now > 0) {
+        LockSupport.parkNanos(this, nextDeadline - now);
+        now = System.nanoTime();
+      }
+      if (!running) {
+        break;
+      }
+
+      long lateness = now - nextDeadline;
+      if (lateness > maxLatenessNs) {
+        maxLatenessNs = lateness;
+      }
+      if (lateness > lateThresholdNs) {
+        lateTicks++;
+      }
+
+      try {
+        task.run();
+      }
+      catch (RuntimeException e) {
+        Logger.error(getName() + ": " + e.toString());
+      }
+      ticks++;
+
+      // Skip the ticks whose period is already over, rather than running them in a burst.
+      nextDeadline += periodNs;
+      now = System.nanoTime();
+      if (now - nextDeadline >= periodNs) {
+        long skipped = (now - nextDeadline) / periodNs;
+        missedTicks += skipped;
+        nextDeadline += skipped * periodNs;
+      }
+
+      if (now - nextReport >= 0) {
+        if (lateTicks != reportedLateTicks || missedTicks != reportedMissedTicks) {
+          Logger.debug(getName() + ": " + (lateTicks - reportedLateTicks) + " late and " + (missedTicks - reportedMissedTicks) + " missed ticks in the last "
+              + TimeUnit.NANOSECONDS.toSeconds(REPORT_INTERVAL_NS) + "s, max lateness " + TimeUnit.NANOSECONDS.toMicros(maxLatenessNs) + "us.");
+          reportedLateTicks = lateTicks;
+          reportedMissedTicks = missedTicks;
+        }
+        nextReport = now + REPORT_INTERVAL_NS;
+      }
+    }
+  }
+
+  /**
+   * Returns the period of the scheduler in nanoseconds.
+   */
+  public long getPeriodNs() {
+    return periodNs;
+  }
+
+  /**
+   * Returns the number of executed ticks.
+   */
+  public long getTicks() {
+    return ticks;
+  }
+
+  /**
+   * Returns the number of ticks that started more than half a period after their deadline.
+   */
+  public long getLateTicks() {
+    return lateTicks;
+  }
+
+  /**
+   * Returns the number of ticks that have been skipped because their period was already over.
+   */
+  public long getMissedTicks() {
+    return missedTicks;
+  }
+
+  /**
+   * Returns the largest delay between the deadline of a tick and its actual start, in nanoseconds.
+   */
+  public long getMaxLatenessNs() {
+    return maxLatenessNs;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import iiwa_msgs.GetFramesResponse;
+import iiwa_msgs.JointQuantity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.kuka.roboticsAPI.applicationModel.IApplicationData;
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+import com.kuka.roboticsAPI.geometricModel.math.Transformation;
+
+/**
+ * Index of the frames taught in the application data, answering the GetFrames service. <br>
+ * The root frames are named with a prefix and a number, e.g. /P0 to /P99, and are listed with all their
+ * children. The index is built on the first request and reused until it is invalidated, explicitly or
+ * because the frames changed: a root frame was added or removed, a frame was attached or detached, or a frame
+ * was taught again, i.e. its transformation from its parent changed. The pose in the world frame and the status of
+ * each frame are computed once, the inverse kinematics only when a request asks for the joint positions.
+ * Nothing here is shared with the control loop, so answering a request does not stall the motions.
+ */
+public class FrameIndex {
+
+  private static class Entry {
+    private final ObjectFrame frame;
+    private final String name;
+    private final String parentName;
+    private final Transformation transformationFromParent;
+    private geometry_msgs.Pose worldPose = null;
+    private String status = null;
+    private double[] jointPosition = null;
+
+    private Entry(ObjectFrame frame, String parentName) {
+      this.frame = frame;
+      this.name = frame.getName();
+      this.parentName = parentName;
+      this.transformationFromParent = frame.getTransformationFromParent();
+    }
+  }
+
+  private final IApplicationData applicationData;
+  private final String rootFramePrefix;
+  private final int maxRootFrames;
+  private List<Entry> entries = null;
+  // Number of entries matched by the walk of hasChanged.
+  private int matchedEntries = 0;
+
+  /**
+   * @param applicationData : application data containing the taught frames.
+   * @param rootFramePrefix : path prefix of the root frames, e.g. "/P".
+   * @param maxRootFrames : root frames are numbered from 0 to maxRootFrames - 1.
+   */
+  public FrameIndex(IApplicationData applicationData, String rootFramePrefix, int maxRootFrames) {
+    this.applicationData = applicationData;
+    this.rootFramePrefix = rootFramePrefix;
+    this.maxRootFrames = maxRootFrames;
+  }
+
+  /**
+   * Drops the index, it is built again at the next request.
+   */
+  public synchronized void invalidate() {
+    entries = null;
+  }
+
+  /**
+   * Returns the number of indexed frames, building the index if needed.
+   */
+  public synchronized int size() {
+    return getEntries().size();
+  }
+
+  /**
+   * Fills a GetFrames response with a page of the frames whose name starts with the given prefix. The frame
+   * size of the response is the number of matching frames, so that the next pages can be requested. The
+   * joint positions are left empty unless requested, they are otherwise aligned with the other lists.
+   * 
+   * @param res : the response to fill.
+   * @param namePrefix : only frames whose name starts with this are listed, all if empty.
+   * @param offset : number of matching frames to skip.
+   * @param maxFrames : maximum number of frames to list, all if not positive.
+   * @param computeJointPositions : if the inverse kinematics of the listed frames should be returned.
+   * @param robot : robot to compute the inverse kinematics for.
+   * @param messageGenerator : builds the poses and joint quantities of the response.
+   */
+  public synchronized void fillResponse(GetFramesResponse res, String namePrefix, int offset, int maxFrames,
+      boolean computeJointPositions, LBR robot, MessageGenerator messageGenerator) {
+    int matching = 0;
+    for (Entry entry : getEntries()) {
+      if (!entry.name.startsWith(namePrefix)) {
+        continue;
+      }
+      matching++;
+      int listed = matching - 1 - offset;
+      if (listed < 0 || (maxFrames > 0 && listed >= maxFrames)) {
+        continue;
+      }
+
+      if (entry.worldPose == null) {
+        entry.worldPose = messageGenerator.buildMessage(geometry_msgs.Pose._TYPE);
+        Conversions.kukaTransformationToRosPose(entry.frame.transformationFromWorld(), entry.worldPose);
+        entry.status = entry.frame.getRedundancyInformation().values().iterator().next().getAllParameters()
+            .iterator().next().value().toString();
+      }
+      res.getFrameName().add(entry.name);
+      res.getParentName().add(entry.parentName);
+      res.getStatus().add(entry.status);
+      res.getCartWorldPosition().add(entry.worldPose);
+
+      if (computeJointPositions) {
+        if (entry.jointPosition == null) {
+          entry.jointPosition = robot.getInverseKinematicFromFrameAndRedundancy(entry.frame).get();
+        }
+        JointQuantity q = messageGenerator.buildMessage(JointQuantity._TYPE);
+        Conversions.vectorToJointQuantity(entry.jointPosition, q);
+        res.getJointPosition().add(q);
+      }
+    }
+    res.setFrameSize(matching);
+  }
+
+  private List<Entry> getEntries() {
+    if (entries != null && !hasChanged()) { return entries; }
+
+    long start = System.nanoTime();
+    entries = new ArrayList<Entry>();
+    for (int i = 0; i < maxRootFrames; i++) {
+      ObjectFrame frame = applicationData.tryGetFrame(rootFramePrefix + i);
+      if (frame == null) {
+        continue;
+      }
+      entries.add(new Entry(frame, frame.getParent().getName()));
+      addChildren(frame);
+    }
+    Logger.debug("Indexed " + entries.size() + " frames in " + (System.nanoTime() - start) / 1000 + "us.");
+    return entries;
+  }
+
+  private void addChildren(ObjectFrame frame) {
+    for (ObjectFrame child : frame.getChildrenSnapshot()) {
+      entries.add(new Entry(child, frame.getPath()));
+      addChildren(child);
+    }
+  }
+
+  /**
+   * True if walking the frames again, in the order they were indexed, does not find the same frames with the
+   * same transformations from their parents.
+   */
+  private boolean hasChanged() {
+    matchedEntries = 0;
+    for (int i = 0; i < maxRootFrames; i++) {
+      ObjectFrame frame = applicationData.tryGetFrame(rootFramePrefix + i);
+      if (frame != null && !matches(frame)) { return true; }
+    }
+    return matchedEntries != entries.size();
+  }
+
+  private boolean matches(ObjectFrame frame) {
+    if (matchedEntries >= entries.size()) { return false; }
+    Entry entry = entries.get(matchedEntries);
+    if (entry.frame != frame || !entry.transformationFromParent.equals(frame.getTransformationFromParent())) { return false; }
+    matchedEntries++;
+    for (ObjectFrame child : frame.getChildrenSnapshot()) {
+      if (!matches(child)) { return false; }
+    }
+    return true;
+  }
+}
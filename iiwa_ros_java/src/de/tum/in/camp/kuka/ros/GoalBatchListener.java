@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.kuka.roboticsAPI.executionModel.ExecutionState;
+import com.kuka.roboticsAPI.executionModel.IExecutionContainer;
+import com.kuka.roboticsAPI.motionModel.IMotion;
+import com.kuka.roboticsAPI.motionModel.IMotionContainer;
+import com.kuka.roboticsAPI.motionModel.IMotionContainerListener;
+
+import de.tum.in.camp.kuka.ros.iiwaActionServer.Goal;
+
+/**
+ * Completes the action goals executed together as one motion batch. Each goal is marked as reached when its
+ * own motion finishes, the goals left when the batch finishes are marked as failed if the batch had an error.
+ */
+public class GoalBatchListener implements IMotionContainerListener {
+
+  protected iiwaPublisher publisher;
+  protected iiwaActionServer actionServer;
+  private final Map<IMotion, Goal<?>> goals = new IdentityHashMap<IMotion, Goal<?>>();
+
+  public GoalBatchListener(iiwaPublisher publisher, iiwaActionServer actionServer) {
+    this.publisher = publisher;
+    this.actionServer = actionServer;
+  }
+
+  /**
+   * Associates a motion of the batch to the goal it executes.
+   */
+  public synchronized void addGoal(IMotion motion, Goal<?> goal) {
+    goals.put(motion, goal);
+  }
+
+  @Override
+  public void onStateChanged(IExecutionContainer container, ExecutionState state) {
+    // not used
+  }
+
+  @Override
+  public void motionStarted(IMotion motion) {
+    // not used
+  }
+
+  @Override
+  public void motionFinished(IMotion motion) {
+    Goal<?> goal;
+    synchronized (this) {
+      goal = goals.remove(motion);
+    }
+    if (goal != null && actionServer != null) {
+      actionServer.markGoalReached(goal);
+    }
+  }
+
+  @Override
+  public void containerFinished(IMotionContainer container) {
+    Logger.debug("Motion batch finished");
+    if (publisher != null) {
+      publisher.publishDestinationReached();
+    }
+    Goal<?>[] remaining;
+    synchronized (this) {
+      remaining = goals.values().toArray(new Goal<?>[goals.size()]);
+      goals.clear();
+    }
+    if (actionServer == null) { return; }
+    for (Goal<?> goal : remaining) {
+      if (container.hasError()) {
+        actionServer.markGoalFailed(goal, container.getErrorMessage());
+      }
+      else {
+        actionServer.markGoalReached(goal);
+      }
+    }
+  }
+}
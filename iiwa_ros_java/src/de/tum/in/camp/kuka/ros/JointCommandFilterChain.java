@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a sequence of joint command filters, in the order they have been added. <br>
+ * The chain starts again from the current destination of the robot whenever it is reset.
+ * <p>
+ * The filters may need several periods to reach a command, e.g. a low-pass or a velocity limit. Between two
+ * commands, <i>tick</i> filters the last command again every period, until the output stops moving.
+ */
+public class JointCommandFilterChain {
+  // Longer intervals between commands, e.g. when a stream restarts, are clamped to this value.
+  private static final double MAX_DT = 0.1;
+  // Largest change of the output, in rad, at which the filters are considered to have reached the command.
+  private static final double CONVERGED_CHANGE = 1e-8;
+
+  private final List<JointCommandFilter> filters = new ArrayList<JointCommandFilter>();
+  private long periodNs = TimeUnit.MILLISECONDS.toNanos(5);
+  private long lastCommandNs = 0;
+  private boolean initialized = false;
+  private boolean converged = true;
+  // Last command, before and after filtering.
+  private double[] target = null;
+  private double[] output = null;
+
+  public void add(JointCommandFilter filter) {
+    filters.add(filter);
+  }
+
+  public boolean isEmpty() {
+    return filters.isEmpty();
+  }
+
+  /**
+   * Sets the period at which the last command is filtered again until the filters reach it. It is also the
+   * time assumed between the reset and the first command.
+   * 
+   * @param period : in s.
+   */
+  public void setPeriod(double period) {
+    periodNs = (long) (period * 1e9);
+  }
+
+  /**
+   * Returns true if the chain has to be initialized with <i>reset</i> before filtering.
+   */
+  public boolean needsReset() {
+    return !initialized;
+  }
+
+  /**
+   * Restarts all the filters from the given joint positions.
+   * 
+   * @param position : joint positions in rad, e.g. the current destination of the robot.
+   * @param nowNs : System.nanoTime() at which the robot was at the position.
+   */
+  public void reset(double[] position, long nowNs) {
+    for (int i = 0; i < filters.size(); i++) {
+      filters.get(i).reset(position);
+    }
+    if (output == null || output.length != position.length) {
+      target = new double[position.length];
+      output = new double[position.length];
+    }
+    System.arraycopy(position, 0, target, 0, target.length);
+    System.arraycopy(position, 0, output, 0, output.length);
+    // As if the robot had been commanded to stay at the position one period ago, so that the first command
+    // is filtered over a period.
+    lastCommandNs = nowNs - periodNs;
+    initialized = true;
+    converged = true;
+  }
+
+  /**
+   * Forgets the state of the filters, the next command will need a <i>reset</i>.
+   */
+  public void invalidate() {
+    initialized = false;
+  }
+
+  /**
+   * Filters the command in place.
+   * 
+   * @param command : joint positions in rad.
+   * @param nowNs : System.nanoTime() at which the command is executed.
+   */
+  public void filter(double[] command, long nowNs) {
+    System.arraycopy(command, 0, target, 0, target.length);
+    apply(command, nowNs);
+    converged = false;
+  }
+
+  /**
+   * Filters the last command again if the filters have not reached it yet and a period has elapsed since
+   * the last output.
+   * 
+   * @param nowNs : System.nanoTime() of the current control cycle.
+   * @param result : set to the filtered command if true is returned.
+   * @return true if a new destination should be set.
+   */
+  public boolean tick(long nowNs, double[] result) {
+    if (!initialized || converged || nowNs - lastCommandNs < periodNs) { return false; }
+    System.arraycopy(target, 0, result, 0, target.length);
+    converged = apply(result, nowNs) <= CONVERGED_CHANGE;
+    return true;
+  }
+
+  /**
+   * Returns in how many ns the next call to <i>tick</i> may set a new destination, -1 if it will not until a
+   * new command arrives.
+   */
+  public long getNextTickDelayNs(long nowNs) {
+    if (!initialized || converged) { return -1; }
+    return Math.max(0, lastCommandNs + periodNs - nowNs);
+  }
+
+  /**
+   * Runs the filters on the command in place and returns the largest change of the output.
+   */
+  private double apply(double[] command, long nowNs) {
+    double dt = Math.min((nowNs - lastCommandNs) / 1e9, MAX_DT);
+    lastCommandNs = nowNs;
+    if (dt > 0.0) {
+      for (int i = 0; i < filters.size(); i++) {
+        filters.get(i).filter(command, dt);
+      }
+    }
+    else {
+      // Several commands in the same instant, keep the last output.
+      System.arraycopy(output, 0, command, 0, command.length);
+    }
+    double change = 0.0;
+    for (int i = 0; i < output.length; i++) {
+      change = Math.max(change, Math.abs(command[i] - output[i]));
+      output[i] = command[i];
+    }
+    return change;
+  }
+
+  /**
+   * Builds the chain configured on the ROS parameter server: a deadband, a first order low-pass and a
+   * velocity, acceleration and jerk limiter, each one only if enabled.
+   * 
+   * @param configuration
+   * @param jointCount
+   */
+  public static JointCommandFilterChain fromConfiguration(Configuration configuration, int jointCount) {
+    JointCommandFilterChain chain = new JointCommandFilterChain();
+    chain.setPeriod(configuration.getVelocityServoPeriod());
+    double deadband = configuration.getJointFilterDeadband();
+    if (deadband > 0.0) {
+      chain.add(new DeadbandJointFilter(jointCount, deadband));
+    }
+    double cutoff = configuration.getJointFilterLowPassCutoff();
+    if (cutoff > 0.0) {
+      chain.add(new LowPassJointFilter(jointCount, cutoff));
+    }
+    double maxVelocity = configuration.getJointFilterMaxVelocity();
+    double maxAcceleration = configuration.getJointFilterMaxAcceleration();
+    double maxJerk = configuration.getJointFilterMaxJerk();
+    if (maxVelocity > 0.0 || maxAcceleration > 0.0 || maxJerk > 0.0) {
+      chain.add(new LimiterJointFilter(jointCount, maxVelocity, maxAcceleration, maxJerk));
+    }
+    if (!chain.isEmpty()) {
+      Logger.info("Filtering the joint position commands: deadband " + deadband + " rad, low-pass " + cutoff + " Hz, limits "
+          + maxVelocity + " rad/s, " + maxAcceleration + " rad/s^2, " + maxJerk + " rad/s^3.");
+    }
+    return chain;
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.executionModel.ExecutionState;
+import com.kuka.roboticsAPI.executionModel.IExecutionContainer;
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+import com.kuka.roboticsAPI.motionModel.IMotion;
+import com.kuka.roboticsAPI.motionModel.IMotionContainer;
+import com.kuka.roboticsAPI.motionModel.IMotionContainerListener;
+import com.kuka.roboticsAPI.motionModel.PTP;
+import com.kuka.roboticsAPI.motionModel.SplineJP;
+import com.kuka.roboticsAPI.motionModel.controlModeModel.IMotionControlMode;
+
+/**
+ * Executes long joint splines as a sequence of shorter SplineJP windows, so that the controller only plans a
+ * few hundred points at a time instead of the whole path at once. The next window is queued while the
+ * current one is executed, and the end of each window is blended into the next one, so the robot does not
+ * stop in between. The windows are queued from the control loop by calling update(). <br>
+ * For timed splines, the control loop also calls trackPoints(), which detects when the robot passes each
+ * point and reports its delay to the requested time from start. A point counts as passed once the robot is
+ * close to it or beyond it along its segment, and at the latest when its window is finished.
+ */
+public class JointSplineStreamer {
+
+  // Number of windows queued ahead of the one being executed.
+  private static final int LOOKAHEAD = 1;
+  // Period of the tracking of the points of a timed spline.
+  private static final long TRACKING_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(5);
+  // Distance to a point at which it counts as passed.
+  private static final double POINT_TOLERANCE = 1e-3; // rad
+
+  protected iiwaPublisher publisher;
+  private ObjectFrame endpointFrame;
+  private WakeupSignal signal;
+  private int chunkSize = 0;
+  private double chunkBlending = 0.0;
+  private Stream stream;
+  // Timed spline whose points are tracked, until its last window is finished.
+  private Stream timedStream;
+  private long lastTrackingNs = 0;
+
+  public JointSplineStreamer(ObjectFrame endpointFrame, iiwaPublisher publisher) {
+    this.endpointFrame = endpointFrame;
+    this.publisher = publisher;
+  }
+
+  public void setEndpointFrame(ObjectFrame endpointFrame) {
+    this.endpointFrame = endpointFrame;
+  }
+
+  /**
+   * Sets the signal to raise every time a window is finished, so that the next one is queued right away.
+   */
+  public void setWakeupSignal(WakeupSignal signal) {
+    this.signal = signal;
+  }
+
+  /**
+   * Sets how the joint splines are split.
+   * 
+   * @param chunkSize : maximum number of points per window. 0 disables the splitting.
+   * @param chunkBlending : relative blending at the end of each window but the last one, in [0, 1].
+   */
+  public void setChunking(int chunkSize, double chunkBlending) {
+    this.chunkSize = Math.max(0, chunkSize);
+    this.chunkBlending = Math.max(0.0, Math.min(1.0, chunkBlending));
+  }
+
+  /**
+   * Starts the execution of a new spline, the windows of the previous one that are not queued yet are dropped.
+   * 
+   * @param points : the points of the spline.
+   * @param segmentVelocity : relative joint velocity of each segment, null to use jointVelocityRel for all.
+   * @param timeFromStart : requested time from start of each point in s, null if the spline is not timed.
+   * @param mode : control mode of every window.
+   * @param jointVelocityRel : relative joint velocity of every window.
+   * @return false if the first window could not be queued.
+   */
+  public boolean start(JointPosition[] points, double[] segmentVelocity, double[] timeFromStart, IMotionControlMode mode, double jointVelocityRel) {
+    int size = chunkSize > 0 ? Math.min(chunkSize, points.length) : points.length;
+    stream = new Stream(points, segmentVelocity, timeFromStart, mode, jointVelocityRel, size);
+    timedStream = timeFromStart != null ? stream : null;
+    if (stream.chunkCount > 1) {
+      Logger.info("Executing joint spline with " + points.length + " points in " + stream.chunkCount + " windows");
+    }
+    Stream started = stream;
+    update();
+    return !started.failed;
+  }
+
+  /**
+   * Queues the next windows of the current spline if the robot is running out of them.
+   */
+  public void update() {
+    if (stream != null && !stream.queueChunks()) {
+      stream = null;
+    }
+  }
+
+  /**
+   * Stops queuing the windows of the current spline. The windows already queued are still executed.
+   */
+  public void stop() {
+    if (stream != null) {
+      Logger.debug("Joint spline interrupted after " + stream.nextChunk + " of " + stream.chunkCount + " windows");
+      stream = null;
+    }
+    timedStream = null;
+  }
+
+  /**
+   * True while the points of a timed spline are being tracked.
+   */
+  public boolean isTrackingPoints() {
+    if (timedStream != null && timedStream.isFinished()) {
+      timedStream = null;
+    }
+    return timedStream != null;
+  }
+
+  /**
+   * Reports the points of the timed spline that the robot has passed since the previous call. The times are
+   * as accurate as the calls are frequent, see getNextTrackingDelayNs.
+   * 
+   * @param current : current joint position of the robot.
+   * @param nowNs : System.nanoTime().
+   */
+  public void trackPoints(JointPosition current, long nowNs) {
+    lastTrackingNs = nowNs;
+    if (timedStream != null) {
+      timedStream.track(current, nowNs);
+    }
+  }
+
+  /**
+   * Returns in how many ns the points of the timed spline have to be tracked again, -1 if there is none.
+   */
+  public long getNextTrackingDelayNs(long nowNs) {
+    if (timedStream == null) { return -1; }
+    return Math.max(0, lastTrackingNs + TRACKING_PERIOD_NS - nowNs);
+  }
+
+  public boolean isActive() {
+    return stream != null;
+  }
+
+  /**
+   * A spline being executed. The windows are queued from the control loop and finish in the motion thread.
+   */
+  private class Stream implements IMotionContainerListener {
+    private final JointPosition[] points;
+    private final double[] segmentVelocity;
+    private final double[] timeFromStart;
+    private final IMotionControlMode mode;
+    private final double jointVelocityRel;
+    private final int size;
+    private final int chunkCount;
+    private int nextChunk = 0;
+    private final AtomicInteger finishedChunks = new AtomicInteger();
+    private volatile boolean failed = false;
+    private volatile long startNs;
+    private volatile boolean started = false;
+    // Tracking of a timed spline: next point to be passed, the point before it, and the largest delay.
+    private int nextPoint = 0;
+    private JointPosition previousPoint = null;
+    private double maxDelay = 0.0;
+    private int maxDelayPoint = -1;
+
+    Stream(JointPosition[] points, double[] segmentVelocity, double[] timeFromStart, IMotionControlMode mode, double jointVelocityRel, int size) {
+      this.points = points;
+      this.segmentVelocity = segmentVelocity;
+      this.timeFromStart = timeFromStart;
+      this.mode = mode;
+      this.jointVelocityRel = jointVelocityRel;
+      this.size = size;
+      this.chunkCount = (points.length + size - 1) / size;
+    }
+
+    /**
+     * Returns false once all the windows are queued or one of them failed.
+     */
+    boolean queueChunks() {
+      while (!failed && nextChunk < chunkCount && nextChunk - finishedChunks.get() <= LOOKAHEAD) {
+        int begin = nextChunk * size;
+        int end = Math.min(begin + size, points.length);
+        PTP[] path = new PTP[end - begin];
+        for (int i = begin; i < end; i++) {
+          path[i - begin] = new PTP(points[i]);
+          if (segmentVelocity != null) {
+            path[i - begin].setJointVelocityRel(segmentVelocity[i]);
+          }
+        }
+        SplineJP window = new SplineJP(path);
+        window.setJointVelocityRel(jointVelocityRel).setMode(mode);
+        if (end < points.length && chunkBlending > 0) {
+          window.setBlendingRel(chunkBlending);
+        }
+        try {
+          if (nextChunk == 0) {
+            // Replaced by the actual start of the motion, once the robot has finished the previous ones.
+            startNs = System.nanoTime();
+          }
+          endpointFrame.moveAsync(window, this);
+        }
+        catch (Exception e) {
+          Logger.error("Failed to queue joint spline window " + (nextChunk + 1) + ": " + e.getMessage());
+          failed = true;
+          break;
+        }
+        nextChunk++;
+      }
+      return !failed && nextChunk < chunkCount;
+    }
+
+    boolean isFinished() {
+      return failed || finishedChunks.get() == chunkCount;
+    }
+
+    synchronized void track(JointPosition current, long nowNs) {
+      if (!started || previousPoint == null) {
+        // The first segment starts where the robot is when the motion starts.
+        previousPoint = current;
+        return;
+      }
+      double elapsed = (nowNs - startNs) / 1e9;
+      while (nextPoint < points.length && hasPassed(points[nextPoint], current)) {
+        pointPassed(elapsed);
+      }
+    }
+
+    /**
+     * True if the robot is close to the point, or beyond it along the segment from the previous point.
+     */
+    private boolean hasPassed(JointPosition point, JointPosition current) {
+      double along = 0.0;
+      double length = 0.0;
+      double distance = 0.0;
+      for (int j = 0; j < point.getAxisCount(); j++) {
+        double segment = point.get(j) - previousPoint.get(j);
+        double error = current.get(j) - point.get(j);
+        along += (current.get(j) - previousPoint.get(j)) * segment;
+        length += segment * segment;
+        distance += error * error;
+      }
+      return distance <= POINT_TOLERANCE * POINT_TOLERANCE || (length > 0 && along >= length);
+    }
+
+    private void pointPassed(double elapsed) {
+      double requested = timeFromStart[nextPoint];
+      if (elapsed - requested > maxDelay || maxDelayPoint < 0) {
+        maxDelay = elapsed - requested;
+        maxDelayPoint = nextPoint;
+      }
+      previousPoint = points[nextPoint];
+      nextPoint++;
+      if (publisher != null) {
+        publisher.publishJointSplineTiming(nextPoint, requested, elapsed);
+      }
+    }
+
+    @Override
+    public void onStateChanged(IExecutionContainer container, ExecutionState state) {
+      // not used
+    }
+
+    @Override
+    public void motionStarted(IMotion motion) {
+      if (!started) {
+        startNs = System.nanoTime();
+        started = true;
+      }
+    }
+
+    @Override
+    public void motionFinished(IMotion motion) {
+      // not used
+    }
+
+    @Override
+    public void containerFinished(IMotionContainer container) {
+      int finished = finishedChunks.incrementAndGet();
+      int executedPoints = Math.min(finished * size, points.length);
+      double elapsed = (System.nanoTime() - startNs) / 1e9;
+      if (container.hasError()) {
+        failed = true;
+        Logger.error("Joint spline window " + finished + " of " + chunkCount + " failed: " + container.getErrorMessage());
+      }
+      else {
+        Logger.debug("Joint spline window " + finished + " of " + chunkCount + " done, " + executedPoints + " of "
+            + points.length + " points");
+      }
+      if (timeFromStart != null) {
+        synchronized (this) {
+          // The end of the window is blended, so its last point may not have been detected.
+          while (!failed && nextPoint < executedPoints) {
+            pointPassed(elapsed);
+          }
+          if ((finished == chunkCount || failed) && maxDelayPoint >= 0) {
+            Logger.info(String.format("Timed joint spline passed %d of %d points in %.3f s, requested %.3f s, largest delay %.3f s at point %d", nextPoint,
+                points.length, elapsed, timeFromStart[points.length - 1], maxDelay, maxDelayPoint + 1));
+          }
+        }
+      }
+      if (publisher != null) {
+        publisher.publishJointSplineProgress(finished, chunkCount, executedPoints, points.length, failed);
+        if (finished == chunkCount && !failed) {
+          publisher.publishDestinationReached();
+        }
+      }
+      WakeupSignal signal = JointSplineStreamer.this.signal;
+      if (signal != null) {
+        signal.signal();
+      }
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring buffer of time-parameterized joint positions, played back by the control loop. <br>
+ * A single producer (the ROS callback thread) <i>offers</i> batches of points, a single consumer (the
+ * control loop) <i>polls</i> the point that is due at a given time. Neither side ever blocks: points that do
+ * not fit in the buffer are dropped and counted as overflows.
+ * <p>
+ * Every point carries the time from the previous point. Playback starts once the buffered points span at
+ * least the prefill time, and stops when the buffer runs dry. The producer marks the end of a trajectory with
+ * {@link #endTrajectory()}: running dry there is the normal end of the motion. Running dry anywhere else while
+ * the next point is already due is counted as an underrun, playback then restarts after a new prefill.
+ */
+public class JointTrajectoryBuffer {
+
+  private final int capacity;
+  private final int jointCount;
+  private final double[] positions;
+  private final long[] durationsNs;
+
+  // Next slot to write, only advanced by the producer.
+  private volatile long head = 0;
+  // Next slot to read, only advanced by the consumer.
+  private volatile long tail = 0;
+  // Slot following the last point of the trajectory, -1 while more points are expected.
+  private volatile long trajectoryEnd = -1;
+  // Sum of the durations of the buffered points.
+  private final AtomicLong bufferedNs = new AtomicLong(0);
+
+  private final AtomicLong overflows = new AtomicLong(0);
+  private final AtomicLong underruns = new AtomicLong(0);
+
+  // Playback state, only accessed by the consumer.
+  private volatile long prefillNs = 0;
+  private volatile boolean playing = false;
+  private long lastPointDueNs = 0;
+  private long lastPointDurationNs = 0;
+
+  /**
+   * @param capacity : maximum number of buffered points.
+   * @param jointCount : number of joint values of every point.
+   */
+  public JointTrajectoryBuffer(int capacity, int jointCount) {
+    this.capacity = capacity;
+    this.jointCount = jointCount;
+    positions = new double[capacity * jointCount];
+    durationsNs = new long[capacity];
+  }
+
+  /**
+   * Sets how much motion has to be buffered before the playback starts. A larger prefill absorbs more
+   * network jitter, at the cost of the same amount of latency.
+   * 
+   * @param seconds : prefill time in seconds.
+   */
+  public void setPrefill(double seconds) {
+    prefillNs = (long) (Math.max(0.0, seconds) * 1e9);
+  }
+
+  /**
+   * Appends a batch of points. Every row of the batch has the form [time from previous point in seconds,
+   * joint values...]. <br>
+   * Must only be called by the producer thread.
+   * 
+   * @param batch : the points, row after row.
+   * @return the number of points that have been buffered, the others have been dropped.
+   */
+  public int offer(double[] batch) {
+    int rowLength = jointCount + 1;
+    int rows = batch.length / rowLength;
+    long h = head;
+    int free = (int) (capacity - (h - tail));
+    int accepted = Math.min(rows, free);
+
+    long addedNs = 0;
+    for (int row = 0; row < accepted; row++) {
+      int slot = (int) ((h + row) % capacity);
+      long durationNs = (long) (Math.max(0.0, batch[row * rowLength]) * 1e9);
+      durationsNs[slot] = durationNs;
+      System.arraycopy(batch, row * rowLength + 1, positions, slot * jointCount, jointCount);
+      addedNs += durationNs;
+    }
+    bufferedNs.addAndGet(addedNs);
+    // Publish the new points to the consumer.
+    head = h + accepted;
+
+    if (accepted < rows) {
+      overflows.addAndGet(rows - accepted);
+    }
+    return accepted;
+  }
+
+  /**
+   * Marks the last offered point as the end of the trajectory. Its playback then starts even if the buffered
+   * points are shorter than the prefill, and running dry after it is not counted as an underrun. <br>
+   * Must only be called by the producer thread.
+   */
+  public void endTrajectory() {
+    trajectoryEnd = head;
+  }
+
+  /**
+   * Pops all the points that are due at the given time and copies the last one of them into destination. <br>
+   * Must only be called by the consumer thread.
+   * 
+   * @param nowNs : current System.nanoTime().
+   * @param destination : receives the joint values, at least jointCount long.
+   * @return true if destination has been updated.
+   */
+  public boolean poll(long nowNs, double[] destination) {
+    long t = tail;
+    long h = head;
+
+    if (!playing) {
+      // No need to wait for the prefill if the rest of the trajectory is already buffered.
+      long end = trajectoryEnd;
+      boolean complete = end - t > 0 && h - end >= 0;
+      if (t == h || (bufferedNs.get() < prefillNs && !complete)) {
+        return false;
+      }
+      // The first point is due right away.
+      playing = true;
+      lastPointDueNs = nowNs - durationsNs[(int) (t % capacity)];
+    }
+
+    int lastSlot = -1;
+    long poppedNs = 0;
+    while (t != h) {
+      int slot = (int) (t % capacity);
+      long dueNs = lastPointDueNs + durationsNs[slot];
+      if (dueNs - nowNs > 0) {
+        break;
+      }
+      lastPointDueNs = dueNs;
+      lastPointDurationNs = durationsNs[slot];
+      poppedNs += durationsNs[slot];
+      lastSlot = slot;
+      t++;
+    }
+
+    if (lastSlot >= 0) {
+      System.arraycopy(positions, lastSlot * jointCount, destination, 0, jointCount);
+      bufferedNs.addAndGet(-poppedNs);
+      tail = t;
+    }
+    else if (t == h && t == trajectoryEnd) {
+      // End of the trajectory.
+      playing = false;
+    }
+    else if (t == h && nowNs - lastPointDueNs > lastPointDurationNs) {
+      // The next point should have been played already, but it has not arrived yet.
+      underruns.incrementAndGet();
+      playing = false;
+    }
+    return lastSlot >= 0;
+  }
+
+  /**
+   * Drops all the buffered points and stops the playback. <br>
+   * Must only be called by the consumer thread.
+   */
+  public void clear() {
+    long t = tail;
+    long h = head;
+    long droppedNs = 0;
+    for (; t != h; t++) {
+      droppedNs += durationsNs[(int) (t % capacity)];
+    }
+    bufferedNs.addAndGet(-droppedNs);
+    tail = h;
+    playing = false;
+  }
+
+  /**
+   * True while buffered points are being played back.
+   */
+  public boolean isPlaying() {
+    return playing;
+  }
+
+  /**
+   * Returns the number of buffered points.
+   */
+  public int size() {
+    return (int) (head - tail);
+  }
+
+  /**
+   * Returns the maximum number of buffered points.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of joint values of every point.
+   */
+  public int getJointCount() {
+    return jointCount;
+  }
+
+  /**
+   * Returns the duration of the buffered motion in seconds.
+   */
+  public double getBufferedTime() {
+    return bufferedNs.get() / 1e9;
+  }
+
+  /**
+   * Returns how many points have been dropped because the buffer was full.
+   */
+  public long getOverflowCount() {
+    return overflows.get();
+  }
+
+  /**
+   * Returns how many times the buffer ran dry during the playback, before the end of the trajectory.
+   */
+  public long getUnderrunCount() {
+    return underruns.get();
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.deviceModel.LBRE1Redundancy;
+import com.kuka.roboticsAPI.geometricModel.Frame;
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+import com.kuka.roboticsAPI.geometricModel.math.Transformation;
+import com.kuka.roboticsAPI.geometricModel.math.Vector;
+import com.kuka.roboticsAPI.sensorModel.ForceSensorData;
+
+/**
+ * Reads the robot state from a real LBR through the RoboticsAPI.
+ */
+public class LBRStateSource implements RobotStateSource {
+  private final LBR robot;
+
+  public LBRStateSource(LBR robot) {
+    this.robot = robot;
+  }
+
+  public LBR getRobot() {
+    return robot;
+  }
+
+  @Override
+  public int getJointCount() {
+    return robot.getJointCount();
+  }
+
+  @Override
+  public void readJointPosition(double[] position) {
+    copy(robot.getCurrentJointPosition().getInternalArray(), position);
+  }
+
+  @Override
+  public void readMeasuredTorque(double[] torque) {
+    copy(robot.getMeasuredTorque().getTorqueValues(), torque);
+  }
+
+  @Override
+  public void readExternalTorque(double[] torque) {
+    copy(robot.getExternalTorque().getTorqueValues(), torque);
+  }
+
+  @Override
+  public void readCartesianPose(ObjectFrame frame, double[] position, double[] orientation, double[] redundancy) {
+    Frame cartesianFrame = robot.getCurrentCartesianPosition(frame);
+    Transformation transform = cartesianFrame.transformationFromWorld();
+    position[0] = Conversions.kukaTranslationToRos(transform.getX());
+    position[1] = Conversions.kukaTranslationToRos(transform.getY());
+    position[2] = Conversions.kukaTranslationToRos(transform.getZ());
+    Conversions.matrixToQuat(transform.getRotationMatrix(), orientation);
+
+    LBRE1Redundancy redundancyInformation = (LBRE1Redundancy) cartesianFrame.getRedundancyInformationForDevice(robot);
+    redundancy[0] = redundancyInformation.getE1();
+    redundancy[1] = redundancyInformation.getStatus();
+    redundancy[2] = redundancyInformation.getTurn();
+  }
+
+  @Override
+  public String readExternalWrench(ObjectFrame frame, double[] force, double[] torque, double[] forceInaccuracy, double[] torqueInaccuracy) {
+    ForceSensorData forceData = robot.getExternalForceTorque(frame);
+    copy(forceData.getForce(), force);
+    copy(forceData.getTorque(), torque);
+    copy(forceData.getForceInaccuracy(), forceInaccuracy);
+    copy(forceData.getTorqueInaccuracy(), torqueInaccuracy);
+    return frame.getName();
+  }
+
+  private static void copy(double[] from, double[] to) {
+    System.arraycopy(from, 0, to, 0, to.length);
+  }
+
+  private static void copy(Vector from, double[] to) {
+    to[0] = from.getX();
+    to[1] = from.getY();
+    to[2] = from.getZ();
+  }
+}
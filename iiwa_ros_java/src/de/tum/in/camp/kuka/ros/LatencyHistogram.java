@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, that can be recorded from any thread without locking. <br>
+ * Buckets are logarithmic, each power of two is split into 8 sub-buckets, so percentiles are reported with
+ * a relative error below 12.5%.
+ * <p>
+ * <i>drain</i> returns the values recorded since its last call and resets the histogram.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong total = new AtomicLong(0);
+  private final AtomicLong max = new AtomicLong(0);
+
+  /**
+   * Summary of the values recorded during a time window.
+   */
+  public static class Summary {
+    public long count = 0;
+    public long meanNs = 0;
+    public long p50Ns = 0;
+    public long p90Ns = 0;
+    public long p99Ns = 0;
+    public long maxNs = 0;
+  }
+
+  /**
+   * Records a duration, negative values are ignored.
+   */
+  public void record(long durationNs) {
+    if (durationNs < 0) { return; }
+    counts.incrementAndGet(bucketOf(durationNs));
+    total.addAndGet(durationNs);
+
+    long currentMax = max.get();
+    while (durationNs > currentMax && !max.compareAndSet(currentMax, durationNs)) {
+      currentMax = max.get();
+    }
+  }
+
+  /**
+   * Returns a summary of the values recorded since the last call and resets the histogram.
+   */
+  public Summary drain() {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.getAndSet(i, 0);
+      count += snapshot[i];
+    }
+
+    Summary summary = new Summary();
+    summary.count = count;
+    long sum = total.getAndSet(0);
+    summary.maxNs = max.getAndSet(0);
+    if (count == 0) { return summary; }
+
+    summary.meanNs = sum / count;
+    summary.p50Ns = percentile(snapshot, count, 0.5);
+    summary.p90Ns = percentile(snapshot, count, 0.9);
+    summary.p99Ns = percentile(snapshot, count, 0.99);
+    return summary;
+  }
+
+  private static long percentile(long[] snapshot, long count, double fraction) {
+    long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) { return lowestValueOf(i); }
+    }
+    return lowestValueOf(snapshot.length - 1);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) { return (int) value; }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long lowestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) { return bucket; }
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.TimeUnit;
+
+import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
+
+/**
+ * Measures where the latency of the SmartServo commands goes, from the reception of a ROS message to the
+ * call of setDestination. <br>
+ * The durations of each stage are recorded in a LatencyHistogram per command type and stage, that are
+ * periodically summarized and published on the <robot name>/diagnostics/latency topic. There is one monitor
+ * per robot, owned by its iiwaPublisher.
+ * <p>
+ * The command being processed is tracked with <i>commandPickedUp</i> and <i>commandFinished</i>, which
+ * have to be called by the control loop thread. Stages recorded while no command is being processed (e.g.
+ * conversions done for an action goal) are ignored. Nothing is recorded while the monitor is disabled.
+ * <p>
+ * The durations of the switches between SmartServo motions are recorded as well, whatever command caused
+ * them, separately for prepared motions and for motions created during the switch, with the share of the
+ * switches that used a prepared motion.
+ */
+public class LatencyMonitor {
+
+  public enum Stage {
+    // From the rosjava callback to the control loop taking the command.
+    PICKUP,
+    // Resolving the TF transformation of a Cartesian command.
+    TF_LOOKUP,
+    // Converting a ROS pose into a Sunrise frame.
+    CONVERSION,
+    // The call to setDestination of the SmartServo runtime.
+    SET_DESTINATION,
+    // From the rosjava callback to the return of setDestination.
+    END_TO_END
+  }
+
+  private volatile boolean enabled = false;
+
+  private final LatencyHistogram preparedSwitches = new LatencyHistogram();
+  private final LatencyHistogram createdSwitches = new LatencyHistogram();
+
+  private final LatencyHistogram[][] histograms = new LatencyHistogram[CommandType.values().length][Stage.values().length];
+
+  // Command currently processed by the control loop, read by the threads recording its stages.
+  private volatile CommandType currentCommand = null;
+  private volatile long currentCommandReceivedNs = 0;
+
+  public LatencyMonitor() {
+    for (int i = 0; i < histograms.length; i++) {
+      for (int j = 0; j < histograms[i].length; j++) {
+        histograms[i][j] = new LatencyHistogram();
+      }
+    }
+  }
+
+  public void setEnabled(boolean enable) {
+    enabled = enable;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the current System.nanoTime() to be passed to <i>record</i>, 0 if the monitor is disabled.
+   */
+  public long now() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Starts tracking a command taken by the control loop and records its pickup latency.
+   * 
+   * @param commandType : type of the command.
+   * @param receivedNs : System.nanoTime() at which the command has been received.
+   */
+  public void commandPickedUp(CommandType commandType, long receivedNs) {
+    if (!enabled || commandType == null) { return; }
+    currentCommandReceivedNs = receivedNs;
+    currentCommand = commandType;
+    histograms[commandType.ordinal()][Stage.PICKUP.ordinal()].record(System.nanoTime() - receivedNs);
+  }
+
+  /**
+   * Records the duration of a stage of the command currently processed.
+   * 
+   * @param stage : the stage that just ended.
+   * @param startNs : the value returned by <i>now</i> when the stage started.
+   */
+  public void record(Stage stage, long startNs) {
+    CommandType command = currentCommand;
+    if (!enabled || command == null || startNs == 0) { return; }
+    histograms[command.ordinal()][stage.ordinal()].record(System.nanoTime() - startNs);
+  }
+
+  /**
+   * Records the duration of a setDestination call and the end to end latency of the current command.
+   * 
+   * @param startNs : the value returned by <i>now</i> before calling setDestination.
+   */
+  public void destinationSet(long startNs) {
+    CommandType command = currentCommand;
+    if (!enabled || command == null || startNs == 0) { return; }
+    long now = System.nanoTime();
+    histograms[command.ordinal()][Stage.SET_DESTINATION.ordinal()].record(now - startNs);
+    histograms[command.ordinal()][Stage.END_TO_END.ordinal()].record(now - currentCommandReceivedNs);
+  }
+
+  /**
+   * Records the duration of a setDestination call made by the control loop on its own, e.g. to extrapolate a
+   * late command or to integrate a velocity command. The end to end latency is only recorded if a command of
+   * the given type is being processed.
+   * 
+   * @param commandType : type of the command the destination comes from.
+   * @param startNs : the value returned by <i>now</i> before calling setDestination.
+   */
+  public void destinationSet(CommandType commandType, long startNs) {
+    if (commandType == currentCommand) {
+      destinationSet(startNs);
+      return;
+    }
+    if (!enabled || startNs == 0) { return; }
+    histograms[commandType.ordinal()][Stage.SET_DESTINATION.ordinal()].record(System.nanoTime() - startNs);
+  }
+
+  /**
+   * Records the duration of a switch to a new SmartServo motion.
+   * 
+   * @param prepared : true if the motion had been prepared beforehand, false if it was created by the switch.
+   * @param startNs : the value returned by <i>now</i> when the switch started.
+   */
+  public void motionSwitched(boolean prepared, long startNs) {
+    if (!enabled || startNs == 0) { return; }
+    (prepared ? preparedSwitches : createdSwitches).record(System.nanoTime() - startNs);
+  }
+
+  /**
+   * Stops tracking the current command.
+   */
+  public void commandFinished() {
+    currentCommand = null;
+  }
+
+  /**
+   * Returns the histogram of the given command type and stage.
+   */
+  public LatencyHistogram getHistogram(CommandType commandType, Stage stage) {
+    return histograms[commandType.ordinal()][stage.ordinal()];
+  }
+
+  /**
+   * Summarizes the latencies recorded since the last call, one line per command type and stage, and resets
+   * the histograms. Times are in microseconds.
+   */
+  public String drainReport() {
+    StringBuilder report = new StringBuilder();
+    for (CommandType commandType : CommandType.values()) {
+      for (Stage stage : Stage.values()) {
+        LatencyHistogram.Summary summary = getHistogram(commandType, stage).drain();
+        if (summary.count == 0) {
+          continue;
+        }
+        report.append(commandType).append(' ').append(stage).append(": count ").append(summary.count).append(", mean ").append(toMicros(summary.meanNs)).append(", p50 ")
+            .append(toMicros(summary.p50Ns)).append(", p90 ").append(toMicros(summary.p90Ns)).append(", p99 ").append(toMicros(summary.p99Ns)).append(", max ")
+            .append(toMicros(summary.maxNs)).append('\n');
+      }
+    }
+    LatencyHistogram.Summary prepared = preparedSwitches.drain();
+    LatencyHistogram.Summary created = createdSwitches.drain();
+    appendSwitches(report, "prepared", prepared);
+    appendSwitches(report, "created", created);
+    if (prepared.count + created.count > 0) {
+      report.append("MOTION_SWITCH prepared: ").append(100 * prepared.count / (prepared.count + created.count)).append("% of ").append(prepared.count + created.count)
+          .append(" switches\n");
+    }
+    return report.toString();
+  }
+
+  private void appendSwitches(StringBuilder report, String kind, LatencyHistogram.Summary summary) {
+    if (summary.count == 0) { return; }
+    report.append("MOTION_SWITCH ").append(kind).append(": count ").append(summary.count).append(", mean ").append(toMicros(summary.meanNs)).append(", p50 ")
+        .append(toMicros(summary.p50Ns)).append(", p90 ").append(toMicros(summary.p90Ns)).append(", p99 ").append(toMicros(summary.p99Ns)).append(", max ")
+        .append(toMicros(summary.maxNs)).append('\n');
+  }
+
+  private static long toMicros(long ns) {
+    return TimeUnit.NANOSECONDS.toMicros(ns);
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+/**
+ * Limits the velocity, acceleration and jerk with which each joint follows its commands. A limit of 0
+ * disables it. <br>
+ * When the acceleration is limited, the velocity is also limited to what still allows to stop at the
+ * command, so that the joints do not overshoot it.
+ */
+public class LimiterJointFilter implements JointCommandFilter {
+  private final double maxVelocity;
+  private final double maxAcceleration;
+  private final double maxJerk;
+
+  private final double[] position;
+  private final double[] velocity;
+  private final double[] acceleration;
+
+  /**
+   * @param jointCount
+   * @param maxVelocity : in rad/s.
+   * @param maxAcceleration : in rad/s^2.
+   * @param maxJerk : in rad/s^3.
+   */
+  public LimiterJointFilter(int jointCount, double maxVelocity, double maxAcceleration, double maxJerk) {
+    this.maxVelocity = maxVelocity;
+    this.maxAcceleration = maxAcceleration;
+    this.maxJerk = maxJerk;
+    position = new double[jointCount];
+    velocity = new double[jointCount];
+    acceleration = new double[jointCount];
+  }
+
+  @Override
+  public void filter(double[] command, double dt) {
+    for (int i = 0; i < position.length; i++) {
+      double error = command[i] - position[i];
+      if (maxJerk > 0.0) {
+        // Distance travelled until the current acceleration can be brought back to zero.
+        double t = Math.abs(acceleration[i]) / maxJerk;
+        error -= velocity[i] * t + acceleration[i] * t * t / 3.0;
+      }
+      double targetVelocity = error / dt;
+      if (maxAcceleration > 0.0 || maxJerk > 0.0) {
+        targetVelocity = clamp(targetVelocity, stoppingVelocity(Math.abs(error)));
+      }
+      if (maxVelocity > 0.0) {
+        targetVelocity = clamp(targetVelocity, maxVelocity);
+      }
+
+      double velocityError = targetVelocity - velocity[i];
+      double targetAcceleration = velocityError / dt;
+      if (maxJerk > 0.0) {
+        double stoppingAcceleration = Math.sqrt(2.0 * maxJerk * Math.abs(velocityError));
+        targetAcceleration = clamp(targetAcceleration, stoppingAcceleration);
+      }
+      if (maxAcceleration > 0.0) {
+        targetAcceleration = clamp(targetAcceleration, maxAcceleration);
+      }
+      if (maxJerk > 0.0) {
+        targetAcceleration = acceleration[i] + clamp(targetAcceleration - acceleration[i], maxJerk * dt);
+      }
+
+      acceleration[i] = targetAcceleration;
+      velocity[i] += acceleration[i] * dt;
+      if (maxVelocity > 0.0) {
+        velocity[i] = clamp(velocity[i], maxVelocity);
+      }
+      position[i] += velocity[i] * dt;
+      command[i] = position[i];
+    }
+  }
+
+  @Override
+  public void reset(double[] position) {
+    System.arraycopy(position, 0, this.position, 0, this.position.length);
+    for (int i = 0; i < velocity.length; i++) {
+      velocity[i] = 0.0;
+      acceleration[i] = 0.0;
+    }
+  }
+
+  /**
+   * Returns the highest velocity from which the joint can still stop within the given distance.
+   */
+  private double stoppingVelocity(double distance) {
+    if (maxJerk <= 0.0) { return Math.sqrt(2.0 * maxAcceleration * distance); }
+    // Triangular deceleration profile, the acceleration limit is not reached.
+    double velocity = Math.cbrt(distance * distance * maxJerk);
+    if (maxAcceleration > 0.0 && velocity > maxAcceleration * maxAcceleration / maxJerk) {
+      // Trapezoidal deceleration profile.
+      double c = maxAcceleration * maxAcceleration / maxJerk;
+      velocity = (-c + Math.sqrt(c * c + 8.0 * maxAcceleration * distance)) / 2.0;
+    }
+    return velocity;
+  }
+
+  private static double clamp(double value, double limit) {
+    return Math.max(-limit, Math.min(limit, value));
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+/**
+ * First order low-pass filter of the joint commands. The filter coefficient is computed from the interval
+ * between commands, so that the cutoff frequency does not depend on the command rate.
+ */
+public class LowPassJointFilter implements JointCommandFilter {
+  private final double timeConstant;
+  private final double[] output;
+
+  /**
+   * @param jointCount
+   * @param cutoffFrequency : in Hz.
+   */
+  public LowPassJointFilter(int jointCount, double cutoffFrequency) {
+    timeConstant = 1.0 / (2.0 * Math.PI * cutoffFrequency);
+    output = new double[jointCount];
+  }
+
+  @Override
+  public void filter(double[] command, double dt) {
+    double alpha = 1.0 - Math.exp(-dt / timeConstant);
+    for (int i = 0; i < output.length; i++) {
+      output[i] += alpha * (command[i] - output[i]);
+      command[i] = output[i];
+    }
+  }
+
+  @Override
+  public void reset(double[] position) {
+    System.arraycopy(position, 0, output, 0, output.length);
+  }
+}
@@ -30,6 +30,8 @@ package de.tum.in.camp.kuka.ros;
 import geometry_msgs.Pose;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
@@ -52,15 +54,27 @@ import com.kuka.roboticsAPI.sensorModel.ForceSensorData;
  * This class helps building iiwa_msgs ROS messages, it's a collection of methods to build the messages from
  * the current state of a LBR iiwa Robot. For Cartesian messages, it's possible to pass a reference frames, if
  * no reference frames is passed, the flange frame is used.
+ * <p>
+ * The builders fill cached messages and reuse their arrays, but they are not allocation free: the rosjava
+ * message setters box every value they are given, which costs about 100 to 600 bytes per message (see
+ * ConversionsBenchmark). The setters are only called for the values that change at every cycle, which
+ * PublisherAllocationTest checks.
  */
 public class MessageGenerator {
 
-  private static String baseFrameID;
   private static final String baseFrameIDSuffix = "_link_0";
-  private static String[] joint_names;
+  // Per robot, several robots can be run by one application.
+  private final String baseFrameID;
+  private final String[] joint_names;
+  private final List<String> joint_names_list;
 
-  private static double[] last_position;
-  private static long last_position_time_ns = 0;
+  private double[] last_position;
+  private long last_position_time_ns = 0;
+  private double[] velocity;
+
+  // Scratch objects reused by getPose, guarded by orientation
+  private final Matrix3d rotation = new Matrix3d();
+  private final Quat4d orientation = new Quat4d();
 
   // Objects to create ROS messages
   private NodeConfiguration nodeConf = NodeConfiguration.newPrivate();
@@ -75,6 +89,9 @@ public class MessageGenerator {
     // e.g. if robotName == iiwa, the joints are iiwa_joint_1, iiwa_joint_2, ...
     joint_names = new String[] { robotName + "_joint_1", robotName + "_joint_2", robotName + "_joint_3", robotName + "_joint_4", robotName + "_joint_5", robotName + "_joint_6",
         robotName + "_joint_7" };
+    joint_names_list = Collections.unmodifiableList(Arrays.asList(joint_names));
+    last_position = new double[joint_names.length];
+    velocity = new double[joint_names.length];
     time = timeProvider;
   }
 
@@ -203,17 +220,20 @@ public class MessageGenerator {
     Conversions.vectorToJointQuantity(computeVelocity(robot), currentJointVelocity.getVelocity());
   }
 
-  // TODO: doc
+  /**
+   * Estimates the joint velocity from the difference to the joint position read at the previous call.
+   * <p>
+   * The returned array is reused by the next call.
+   */
   private double[] computeVelocity(LBR robot) {
     double[] position = robot.getCurrentJointPosition().getInternalArray();
     long position_time_ns = System.nanoTime();
-    double[] velocity = new double[robot.getJointCount()];
 
     if (last_position_time_ns != 0) {
-      for (int i = 0; i < robot.getJointCount(); i++)
+      for (int i = 0; i < velocity.length; i++)
         velocity[i] = (position[i] - last_position[i]) / ((double) (position_time_ns - last_position_time_ns) / 1000000000);
     }
-    last_position = position;
+    System.arraycopy(position, 0, last_position, 0, last_position.length);
     last_position_time_ns = position_time_ns;
 
     return velocity;
@@ -311,9 +331,182 @@ public class MessageGenerator {
   public void getCurrentJointState(sensor_msgs.JointState currentJointState, LBR robot) {
 
     currentJointState.getHeader().setStamp(time.getCurrentTime());
-    currentJointState.setName(Arrays.asList(joint_names));
-    currentJointState.setPosition(robot.getCurrentJointPosition().getInternalArray());
-    currentJointState.setEffort(robot.getMeasuredTorque().getTorqueValues());
+    setJointNames(currentJointState);
+    double[] position = copyInto(robot.getCurrentJointPosition().getInternalArray(), currentJointState.getPosition());
+    if (position != currentJointState.getPosition()) {
+      currentJointState.setPosition(position);
+    }
+    double[] effort = copyInto(robot.getMeasuredTorque().getTorqueValues(), currentJointState.getEffort());
+    if (effort != currentJointState.getEffort()) {
+      currentJointState.setEffort(effort);
+    }
+  }
+
+  private void setJointNames(sensor_msgs.JointState jointState) {
+    if (jointState.getName() != joint_names_list) {
+      jointState.setName(joint_names_list);
+    }
+  }
+
+  /**
+   * Copies the given values into the array currently held by a message, the array is only allocated if it
+   * does not have the right size yet (i.e. the first time a cached message is filled).
+   * 
+   * @param values : the values to copy.
+   * @param current : the array currently held by the message.
+   * @return the array to set in the message, if it is not <i>current</i>.
+   */
+  private double[] copyInto(double[] values, double[] current) {
+    if (current == null || current.length != values.length) {
+      current = new double[values.length];
+    }
+    System.arraycopy(values, 0, current, 0, values.length);
+    return current;
+  }
+
+  /**
+   * Builds an iiwa_msgs.CartesianPose message from a snapshot of the robot state.
+   * <p>
+   * The snapshot has to be sampled with <i>RobotStateSnapshot.CARTESIAN_POSE</i>, the message header is set
+   * to the snapshot timestamp, poses will be relative to the robot base frame.<br>
+   *
+   * @param currentPose : the CartesianPose message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentCartesianPose(iiwa_msgs.CartesianPose currentPose, RobotStateSnapshot snapshot) {
+    setFrameId(currentPose.getPoseStamped().getHeader(), baseFrameID);
+    currentPose.getPoseStamped().getHeader().setStamp(snapshot.getStamp());
+
+    double[] position = snapshot.getCartesianPosition();
+    double[] orientation = snapshot.getCartesianOrientation();
+    geometry_msgs.Pose pose = currentPose.getPoseStamped().getPose();
+    pose.getPosition().setX(position[0]);
+    pose.getPosition().setY(position[1]);
+    pose.getPosition().setZ(position[2]);
+    pose.getOrientation().setX(orientation[0]);
+    pose.getOrientation().setY(orientation[1]);
+    pose.getOrientation().setZ(orientation[2]);
+    pose.getOrientation().setW(orientation[3]);
+
+    currentPose.getRedundancy().setE1(snapshot.getRedundancyE1());
+    currentPose.getRedundancy().setStatus(snapshot.getRedundancyStatus());
+    currentPose.getRedundancy().setTurn(snapshot.getRedundancyTurn());
+  }
+
+  /**
+   * Builds an iiwa_msgs.CartesianWrench message from a snapshot of the robot state.
+   * <p>
+   * The snapshot has to be sampled with <i>RobotStateSnapshot.CARTESIAN_WRENCH</i>, the message header is set
+   * to the snapshot timestamp and to the name of the sampled frame.<br>
+   *
+   * @param currentWrench : the CartesianWrench message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentCartesianWrench(iiwa_msgs.CartesianWrench currentWrench, RobotStateSnapshot snapshot) {
+    setFrameId(currentWrench.getHeader(), snapshot.getWrenchFrameName());
+    currentWrench.getHeader().setStamp(snapshot.getStamp());
+
+    setVector(currentWrench.getWrench().getForce(), snapshot.getForce());
+    setVector(currentWrench.getWrench().getTorque(), snapshot.getTorque());
+    setVector(currentWrench.getInaccuracy().getForce(), snapshot.getForceInaccuracy());
+    setVector(currentWrench.getInaccuracy().getTorque(), snapshot.getTorqueInaccuracy());
+  }
+
+  /**
+   * Sets the frame of a cached message only when it changes: every call to a setter of a rosjava message
+   * allocates its arguments.
+   */
+  private void setFrameId(std_msgs.Header header, String frameId) {
+    if (!frameId.equals(header.getFrameId())) {
+      header.setFrameId(frameId);
+    }
+  }
+
+  private void setVector(geometry_msgs.Vector3 vector, double[] values) {
+    vector.setX(values[0]);
+    vector.setY(values[1]);
+    vector.setZ(values[2]);
+  }
+
+  /**
+   * Builds an iiwa_msgs.JointPosition message from a snapshot of the robot state.
+   *
+   * @param currentJointPosition : the JointPosition message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentJointPosition(iiwa_msgs.JointPosition currentJointPosition, RobotStateSnapshot snapshot) {
+    currentJointPosition.getHeader().setStamp(snapshot.getStamp());
+    Conversions.vectorToJointQuantity(snapshot.getJointPosition(), currentJointPosition.getPosition());
+  }
+
+  /**
+   * Builds an iiwa_msgs.JointPositionVelocity message from a snapshot of the robot state.
+   *
+   * @param currentJointPositionVelocity : the JointPositionVelocity message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentJointPositionVelocity(iiwa_msgs.JointPositionVelocity currentJointPositionVelocity, RobotStateSnapshot snapshot) {
+    currentJointPositionVelocity.getHeader().setStamp(snapshot.getStamp());
+    Conversions.vectorToJointQuantity(snapshot.getJointPosition(), currentJointPositionVelocity.getPosition());
+    Conversions.vectorToJointQuantity(snapshot.getJointVelocity(), currentJointPositionVelocity.getVelocity());
+  }
+
+  /**
+   * Builds an iiwa_msgs.JointVelocity message from a snapshot of the robot state.
+   *
+   * @param currentJointVelocity : the JointVelocity message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentJointVelocity(iiwa_msgs.JointVelocity currentJointVelocity, RobotStateSnapshot snapshot) {
+    currentJointVelocity.getHeader().setStamp(snapshot.getStamp());
+    Conversions.vectorToJointQuantity(snapshot.getJointVelocity(), currentJointVelocity.getVelocity());
+  }
+
+  /**
+   * Builds an iiwa_msgs.JointTorque message with the measured torque from a snapshot of the robot state.
+   *
+   * @param currentJointTorque : the JointTorque message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentJointTorque(iiwa_msgs.JointTorque currentJointTorque, RobotStateSnapshot snapshot) {
+    currentJointTorque.getHeader().setStamp(snapshot.getStamp());
+    Conversions.vectorToJointQuantity(snapshot.getMeasuredTorque(), currentJointTorque.getTorque());
+  }
+
+  /**
+   * Builds an iiwa_msgs.JointTorque message with the external torque from a snapshot of the robot state.
+   *
+   * @param currentExternalJointTorque : the JointTorque message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentExternalJointTorque(iiwa_msgs.JointTorque currentExternalJointTorque, RobotStateSnapshot snapshot) {
+    currentExternalJointTorque.getHeader().setStamp(snapshot.getStamp());
+    Conversions.vectorToJointQuantity(snapshot.getExternalTorque(), currentExternalJointTorque.getTorque());
+  }
+
+  /**
+   * Builds a sensor_msgs.JointState message from a snapshot of the robot state.
+   * <p>
+   * The snapshot has to be sampled with both <i>JOINT_POSITION</i> and <i>MEASURED_TORQUE</i>.
+   *
+   * @param currentJointState : the JointState message that will be created.
+   * @param snapshot : the sampled robot state used to set the values of the message.
+   */
+  public void getCurrentJointState(sensor_msgs.JointState currentJointState, RobotStateSnapshot snapshot) {
+    currentJointState.getHeader().setStamp(snapshot.getStamp());
+    setJointNames(currentJointState);
+    double[] position = copyInto(snapshot.getJointPosition(), currentJointState.getPosition());
+    if (position != currentJointState.getPosition()) {
+      currentJointState.setPosition(position);
+    }
+    double[] velocity = copyInto(snapshot.getJointVelocity(), currentJointState.getVelocity());
+    if (velocity != currentJointState.getVelocity()) {
+      currentJointState.setVelocity(velocity);
+    }
+    double[] effort = copyInto(snapshot.getMeasuredTorque(), currentJointState.getEffort());
+    if (effort != currentJointState.getEffort()) {
+      currentJointState.setEffort(effort);
+    }
   }
 
   /**
@@ -381,20 +574,38 @@ public class MessageGenerator {
   }
 
   public geometry_msgs.Pose getPose(Matrix4d mat) {
-    Matrix3d base = new Matrix3d(mat.getM00(), mat.getM01(), mat.getM02(), mat.getM10(), mat.getM11(), mat.getM12(), mat.getM20(), mat.getM21(), mat.getM22());
-    Quat4d q = new Quat4d();
-    q.set(base);
-
     Pose result = buildMessage(Pose._TYPE);
-    result.getOrientation().setX(q.getX());
-    result.getOrientation().setY(q.getY());
-    result.getOrientation().setZ(q.getZ());
-    result.getOrientation().setW(q.getW());
+    getPose(mat, result);
+    return result;
+  }
+
+  /**
+   * Fills a geometry_msgs.Pose with the rotation and translation of the given matrix, reusing scratch vecmath
+   * objects instead of allocating new ones. The rosjava message setters still box every value they are given.
+   * <p>
+   * Thread safe: the scratch objects are only used while holding their lock.
+   * 
+   * @param mat : an homogeneous transformation matrix.
+   * @param result : the Pose message to fill.
+   */
+  public void getPose(Matrix4d mat, geometry_msgs.Pose result) {
+    double x, y, z, w;
+    synchronized (orientation) {
+      mat.getRotationScale(rotation);
+      orientation.set(rotation);
+      x = orientation.getX();
+      y = orientation.getY();
+      z = orientation.getZ();
+      w = orientation.getW();
+    }
+
+    result.getOrientation().setX(x);
+    result.getOrientation().setY(y);
+    result.getOrientation().setZ(z);
+    result.getOrientation().setW(w);
     result.getPosition().setX(mat.getM03());
     result.getPosition().setY(mat.getM13());
     result.getPosition().setZ(mat.getM23());
-
-    return result;
   }
 
   /**
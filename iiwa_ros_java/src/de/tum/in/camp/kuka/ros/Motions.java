@@ -28,8 +28,12 @@
 package de.tum.in.camp.kuka.ros;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.vecmath.AxisAngle4d;
+import javax.vecmath.Quat4d;
+
 import iiwa_msgs.RedundancyInformation;
 import iiwa_msgs.SplineSegment;
 import iiwa_msgs.JointSplineSegment;
@@ -38,6 +42,9 @@ import iiwa_msgs.ControlMode;
 import iiwa_msgs.DOF;
 import geometry_msgs.PoseStamped;
 
+import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
+import de.tum.in.camp.kuka.ros.iiwaActionServer.Goal;
+
 import com.kuka.connectivity.motionModel.smartServo.SmartServo;
 import com.kuka.connectivity.motionModel.smartServoLIN.SmartServoLIN;
 import com.kuka.roboticsAPI.deviceModel.JointPosition;
@@ -48,10 +55,11 @@ import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
 import com.kuka.roboticsAPI.geometricModel.redundancy.IRedundancyCollection;
 import com.kuka.roboticsAPI.motionModel.CartesianPTP;
 import com.kuka.roboticsAPI.motionModel.LIN;
+import com.kuka.roboticsAPI.motionModel.MotionBatch;
 import com.kuka.roboticsAPI.motionModel.PTP;
+import com.kuka.roboticsAPI.motionModel.RobotMotion;
 import com.kuka.roboticsAPI.motionModel.Spline;
 import com.kuka.roboticsAPI.motionModel.SplineMotionCP;
-import com.kuka.roboticsAPI.motionModel.SplineJP;
 import com.kuka.roboticsAPI.motionModel.SplineMotionJP;
 import com.kuka.roboticsAPI.motionModel.controlModeModel.IMotionControlMode;
 import com.kuka.roboticsAPI.motionModel.controlModeModel.CartesianImpedanceControlMode;
@@ -78,28 +86,175 @@ public class Motions {
   private JointPosition jp;
   private JointPosition jv;
   private JointPosition jointDisplacement;
+  private double[] batchPoint;
 
-  private long currentTime = System.nanoTime();
-  private long previousTime = System.nanoTime();
-  private double loopPeriod = 0.0; // Loop period in s.
   private final double softJointLimit = 0.0174533; // in radians.
 
+  // Integration of the velocity commands.
+  private VelocityCommandServo jointVelocityServo;
+  private VelocityCommandServo cartesianVelocityServo;
+  private double[] jointVelocityDestination;
+  private JointPosition jointVelocity;
+  private CartesianTwistIntegrator cartesianVelocityDestination = new CartesianTwistIntegrator();
+  private boolean cartesianVelocityInToolFrame = false;
+  private Frame cartesianVelocityFrame;
+
+  // Filters applied to the JointPosition commands.
+  private JointCommandFilterChain jointCommandFilter = new JointCommandFilterChain();
+
+  // Extrapolation of the SmartServo position commands when the next one is late.
+  private CommandExtrapolator jointPositionExtrapolator;
+  private CommandExtrapolator cartesianPositionExtrapolator;
+  private double[] jointCommand;
+  private double[] cartesianCommand = new double[3];
+  private Quat4d lastOrientation = new Quat4d();
+  private Quat4d previousOrientation = new Quat4d();
+  private Quat4d orientation = new Quat4d();
+  private AxisAngle4d angularVelocity = new AxisAngle4d(1.0, 0.0, 0.0, 0.0); // Angle in rad/s.
+  private AxisAngle4d rotation = new AxisAngle4d();
+  private RedundancyInformation lastRedundancy;
+  private geometry_msgs.PoseStamped extrapolatedPose;
+
+  // Records the latency of the SmartServo commands.
+  private LatencyMonitor latencyMonitor;
+
+  // Execution of the long joint splines in several windows.
+  private JointSplineStreamer jointSplineStreamer;
+  // Joint velocities reached by the timed joint spline segments at a relative velocity of 1, in rad/s.
+  private double[] maxJointVelocity;
+  private final double minSegmentVelocity = 0.01; // relative
+  private final double startPointTolerance = 1e-3; // rad
+
   public Motions(LBR robot, String robotBaseFrameId, SmartServo motion, ObjectFrame endPointFrame, iiwaPublisher publisher, iiwaActionServer actionServer) {
     this.robot = robot;
     this.robotBaseFrameId = robotBaseFrameId;
     this.endPointFrame = endPointFrame;
     this.actionServer = actionServer;
     this.publisher = publisher;
+    this.latencyMonitor = publisher.getLatencyMonitor();
 
     jp = new JointPosition(robot.getJointCount());
     jv = new JointPosition(robot.getJointCount());
     jointDisplacement = new JointPosition(robot.getJointCount());
+    batchPoint = new double[robot.getJointCount()];
+    jointCommand = new double[robot.getJointCount()];
+    jointVelocityServo = new VelocityCommandServo(robot.getJointCount());
+    cartesianVelocityServo = new VelocityCommandServo(6);
+    jointVelocityDestination = new double[robot.getJointCount()];
+    jointVelocity = new JointPosition(robot.getJointCount());
+    jointPositionExtrapolator = new CommandExtrapolator(robot.getJointCount());
+    cartesianPositionExtrapolator = new CommandExtrapolator(cartesianCommand.length);
+    extrapolatedPose = publisher.getMessageGenerator().buildMessage(geometry_msgs.PoseStamped._TYPE);
+    jointSplineStreamer = new JointSplineStreamer(endPointFrame, publisher);
+    maxJointVelocity = new double[robot.getJointCount()];
+    Arrays.fill(maxJointVelocity, Math.toRadians(180.0)); // Upper bound, timed segments are never early.
     maxJointLimits = robot.getJointLimits().getMaxJointPosition();
     minJointLimits = robot.getJointLimits().getMinJointPosition();
   }
 
   public void setEnpointFrame(ObjectFrame endpointFrame) {
     this.endPointFrame = endpointFrame;
+    jointSplineStreamer.setEndpointFrame(endpointFrame);
+  }
+
+  /**
+   * Sets how long the last JointPosition and CartesianPose commands are extrapolated when the next one is late.
+   * 
+   * @param horizon : time over which the last command velocity is kept, in s. 0 disables the extrapolation.
+   * @param decelerationTime : time over which the velocity is then ramped down to zero, in s.
+   */
+  public void setCommandExtrapolation(double horizon, double decelerationTime) {
+    jointPositionExtrapolator.setHorizon(horizon, decelerationTime);
+    cartesianPositionExtrapolator.setHorizon(horizon, decelerationTime);
+  }
+
+  /**
+   * Sets the filters applied to the JointPosition commands before they are sent to the robot.
+   * 
+   * @param filter
+   */
+  public void setJointCommandFilter(JointCommandFilterChain filter) {
+    this.jointCommandFilter = filter;
+  }
+
+  /**
+   * Sets the timing of the velocity commands.
+   * 
+   * @param period : minimum time between two destinations computed from a velocity command, in s.
+   * @param timeout : time after which a velocity command that has not been renewed stops the robot, in s.
+   */
+  public void setVelocityCommandTiming(double period, double timeout) {
+    jointVelocityServo.setTiming(period, timeout);
+    cartesianVelocityServo.setTiming(period, timeout);
+  }
+
+  /**
+   * Sets how the long joint splines are split in windows.
+   * 
+   * @param chunkSize : maximum number of points executed as one motion. 0 executes every spline as one motion.
+   * @param chunkBlending : relative blending between two consecutive windows.
+   */
+  public void setJointSplineChunking(int chunkSize, double chunkBlending) {
+    jointSplineStreamer.setChunking(chunkSize, chunkBlending);
+  }
+
+  /**
+   * Sets the joint velocities used to compute the relative velocity of the timed joint spline segments.
+   * 
+   * @param maxJointVelocity : joint velocities at a relative velocity of 1, in rad/s.
+   */
+  public void setJointSplineMaxJointVelocity(double[] maxJointVelocity) {
+    if (maxJointVelocity.length != this.maxJointVelocity.length) {
+      Logger.warn("The joint spline velocity limits need " + this.maxJointVelocity.length + " values, keeping the current ones.");
+      return;
+    }
+    this.maxJointVelocity = maxJointVelocity.clone();
+  }
+
+  public JointSplineStreamer getJointSplineStreamer() {
+    return jointSplineStreamer;
+  }
+
+  /**
+   * Forgets the state of the streamed commands, e.g. when the robot is commanded in another way: stops the
+   * velocity commands and the extrapolation of the last commands, restarts the filters of the
+   * JointPosition commands from the current destination at the next command, and stops queuing the windows
+   * of the current joint spline.
+   */
+  public void resetCommandStreams() {
+    jointSplineStreamer.stop();
+    jointVelocityServo.stop();
+    cartesianVelocityServo.stop();
+    jointPositionExtrapolator.reset();
+    cartesianPositionExtrapolator.reset();
+    jointCommandFilter.invalidate();
+  }
+
+  public CommandExtrapolator getJointPositionExtrapolator() {
+    return jointPositionExtrapolator;
+  }
+
+  public CommandExtrapolator getCartesianPositionExtrapolator() {
+    return cartesianPositionExtrapolator;
+  }
+
+  /**
+   * Returns in how many ns one of the velocity commands, extrapolations, command filters or the tracking of a
+   * timed joint spline needs to run, -1 if none does.
+   */
+  public long getNextServoDelayNs(long nowNs) {
+    long delay = earliest(jointPositionExtrapolator.getNextTickDelayNs(nowNs), cartesianPositionExtrapolator
+        .getNextTickDelayNs(nowNs));
+    delay = earliest(delay, jointCommandFilter.getNextTickDelayNs(nowNs));
+    delay = earliest(delay, jointVelocityServo.getNextStepDelayNs(nowNs));
+    delay = earliest(delay, jointSplineStreamer.getNextTrackingDelayNs(nowNs));
+    return earliest(delay, cartesianVelocityServo.getNextStepDelayNs(nowNs));
+  }
+
+  private static long earliest(long delay, long otherDelay) {
+    if (delay < 0) { return otherDelay; }
+    if (otherDelay < 0) { return delay; }
+    return Math.min(delay, otherDelay);
   }
 
   /**
@@ -111,28 +266,102 @@ public class Motions {
    */
   public void cartesianPositionMotion(SmartServo motion, geometry_msgs.PoseStamped commandPosition, RedundancyInformation redundancy) {
     if (commandPosition != null) {
-      Frame destinationFrame = Conversions.rosPoseToKukaFrame(robot.getRootFrame(), commandPosition.getPose());
-      if (redundancy != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
-        // You can get this info from the robot Cartesian Position (SmartPad).
-        IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
-        destinationFrame.setRedundancyInformation(robot, redundantData);
+      if (cartesianPositionExtrapolator.isEnabled()) {
+        updateCartesianPositionExtrapolation(commandPosition.getPose(), redundancy);
       }
-      if (robot.isReadyToMove()) {
-        motion.getRuntime().setDestination(destinationFrame);
+      setCartesianDestination(motion, commandPosition, redundancy);
+    }
+  }
+
+  /**
+   * Sends to the SmartServo motion the extrapolation of the last CartesianPose command, if the next one is late.
+   * The position is extrapolated linearly and the orientation at the last constant angular velocity.
+   * 
+   * @param motion
+   */
+  public void cartesianPositionExtrapolationMotion(SmartServo motion) {
+    if (cartesianPositionExtrapolator.extrapolate(System.nanoTime(), cartesianCommand)) {
+      geometry_msgs.Pose pose = extrapolatedPose.getPose();
+      pose.getPosition().setX(cartesianCommand[0]);
+      pose.getPosition().setY(cartesianCommand[1]);
+      pose.getPosition().setZ(cartesianCommand[2]);
+
+      rotation.set(angularVelocity);
+      rotation.setAngle(angularVelocity.getAngle() * cartesianPositionExtrapolator.getLastExtrapolationTime());
+      orientation.set(rotation);
+      orientation.mul(lastOrientation, orientation);
+      pose.getOrientation().setX(orientation.getX());
+      pose.getOrientation().setY(orientation.getY());
+      pose.getOrientation().setZ(orientation.getZ());
+      pose.getOrientation().setW(orientation.getW());
+
+      setCartesianDestination(motion, extrapolatedPose, lastRedundancy);
+    }
+  }
+
+  private void updateCartesianPositionExtrapolation(geometry_msgs.Pose pose, RedundancyInformation redundancy) {
+    cartesianCommand[0] = pose.getPosition().getX();
+    cartesianCommand[1] = pose.getPosition().getY();
+    cartesianCommand[2] = pose.getPosition().getZ();
+    previousOrientation.set(lastOrientation);
+    lastOrientation.set(pose.getOrientation().getX(), pose.getOrientation().getY(), pose.getOrientation().getZ(), pose
+        .getOrientation().getW());
+    lastOrientation.normalize();
+    lastRedundancy = redundancy;
+
+    double interval = cartesianPositionExtrapolator.update(cartesianCommand, System.nanoTime());
+    if (interval > 0.0) {
+      // Rotation from the previous to the last orientation, in the frame of the previous one.
+      orientation.conjugate(previousOrientation);
+      orientation.mul(lastOrientation);
+      angularVelocity.set(orientation);
+      double angle = angularVelocity.getAngle();
+      if (angle > Math.PI) {
+        angle -= 2.0 * Math.PI;
       }
+      angularVelocity.setAngle(angle / interval);
+    }
+    else {
+      angularVelocity.setAngle(0.0);
+    }
+  }
+
+  /**
+   * Converts a pose in the robot base frame into a Sunrise frame, recording the duration of the conversion.
+   */
+  private Frame toDestinationFrame(geometry_msgs.PoseStamped commandPosition) {
+    long start = latencyMonitor.now();
+    Frame destinationFrame = Conversions.rosPoseToKukaFrame(robot.getRootFrame(), commandPosition.getPose());
+    latencyMonitor.record(LatencyMonitor.Stage.CONVERSION, start);
+    return destinationFrame;
+  }
+
+  private void setCartesianDestination(SmartServo motion, geometry_msgs.PoseStamped commandPosition, RedundancyInformation redundancy) {
+    Frame destinationFrame = toDestinationFrame(commandPosition);
+    if (redundancy != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
+      // You can get this info from the robot Cartesian Position (SmartPad).
+      IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
+      destinationFrame.setRedundancyInformation(robot, redundantData);
+    }
+    if (robot.isReadyToMove()) {
+      long start = latencyMonitor.now();
+      motion.getRuntime().setDestination(destinationFrame);
+      latencyMonitor.destinationSet(start);
     }
   }
 
   public void cartesianPositionLinMotion(SmartServoLIN linearMotion, PoseStamped commandPosition, RedundancyInformation redundancy) {
     if (commandPosition != null) {
-      Frame destinationFrame = Conversions.rosPoseToKukaFrame(robot.getRootFrame(), commandPosition.getPose());
+      Frame destinationFrame = toDestinationFrame(commandPosition);
       if (redundancy != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
         // You can get this info from the robot Cartesian Position (SmartPad).
         IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
         destinationFrame.setRedundancyInformation(robot, redundantData);
       }
       if (robot.isReadyToMove()) {
+        long start = latencyMonitor.now();
         linearMotion.getRuntime().setDestination(destinationFrame);
+        latencyMonitor.destinationSet(start);
       }
     }
   }
@@ -140,35 +369,59 @@ public class Motions {
   // action
   public void pointToPointCartesianMotion(IMotionControlMode motion, PoseStamped commandPosition, RedundancyInformation redundancy) {
     if (commandPosition != null) {
-      Frame destinationFrame = Conversions.rosPoseToKukaFrame(robot.getRootFrame(), commandPosition.getPose());
-      if (redundancy != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
-        // You can get this info from the robot Cartesian Position (SmartPad).
-        IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
-        destinationFrame.setRedundancyInformation(robot, redundantData);
-      }
-      CartesianPTP ptpMotion = ptp(destinationFrame);
-      SpeedLimits.applySpeedLimits(ptpMotion);
+      CartesianPTP ptpMotion = createPointToPointCartesianMotion(commandPosition, redundancy);
       endPointFrame.moveAsync(ptpMotion, new PTPMotionFinishedEventListener(publisher, actionServer));
     }
   }
 
+  /**
+   * Creates a PTP motion to the given pose, with the current speed limits applied.
+   * 
+   * @param commandPosition : pose in the robot base frame.
+   * @param redundancy : can be null.
+   * @return
+   */
+  public CartesianPTP createPointToPointCartesianMotion(PoseStamped commandPosition, RedundancyInformation redundancy) {
+    CartesianPTP ptpMotion = ptp(actionDestinationFrame(commandPosition, redundancy));
+    SpeedLimits.applySpeedLimits(ptpMotion);
+    return ptpMotion;
+  }
+
   // action
   public void pointToPointLinearCartesianMotion(IMotionControlMode mode, PoseStamped commandPosition, RedundancyInformation redundancy) {
     if (commandPosition != null) {
-      Frame destinationFrame = Conversions.rosPoseToKukaFrame(robot.getRootFrame(), commandPosition.getPose());
-      if (redundancy != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
-        // You can get this info from the robot Cartesian Position (SmartPad).
-        IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
-        destinationFrame.setRedundancyInformation(robot, redundantData);
-      }
-      LIN linMotion = lin(destinationFrame);
-      SpeedLimits.applySpeedLimits(linMotion);
+      LIN linMotion = createPointToPointLinearCartesianMotion(commandPosition, redundancy);
       endPointFrame.moveAsync(linMotion, new PTPMotionFinishedEventListener(publisher, actionServer));
     }
   }
 
   /**
-   * Executes a motion along a spline, in joint space
+   * Creates a LIN motion to the given pose, with the current speed limits applied.
+   * 
+   * @param commandPosition : pose in the robot base frame.
+   * @param redundancy : can be null.
+   * @return
+   */
+  public LIN createPointToPointLinearCartesianMotion(PoseStamped commandPosition, RedundancyInformation redundancy) {
+    LIN linMotion = lin(actionDestinationFrame(commandPosition, redundancy));
+    SpeedLimits.applySpeedLimits(linMotion);
+    return linMotion;
+  }
+
+  private Frame actionDestinationFrame(PoseStamped commandPosition, RedundancyInformation redundancy) {
+    Frame destinationFrame = toDestinationFrame(commandPosition);
+    if (redundancy != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
+      // You can get this info from the robot Cartesian Position (SmartPad).
+      IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
+      destinationFrame.setRedundancyInformation(robot, redundantData);
+    }
+    return destinationFrame;
+  }
+
+  /**
+   * Executes a motion along a spline, in joint space. When the segments are timed, the velocity of each
+   * segment is computed from its duration and the joint velocity limits instead of using the spline speed. A
+   * first point at time zero is where the spline starts, it is skipped if the robot is already there.
    * 
    * @param motion
    * @param splineMsg
@@ -176,21 +429,39 @@ public class Motions {
    * @return
    */
   public boolean pointToPointJointSplineMotion(IMotionControlMode motion, iiwa_msgs.JointSpline splineMsg, iiwaSubscriber subscriber) {
-    if (splineMsg == null) { return false; }
+    if (splineMsg == null || splineMsg.getSegments().isEmpty()) { return false; }
 
-    boolean success = true;
     final int jointCount = robot.getJointCount();
-
-    PTP[] path = new PTP[splineMsg.getSegments().size()];
+    final List<JointSplineSegment> segments = splineMsg.getSegments();
+    JointPosition[] points = new JointPosition[segments.size()];
+    double[] timeFromStart = new double[points.length];
+    double[] velocityScaling = new double[points.length];
+    boolean timed = false;
+    boolean scaled = false;
     int idx = 0;
-    for (JointSplineSegment segment : splineMsg.getSegments()) {
-        float[] jp = segment.getJointAngle();
-        if(jp.length != jointCount) return false;
-        JointPosition jointPosition = new JointPosition(
-          jp[0], jp[1], jp[2], jp[3], jp[4], jp[5], jp[6]
-        );
+    for (JointSplineSegment segment : segments) {
+      float[] jp = segment.getJointAngle();
+      if (jp.length != jointCount) {
+        Logger.error("JointSpline segments need " + jointCount + " joint angles, segment " + idx + " has " + jp.length);
+        return false;
+      }
+      points[idx] = new JointPosition(jointCount);
+      for (int i = 0; i < jointCount; i++) {
+        points[idx].set(i, jp[i]);
+      }
+      timeFromStart[idx] = segment.getTimeFromStart().totalNsecs() / 1e9;
+      velocityScaling[idx] = segment.getVelocityScaling();
+      timed |= timeFromStart[idx] != 0;
+      scaled |= velocityScaling[idx] > 0;
+      idx++;
+    }
 
-      path[idx++] = new PTP(jointPosition);
+    if (timed && timeFromStart[0] == 0 && points.length > 1 && points[0].isNearlyEqual(robot.getCurrentJointPosition(), startPointTolerance)) {
+      // The spline starts where the robot is, there is no first segment to execute.
+      points = Arrays.copyOfRange(points, 1, points.length);
+      timeFromStart = Arrays.copyOfRange(timeFromStart, 1, timeFromStart.length);
+      velocityScaling = Arrays.copyOfRange(velocityScaling, 1, velocityScaling.length);
+      idx--;
     }
 
     double jpVel = splineMsg.getSpeed();
@@ -199,82 +470,150 @@ public class Motions {
     else if (jpVel > 1)
       jpVel = 1;
 
-      
-    SplineJP splineJP = new SplineJP(path);
-    Logger.info("get Joint Spline with size: " + idx + ", at speed: " + jpVel);
+    double[] segmentVelocity = null;
+    if (timed || scaled) {
+      segmentVelocity = jointSplineSegmentVelocities(points, timed ? timeFromStart : null, velocityScaling, jpVel);
+      if (segmentVelocity == null) { return false; }
+    }
+
+    Logger.info("get Joint Spline with size: " + idx + ", at speed: " + jpVel
+        + (timed ? ", timed over " + timeFromStart[idx - 1] + " s" : ""));
 
-    // 2: cartesian impedence, 1: joint impedence, 0: position control 
+    // 2: cartesian impedence, 1: joint impedence, 0: position control
     int executeMode = splineMsg.getMode();
-    
-
+    IMotionControlMode controlMode;
 
     if (executeMode == ControlMode.CARTESIAN_IMPEDANCE) {
-      CartesianImpedanceControlMode impedanceMode = new CartesianImpedanceControlMode();
-      float[] stiff = splineMsg.getCartesianStiffness();
-      float[] damping = splineMsg.getCartesianDamping();
-      if(stiff.length != 3) return false;
-      if(damping.length != 3) return false;
-
-      for (float v : stiff) v = (v > 0 && v <= 5000) ? v : 2000f;
-      for (float v : damping) v = (v > 0 && v <= 1) ? v : 0.7f;
+      double[] stiff = impedanceParameters("cartesian_stiffness", splineMsg.getCartesianStiffness(), 3, 0.0, 5000.0, 2000.0);
+      double[] damping = impedanceParameters("cartesian_damping", splineMsg.getCartesianDamping(), 3, 0.1, 1.0, 0.7);
+      if (stiff == null || damping == null) { return false; }
 
+      CartesianImpedanceControlMode impedanceMode = new CartesianImpedanceControlMode();
       impedanceMode.parametrize(CartDOF.X).setStiffness(stiff[0]);
       impedanceMode.parametrize(CartDOF.Y).setStiffness(stiff[1]);
       impedanceMode.parametrize(CartDOF.Z).setStiffness(stiff[2]);
       impedanceMode.parametrize(CartDOF.X).setDamping(damping[0]);
       impedanceMode.parametrize(CartDOF.Y).setDamping(damping[1]);
       impedanceMode.parametrize(CartDOF.Z).setDamping(damping[2]);
+      controlMode = impedanceMode;
+    }
+    else if (executeMode == ControlMode.JOINT_IMPEDANCE) {
+      double[] stiff = impedanceParameters("joint_stiffness", splineMsg.getJointStiffness(), jointCount, 0.0, 5000.0, 2000.0);
+      double[] damping = impedanceParameters("joint_damping", splineMsg.getJointDamping(), jointCount, 0.1, 1.0, 0.7);
+      if (stiff == null || damping == null) { return false; }
 
-      try {
-        endPointFrame.moveAsync(splineJP.setJointVelocityRel(jpVel).setMode(impedanceMode));
-      } catch (Exception e) {
-        System.out.println(e);
-        success = false;
-      }
-
-    }else if(executeMode == ControlMode.JOINT_IMPEDANCE){
       JointImpedanceControlMode impedanceMode = new JointImpedanceControlMode(jointCount);
+      impedanceMode.setStiffness(stiff);
+      impedanceMode.setDamping(damping);
+      controlMode = impedanceMode;
+    }
+    else {
+      controlMode = new PositionControlMode();
+    }
 
-      float[] stiff = splineMsg.getJointStiffness();
-      float[] damping = splineMsg.getJointDamping();
-      if(stiff.length != jointCount) return false;
-      if(damping.length != jointCount) return false;
+    return jointSplineStreamer.start(points, segmentVelocity, timed ? timeFromStart : null, controlMode, jpVel);
+  }
 
-      for (float v : stiff) v = (v > 0 && v <= 5000) ? v : 2000f;
-      for (float v : damping) v = (v > 0 && v <= 1) ? v : 0.7f;
+  /**
+   * Computes the relative joint velocity of each segment of a joint spline. A timed segment is executed at the
+   * velocity that covers it in its duration, the others at the spline speed, then the velocity scaling of the
+   * segment is applied.
+   * 
+   * @param points
+   * @param timeFromStart : time from start of each point in s, null if the spline is not timed.
+   * @param velocityScaling : velocity scaling of each segment.
+   * @param splineVelocity : relative joint velocity of the spline.
+   * @return the relative joint velocity of each segment, null if the timing is invalid.
+   */
+  private double[] jointSplineSegmentVelocities(JointPosition[] points, double[] timeFromStart, double[] velocityScaling, double splineVelocity) {
+    double[] velocity = new double[points.length];
+    JointPosition previousPoint = robot.getCurrentJointPosition();
+    double previousTime = 0.0;
+    int saturated = 0;
+
+    for (int i = 0; i < points.length; i++) {
+      double segmentVelocity = splineVelocity;
+      if (timeFromStart != null) {
+        double duration = timeFromStart[i] - previousTime;
+        if (duration < 0 || (duration == 0 && i > 0)) {
+          Logger.error("The time from start of the JointSpline segments has to increase, segment " + i + " ends at " + timeFromStart[i] + " s");
+          return null;
+        }
+        // A first point at time zero away from the robot can not be on time, it is reached as fast as possible.
+        segmentVelocity = 0.0;
+        for (int j = 0; j < maxJointVelocity.length; j++) {
+          double move = Math.abs(points[i].get(j) - previousPoint.get(j));
+          if (move > 0) {
+            segmentVelocity = Math.max(segmentVelocity, move / (duration * maxJointVelocity[j]));
+          }
+        }
+        previousTime = timeFromStart[i];
+      }
+      if (velocityScaling[i] > 0) {
+        segmentVelocity *= velocityScaling[i];
+      }
+      if (segmentVelocity > 1.0) {
+        segmentVelocity = 1.0;
+        saturated++;
+      }
+      velocity[i] = Math.max(segmentVelocity, minSegmentVelocity);
+      previousPoint = points[i];
+    }
 
-      impedanceMode.setStiffness(stiff[0], stiff[1], stiff[2], stiff[3], stiff[4], stiff[5], stiff[6]);
-      impedanceMode.setDamping(damping[0], damping[1], damping[2], damping[3], damping[4], damping[5], damping[6]);
+    if (timeFromStart != null && saturated > 0) {
+      Logger.warn(saturated + " of " + points.length + " JointSpline segments are faster than the joint velocity limits, they will be late");
+    }
+    return velocity;
+  }
 
-      try {
-        endPointFrame.moveAsync(splineJP.setJointVelocityRel(jpVel).setMode(impedanceMode));
-      } catch (Exception e) {
-        System.out.println(e);
-        success = false;
+  /**
+   * Validates the impedance parameters of a joint spline: the values that are not set or not positive are
+   * replaced by the default, the others are clamped to [min, max].
+   * 
+   * @return the parameters, null if there is not the expected number of them.
+   */
+  private static double[] impedanceParameters(String name, float[] values, int count, double min, double max, double defaultValue) {
+    if (values.length != count) {
+      Logger.error("JointSpline " + name + " needs " + count + " values, got " + values.length);
+      return null;
+    }
+    double[] parameters = new double[count];
+    for (int i = 0; i < count; i++) {
+      if (!(values[i] > 0)) {
+        parameters[i] = defaultValue;
       }
-
-    }else{
-      try {
-        endPointFrame.moveAsync(splineJP.setJointVelocityRel(jpVel).setMode(new PositionControlMode()));
-      } catch (Exception e) {
-        System.out.println(e);
-        success = false;
+      else {
+        parameters[i] = Math.max(min, Math.min(max, values[i]));
+      }
+      if (parameters[i] != values[i]) {
+        Logger.warn("JointSpline " + name + "[" + i + "] = " + values[i] + " is out of [" + min + ", " + max + "], using " + parameters[i]);
       }
     }
+    return parameters;
+  }
 
-    return success;
-
+  /**
+   * Queues the next windows of the joint spline being executed, if there is one, and tracks the points passed
+   * by a timed one.
+   */
+  public void jointSplineStreamingMotion() {
+    jointSplineStreamer.update();
+    if (jointSplineStreamer.isTrackingPoints()) {
+      jointSplineStreamer.trackPoints(robot.getCurrentJointPosition(), System.nanoTime());
+    }
   }
 
   /**
-   * Executes a motion along a spline
+   * Executes a motion along a spline. The spline is rejected like by the SplinePreprocessor: if it is empty,
+   * or if one of its points is invalid or cannot be transformed to the robot base frame.
    * 
    * @param motion
    * @param splineMsg
    * @param subscriber: Required for TF lookups
+   * @return false if the spline is invalid.
    */
   public boolean pointToPointCartesianSplineMotion(IMotionControlMode motion, iiwa_msgs.Spline splineMsg, iiwaSubscriber subscriber) {
-    if (splineMsg == null) { return false; }
+    if (splineMsg == null || splineMsg.getSegments().isEmpty()) { return false; }
 
     boolean success = true;
     List<SplineMotionCP<?>> splineSegments = new ArrayList<SplineMotionCP<?>>();
@@ -332,6 +671,41 @@ public class Motions {
     return success;
   }
 
+  /**
+   * Executes a motion along a spline converted by the SplinePreprocessor
+   * 
+   * @param motion
+   * @param preparedSpline
+   * @return false if the spline is invalid.
+   */
+  public boolean pointToPointCartesianSplineMotion(IMotionControlMode motion, SplinePreprocessor.Result preparedSpline) {
+    if (!preparedSpline.isValid()) {
+      Logger.warn(preparedSpline.getError());
+      return false;
+    }
+
+    SplineMotionCP<?>[] splineSegments = new SplineMotionCP<?>[preparedSpline.getSegmentCount()];
+    for (int i = 0; i < splineSegments.length; i++) {
+      switch (preparedSpline.getType(i)) {
+        case SplineSegment.SPL:
+          splineSegments[i] = spl(preparedSpline.getPoint(i));
+          break;
+        case SplineSegment.LIN:
+          splineSegments[i] = lin(preparedSpline.getPoint(i));
+          break;
+        default:
+          splineSegments[i] = circ(preparedSpline.getPoint(i), preparedSpline.getAuxPoint(i));
+          break;
+      }
+    }
+
+    Logger.debug("Executing spline with " + splineSegments.length + " segments");
+    Spline spline = new Spline(splineSegments);
+    SpeedLimits.applySpeedLimits(spline);
+    endPointFrame.moveAsync(spline, new PTPMotionFinishedEventListener(publisher, actionServer));
+    return true;
+  }
+
   // action
   public void pointToPointJointPositionMotion(IMotionControlMode motion, iiwa_msgs.JointPosition commandPosition) {
     if (commandPosition != null) {
@@ -342,37 +716,167 @@ public class Motions {
     }
   }
 
-  public void cartesianVelocityMotion(SmartServo motion, geometry_msgs.TwistStamped commandVelocity, ObjectFrame toolFrame) {
-    if (commandVelocity != null) {
-      if (loopPeriod > 1.0) {
-        loopPeriod = 0.0;
+  /**
+   * Creates a PTP motion to the given joint position, with the current speed limits applied.
+   * 
+   * @param commandPosition
+   * @return
+   */
+  public PTP createPointToPointJointPositionMotion(iiwa_msgs.JointPosition commandPosition) {
+    JointPosition destination = new JointPosition(robot.getJointCount());
+    Conversions.rosJointQuantityToKuka(commandPosition.getPosition(), destination);
+    PTP ptpMotion = ptp(destination);
+    SpeedLimits.applySpeedLimits(ptpMotion);
+    return ptpMotion;
+  }
+
+  /**
+   * Executes the motions of several action goals as one batch, each motion being blended into the next one.
+   * The last motion is blended as well, so that the next batch can continue it if it is sent in time. Each
+   * goal is marked as reached when its own motion finishes.
+   * 
+   * @param goalMotions : the motions, in execution order.
+   * @param goals : the goal executed by each motion.
+   * @param blendingRadius : Cartesian blending distance in mm, zero stops at every goal.
+   */
+  public void pointToPointMotionBatch(List<RobotMotion<?>> goalMotions, List<Goal<?>> goals, double blendingRadius) {
+    if (goalMotions.isEmpty()) { return; }
+    GoalBatchListener listener = new GoalBatchListener(publisher, actionServer);
+    for (int i = 0; i < goalMotions.size(); i++) {
+      if (blendingRadius > 0) {
+        goalMotions.get(i).setBlendingCart(blendingRadius);
       }
+      listener.addGoal(goalMotions.get(i), goals.get(i));
+    }
+    MotionBatch batch = new MotionBatch(goalMotions.toArray(new RobotMotion<?>[goalMotions.size()]));
+    Logger.debug("Executing " + goalMotions.size() + " goals with blending radius " + blendingRadius + " mm");
+    endPointFrame.moveAsync(batch, listener);
+  }
 
+  /**
+   * Applies a new Cartesian velocity command, which is then integrated by <i>cartesianVelocityServoMotion</i>
+   * until it is superseded or times out.
+   * 
+   * @param motion
+   * @param twist : [linear x, y, z in m/s, angular x, y, z in rad/s].
+   * @param inToolFrame : true if the twist is expressed in the tool frame, false if in the robot base frame.
+   * @param toolFrame
+   */
+  public void cartesianVelocityMotion(SmartServo motion, double[] twist, boolean inToolFrame, ObjectFrame toolFrame) {
+    System.arraycopy(twist, 0, cartesianVelocityServo.getVelocity(), 0, 6);
+    cartesianVelocityInToolFrame = inToolFrame;
+    if (cartesianVelocityServo.command(System.nanoTime())) {
+      // Start integrating from where the robot is currently commanded to be.
       motion.getRuntime().updateWithRealtimeSystem();
-      Frame destinationFrame = motion.getRuntime().getCurrentCartesianDestination(toolFrame);
-
-      destinationFrame.setX(commandVelocity.getTwist().getLinear().getX() * loopPeriod + destinationFrame.getX());
-      destinationFrame.setY(commandVelocity.getTwist().getLinear().getY() * loopPeriod + destinationFrame.getY());
-      destinationFrame.setZ(commandVelocity.getTwist().getLinear().getZ() * loopPeriod + destinationFrame.getZ());
-      destinationFrame.setAlphaRad(commandVelocity.getTwist().getAngular().getX() * loopPeriod + destinationFrame.getAlphaRad());
-      destinationFrame.setBetaRad(commandVelocity.getTwist().getAngular().getY() * loopPeriod + destinationFrame.getBetaRad());
-      destinationFrame.setGammaRad(commandVelocity.getTwist().getAngular().getZ() * loopPeriod + destinationFrame.getGammaRad());
-      previousTime = currentTime;
+      cartesianVelocityFrame = motion.getRuntime().getCurrentCartesianDestination(toolFrame);
+      cartesianVelocityDestination.reset(cartesianVelocityFrame);
+    }
+    // Applies the command right away if a servo period has elapsed.
+    cartesianVelocityServoMotion(motion);
+  }
 
+  /**
+   * Sends to the SmartServo motion the destination reached by the current Cartesian velocity command, if a
+   * servo period has elapsed.
+   * 
+   * @param motion
+   */
+  public void cartesianVelocityServoMotion(SmartServo motion) {
+    double dt = cartesianVelocityServo.advance(System.nanoTime());
+    if (dt >= 0.0) {
+      cartesianVelocityDestination.integrate(cartesianVelocityServo.getVelocity(), cartesianVelocityInToolFrame, dt);
+      cartesianVelocityDestination.writeTo(cartesianVelocityFrame);
       if (robot.isReadyToMove()) {
-        motion.getRuntime().setDestination(destinationFrame);
+        long start = latencyMonitor.now();
+        motion.getRuntime().setDestination(cartesianVelocityFrame);
+        latencyMonitor.destinationSet(CommandType.SMART_SERVO_CARTESIAN_VELOCITY, start);
       }
-      currentTime = System.nanoTime();
-      // loopPeriod is stored in seconds.
-      loopPeriod = (double) (currentTime - previousTime) / 1000000000.0;
     }
   }
 
   public void jointPositionMotion(SmartServo motion, iiwa_msgs.JointPosition commandPosition) {
     if (commandPosition != null) {
       Conversions.rosJointQuantityToKuka(commandPosition.getPosition(), jp);
+      if (!jointCommandFilter.isEmpty() || jointPositionExtrapolator.isEnabled()) {
+        long now = System.nanoTime();
+        for (int i = 0; i < jointCommand.length; i++) {
+          jointCommand[i] = jp.get(i);
+        }
+        // The commands are extrapolated as received, the filters then apply to both.
+        jointPositionExtrapolator.update(jointCommand, now);
+        filterJointCommand(motion, now);
+      }
+      if (robot.isReadyToMove()) {
+        long start = latencyMonitor.now();
+        motion.getRuntime().setDestination(jp);
+        latencyMonitor.destinationSet(start);
+      }
+    }
+  }
+
+  /**
+   * Filters jointCommand as a new JointPosition command and sets jp to the result, if there are filters.
+   */
+  private void filterJointCommand(SmartServo motion, long now) {
+    if (jointCommandFilter.isEmpty()) { return; }
+    if (jointCommandFilter.needsReset()) {
+      // Start filtering from where the robot is currently commanded to be.
+      jointCommandFilter.reset(motion.getRuntime().getCurrentJointDestination().get(), now);
+    }
+    jointCommandFilter.filter(jointCommand, now);
+    for (int i = 0; i < jointCommand.length; i++) {
+      jp.set(i, jointCommand[i]);
+    }
+  }
+
+  /**
+   * Sends to the SmartServo motion the extrapolation of the last JointPosition command, if the next one is late.
+   * The extrapolated joint positions are kept within the soft joint limits, then filtered like a command. <br>
+   * Otherwise, while the filters of the JointPosition commands have not reached the last command, sends it
+   * filtered again once per period.
+   * 
+   * @param motion
+   */
+  public void jointPositionExtrapolationMotion(SmartServo motion) {
+    long now = System.nanoTime();
+    boolean destinationChanged = false;
+    if (jointPositionExtrapolator.extrapolate(now, jointCommand)) {
+      for (int i = 0; i < jointCommand.length; i++) {
+        double position = Math.min(jointCommand[i], maxJointLimits.get(i) - softJointLimit);
+        jointCommand[i] = Math.max(position, minJointLimits.get(i) + softJointLimit);
+        jp.set(i, jointCommand[i]);
+      }
+      filterJointCommand(motion, now);
+      destinationChanged = true;
+    }
+    else if (jointCommandFilter.tick(now, jointCommand)) {
+      for (int i = 0; i < jointCommand.length; i++) {
+        jp.set(i, jointCommand[i]);
+      }
+      destinationChanged = true;
+    }
+    if (destinationChanged && robot.isReadyToMove()) {
+      long start = latencyMonitor.now();
+      motion.getRuntime().setDestination(jp);
+      latencyMonitor.destinationSet(CommandType.SMART_SERVO_JOINT_POSITION, start);
+    }
+  }
+
+  /**
+   * Sends to the SmartServo motion the buffered joint position that is due now, if any.
+   * 
+   * @param motion
+   * @param buffer
+   */
+  public void jointPositionBatchMotion(SmartServo motion, JointTrajectoryBuffer buffer) {
+    if (buffer.poll(System.nanoTime(), batchPoint)) {
+      for (int i = 0; i < batchPoint.length; i++) {
+        jp.set(i, batchPoint[i]);
+      }
       if (robot.isReadyToMove()) {
+        long start = latencyMonitor.now();
         motion.getRuntime().setDestination(jp);
+        latencyMonitor.destinationSet(CommandType.SMART_SERVO_JOINT_POSITION_BATCH, start);
       }
     }
   }
@@ -382,44 +886,62 @@ public class Motions {
       Conversions.rosJointQuantityToKuka(commandPositionVelocity.getPosition(), jp);
       Conversions.rosJointQuantityToKuka(commandPositionVelocity.getVelocity(), jv);
       if (robot.isReadyToMove()) {
+        long start = latencyMonitor.now();
         motion.getRuntime().setDestination(jp, jv);
+        latencyMonitor.destinationSet(start);
       }
     }
   }
 
+  /**
+   * Applies a new joint velocity command, which is then integrated by <i>jointVelocityServoMotion</i> until
+   * it is superseded or times out.
+   * 
+   * @param motion
+   * @param commandVelocity
+   */
   public void jointVelocityMotion(SmartServo motion, iiwa_msgs.JointVelocity commandVelocity) {
     if (commandVelocity != null) {
-      if (loopPeriod > 1.0) {
-        loopPeriod = 0.0;
+      Conversions.rosJointQuantityToKuka(commandVelocity.getVelocity(), jointVelocity);
+      double[] velocity = jointVelocityServo.getVelocity();
+      for (int i = 0; i < velocity.length; i++) {
+        velocity[i] = jointVelocity.get(i);
       }
-
-      jp = motion.getRuntime().getCurrentJointDestination();
-      // Compute the joint displacement over the current period.
-      Conversions.rosJointQuantityToKuka(commandVelocity.getVelocity(), jointDisplacement, loopPeriod);
-      Conversions.rosJointQuantityToKuka(commandVelocity.getVelocity(), jv);
-
-      for (int i = 0; i < robot.getJointCount(); ++i) {
-        double updatedPotision = jp.get(i) + jointDisplacement.get(i);
-        if ((updatedPotision <= maxJointLimits.get(i) - softJointLimit && updatedPotision >= minJointLimits.get(i) + softJointLimit)) {
-          // Add the displacement to the joint destination.
-          jp.set(i, updatedPotision);
+      if (jointVelocityServo.command(System.nanoTime())) {
+        // Start integrating from where the robot is currently commanded to be.
+        JointPosition destination = motion.getRuntime().getCurrentJointDestination();
+        for (int i = 0; i < jointVelocityDestination.length; i++) {
+          jointVelocityDestination[i] = destination.get(i);
         }
       }
-      previousTime = currentTime;
-
-      if (robot.isReadyToMove())
-      /*
-       * This KUKA APIs should work, but notrly... && !(jp.isNearlyEqual(maxJointLimits, 0.1) ||
-       * jp.isNearlyEqual(minJointLimits, 0.1))
-       */
-      {
+      // Applies the command right away if a servo period has elapsed.
+      jointVelocityServoMotion(motion);
+    }
+  }
 
-        motion.getRuntime().setDestination(jp, jv);
+  /**
+   * Sends to the SmartServo motion the destination reached by the current joint velocity command, if a servo
+   * period has elapsed. The destination is kept within the soft joint limits.
+   * 
+   * @param motion
+   */
+  public void jointVelocityServoMotion(SmartServo motion) {
+    if (jointVelocityServo.step(System.nanoTime(), jointVelocityDestination)) {
+      boolean stopped = !jointVelocityServo.isActive();
+      for (int i = 0; i < jointVelocityDestination.length; i++) {
+        double position = Math.min(jointVelocityDestination[i], maxJointLimits.get(i) - softJointLimit);
+        position = Math.max(position, minJointLimits.get(i) + softJointLimit);
+        if (stopped || position != jointVelocityDestination[i]) {
+          jointVelocity.set(i, 0.0);
+        }
+        jointVelocityDestination[i] = position;
+        jp.set(i, position);
+      }
+      if (robot.isReadyToMove()) {
+        long start = latencyMonitor.now();
+        motion.getRuntime().setDestination(jp, jointVelocity);
+        latencyMonitor.destinationSet(CommandType.SMART_SERVO_JOINT_VELOCITY, start);
       }
-
-      currentTime = System.nanoTime();
-      // loopPeriod is stored in seconds.
-      loopPeriod = (double) (currentTime - previousTime) / 1000000000.0;
     }
   }
 
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeMain;
+
+/**
+ * A ROS node that hosts several NodeMains, e.g. the publishers of more robots. <br>
+ * Every member gets the same ConnectedNode, so that all of them share the TCPROS and XML-RPC ports of a single
+ * node. The members must only use absolute topic and service names, and must not depend on the name of the
+ * node they run in.
+ */
+public class NodeMainGroup extends AbstractNodeMain {
+
+  private final String name;
+  private final List<NodeMain> members = new ArrayList<NodeMain>();
+
+  /**
+   * @param name : default name of the ROS node.
+   */
+  public NodeMainGroup(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Adds a NodeMain to the group, it will be started with the group node.<br>
+   * Members must be added before the group is executed.
+   */
+  public void add(NodeMain member) {
+    members.add(member);
+  }
+
+  public List<NodeMain> getMembers() {
+    return members;
+  }
+
+  /**
+   * @see org.ros.node.NodeMain#getDefaultNodeName()
+   */
+  @Override
+  public GraphName getDefaultNodeName() {
+    return GraphName.of(name);
+  }
+
+  /**
+   * This method is called when the <i>execute</i> method from a <i>nodeMainExecutor</i> is called.<br>
+   * Do <b>NOT</b> manually call this.
+   * <p>
+   * 
+   * @see org.ros.node.AbstractNodeMain#onStart(org.ros.node.ConnectedNode)
+   */
+  @Override
+  public void onStart(ConnectedNode connectedNode) {
+    for (NodeMain member : members) {
+      member.onStart(connectedNode);
+    }
+  }
+
+  @Override
+  public void onShutdown(Node node) {
+    for (NodeMain member : members) {
+      member.onShutdown(node);
+    }
+  }
+
+  @Override
+  public void onShutdownComplete(Node node) {
+    for (NodeMain member : members) {
+      member.onShutdownComplete(node);
+    }
+  }
+
+  @Override
+  public void onError(Node node, Throwable throwable) {
+    for (NodeMain member : members) {
+      member.onError(node, throwable);
+    }
+  }
+}
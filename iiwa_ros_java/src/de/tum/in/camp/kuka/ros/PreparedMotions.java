@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.kuka.connectivity.motionModel.smartServo.SmartServo;
+import com.kuka.connectivity.motionModel.smartServoLIN.SmartServoLIN;
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.geometricModel.Frame;
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+
+/**
+ * Keeps a SmartServo and a SmartServoLIN motion ready for the next control mode switch. <br>
+ * Creating a motion reads the robot position and the configuration from the parameter server and applies
+ * the speed limits. Here this is done by a background thread, so that the control loop only has to set the
+ * control mode and start the motion.
+ * <p>
+ * A motion starts by moving to the position it was created at. A prepared motion is therefore only handed
+ * out if the robot is still at that position, and if the speed limits and the endpoint frame did not change
+ * since it was created. Otherwise <i>take</i> returns null and the caller creates the motion itself. <br>
+ * Right after a switch the robot is usually still moving, so the motions are not prepared then: the
+ * background thread checks the robot position periodically, and prepares them again once the robot has
+ * settled at a position they were not created at.
+ */
+public class PreparedMotions {
+  // Tolerances between the position a motion was created at and the current one.
+  private static final double JOINT_TOLERANCE = 1e-4; // rad
+  private static final double TRANSLATION_TOLERANCE = 0.05; // mm
+  private static final double ROTATION_TOLERANCE = 1e-4; // rad
+  // Period of the checks of the robot position.
+  private static final long REFRESH_PERIOD_MS = 50;
+
+  private static class Prepared<T> {
+    private final T motion;
+    private final long generation;
+    private final long speedLimitsVersion;
+
+    private Prepared(T motion, long generation, long speedLimitsVersion) {
+      this.motion = motion;
+      this.generation = generation;
+      this.speedLimitsVersion = speedLimitsVersion;
+    }
+  }
+
+  private final LBR robot;
+  private final ControlModeHandler controlModeHandler;
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean preparing = new AtomicBoolean(false);
+  // Robot position at the previous check and whether the last preparation failed, only used by the
+  // background thread.
+  private JointPosition lastPosition = null;
+  private boolean failing = false;
+
+  private final AtomicReference<Prepared<SmartServo>> smartServo = new AtomicReference<Prepared<SmartServo>>(null);
+  private final AtomicReference<Prepared<SmartServoLIN>> smartServoLin = new AtomicReference<Prepared<SmartServoLIN>>(null);
+  // Incremented whenever the prepared motions become invalid, e.g. when the endpoint frame changes.
+  private volatile long generation = 0;
+  private volatile ObjectFrame endpointFrame;
+
+  // Statistics.
+  private volatile long hits = 0;
+  private volatile long misses = 0;
+
+  public PreparedMotions(LBR robot, ControlModeHandler controlModeHandler, ObjectFrame endpointFrame) {
+    this.robot = robot;
+    this.controlModeHandler = controlModeHandler;
+    this.endpointFrame = endpointFrame;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "iiwa_motion_preparation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        refresh();
+      }
+    }, REFRESH_PERIOD_MS, REFRESH_PERIOD_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts preparing the motions in the background, unless it is already being done.
+   */
+  public void prepare() {
+    if (executor.isShutdown() || !preparing.compareAndSet(false, true)) { return; }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long currentGeneration = generation;
+        try {
+          long speedLimitsVersion = SpeedLimits.getVersion();
+          SmartServo motion = controlModeHandler.createSmartServoMotion();
+          smartServo.set(new Prepared<SmartServo>(motion, currentGeneration, speedLimitsVersion));
+          SmartServoLIN linearMotion = controlModeHandler.createSmartServoLinMotion(endpointFrame);
+          smartServoLin.set(new Prepared<SmartServoLIN>(linearMotion, currentGeneration, speedLimitsVersion));
+          failing = false;
+        }
+        catch (Exception e) {
+          if (!failing) {
+            Logger.warn("Could not prepare the SmartServo motions: " + e.getMessage());
+          }
+          failing = true;
+        }
+        finally {
+          preparing.set(false);
+        }
+        if (currentGeneration != generation) {
+          // Invalidated while preparing.
+          prepare();
+        }
+      }
+    });
+  }
+
+  /**
+   * Prepares the motions again if the robot has settled at a position they were not created at. The robot has
+   * settled if it did not move since the previous check.
+   */
+  private void refresh() {
+    try {
+      JointPosition current = robot.getCurrentJointPosition();
+      boolean settled = lastPosition != null && current.isNearlyEqual(lastPosition, JOINT_TOLERANCE);
+      lastPosition = current;
+      if (settled && !isPreparedAt(current)) {
+        prepare();
+      }
+    }
+    catch (Exception e) {
+      // An exception would cancel the periodic checks.
+      Logger.warn("Could not check the prepared SmartServo motions: " + e.getMessage());
+    }
+  }
+
+  private boolean isPreparedAt(JointPosition position) {
+    Prepared<SmartServo> prepared = smartServo.get();
+    return isValid(prepared) && prepared.motion.getDestination().isNearlyEqual(position, JOINT_TOLERANCE);
+  }
+
+  /**
+   * Drops the prepared motions, e.g. because the endpoint frame changed, and prepares new ones.
+   */
+  public void invalidate(ObjectFrame endpointFrame) {
+    this.endpointFrame = endpointFrame;
+    generation++;
+    smartServo.set(null);
+    smartServoLin.set(null);
+    prepare();
+  }
+
+  /**
+   * Returns the prepared SmartServo motion if it is still valid, null otherwise. Either way it is not handed
+   * out again.
+   */
+  public SmartServo takeSmartServo() {
+    Prepared<SmartServo> prepared = smartServo.getAndSet(null);
+    if (isValid(prepared) && prepared.motion.getDestination().isNearlyEqual(robot.getCurrentJointPosition(), JOINT_TOLERANCE)) {
+      hits++;
+      return prepared.motion;
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Returns the prepared SmartServoLIN motion if it is still valid, null otherwise. Either way it is not
+   * handed out again.
+   */
+  public SmartServoLIN takeSmartServoLin() {
+    Prepared<SmartServoLIN> prepared = smartServoLin.getAndSet(null);
+    if (isValid(prepared)) {
+      ObjectFrame frame = endpointFrame;
+      Frame current = robot.getCurrentCartesianPosition(frame);
+      if (prepared.motion.getDestination().distanceTo(current) <= TRANSLATION_TOLERANCE
+          && prepared.motion.getDestination().rotationalDistanceTo(current) <= ROTATION_TOLERANCE) {
+        hits++;
+        return prepared.motion;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  private boolean isValid(Prepared<?> prepared) {
+    return prepared != null && prepared.generation == generation && prepared.speedLimitsVersion == SpeedLimits.getVersion();
+  }
+
+  /**
+   * Returns how many switches used a prepared motion.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns how many switches had to create their motion.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Stops the background thread.
+   */
+  public void dispose() {
+    executor.shutdownNow();
+  }
+}
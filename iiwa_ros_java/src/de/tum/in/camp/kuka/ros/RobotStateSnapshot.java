@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+
+/**
+ * State of the robot sampled at one instant. <br>
+ * Each robot quantity is read from the controller at most once per call of <i>sample</i> and stored into
+ * primitive arrays, so that all the messages built from one snapshot are consistent with each other and share
+ * the same timestamp.
+ * <p>
+ * The arrays returned by the getters are owned by the snapshot and are overwritten by the next sample.
+ */
+public class RobotStateSnapshot {
+  // Quantities that can be requested when sampling.
+  public static final int JOINT_POSITION = 1;
+  public static final int MEASURED_TORQUE = 1 << 1;
+  public static final int EXTERNAL_TORQUE = 1 << 2;
+  public static final int CARTESIAN_POSE = 1 << 3;
+  public static final int CARTESIAN_WRENCH = 1 << 4;
+
+  private int sampledQuantities = 0;
+  private long sampleTimeNs = 0;
+  private org.ros.message.Time stamp = new org.ros.message.Time();
+
+  private final double[] jointPosition;
+  private final double[] jointVelocity;
+  private final double[] measuredTorque;
+  private final double[] externalTorque;
+
+  // Previous joint position, used to estimate the joint velocity.
+  private final double[] lastJointPosition;
+  private long lastJointPositionTimeNs = 0;
+
+  // Cartesian pose of the sampled frame w.r.t. the robot base, in ROS units (m).
+  private final double[] cartesianPosition = new double[3];
+  // Orientation quaternion in the order x, y, z, w.
+  private final double[] cartesianOrientation = new double[4];
+  private double redundancyE1 = 0;
+  private int redundancyStatus = 0;
+  private int redundancyTurn = 0;
+  private final double[] redundancy = new double[3];
+
+  // Wrench applied at the sampled frame.
+  private String wrenchFrameName = "";
+  private final double[] force = new double[3];
+  private final double[] torque = new double[3];
+  private final double[] forceInaccuracy = new double[3];
+  private final double[] torqueInaccuracy = new double[3];
+
+  public RobotStateSnapshot(int jointCount) {
+    jointPosition = new double[jointCount];
+    jointVelocity = new double[jointCount];
+    measuredTorque = new double[jointCount];
+    externalTorque = new double[jointCount];
+    lastJointPosition = new double[jointCount];
+  }
+
+  /**
+   * Reads the requested quantities from the robot.
+   * 
+   * @param robot : the robot to sample, see LBRStateSource.
+   * @param frame : Cartesian pose and wrench are sampled w.r.t. this frame.
+   * @param stamp : timestamp of the sample.
+   * @param quantities : bitwise OR of the quantities to sample, e.g. JOINT_POSITION | MEASURED_TORQUE.
+   */
+  public void sample(RobotStateSource robot, ObjectFrame frame, org.ros.message.Time stamp, int quantities) {
+    this.stamp = stamp;
+    sampleTimeNs = System.nanoTime();
+    sampledQuantities = quantities;
+
+    if ((quantities & JOINT_POSITION) != 0) {
+      robot.readJointPosition(jointPosition);
+      updateJointVelocity();
+    }
+    if ((quantities & MEASURED_TORQUE) != 0) {
+      robot.readMeasuredTorque(measuredTorque);
+    }
+    if ((quantities & EXTERNAL_TORQUE) != 0) {
+      robot.readExternalTorque(externalTorque);
+    }
+    if ((quantities & CARTESIAN_POSE) != 0) {
+      robot.readCartesianPose(frame, cartesianPosition, cartesianOrientation, redundancy);
+      redundancyE1 = redundancy[0];
+      redundancyStatus = (int) redundancy[1];
+      redundancyTurn = (int) redundancy[2];
+    }
+    if ((quantities & CARTESIAN_WRENCH) != 0) {
+      wrenchFrameName = robot.readExternalWrench(frame, force, torque, forceInaccuracy, torqueInaccuracy);
+    }
+  }
+
+  /**
+   * Estimates the joint velocity from the difference to the previously sampled joint position.
+   */
+  private void updateJointVelocity() {
+    if (lastJointPositionTimeNs != 0) {
+      double dt = (double) (sampleTimeNs - lastJointPositionTimeNs) / 1000000000;
+      for (int i = 0; i < jointVelocity.length; i++) {
+        jointVelocity[i] = (jointPosition[i] - lastJointPosition[i]) / dt;
+      }
+    }
+    copy(jointPosition, lastJointPosition);
+    lastJointPositionTimeNs = sampleTimeNs;
+  }
+
+  private static void copy(double[] from, double[] to) {
+    System.arraycopy(from, 0, to, 0, to.length);
+  }
+
+  /**
+   * True if the given quantity has been read by the last sample.
+   */
+  public boolean hasSampled(int quantity) {
+    return (sampledQuantities & quantity) == quantity;
+  }
+
+  public org.ros.message.Time getStamp() {
+    return stamp;
+  }
+
+  /**
+   * Returns the System.nanoTime() at which the last sample has been taken.
+   */
+  public long getSampleTimeNs() {
+    return sampleTimeNs;
+  }
+
+  public double[] getJointPosition() {
+    return jointPosition;
+  }
+
+  public double[] getJointVelocity() {
+    return jointVelocity;
+  }
+
+  public double[] getMeasuredTorque() {
+    return measuredTorque;
+  }
+
+  public double[] getExternalTorque() {
+    return externalTorque;
+  }
+
+  public double[] getCartesianPosition() {
+    return cartesianPosition;
+  }
+
+  public double[] getCartesianOrientation() {
+    return cartesianOrientation;
+  }
+
+  public double getRedundancyE1() {
+    return redundancyE1;
+  }
+
+  public int getRedundancyStatus() {
+    return redundancyStatus;
+  }
+
+  public int getRedundancyTurn() {
+    return redundancyTurn;
+  }
+
+  public String getWrenchFrameName() {
+    return wrenchFrameName;
+  }
+
+  public double[] getForce() {
+    return force;
+  }
+
+  public double[] getTorque() {
+    return torque;
+  }
+
+  public double[] getForceInaccuracy() {
+    return forceInaccuracy;
+  }
+
+  public double[] getTorqueInaccuracy() {
+    return torqueInaccuracy;
+  }
+}
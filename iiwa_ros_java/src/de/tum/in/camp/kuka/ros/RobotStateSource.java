@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+
+/**
+ * Where RobotStateSnapshot reads the state of the robot from. <br>
+ * On the controller this is the LBR itself (see LBRStateSource); a simulated robot can implement it to run
+ * the state publishing pipeline without a cabinet.
+ * <p>
+ * All the methods write into the given arrays, in ROS units (m, rad, N, Nm).
+ */
+public interface RobotStateSource {
+
+  public int getJointCount();
+
+  public void readJointPosition(double[] position);
+
+  public void readMeasuredTorque(double[] torque);
+
+  public void readExternalTorque(double[] torque);
+
+  /**
+   * Reads the pose of the given frame w.r.t. the robot base.
+   * 
+   * @param frame : the frame to read, may be ignored by simulated robots.
+   * @param position : x, y, z.
+   * @param orientation : quaternion in the order x, y, z, w.
+   * @param redundancy : e1, status, turn.
+   */
+  public void readCartesianPose(ObjectFrame frame, double[] position, double[] orientation, double[] redundancy);
+
+  /**
+   * Reads the external wrench applied at the given frame.
+   * 
+   * @return the name of the frame the wrench refers to.
+   */
+  public String readExternalWrench(ObjectFrame frame, double[] force, double[] torque, double[] forceInaccuracy, double[] torqueInaccuracy);
+}
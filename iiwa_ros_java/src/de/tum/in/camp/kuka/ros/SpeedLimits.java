@@ -142,6 +142,9 @@ public class SpeedLimits {
   private static IApplicationControl appControl;
   protected static OverrideRampThread rampThread = null;
 
+  // Incremented at every change of the limits, so that motions created with older limits can be detected.
+  private static volatile long version = 0;
+
   // Overall override factor
   private static double overrideReduction = 1.0; // relative
 
@@ -177,6 +180,7 @@ public class SpeedLimits {
     overrideReduction = appControl.getApplicationOverride();
 
     Logger.debug("Loading speed limits from configuration");
+    version++;
 
     ss_relativeJointVelocity = configuration.getSSRelativeJointVelocity();
     ss_relativeJointAcceleration = configuration.getSSRelativeJointAcceleration();
@@ -237,6 +241,114 @@ public class SpeedLimits {
     return overrideReduction;
   }
 
+  /**
+   * Returns a number that changes whenever the speed limits applied to the motions change.
+   */
+  public static long getVersion() {
+    return version;
+  }
+
+  /**
+   * Creates a change of the override reduction, to be applied by the control loop.
+   * 
+   * @param override
+   * @param ramp
+   */
+  public static ConfigChangeQueue.Change overrideReductionChange(final double override, final boolean ramp) {
+    return new ConfigChangeQueue.Change() {
+      @Override
+      public void apply() {
+        setOverrideReduction(override, ramp);
+      }
+    };
+  }
+
+  /**
+   * Creates a change of the PTP joint speed limits from a ROS service request, to be applied by the control
+   * loop. The values are copied from the request.
+   * 
+   * @param srvReq
+   */
+  public static ConfigChangeQueue.Change ptpJointSpeedLimitsChange(SetPTPJointSpeedLimitsRequest srvReq) {
+    final double relativeJointVelocity = srvReq.getJointRelativeVelocity();
+    final double relativeJointAcceleration = srvReq.getJointRelativeAcceleration();
+    return new ConfigChangeQueue.Change() {
+      @Override
+      public void apply() {
+        ptp_relativeJointVelocity = relativeJointVelocity;
+        ptp_relativeJointAcceleration = relativeJointAcceleration;
+        version++;
+      }
+    };
+  }
+
+  /**
+   * Creates a change of the Cartesian PTP speed limits from a ROS service request, to be applied by the
+   * control loop. The values are copied from the request.
+   * 
+   * @param srvReq
+   */
+  public static ConfigChangeQueue.Change ptpCartesianSpeedLimitsChange(SetPTPCartesianSpeedLimitsRequest srvReq) {
+    final double maxCartesianVelocity = srvReq.getMaxCartesianVelocity();
+    final double maxOrientationVelocity = srvReq.getMaxOrientationVelocity();
+    final double maxCartesianAcceleration = srvReq.getMaxCartesianAcceleration();
+    final double maxOrientationAcceleration = srvReq.getMaxOrientationAcceleration();
+    final double maxCartesianJerk = srvReq.getMaxCartesianJerk();
+    final double maxOrientationJerk = srvReq.getMaxOrientationJerk();
+    return new ConfigChangeQueue.Change() {
+      @Override
+      public void apply() {
+        ptp_maxCartesianVelocity = maxCartesianVelocity;
+        ptp_maxOrientationVelocity = maxOrientationVelocity;
+        ptp_maxCartesianAcceleration = maxCartesianAcceleration;
+        ptp_maxOrientationAcceleration = maxOrientationAcceleration;
+        ptp_maxCartesianJerk = maxCartesianJerk;
+        ptp_maxOrientationJerk = maxOrientationJerk;
+        version++;
+      }
+    };
+  }
+
+  /**
+   * Creates a change of the SmartServo joint speed limits from a ROS service request, to be applied by the
+   * control loop. The values are copied from the request.
+   * 
+   * @param srvReq
+   */
+  public static ConfigChangeQueue.Change smartServoJointSpeedLimitsChange(SetSmartServoJointSpeedLimitsRequest srvReq) {
+    final double relativeJointVelocity = srvReq.getJointRelativeVelocity();
+    final double relativeJointAcceleration = srvReq.getJointRelativeAcceleration();
+    final double overrideJointAcceleration = srvReq.getOverrideJointAcceleration();
+    return new ConfigChangeQueue.Change() {
+      @Override
+      public void apply() {
+        ss_relativeJointVelocity = relativeJointVelocity;
+        ss_relativeJointAcceleration = relativeJointAcceleration;
+        ss_overrideJointAcceleration = overrideJointAcceleration;
+        version++;
+      }
+    };
+  }
+
+  /**
+   * Creates a change of the SmartServoLin speed limits from a ROS service request, to be applied by the
+   * control loop. The values are copied from the request.
+   * 
+   * @param srvReq
+   */
+  public static ConfigChangeQueue.Change smartServoLinSpeedLimitsChange(SetSmartServoLinSpeedLimitsRequest srvReq) {
+    final double[] maxTranslationalVelocity = Conversions.rosVectorToArray(srvReq.getMaxCartesianVelocity().getLinear());
+    final double[] maxRotationalVelocity = Conversions.rosVectorToArray(srvReq.getMaxCartesianVelocity().getAngular());
+    return new ConfigChangeQueue.Change() {
+      @Override
+      public void apply() {
+        ss_maxTranslationalVelocity = maxTranslationalVelocity;
+        ss_maxRotationalVelocity = maxRotationalVelocity;
+        version++;
+      }
+    };
+  }
+
   /**
    * Set PTP joint speed limits based on ROS service request
    * 
@@ -245,6 +357,7 @@ public class SpeedLimits {
   public static void setPTPJointSpeedLimits(SetPTPJointSpeedLimitsRequest srvReq) {
     ptp_relativeJointVelocity = srvReq.getJointRelativeVelocity();
     ptp_relativeJointAcceleration = srvReq.getJointRelativeAcceleration();
+    version++;
   }
 
   /**
@@ -259,6 +372,7 @@ public class SpeedLimits {
     ptp_maxOrientationAcceleration = srvReq.getMaxOrientationAcceleration();
     ptp_maxCartesianJerk = srvReq.getMaxCartesianJerk();
     ptp_maxOrientationJerk = srvReq.getMaxOrientationJerk();
+    version++;
   }
 
   /**
@@ -270,6 +384,7 @@ public class SpeedLimits {
     ss_relativeJointVelocity = srvReq.getJointRelativeVelocity();
     ss_relativeJointAcceleration = srvReq.getJointRelativeAcceleration();
     ss_overrideJointAcceleration = srvReq.getOverrideJointAcceleration();
+    version++;
   }
 
   /**
@@ -280,6 +395,7 @@ public class SpeedLimits {
   public static void setSmartServoLinSpeedLimits(SetSmartServoLinSpeedLimitsRequest srvReq) {
     ss_maxTranslationalVelocity = Conversions.rosVectorToArray(srvReq.getMaxCartesianVelocity().getLinear());
     ss_maxRotationalVelocity = Conversions.rosVectorToArray(srvReq.getMaxCartesianVelocity().getAngular());
+    version++;
   }
 
   /**
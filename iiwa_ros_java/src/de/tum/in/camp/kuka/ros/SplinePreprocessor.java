@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import iiwa_msgs.CartesianPose;
+import iiwa_msgs.RedundancyInformation;
+import iiwa_msgs.SplineSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Quat4d;
+import javax.vecmath.Vector3d;
+
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.deviceModel.LBRE1Redundancy;
+import com.kuka.roboticsAPI.geometricModel.AbstractFrame;
+import com.kuka.roboticsAPI.geometricModel.Frame;
+import com.kuka.roboticsAPI.geometricModel.math.Transformation;
+import com.kuka.roboticsAPI.geometricModel.math.Vector;
+
+/**
+ * Validates the splines of MoveAlongSpline goals and converts their points to KUKA frames, off the control
+ * loop. <br>
+ * A spline is submitted as soon as its goal is received. The TF transformation of each distinct frame used
+ * by the spline is looked up once, then the segments are converted in parallel, in chunks of
+ * <i>CHUNK_SIZE</i> segments.
+ * <p>
+ * The last converted splines are cached. A spline equal to a cached one is not converted again, as long as
+ * the transformations of its frames did not change.
+ */
+public class SplinePreprocessor {
+  private static final int CHUNK_SIZE = 32;
+  private static final int CACHE_SIZE = 8;
+  // Values stored in the cache key for each pose: position, orientation and redundancy.
+  private static final int POSE_VALUES = 10;
+
+  /**
+   * A converted spline: the type, point and auxiliary point of each segment, or the error that made the
+   * spline invalid.
+   */
+  public static class Result {
+    private final int[] types;
+    private final Frame[] points;
+    private final Frame[] auxPoints;
+    private final String error;
+
+    private Result(int[] types, Frame[] points, Frame[] auxPoints) {
+      this.types = types;
+      this.points = points;
+      this.auxPoints = auxPoints;
+      this.error = null;
+    }
+
+    private Result(String error) {
+      this.types = new int[0];
+      this.points = new Frame[0];
+      this.auxPoints = new Frame[0];
+      this.error = error;
+    }
+
+    public boolean isValid() {
+      return error == null;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public int getSegmentCount() {
+      return types.length;
+    }
+
+    /**
+     * Returns the type of the given segment: SplineSegment.SPL, LIN or CIRC.
+     */
+    public int getType(int segment) {
+      return types[segment];
+    }
+
+    public Frame getPoint(int segment) {
+      return points[segment];
+    }
+
+    /**
+     * Returns the auxiliary point of a CIRC segment, null for the other types.
+     */
+    public Frame getAuxPoint(int segment) {
+      return auxPoints[segment];
+    }
+  }
+
+  /**
+   * Content of a spline message, used to find equal splines in the cache.
+   */
+  private static class Key {
+    private final int[] types;
+    private final double[] values;
+    private final String[] frameIds;
+    private final int hash;
+
+    private Key(int[] types, double[] values, String[] frameIds) {
+      this.types = types;
+      this.values = values;
+      this.frameIds = frameIds;
+      hash = 31 * (31 * Arrays.hashCode(types) + Arrays.hashCode(values)) + Arrays.hashCode(frameIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) { return false; }
+      Key key = (Key) other;
+      return hash == key.hash && Arrays.equals(types, key.types) && Arrays.equals(values, key.values) && Arrays.equals(frameIds, key.frameIds);
+    }
+  }
+
+  private static class CacheEntry {
+    private final Result result;
+    // Transformations to the robot base frame the spline was converted with, by frame id.
+    private final Map<String, Matrix4d> transforms;
+
+    private CacheEntry(Result result, Map<String, Matrix4d> transforms) {
+      this.result = result;
+      this.transforms = transforms;
+    }
+  }
+
+  private final LBR robot;
+  private final iiwaSubscriber subscriber;
+  private final String robotBaseFrameId;
+  private final ExecutorService coordinator;
+  private final ExecutorService workers;
+  private volatile WakeupSignal signal = null;
+
+  private final Map<Key, CacheEntry> cache = new LinkedHashMap<Key, CacheEntry>(CACHE_SIZE, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  // Statistics.
+  private volatile long cacheHits = 0;
+  private volatile long cacheMisses = 0;
+
+  /**
+   * @param robot : the points are expressed w.r.t. its root frame, and its redundancy information is applied.
+   * @param subscriber : used for the TF lookups.
+   * @param robotBaseFrameId : TF frame of the robot base.
+   */
+  public SplinePreprocessor(LBR robot, iiwaSubscriber subscriber, String robotBaseFrameId) {
+    this.robot = robot;
+    this.subscriber = subscriber;
+    this.robotBaseFrameId = robotBaseFrameId;
+    coordinator = Executors.newSingleThreadExecutor(daemonThreads("iiwa_spline_preparation"));
+    int workerCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    workers = Executors.newFixedThreadPool(workerCount, daemonThreads("iiwa_spline_worker"));
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Sets the signal to raise every time the conversion of a spline is finished, so that the control loop
+   * executes its goal right away.
+   */
+  public void setWakeupSignal(WakeupSignal signal) {
+    this.signal = signal;
+  }
+
+  /**
+   * Starts validating and converting the given spline.
+   * 
+   * @param spline
+   * @return the converted spline, or null if the preprocessor has been disposed.
+   */
+  public Future<Result> submit(final iiwa_msgs.Spline spline) {
+    FutureTask<Result> task = new FutureTask<Result>(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        return process(spline);
+      }
+    }) {
+      @Override
+      protected void done() {
+        // Raised once the result is set, so that isDone() is true for the woken up thread.
+        WakeupSignal wakeupSignal = signal;
+        if (wakeupSignal != null) {
+          wakeupSignal.signal();
+        }
+      }
+    };
+    try {
+      coordinator.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      return null;
+    }
+    return task;
+  }
+
+  private Result process(iiwa_msgs.Spline spline) throws InterruptedException {
+    final List<SplineSegment> segments = spline.getSegments();
+    final int segmentCount = segments.size();
+    if (segmentCount == 0) { return new Result("Empty spline."); }
+
+    // Validation, and content of the cache key.
+    int[] types = new int[segmentCount];
+    double[] values = new double[segmentCount * 2 * POSE_VALUES];
+    String[] frameIds = new String[segmentCount * 2];
+    for (int i = 0; i < segmentCount; i++) {
+      SplineSegment segment = segments.get(i);
+      types[i] = segment.getType();
+      if (types[i] != SplineSegment.SPL && types[i] != SplineSegment.LIN && types[i] != SplineSegment.CIRC) { return new Result(
+          "Unknown type of spline segment " + i + ": " + types[i]); }
+      putKeyValues(segment.getPoint(), values, frameIds, 2 * i);
+      if (types[i] == SplineSegment.CIRC) {
+        putKeyValues(segment.getPointAux(), values, frameIds, 2 * i + 1);
+      }
+    }
+
+    // One lookup per frame, at the time of the first pose expressed in it.
+    Map<String, Matrix4d> transforms = new HashMap<String, Matrix4d>();
+    for (int i = 0; i < frameIds.length; i++) {
+      String frameId = frameIds[i];
+      if (frameId == null || frameId.equals(robotBaseFrameId) || transforms.containsKey(frameId)) {
+        continue;
+      }
+      CartesianPose pose = (i % 2 == 0) ? segments.get(i / 2).getPoint() : segments.get(i / 2).getPointAux();
+      Matrix4d transform = new Matrix4d();
+      if (!subscriber.lookupTransform(frameId, robotBaseFrameId, pose.getPoseStamped().getHeader().getStamp().totalNsecs(), transform)) { return new Result(
+          "Could not transform spline segment " + (i / 2) + " from frame " + frameId + " to " + robotBaseFrameId + "."); }
+      transforms.put(frameId, transform);
+    }
+
+    Key key = new Key(types, values, frameIds);
+    synchronized (cache) {
+      CacheEntry entry = cache.get(key);
+      if (entry != null && entry.transforms.equals(transforms)) {
+        cacheHits++;
+        return entry.result;
+      }
+    }
+    cacheMisses++;
+
+    final Frame[] points = new Frame[segmentCount];
+    final Frame[] auxPoints = new Frame[segmentCount];
+    final Map<String, Matrix4d> chunkTransforms = transforms;
+    List<Future<String>> chunks = new ArrayList<Future<String>>();
+    for (int start = CHUNK_SIZE; start < segmentCount; start += CHUNK_SIZE) {
+      final int chunkStart = start;
+      chunks.add(workers.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return convert(segments, chunkStart, Math.min(chunkStart + CHUNK_SIZE, segmentCount), chunkTransforms, points, auxPoints);
+        }
+      }));
+    }
+    // The first chunk is converted by this thread while the workers convert the others.
+    String error = convert(segments, 0, Math.min(CHUNK_SIZE, segmentCount), transforms, points, auxPoints);
+    for (Future<String> chunk : chunks) {
+      String chunkError;
+      try {
+        chunkError = chunk.get();
+      }
+      catch (ExecutionException e) {
+        chunkError = e.getCause().toString();
+      }
+      if (error == null) {
+        error = chunkError;
+      }
+    }
+    if (error != null) { return new Result(error); }
+
+    Result result = new Result(types, points, auxPoints);
+    synchronized (cache) {
+      cache.put(key, new CacheEntry(result, transforms));
+    }
+    return result;
+  }
+
+  private static void putKeyValues(CartesianPose pose, double[] values, String[] frameIds, int index) {
+    geometry_msgs.Pose p = pose.getPoseStamped().getPose();
+    RedundancyInformation redundancy = pose.getRedundancy();
+    int offset = index * POSE_VALUES;
+    values[offset] = p.getPosition().getX();
+    values[offset + 1] = p.getPosition().getY();
+    values[offset + 2] = p.getPosition().getZ();
+    values[offset + 3] = p.getOrientation().getX();
+    values[offset + 4] = p.getOrientation().getY();
+    values[offset + 5] = p.getOrientation().getZ();
+    values[offset + 6] = p.getOrientation().getW();
+    values[offset + 7] = redundancy.getE1();
+    values[offset + 8] = redundancy.getStatus();
+    values[offset + 9] = redundancy.getTurn();
+    frameIds[index] = pose.getPoseStamped().getHeader().getFrameId();
+  }
+
+  /**
+   * Converts the points of the segments from <i>start</i> (included) to <i>end</i> (excluded).
+   * 
+   * @return null on success, the error otherwise.
+   */
+  private String convert(List<SplineSegment> segments, int start, int end, Map<String, Matrix4d> transforms, Frame[] points, Frame[] auxPoints) {
+    Matrix4d matrix = new Matrix4d();
+    Quat4d rotation = new Quat4d();
+    Vector3d translation = new Vector3d();
+    for (int i = start; i < end; i++) {
+      SplineSegment segment = segments.get(i);
+      try {
+        points[i] = toFrame(segment.getPoint(), transforms, matrix, rotation, translation);
+        if (segment.getType() == SplineSegment.CIRC) {
+          auxPoints[i] = toFrame(segment.getPointAux(), transforms, matrix, rotation, translation);
+        }
+      }
+      catch (IllegalArgumentException e) {
+        return "Invalid spline segment " + i + ": " + e.getMessage();
+      }
+    }
+    return null;
+  }
+
+  private Frame toFrame(CartesianPose pose, Map<String, Matrix4d> transforms, Matrix4d matrix, Quat4d rotation, Vector3d translation) {
+    AbstractFrame parent = robot.getRootFrame();
+    geometry_msgs.Pose p = pose.getPoseStamped().getPose();
+    Matrix4d transform = transforms.get(pose.getPoseStamped().getHeader().getFrameId());
+
+    Frame frame;
+    if (transform == null) {
+      frame = new Frame(parent, Conversions.rosPoseToKukaTransformation(p));
+    }
+    else {
+      double x = p.getOrientation().getX();
+      double y = p.getOrientation().getY();
+      double z = p.getOrientation().getZ();
+      double w = p.getOrientation().getW();
+      if (x * x + y * y + z * z + w * w < 10e-8) { throw new IllegalArgumentException("invalid quaternion, the norm has to be 1."); }
+      rotation.set(x, y, z, w);
+      translation.set(p.getPosition().getX(), p.getPosition().getY(), p.getPosition().getZ());
+      matrix.set(rotation, translation, 1);
+      matrix.mul(transform, matrix);
+      matrix.get(rotation);
+      matrix.get(translation);
+      Vector position = Vector.of(Conversions.rosTranslationToKuka(translation.x), Conversions.rosTranslationToKuka(translation.y), Conversions
+          .rosTranslationToKuka(translation.z));
+      frame = new Frame(parent, Transformation.of(position, Conversions.quatToMatrix(rotation.x, rotation.y, rotation.z, rotation.w)));
+    }
+
+    RedundancyInformation redundancy = pose.getRedundancy();
+    if (redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
+      frame.setRedundancyInformation(robot, new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn()));
+    }
+    return frame;
+  }
+
+  public long getCacheHits() {
+    return cacheHits;
+  }
+
+  public long getCacheMisses() {
+    return cacheMisses;
+  }
+
+  /**
+   * Stops the background threads.
+   */
+  public void dispose() {
+    coordinator.shutdownNow();
+    workers.shutdownNow();
+  }
+}
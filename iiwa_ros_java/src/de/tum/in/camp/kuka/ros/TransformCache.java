@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Matrix4d;
+
+import org.jgrapht.GraphPath;
+import org.jgrapht.event.GraphEdgeChangeEvent;
+import org.jgrapht.event.GraphListener;
+import org.jgrapht.event.GraphVertexChangeEvent;
+import org.ros.rosjava.tf.Transform;
+import org.ros.rosjava.tf.TransformBuffer;
+import org.ros.rosjava.tf.TransformTree;
+import org.ros.rosjava.tf.TransformTreePathLookup;
+import org.ros.rosjava.tf.pubsub.TransformListener;
+
+/**
+ * Caches the transformations between pairs of TF frames. <br>
+ * Together with the transformation, the cache stores the TF buffers along the path between the two frames
+ * and the time of their most recent transform. As long as none of them received a new transform, i.e. the
+ * frames are static, the cached transformation is returned without looking up the TF tree again. Any change
+ * of the tree structure (frames or edges added or removed) clears the whole cache.
+ */
+public class TransformCache implements GraphListener<String, TransformBuffer> {
+
+  private static class Entry {
+    private final Matrix4d transform = new Matrix4d();
+    private List<TransformBuffer> path = null;
+    private long[] pathStamps = null;
+  }
+
+  private final TransformTree tree;
+  // Entries by source frame, then by target frame, so that no key has to be built for a lookup.
+  private final Map<String, Map<String, Entry>> entries = new HashMap<String, Map<String, Entry>>();
+  private volatile boolean treeChanged = false;
+
+  private volatile long hits = 0;
+  private volatile long misses = 0;
+
+  public TransformCache(TransformListener listener) {
+    tree = listener.getTree();
+    listener.addListener(this);
+  }
+
+  /**
+   * Gets the matrix that transforms poses expressed in the source frame into the target frame.
+   * 
+   * @param sourceFrame : frame the poses are expressed in.
+   * @param targetFrame : frame to express the poses in.
+   * @param time : time of the transformation in nanoseconds, only used if the TF tree has to be looked up.
+   * @param result : the matrix to fill.
+   * @return false if the frames are not connected in the TF tree.
+   */
+  public boolean lookup(String sourceFrame, String targetFrame, long time, Matrix4d result) {
+    // TransformTree.add synchronizes on the tree, this keeps the buffers stable during the lookup.
+    synchronized (tree) {
+      if (treeChanged) {
+        treeChanged = false;
+        entries.clear();
+      }
+
+      Map<String, Entry> targets = entries.get(sourceFrame);
+      Entry entry = (targets != null) ? targets.get(targetFrame) : null;
+      if (entry != null && isUnchanged(entry)) {
+        hits++;
+        result.set(entry.transform);
+        return true;
+      }
+      misses++;
+
+      Transform transform = tree.lookupTransformBetween(sourceFrame, targetFrame, time);
+      GraphPath<String, TransformBuffer> path = TransformTreePathLookup.findPathBetween(tree.getGraph(), sourceFrame, targetFrame);
+      if (transform == null || path == null) { return false; }
+      transform.invert();
+
+      if (entry == null) {
+        entry = new Entry();
+        if (targets == null) {
+          targets = new HashMap<String, Entry>();
+          entries.put(sourceFrame, targets);
+        }
+        targets.put(targetFrame, entry);
+      }
+      entry.transform.set(transform.asMatrix());
+      entry.path = path.getEdgeList();
+      entry.pathStamps = new long[entry.path.size()];
+      for (int i = 0; i < entry.pathStamps.length; i++) {
+        entry.pathStamps[i] = entry.path.get(i).mostRecentTime();
+      }
+
+      result.set(entry.transform);
+      return true;
+    }
+  }
+
+  /**
+   * True if no buffer along the path of the entry received a new transform since the entry was computed.
+   */
+  private boolean isUnchanged(Entry entry) {
+    for (int i = 0; i < entry.pathStamps.length; i++) {
+      if (entry.path.get(i).mostRecentTime() != entry.pathStamps[i]) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Removes all the cached transformations.
+   */
+  public void clear() {
+    treeChanged = true;
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups that required to look up the TF tree.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public void vertexAdded(GraphVertexChangeEvent<String> e) {
+    treeChanged = true;
+  }
+
+  @Override
+  public void vertexRemoved(GraphVertexChangeEvent<String> e) {
+    treeChanged = true;
+  }
+
+  @Override
+  public void edgeAdded(GraphEdgeChangeEvent<String, TransformBuffer> e) {
+    treeChanged = true;
+  }
+
+  @Override
+  public void edgeRemoved(GraphEdgeChangeEvent<String, TransformBuffer> e) {
+    treeChanged = true;
+  }
+}
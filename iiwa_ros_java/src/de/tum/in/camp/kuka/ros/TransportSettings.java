@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import org.ros.node.topic.TransportHints;
+
+/**
+ * Transport settings of a ROS topic, as read from the ROS parameter server by Configuration.
+ * <p>
+ * TCP_NODELAY is negotiated by the subscribing side of a TCPROS connection: for the topics we subscribe to it
+ * is requested through the TransportHints, for the topics we publish it has to be requested by the remote
+ * subscriber (e.g. ros::TransportHints().tcpNoDelay() in roscpp).
+ */
+public class TransportSettings {
+  /**
+   * Settings used when nothing is configured: Nagle's algorithm enabled and only the latest message queued.
+   */
+  public static final TransportSettings DEFAULT = new TransportSettings(false, 1);
+
+  private final boolean tcpNoDelay;
+  private final int queueLength;
+
+  /**
+   * @param tcpNoDelay : true to disable Nagle's algorithm on the connection.
+   * @param queueLength : number of incoming messages buffered for a listener before the oldest ones are
+   *          dropped.
+   */
+  public TransportSettings(boolean tcpNoDelay, int queueLength) {
+    this.tcpNoDelay = tcpNoDelay;
+    this.queueLength = Math.max(1, queueLength);
+  }
+
+  public boolean getTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  public int getQueueLength() {
+    return queueLength;
+  }
+
+  /**
+   * Returns the hints to pass to ConnectedNode.newSubscriber.
+   */
+  public TransportHints toTransportHints() {
+    return new TransportHints(tcpNoDelay);
+  }
+
+  @Override
+  public String toString() {
+    return "tcpNoDelay " + tcpNoDelay + ", queueLength " + queueLength;
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Integrates a velocity command into a destination at a fixed servo period, measured with System.nanoTime().
+ * <br>
+ * The last command keeps being applied at every period until it is superseded, stopped or older than the
+ * command timeout. The integration step is limited, so that a stalled control loop makes the robot fall
+ * behind instead of jumping ahead.
+ * <p>
+ * Must be used by a single thread.
+ */
+public class VelocityCommandServo {
+  // Longest time integrated at once.
+  private static final long MAX_STEP_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final double[] velocity;
+  private long periodNs = TimeUnit.MILLISECONDS.toNanos(5);
+  private long timeoutNs = TimeUnit.MILLISECONDS.toNanos(200);
+
+  private boolean active = false;
+  private long lastCommandNs = 0;
+  private long lastStepNs = 0;
+  private long timeouts = 0;
+
+  /**
+   * @param dimension : number of values of the commands, e.g. the number of joints.
+   */
+  public VelocityCommandServo(int dimension) {
+    velocity = new double[dimension];
+  }
+
+  /**
+   * @param period : minimum time between two destinations, in s.
+   * @param timeout : time after which a command that has not been renewed stops the motion, in s.
+   */
+  public void setTiming(double period, double timeout) {
+    periodNs = (long) (Math.max(0.0, period) * 1e9);
+    timeoutNs = (long) (Math.max(0.0, timeout) * 1e9);
+  }
+
+  /**
+   * Applies a new velocity command from now on.
+   * 
+   * @param nowNs : System.nanoTime() at which the command is executed.
+   * @return true if the servo was not active, in which case the destination to integrate into has to be
+   *         initialized by the caller.
+   */
+  public boolean command(long nowNs) {
+    boolean started = !active;
+    if (started) {
+      active = true;
+      lastStepNs = nowNs;
+    }
+    lastCommandNs = nowNs;
+    return started;
+  }
+
+  /**
+   * Returns the commanded velocity, to be filled by the caller before calling <i>command</i>.
+   */
+  public double[] getVelocity() {
+    return velocity;
+  }
+
+  /**
+   * Stops applying the current command.
+   */
+  public void stop() {
+    active = false;
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Integrates the current command into the destination if a servo period has elapsed.
+   * 
+   * @param nowNs : System.nanoTime() of the current control cycle.
+   * @param destination : integrated in place.
+   * @return true if the destination has been updated and has to be sent to the robot.
+   */
+  public boolean step(long nowNs, double[] destination) {
+    double dt = advance(nowNs);
+    if (dt < 0.0) { return false; }
+    for (int i = 0; i < velocity.length; i++) {
+      destination[i] += velocity[i] * dt;
+    }
+    return true;
+  }
+
+  /**
+   * Advances to the current control cycle if a servo period has elapsed, for callers that integrate the
+   * velocity themselves.
+   * 
+   * @param nowNs : System.nanoTime() of the current control cycle.
+   * @return the time over which the current command has to be integrated in s, -1 if no new destination is
+   *         due.
+   */
+  public double advance(long nowNs) {
+    if (!active || nowNs - lastStepNs < periodNs) { return -1.0; }
+    long endNs = nowNs;
+    if (nowNs - lastCommandNs > timeoutNs) {
+      // Integrate until the command expired, then stop.
+      endNs = lastCommandNs + timeoutNs;
+      active = false;
+      timeouts++;
+      Logger.debug("Velocity command timed out, stopping.");
+    }
+    double dt = Math.min(Math.max(0, endNs - lastStepNs), MAX_STEP_NS) / 1e9;
+    lastStepNs = nowNs;
+    return dt;
+  }
+
+  /**
+   * Returns in how many ns <i>step</i> will update the destination, -1 if it will not until a new command
+   * arrives.
+   */
+  public long getNextStepDelayNs(long nowNs) {
+    if (!active) { return -1; }
+    return Math.max(0, lastStepNs + periodNs - nowNs);
+  }
+
+  /**
+   * Returns how many velocity commands have been stopped because they were not renewed in time.
+   */
+  public long getTimeoutCount() {
+    return timeouts;
+  }
+}
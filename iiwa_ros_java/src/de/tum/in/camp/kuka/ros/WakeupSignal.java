@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets a single thread sleep until some other thread has something for it to do. <br>
+ * Any number of threads can <i>signal</i>, signals arriving while the waiting thread is busy are coalesced
+ * into one wakeup, so that no event is lost between two calls to <i>await</i>.
+ * <p>
+ * The time between the first pending signal and the wakeup of the waiting thread is measured, so that the
+ * latency added by sleeping can be monitored.
+ */
+public class WakeupSignal {
+  // Interval between two reports of the wakeup statistics in the log.
+  private static final long REPORT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+
+  // System.nanoTime() of the first signal not consumed yet, 0 if there is none.
+  private final AtomicLong pendingSinceNs = new AtomicLong(0);
+  private volatile Thread waiter = null;
+
+  // Statistics, only written by the waiting thread.
+  private volatile long wakeups = 0;
+  private volatile long timeouts = 0;
+  private volatile long maxWakeupLatencyNs = 0;
+  private long windowWakeups = 0;
+  private long windowLatencyNs = 0;
+  private long windowMaxLatencyNs = 0;
+  private long nextReportNs = System.nanoTime() + REPORT_INTERVAL_NS;
+  private final String name;
+
+  /**
+   * @param name : name used when reporting the statistics in the log.
+   */
+  public WakeupSignal(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Wakes up the waiting thread, or makes its next call to <i>await</i> return immediately.
+   */
+  public void signal() {
+    long now = System.nanoTime();
+    if (pendingSinceNs.compareAndSet(0, now == 0 ? 1 : now)) {
+      Thread thread = waiter;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * Waits until a signal arrives or the timeout expires. Returns immediately if a signal is already pending.
+   * <br>
+   * Must always be called by the same thread.
+   * 
+   * @param timeout : maximum time to wait.
+   * @param unit : time unit of <i>timeout</i>.
+   * @return true if a signal has been received, false on timeout.
+   */
+  public boolean await(long timeout, TimeUnit unit) {
+    waiter = Thread.currentThread();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long signaledAt = pendingSinceNs.getAndSet(0);
+
+    while (signaledAt == 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        timeouts++;
+        report();
+        return false;
+      }
+      LockSupport.parkNanos(this, remaining);
+      signaledAt = pendingSinceNs.getAndSet(0);
+    }
+
+    long latency = System.nanoTime() - signaledAt;
+    wakeups++;
+    if (latency > maxWakeupLatencyNs) {
+      maxWakeupLatencyNs = latency;
+    }
+    windowWakeups++;
+    windowLatencyNs += latency;
+    if (latency > windowMaxLatencyNs) {
+      windowMaxLatencyNs = latency;
+    }
+    report();
+    return true;
+  }
+
+  private void report() {
+    long now = System.nanoTime();
+    if (now - nextReportNs >= 0) {
+      if (windowWakeups > 0) {
+        Logger.debug(name + ": " + windowWakeups + " wakeups in the last " + TimeUnit.NANOSECONDS.toSeconds(REPORT_INTERVAL_NS) + "s, mean latency "
+            + TimeUnit.NANOSECONDS.toMicros(windowLatencyNs / windowWakeups) + "us, max latency " + TimeUnit.NANOSECONDS.toMicros(windowMaxLatencyNs) + "us.");
+      }
+      windowWakeups = 0;
+      windowLatencyNs = 0;
+      windowMaxLatencyNs = 0;
+      nextReportNs = now + REPORT_INTERVAL_NS;
+    }
+  }
+
+  /**
+   * Returns the number of calls to <i>await</i> that returned because of a signal.
+   */
+  public long getWakeups() {
+    return wakeups;
+  }
+
+  /**
+   * Returns the number of calls to <i>await</i> that returned because of the timeout.
+   */
+  public long getTimeouts() {
+    return timeouts;
+  }
+
+  /**
+   * Returns the largest time between a signal and the wakeup of the waiting thread, in nanoseconds.
+   */
+  public long getMaxWakeupLatencyNs() {
+    return maxWakeupLatencyNs;
+  }
+}
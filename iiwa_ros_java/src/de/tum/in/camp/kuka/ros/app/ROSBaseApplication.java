@@ -41,6 +41,7 @@ import javax.annotation.PostConstruct;
 import org.ros.address.BindAddress;
 import org.ros.node.DefaultNodeMainExecutor;
 import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
 import org.ros.time.NtpTimeProvider;
 
@@ -65,14 +66,19 @@ import de.tum.in.camp.kuka.ros.ActiveToolThread;
 import de.tum.in.camp.kuka.ros.AddressGenerator;
 import de.tum.in.camp.kuka.ros.CommandTypes;
 import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
+import de.tum.in.camp.kuka.ros.ConfigChangeQueue;
 import de.tum.in.camp.kuka.ros.Logger.Level;
 import de.tum.in.camp.kuka.ros.ControlModeHandler;
 import de.tum.in.camp.kuka.ros.GoalReachedEventListener;
 import de.tum.in.camp.kuka.ros.Configuration;
+import de.tum.in.camp.kuka.ros.FixedRateScheduler;
+import de.tum.in.camp.kuka.ros.LatencyDiagnosticsThread;
 import de.tum.in.camp.kuka.ros.MoveAsyncErrorHandler;
+import de.tum.in.camp.kuka.ros.NodeMainGroup;
 import de.tum.in.camp.kuka.ros.PublisherThread;
 import de.tum.in.camp.kuka.ros.ActiveTool;
 import de.tum.in.camp.kuka.ros.SpeedLimits;
+import de.tum.in.camp.kuka.ros.WakeupSignal;
 import de.tum.in.camp.kuka.ros.iiwaActionServer;
 import de.tum.in.camp.kuka.ros.iiwaPublisher;
 import de.tum.in.camp.kuka.ros.Logger;
@@ -104,6 +110,11 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
   protected boolean initSuccessful = false;
   protected boolean running = true;
 
+  // Wakes up the control loop when it is event driven, signaled by new commands, goals and hand guidance.
+  protected WakeupSignal controlLoopSignal = new WakeupSignal("iiwa_control_loop");
+  // Configuration changes posted by the services, applied by the control loop at the beginning of a cycle.
+  protected ConfigChangeQueue configChanges = new ConfigChangeQueue(controlLoopSignal);
+
   // ROS Nodes.
   protected Configuration configuration = null;
 
@@ -115,7 +126,7 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
 
   protected iiwaPublisher publisher = null;
   PublisherThread publisherThread = null;
-  Timer publisherTimer = null;
+  FixedRateScheduler publisherScheduler = null;
 
   protected iiwaActionServer actionServer = null;
   ActionServerThread actionServerThread = null;
@@ -129,12 +140,19 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
   ActiveToolThread activeToolThread = null;
   Timer activeToolTimer = null;
 
+  LatencyDiagnosticsThread latencyDiagnosticsThread = null;
+  Timer latencyDiagnosticsTimer = null;
+
   // ROS Configuration and Node execution objects.
   protected NodeConfiguration configurationNodeConfiguration = null;
   protected NodeConfiguration publisherNodeConfiguration = null;
   protected NodeConfiguration actionServerNodeConfiguration = null;
   protected NodeMainExecutor nodeMainExecutor = null;
 
+  // When enabled, all the ROS nodes above and the ones of the subclasses are hosted in this one.
+  protected NodeMainGroup rosNode = null;
+  protected NodeConfiguration rosNodeConfiguration = null;
+
   // Configurable Toolbars.
   protected List<IUserKeyBar> generalKeyBars = new ArrayList<IUserKeyBar>();
   protected List<IUserKey> generalKeys = new ArrayList<IUserKey>();
@@ -157,6 +175,22 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
 
   protected abstract void controlLoop();
 
+  /**
+   * True while the subclass has motion to execute at every cycle, so that the event driven control loop
+   * must not sleep.
+   */
+  protected boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Returns in how many ns the subclass needs the next control cycle even if no event arrives, -1 if it does
+   * not. Used by the event driven control loop to wake up earlier than its timeout.
+   */
+  protected long getNextCycleDelayNs() {
+    return -1;
+  }
+
   @PostConstruct
   public void initialize() {
     // Get the robot instance.
@@ -166,6 +200,7 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
     configuration = new Configuration(getApplicationData());
     publisher = new iiwaPublisher(robot, configuration.getRobotName(), configuration.getTimeProvider());
     actionServer = new iiwaActionServer(robot, configuration);
+    actionServer.setGoalSignal(controlLoopSignal);
 
     // Get the Sunrise Logger and set its log level.
     Logger.setSunriseLogger(getLogger());
@@ -178,12 +213,19 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
 
     // ROS initialization.
     try {
-      configurationNodeConfiguration = configureNode("/iiwa_configuration", addressGenerator.getNewAddress(),
-          addressGenerator.getNewAddress());
-      publisherNodeConfiguration = configureNode("/iiwa_publisher", addressGenerator.getNewAddress(),
-          addressGenerator.getNewAddress());
-      actionServerNodeConfiguration = configureNode("/iiwa_action_server", addressGenerator.getNewAddress(),
-          addressGenerator.getNewAddress());
+      if (configuration.getSingleRosNode()) {
+        Logger.info("Hosting all the ROS nodes in a single one.");
+        rosNode = new NodeMainGroup(configuration.getRobotName() + "/iiwa_ros");
+        rosNodeConfiguration = configureNode("/iiwa_ros", addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+      }
+      else {
+        configurationNodeConfiguration = configureNode("/iiwa_configuration", addressGenerator.getNewAddress(),
+            addressGenerator.getNewAddress());
+        publisherNodeConfiguration = configureNode("/iiwa_publisher", addressGenerator.getNewAddress(),
+            addressGenerator.getNewAddress());
+        actionServerNodeConfiguration = configureNode("/iiwa_action_server", addressGenerator.getNewAddress(),
+            addressGenerator.getNewAddress());
+      }
 
       // Additional configuration needed in subclasses.
       configureNodes();
@@ -204,13 +246,18 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
       }
 
       // Start the Publisher node with the set up configuration.
-      nodeMainExecutor.execute(configuration, configurationNodeConfiguration);
-      nodeMainExecutor.execute(publisher, publisherNodeConfiguration);
-      nodeMainExecutor.execute(actionServer, actionServerNodeConfiguration);
+      // The configuration comes first, the other nodes read their parameters while starting.
+      executeNode(configuration, configurationNodeConfiguration);
+      executeNode(publisher, publisherNodeConfiguration);
+      executeNode(actionServer, actionServerNodeConfiguration);
 
       // Additional Nodes from subclasses.
       addNodesToExecutor(nodeMainExecutor);
 
+      if (rosNode != null) {
+        nodeMainExecutor.execute(rosNode, rosNodeConfiguration);
+      }
+
       Logger.debug("ROS Node Executor initialized.");
     }
     catch (Exception e) {
@@ -237,6 +284,7 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
           handGuidanceSwitched = true;
         }
         controlModeLock.unlock();
+        controlLoopSignal.signal();
       };
     };
 
@@ -337,8 +385,12 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
     try {
 
       publisherThread = new PublisherThread(publisher, endpointFrame);
-      publisherTimer = new Timer();
-      publisherTimer.scheduleAtFixedRate(publisherThread, 0, 1);
+      actionServer.setFeedbackPeriod(configuration.getActionFeedbackPeriod());
+      publisher.setActionServer(actionServer);
+      long publisherPeriod = (long) (configuration.getStatePublisherPeriod() * 1e9);
+      Logger.info("Publishing the robot state every " + TimeUnit.NANOSECONDS.toMicros(publisherPeriod) + "us.");
+      publisherScheduler = new FixedRateScheduler("iiwa_publisher", publisherPeriod, TimeUnit.NANOSECONDS, publisherThread);
+      publisherScheduler.start();
 
       actionServerThread = new ActionServerThread(actionServer);
       actionServerTimer = new Timer();
@@ -350,8 +402,33 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
         activeToolTimer.scheduleAtFixedRate(activeToolThread, 0, 100);
       }
 
+      long latencyDiagnosticsPeriod = (long) (configuration.getLatencyDiagnosticsPeriod() * 1000);
+      if (latencyDiagnosticsPeriod > 0) {
+        Logger.info("Publishing command latencies every " + latencyDiagnosticsPeriod + "ms.");
+        publisher.getLatencyMonitor().setEnabled(true);
+        latencyDiagnosticsThread = new LatencyDiagnosticsThread(publisher);
+        latencyDiagnosticsTimer = new Timer();
+        latencyDiagnosticsTimer.scheduleAtFixedRate(latencyDiagnosticsThread, latencyDiagnosticsPeriod, latencyDiagnosticsPeriod);
+      }
+
+      boolean eventDriven = configuration.getEventDrivenControlLoop();
+      long controlLoopTimeout = (long) (configuration.getControlLoopTimeout() * 1e9);
+      if (eventDriven) {
+        Logger.info("Event driven control loop, running at least every " + TimeUnit.NANOSECONDS.toMicros(controlLoopTimeout) + "us.");
+      }
+
       while (running) {
+        if (eventDriven && !isStreaming()) {
+          // Sleep until there is something to do. On timeout the loop runs anyway, e.g. for the active tool.
+          long timeout = controlLoopTimeout;
+          long nextCycleDelay = getNextCycleDelayNs();
+          if (nextCycleDelay >= 0 && nextCycleDelay < timeout) {
+            timeout = nextCycleDelay;
+          }
+          controlLoopSignal.await(timeout, TimeUnit.NANOSECONDS);
+        }
         controlModeLock.lock();
+        configChanges.applyPending();
         fakeHandGuidanceMode();
         if (!handGuidanceEnabled && !handGuidanceSwitched) {
           // Perform control loop specified by subclass.
@@ -381,15 +458,26 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
   public void onApplicationStateChanged(RoboticsAPIApplicationState state) {
     if (state == RoboticsAPIApplicationState.STOPPING) {
       running = false;
+      controlLoopSignal.signal();
     }
     super.onApplicationStateChanged(state);
   };
 
   private void cleanup() {
     running = false;
-    disposeTimer(publisherTimer);
+    controlLoopSignal.signal();
+    if (publisherScheduler != null) {
+      publisherScheduler.requestStop();
+    }
     disposeTimer(actionServerTimer);
     disposeTimer(activeToolTimer);
+    disposeTimer(latencyDiagnosticsTimer);
+    if (publisher != null) {
+      publisher.getLatencyMonitor().setEnabled(false);
+    }
+    if (controlModeHandler != null) {
+      controlModeHandler.dispose();
+    }
     if (nodeMainExecutor != null) {
       Logger.info("Stopping ROS nodes...");
       nodeMainExecutor.shutdown();
@@ -412,6 +500,22 @@ public abstract class ROSBaseApplication extends RoboticsAPIApplication {
     return running;
   }
 
+  /**
+   * Starts the given ROS node, or adds it to the single ROS node if it is enabled. In that case the given
+   * configuration is not used, and the node is started at the end of the initialization.
+   * 
+   * @param node : the ROS node to start.
+   * @param nodeConfiguration : configuration of the ROS node, as returned by configureNode.
+   */
+  protected void executeNode(NodeMain node, NodeConfiguration nodeConfiguration) {
+    if (rosNode != null) {
+      rosNode.add(node);
+    }
+    else {
+      nodeMainExecutor.execute(node, nodeConfiguration);
+    }
+  }
+
   /**
    * Utility function to create the configuration of a ROS node.
    * 
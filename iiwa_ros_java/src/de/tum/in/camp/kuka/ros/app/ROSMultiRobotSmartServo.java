@@ -0,0 +1,694 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros.app;
+
+import geometry_msgs.PoseStamped;
+import iiwa_msgs.ConfigureControlModeRequest;
+import iiwa_msgs.ConfigureControlModeResponse;
+import iiwa_msgs.MoveToJointPositionActionGoal;
+import iiwa_msgs.TimeToDestinationRequest;
+import iiwa_msgs.TimeToDestinationResponse;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+
+import org.ros.address.BindAddress;
+import org.ros.exception.ServiceException;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.service.ServiceResponseBuilder;
+import org.ros.time.NtpTimeProvider;
+
+import com.kuka.connectivity.motionModel.smartServo.SmartServo;
+import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplication;
+import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplicationState;
+import com.kuka.roboticsAPI.deviceModel.Device;
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
+import com.kuka.roboticsAPI.geometricModel.Tool;
+import com.kuka.roboticsAPI.motionModel.ErrorHandlingAction;
+import com.kuka.roboticsAPI.motionModel.IErrorHandler;
+import com.kuka.roboticsAPI.motionModel.IMotionContainer;
+import com.kuka.roboticsAPI.motionModel.controlModeModel.PositionControlMode;
+
+import de.tum.in.camp.kuka.ros.ActionServerThread;
+import de.tum.in.camp.kuka.ros.AddressGenerator;
+import de.tum.in.camp.kuka.ros.CommandTypes;
+import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
+import de.tum.in.camp.kuka.ros.ConfigChangeQueue;
+import de.tum.in.camp.kuka.ros.Configuration;
+import de.tum.in.camp.kuka.ros.ControlModeHandler;
+import de.tum.in.camp.kuka.ros.FixedRateScheduler;
+import de.tum.in.camp.kuka.ros.GoalReachedEventListener;
+import de.tum.in.camp.kuka.ros.Logger;
+import de.tum.in.camp.kuka.ros.Logger.Level;
+import de.tum.in.camp.kuka.ros.Motions;
+import de.tum.in.camp.kuka.ros.MoveAsyncErrorHandler;
+import de.tum.in.camp.kuka.ros.NodeMainGroup;
+import de.tum.in.camp.kuka.ros.PublisherThread;
+import de.tum.in.camp.kuka.ros.SpeedLimits;
+import de.tum.in.camp.kuka.ros.TransportSettings;
+import de.tum.in.camp.kuka.ros.UnsupportedControlModeException;
+import de.tum.in.camp.kuka.ros.WakeupSignal;
+import de.tum.in.camp.kuka.ros.iiwaActionServer;
+import de.tum.in.camp.kuka.ros.iiwaActionServer.Goal;
+import de.tum.in.camp.kuka.ros.iiwaGroupSubscriber;
+import de.tum.in.camp.kuka.ros.iiwaPublisher;
+import de.tum.in.camp.kuka.ros.iiwaSubscriber;
+
+/*
+ * This application allows to command several robots connected to the same controller using SmartServo motions.
+ * 
+ * The robots are listed in the process data "robots" as <robot name>=<Sunrise device name>, separated by commas.
+ * Each robot has the usual topics, services and actions under its own name. Their publishers, subscribers and
+ * action servers are grouped in four ROS nodes, whatever the number of robots, so that they fit in the port
+ * numbers available on the controller.
+ * 
+ * The <group name>/command/JointPosition topic commands all the robots at once: the destinations of all of them
+ * are set in the same control cycle, after any control mode switch has been done, or none is set if one of the
+ * robots is not ready to move.
+ * 
+ * Only joint space SmartServo commands, Cartesian pose SmartServo commands and joint position actions are
+ * supported. Speed limits are shared by all the robots and read from the parameters of the first one.
+ */
+public class ROSMultiRobotSmartServo extends RoboticsAPIApplication {
+
+  private static final String toolFrameIDSuffix = "_link_ee";
+  private static final String robotBaseFrameIDSuffix = "_link_0";
+
+  /**
+   * One of the commanded robots, with its ROS nodes and its SmartServo motion.
+   */
+  private class Arm {
+    private LBR robot;
+    private Configuration configuration;
+    private iiwaPublisher publisher;
+    private iiwaSubscriber subscriber;
+    private iiwaActionServer actionServer;
+
+    private Tool tool = null;
+    private ObjectFrame endpointFrame = null;
+    private String robotBaseFrameID;
+    private ControlModeHandler controlModeHandler;
+    private Motions motions;
+    private SmartServo motion;
+    private CommandType lastCommandType = CommandType.SMART_SERVO_JOINT_POSITION;
+    private PublisherThread publisherThread;
+    private MoveAsyncErrorHandler errorHandler;
+
+    // Cartesian SmartServo commands transformed to the robot base frame, reused at every command.
+    private PoseStamped transformedCommandPosition;
+    // Destination set by the group commands, reused at every command.
+    private JointPosition groupDestination;
+
+    private Arm(LBR robot, Configuration configuration) {
+      this.robot = robot;
+      this.configuration = configuration;
+      robotBaseFrameID = configuration.getRobotName() + robotBaseFrameIDSuffix;
+      groupDestination = new JointPosition(robot.getJointCount());
+
+      publisher = new iiwaPublisher(robot, configuration.getRobotName(), configuration.getTimeProvider());
+      actionServer = new iiwaActionServer(robot, configuration);
+      actionServer.setGoalSignal(controlLoopSignal);
+      subscriber = new iiwaSubscriber(robot, configuration.getRobotName(), configuration.getTimeProvider(), configuration.getEnforceMessageSequence());
+      subscriber.setCommandSignal(controlLoopSignal);
+      subscriber.setConfiguration(configuration);
+      subscriber.setLatencyMonitor(publisher.getLatencyMonitor());
+      errorHandler = new MoveAsyncErrorHandler(publisher, actionServer);
+      addServices();
+    }
+
+    private void addServices() {
+      subscriber.setEmergencyStopCallback(new ServiceResponseBuilder<iiwa_msgs.EmergencyStopRequest, iiwa_msgs.EmergencyStopResponse>() {
+        @Override
+        public void build(iiwa_msgs.EmergencyStopRequest req, iiwa_msgs.EmergencyStopResponse res) throws ServiceException {
+          controlModeLock.lock();
+          try {
+            // Halts all the robots of the application.
+            getApplicationControl().halt();
+          }
+          catch (Exception e) {
+            e.printStackTrace();
+          }
+          finally {
+            controlModeLock.unlock();
+          }
+        }
+      });
+
+      subscriber.setConfigureControlModeCallback(new ServiceResponseBuilder<iiwa_msgs.ConfigureControlModeRequest, iiwa_msgs.ConfigureControlModeResponse>() {
+        @Override
+        public void build(ConfigureControlModeRequest req, ConfigureControlModeResponse res) throws ServiceException {
+          controlModeLock.lock();
+          try {
+            // We can just change the parameters if the control strategy is the same.
+            if (controlModeHandler.isSameControlMode(motion.getMode(), req.getControlMode())) {
+              // If the request was for PositionControlMode and we are already there, do nothing.
+              if (!(motion.getMode() instanceof PositionControlMode)) {
+                motion.getRuntime().changeControlModeSettings(controlModeHandler.buildMotionControlMode(req));
+              }
+            }
+            else {
+              motion = controlModeHandler.changeSmartServoControlMode(motion, req);
+            }
+            res.setSuccess(true);
+            controlModeHandler.setLastSmartServoRequest(req);
+          }
+          catch (Exception e) {
+            res.setSuccess(false);
+            res.setError(e.getClass().getName() + ": " + e.getMessage());
+          }
+          finally {
+            controlModeLock.unlock();
+          }
+        }
+      });
+
+      subscriber.setTimeToDestinationCallback(new ServiceResponseBuilder<iiwa_msgs.TimeToDestinationRequest, iiwa_msgs.TimeToDestinationResponse>() {
+        @Override
+        public void build(TimeToDestinationRequest req, TimeToDestinationResponse res) throws ServiceException {
+          try {
+            motion.getRuntime().updateWithRealtimeSystem();
+            res.setRemainingTime(motion.getRuntime().getRemainingTime());
+          }
+          catch (Exception e) {
+            // An exception should be thrown only if a motion/runtime is not available.
+            res.setRemainingTime(-999);
+          }
+        }
+      });
+
+      subscriber.setSpeedOverrideCallback(new ServiceResponseBuilder<iiwa_msgs.SetSpeedOverrideRequest, iiwa_msgs.SetSpeedOverrideResponse>() {
+        @Override
+        public void build(iiwa_msgs.SetSpeedOverrideRequest req, iiwa_msgs.SetSpeedOverrideResponse res) throws ServiceException {
+          try {
+            // The override is the same for all the robots of the application, applied by the control loop.
+            configChanges.post(SpeedLimits.overrideReductionChange(req.getOverrideReduction(), true));
+            res.setSuccess(true);
+          }
+          catch (Exception e) {
+            res.setError(e.getClass().getName() + ": " + e.getMessage());
+            res.setSuccess(false);
+          }
+        }
+      });
+    }
+
+    /**
+     * Attaches the tool from the configuration and starts the SmartServo motion.
+     */
+    private void start() {
+      String toolFrameID;
+      ObjectFrame toolFrame;
+      String toolFromConfig = configuration.getToolName();
+      if (!toolFromConfig.isEmpty()) {
+        Logger.info("Attaching tool " + toolFromConfig + " to " + configuration.getRobotName());
+        tool = (Tool) getApplicationData().createFromTemplate(toolFromConfig);
+        tool.attachTo(robot.getFlange());
+        toolFrameID = toolFromConfig + toolFrameIDSuffix;
+        toolFrame = tool.getFrame("/" + toolFrameID);
+      }
+      else {
+        toolFrameID = configuration.getRobotName() + toolFrameIDSuffix;
+        toolFrame = robot.getFlange();
+      }
+
+      String endpointFrameFromConfig = configuration.getEndpointFrame();
+      if (endpointFrameFromConfig.isEmpty() || tool == null || endpointFrameFromConfig.equals(toolFrameID)) {
+        endpointFrame = toolFrame;
+      }
+      else {
+        endpointFrame = tool.getFrame(endpointFrameFromConfig);
+      }
+
+      controlModeHandler = new ControlModeHandler(robot, tool, endpointFrame, publisher, actionServer, configuration);
+      motion = controlModeHandler.createSmartServoMotion();
+      endpointFrame.moveAsync(motion);
+      motion.getRuntime().setGoalReachedEventHandler(new GoalReachedEventListener(publisher, actionServer));
+
+      motions = new Motions(robot, robotBaseFrameID, motion, endpointFrame, publisher, actionServer);
+      transformedCommandPosition = publisher.getMessageGenerator().buildMessage(PoseStamped._TYPE);
+      publisher.setPublishJointStates(configuration.getPublishJointStates());
+      publisherThread = new PublisherThread(publisher, endpointFrame);
+      subscriber.resetSequenceIds();
+    }
+
+    /**
+     * Executes the last goal or command received by this robot, if any.
+     */
+    private void moveRobot() {
+      CommandType copy = null;
+      try {
+        if (actionServer.newGoalAvailable()) {
+          while (actionServer.newGoalAvailable()) {
+            actionServer.markCurrentGoalFailed("Received new goal. Dropping old task.");
+            actionServer.acceptNewGoal();
+          }
+
+          Goal<?> actionGoal = actionServer.getCurrentGoal();
+          if (actionGoal.goalType == CommandType.POINT_TO_POINT_JOINT_POSITION) {
+            activateMotionMode(CommandType.POINT_TO_POINT_JOINT_POSITION);
+            iiwa_msgs.JointPosition jointPosition = ((MoveToJointPositionActionGoal) actionGoal.goal).getGoal().getJointPosition();
+            actionGoal.setDestination(jointPosition);
+            motions.pointToPointJointPositionMotion(controlModeHandler.getControlMode(), jointPosition);
+          }
+          else {
+            actionServer.markCurrentGoalFailed("Goal type " + actionGoal.goalType + " is not supported by the multi-robot application.");
+          }
+        }
+        else if ((copy = subscriber.takeCurrentCommandType()) != null) {
+          if (actionServer.hasCurrentGoal()) {
+            actionServer.markCurrentGoalFailed("Received new Action command. Dropping old task.");
+          }
+
+          switch (copy) {
+            case SMART_SERVO_CARTESIAN_POSE: {
+              activateMotionMode(CommandType.SMART_SERVO_CARTESIAN_POSE);
+              PoseStamped commandPosition = subscriber.transformPose(subscriber.getCartesianPose(), robotBaseFrameID, transformedCommandPosition);
+              if (commandPosition != null) {
+                motions.cartesianPositionMotion(motion, commandPosition, null);
+              }
+              else {
+                Logger.warn("Invalid motion target pose");
+              }
+              break;
+            }
+            case SMART_SERVO_JOINT_POSITION: {
+              if (subscriber.getJointSpline() != null) {
+                throw new UnsupportedControlModeException("JointSpline commands are not supported by the multi-robot application.");
+              }
+              activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION);
+              motions.jointPositionMotion(motion, subscriber.getJointPosition());
+              break;
+            }
+            case SMART_SERVO_JOINT_POSITION_VELOCITY: {
+              activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY);
+              motions.jointPositionVelocityMotion(motion, subscriber.getJointPositionVelocity());
+              break;
+            }
+            case SMART_SERVO_JOINT_VELOCITY: {
+              activateMotionMode(CommandType.SMART_SERVO_JOINT_VELOCITY);
+              motion.getRuntime().activateVelocityPlanning(true);
+              motion.setSpeedTimeoutAfterGoalReach(0.1);
+              motions.jointVelocityMotion(motion, subscriber.getJointVelocity());
+              break;
+            }
+            default: {
+              throw new UnsupportedControlModeException("commandType: " + copy + " is not supported by the multi-robot application.");
+            }
+          }
+        }
+      }
+      catch (Exception e) {
+        Logger.error(configuration.getRobotName() + ": " + e.getClass().getName() + ": " + e.getMessage());
+        e.printStackTrace();
+      }
+    }
+
+    /**
+     * Switches between SmartServo and point to point motions if necessary.
+     */
+    private void activateMotionMode(CommandType commandType) {
+      if (commandType == lastCommandType) { return; }
+
+      Logger.debug(configuration.getRobotName() + ": switching control mode from " + lastCommandType + " to " + commandType);
+
+      if (CommandTypes.isSmartServo(commandType) && CommandTypes.isPointToPoint(lastCommandType)) {
+        motion = controlModeHandler.enableSmartServo(motion);
+      }
+      else if (CommandTypes.isPointToPoint(commandType) && CommandTypes.isSmartServo(lastCommandType)) {
+        controlModeHandler.disableSmartServo(motion);
+      }
+      lastCommandType = commandType;
+    }
+  }
+
+  private Configuration configuration = null;
+  private List<Arm> arms = new ArrayList<Arm>();
+  private iiwaGroupSubscriber groupSubscriber = null;
+
+  private Lock controlModeLock = new ReentrantLock();
+  private boolean initSuccessful = false;
+  private boolean running = true;
+
+  // Wakes up the control loop when it is event driven, signaled by new commands and goals of all the robots.
+  private WakeupSignal controlLoopSignal = new WakeupSignal("iiwa_group_control_loop");
+  // Configuration changes posted by the services, applied by the control loop at the beginning of a cycle.
+  private ConfigChangeQueue configChanges = new ConfigChangeQueue(controlLoopSignal);
+
+  // All the robots share these nodes, whatever their number.
+  private AddressGenerator addressGenerator = new AddressGenerator();
+  private NodeMainGroup configurationGroup = null;
+  private NodeMainGroup publisherGroup = null;
+  private NodeMainGroup subscriberGroup = null;
+  private NodeMainGroup actionServerGroup = null;
+  private NodeMainExecutor nodeMainExecutor = null;
+
+  private FixedRateScheduler publisherScheduler = null;
+  private Timer actionServerTimer = null;
+
+  @PostConstruct
+  public void initialize() {
+    configuration = new Configuration(getApplicationData());
+
+    // Get the Sunrise Logger and set its log level.
+    Logger.setSunriseLogger(getLogger());
+    if (configuration.getDebugOutputEnabled()) {
+      Logger.setLogLevel(Level.DEBUG);
+    }
+    else {
+      Logger.setLogLevel(Level.INFO);
+    }
+
+    String groupName = configuration.getGroupName();
+    configurationGroup = new NodeMainGroup(groupName + "/configuration");
+    publisherGroup = new NodeMainGroup(groupName + "/publisher");
+    subscriberGroup = new NodeMainGroup(groupName + "/subscriber");
+    actionServerGroup = new NodeMainGroup(groupName + "/action_server");
+
+    try {
+      Map<String, String> robots = configuration.getGroupRobots();
+      if (robots.isEmpty()) {
+        Logger.warn("No robots defined in the Sunrise Process Data, commanding only " + configuration.getRobotName());
+        addArm(getContext().getDeviceFromType(LBR.class), configuration.getRobotName());
+      }
+      for (Map.Entry<String, String> robot : robots.entrySet()) {
+        Logger.info("Commanding " + robot.getValue() + " as " + robot.getKey());
+        addArm((LBR) getContext().getDeviceFromName(robot.getValue()), robot.getKey());
+      }
+    }
+    catch (Exception e) {
+      Logger.error("Robot initialization failed. Please check the robots in the Sunrise Process Data.");
+      Logger.error(e.toString());
+      e.printStackTrace();
+      return;
+    }
+
+    int jointCount = 0;
+    for (Arm arm : arms) {
+      jointCount += arm.robot.getJointCount();
+    }
+    groupSubscriber = new iiwaGroupSubscriber(groupName, jointCount);
+    groupSubscriber.setCommandSignal(controlLoopSignal);
+    // Group commands are streamed like the JointPosition commands of each robot.
+    groupSubscriber.setTransportSettings(TransportSettings.DEFAULT);
+    groupSubscriber.setConfiguration(configuration.forRobot(groupName));
+    subscriberGroup.add(groupSubscriber);
+
+    // ROS initialization.
+    NodeConfiguration configurationNodeConfiguration;
+    NodeConfiguration publisherNodeConfiguration;
+    NodeConfiguration subscriberNodeConfiguration;
+    NodeConfiguration actionServerNodeConfiguration;
+    try {
+      configurationNodeConfiguration = configureNode(groupName + "/iiwa_configuration", addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+      publisherNodeConfiguration = configureNode(groupName + "/iiwa_publisher", addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+      subscriberNodeConfiguration = configureNode(groupName + "/iiwa_subscriber", addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+      actionServerNodeConfiguration = configureNode(groupName + "/iiwa_action_server", addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+    }
+    catch (Exception e) {
+      Logger.error("Node Configuration failed. Please check the ROS Master IP in the Sunrise Process Data.");
+      Logger.error(e.toString());
+      e.printStackTrace();
+      return;
+    }
+
+    try {
+      nodeMainExecutor = DefaultNodeMainExecutor.newDefault();
+      nodeMainExecutor.execute(configurationGroup, configurationNodeConfiguration);
+      nodeMainExecutor.execute(publisherGroup, publisherNodeConfiguration);
+      nodeMainExecutor.execute(subscriberGroup, subscriberNodeConfiguration);
+      nodeMainExecutor.execute(actionServerGroup, actionServerNodeConfiguration);
+      Logger.debug("ROS Node Executor initialized.");
+    }
+    catch (Exception e) {
+      Logger.error("ROS Node Executor initialization failed.");
+      Logger.error(e.toString());
+      e.printStackTrace();
+      return;
+    }
+
+    // END of ROS initialization.
+
+    // Only one handler can be registered for the application, it hands the errors to the robot they come from.
+    getApplicationControl().registerMoveAsyncErrorHandler(new IErrorHandler() {
+      @Override
+      public ErrorHandlingAction handleError(Device device, IMotionContainer failedContainer, List<IMotionContainer> canceledContainers) {
+        for (Arm arm : arms) {
+          if (arm.robot == device) { return arm.errorHandler.handleError(device, failedContainer, canceledContainers); }
+        }
+        return arms.get(0).errorHandler.handleError(device, failedContainer, canceledContainers);
+      }
+    });
+
+    initSuccessful = true; // We cannot throw here.
+  }
+
+  private void addArm(LBR robot, String robotName) {
+    Arm arm = new Arm(robot, configuration.forRobot(robotName));
+    arms.add(arm);
+    configurationGroup.add(arm.configuration);
+    publisherGroup.add(arm.publisher);
+    subscriberGroup.add(arm.subscriber);
+    actionServerGroup.add(arm.actionServer);
+  }
+
+  public void run() {
+    if (!initSuccessful) { throw new RuntimeException("Could not initialize the RoboticApplication successfully."); }
+
+    try {
+      Logger.info("Waiting for ROS Master to connect at " + configuration.getMasterIp());
+      for (Arm arm : arms) {
+        arm.configuration.waitForInitialization();
+      }
+      Logger.info("ROS Master is connected!");
+    }
+    catch (InterruptedException e1) {
+      e1.printStackTrace();
+      return;
+    }
+
+    // Parameters shared by all the robots are read from the namespace of the first one.
+    Configuration sharedConfiguration = arms.get(0).configuration;
+    SpeedLimits.init(sharedConfiguration, getApplicationControl());
+
+    for (Arm arm : arms) {
+      arm.start();
+    }
+
+    // Initialize the ntp updates if necessary.
+    if (configuration.getTimeProvider() instanceof org.ros.time.NtpTimeProvider) {
+      ((NtpTimeProvider) configuration.getTimeProvider()).startPeriodicUpdates(100, TimeUnit.MILLISECONDS);
+    }
+
+    running = true;
+
+    // The run loop
+    Logger.info("Starting the ROS control loop for " + arms.size() + " robots...");
+    try {
+      for (Arm arm : arms) {
+        arm.actionServer.setFeedbackPeriod(arm.configuration.getActionFeedbackPeriod());
+        arm.publisher.setActionServer(arm.actionServer);
+      }
+
+      // A single thread publishes the state of all the robots.
+      long publisherPeriod = (long) (sharedConfiguration.getStatePublisherPeriod() * 1e9);
+      Logger.info("Publishing the robot state every " + TimeUnit.NANOSECONDS.toMicros(publisherPeriod) + "us.");
+      publisherScheduler = new FixedRateScheduler("iiwa_group_publisher", publisherPeriod, TimeUnit.NANOSECONDS, new Runnable() {
+        @Override
+        public void run() {
+          for (Arm arm : arms) {
+            arm.publisherThread.run();
+          }
+        }
+      });
+      publisherScheduler.start();
+
+      actionServerTimer = new Timer();
+      for (Arm arm : arms) {
+        actionServerTimer.scheduleAtFixedRate(new ActionServerThread(arm.actionServer), 0, 500);
+      }
+
+      boolean eventDriven = sharedConfiguration.getEventDrivenControlLoop();
+      long controlLoopTimeout = (long) (sharedConfiguration.getControlLoopTimeout() * 1e9);
+      if (eventDriven) {
+        Logger.info("Event driven control loop, running at least every " + TimeUnit.NANOSECONDS.toMicros(controlLoopTimeout) + "us.");
+      }
+
+      while (running) {
+        if (eventDriven) {
+          // Sleep until there is something to do.
+          controlLoopSignal.await(controlLoopTimeout, TimeUnit.NANOSECONDS);
+        }
+        controlModeLock.lock();
+        try {
+          configChanges.applyPending();
+          controlLoop();
+        }
+        finally {
+          controlModeLock.unlock();
+        }
+      }
+    }
+    catch (Exception e) {
+      dispose();
+      Logger.info("ROS control loop aborted. " + e.toString());
+      e.printStackTrace();
+    }
+    finally {
+      Logger.info("ROS control loop has ended. The application will be terminated.");
+    }
+  }
+
+  /**
+   * Executes a group command if one has been received, otherwise the goals and commands of each robot.
+   */
+  private void controlLoop() {
+    double[] groupPosition = groupSubscriber.takeJointPosition();
+    if (groupPosition == null) {
+      for (Arm arm : arms) {
+        arm.moveRobot();
+      }
+      return;
+    }
+
+    try {
+      moveGroupToJointPosition(groupPosition);
+    }
+    catch (Exception e) {
+      Logger.error(e.getClass().getName() + ": " + e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Sets the destinations of all the robots in the same control cycle. <br>
+   * Control mode switches can take a while, so all of them are done before the first destination is set.
+   */
+  private void moveGroupToJointPosition(double[] groupPosition) {
+    boolean readyToMove = true;
+    int offset = 0;
+    for (Arm arm : arms) {
+      // The group command supersedes the commands and goals of the single robots.
+      arm.subscriber.takeCurrentCommandType();
+      if (arm.actionServer.hasCurrentGoal()) {
+        arm.actionServer.markCurrentGoalFailed("Received new group command. Dropping old task.");
+      }
+      arm.activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION);
+
+      for (int i = 0; i < arm.groupDestination.getAxisCount(); i++) {
+        arm.groupDestination.set(i, groupPosition[offset + i]);
+      }
+      offset += arm.groupDestination.getAxisCount();
+      readyToMove &= arm.robot.isReadyToMove();
+    }
+
+    if (!readyToMove) {
+      Logger.warn("Not all the robots of the group are ready to move, dropping the group command.");
+      return;
+    }
+    for (Arm arm : arms) {
+      arm.motion.getRuntime().setDestination(arm.groupDestination);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    configuration.cleanup();
+    cleanup();
+    super.dispose();
+  }
+
+  @Override
+  public void onApplicationStateChanged(RoboticsAPIApplicationState state) {
+    if (state == RoboticsAPIApplicationState.STOPPING) {
+      running = false;
+      controlLoopSignal.signal();
+    }
+    super.onApplicationStateChanged(state);
+  };
+
+  private void cleanup() {
+    running = false;
+    controlLoopSignal.signal();
+    if (publisherScheduler != null) {
+      publisherScheduler.requestStop();
+    }
+    if (actionServerTimer != null) {
+      actionServerTimer.cancel();
+      actionServerTimer.purge();
+    }
+    for (Arm arm : arms) {
+      if (arm.controlModeHandler != null) {
+        arm.controlModeHandler.dispose();
+      }
+    }
+    if (nodeMainExecutor != null) {
+      Logger.info("Stopping ROS nodes...");
+      nodeMainExecutor.shutdown();
+      nodeMainExecutor.getScheduledExecutorService().shutdownNow();
+    }
+    Logger.info("Stopped ROS nodes.");
+  }
+
+  /**
+   * Returns if the control loop of the application is currently active.
+   */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Utility function to create the configuration of a ROS node.
+   * 
+   * @param nodeName name of the ROS node.
+   * @param tcpPort port to use for the ROS TCP connection - cannot be the same as the XML one.
+   * @param xmlPort port to use for the ROS XML connection - cannot be the same as the TCP one.
+   * @return
+   * @throws URISyntaxException
+   */
+  private NodeConfiguration configureNode(String nodeName, int tcpPort, int xmlPort) throws URISyntaxException {
+    NodeConfiguration nodeConfiguration = NodeConfiguration.newPublic(configuration.getRobotIp());
+    nodeConfiguration.setTimeProvider(configuration.getTimeProvider());
+    nodeConfiguration.setNodeName(nodeName);
+    nodeConfiguration.setMasterUri(configuration.getMasterURI());
+    nodeConfiguration.setTcpRosBindAddress(BindAddress.newPublic(tcpPort));
+    nodeConfiguration.setXmlRpcBindAddress(BindAddress.newPublic(xmlPort));
+    return nodeConfiguration;
+  }
+}
@@ -30,6 +30,7 @@ package de.tum.in.camp.kuka.ros.app;
 import geometry_msgs.PoseStamped;
 import geometry_msgs.Quaternion;
 import geometry_msgs.Transform;
+import iiwa_msgs.CartesianPose;
 import iiwa_msgs.ConfigureControlModeRequest;
 import iiwa_msgs.ConfigureControlModeResponse;
 import iiwa_msgs.JointPosition;
@@ -49,12 +50,13 @@ import iiwa_msgs.TimeToDestinationRequest;
 import iiwa_msgs.TimeToDestinationResponse;
 import iiwa_msgs.GetFramesRequest;
 import iiwa_msgs.GetFramesResponse;
-import iiwa_msgs.JointQuantity;
 import iiwa_msgs.EmergencyStopRequest;
 import iiwa_msgs.EmergencyStopResponse;
 
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.ros.exception.ServiceException;
 import org.ros.node.NodeConfiguration;
@@ -65,16 +67,20 @@ import com.kuka.roboticsAPI.geometricModel.ObjectFrame;
 import com.kuka.roboticsAPI.geometricModel.SceneGraphObject;
 import com.kuka.roboticsAPI.geometricModel.Workpiece;
 import com.kuka.roboticsAPI.geometricModel.math.Point;
-import com.kuka.roboticsAPI.geometricModel.math.Transformation;
+import com.kuka.roboticsAPI.motionModel.RobotMotion;
 import com.kuka.roboticsAPI.motionModel.controlModeModel.PositionControlMode;
 import com.kuka.roboticsAPI.deviceModel.LBR;
 
 import de.tum.in.camp.kuka.ros.CommandTypes.CommandType;
 import de.tum.in.camp.kuka.ros.CommandTypes;
-import de.tum.in.camp.kuka.ros.Conversions;
+import de.tum.in.camp.kuka.ros.ConfigChangeQueue;
+import de.tum.in.camp.kuka.ros.FrameIndex;
+import de.tum.in.camp.kuka.ros.JointCommandFilterChain;
+import de.tum.in.camp.kuka.ros.JointTrajectoryBuffer;
 import de.tum.in.camp.kuka.ros.Logger;
 import de.tum.in.camp.kuka.ros.Motions;
 import de.tum.in.camp.kuka.ros.SpeedLimits;
+import de.tum.in.camp.kuka.ros.SplinePreprocessor;
 import de.tum.in.camp.kuka.ros.UnsupportedControlModeException;
 import de.tum.in.camp.kuka.ros.iiwaActionServer.Goal;
 import de.tum.in.camp.kuka.ros.iiwaSubscriber;
@@ -91,41 +97,27 @@ public class ROSSmartServo extends ROSBaseApplication {
 
   private Motions motions;
   private String robotBaseFrameID = "";
+  // Cartesian SmartServo commands transformed to the robot base frame, reused at every command.
+  private PoseStamped transformedCommandPosition = null;
+  // Joint positions streamed in batches, played back at every cycle.
+  private JointTrajectoryBuffer jointTrajectoryBuffer = null;
+  // Last Cartesian velocity command, as [linear x, y, z, angular x, y, z].
+  private double[] commandTwist = new double[6];
   private static final String robotBaseFrameIDSuffix = "_link_0";
-
-  private int getChildrenFrames(ObjectFrame frame, GetFramesResponse res) throws Exception {
-    int frameCnt = 0;
-
-    List<ObjectFrame> childList = frame.getChildrenSnapshot();
-
-    for (ObjectFrame childFrame : childList) {
-      frameCnt++;
-
-      com.kuka.roboticsAPI.deviceModel.JointPosition c_jointPos = robot
-          .getInverseKinematicFromFrameAndRedundancy(childFrame);
-      JointQuantity c_q = publisher.getMessageGenerator().buildMessage(JointQuantity._TYPE);
-      Conversions.vectorToJointQuantity(c_jointPos.get(), c_q);
-      res.getJointPosition().add(c_q);
-
-      res.getFrameName().add(childFrame.getName());
-      res.getParentName().add(frame.getPath());
-      String status = childFrame.getRedundancyInformation().values().iterator().next().getAllParameters().iterator().next().value().toString();
-      res.getStatus().add(status);
-
-      Transformation c_transWorld = childFrame.transformationFromWorld();
-      geometry_msgs.Pose c_pose = publisher.getMessageGenerator().buildMessage(geometry_msgs.Pose._TYPE);
-      Conversions.kukaTransformationToRosPose(c_transWorld, c_pose);
-      res.getCartWorldPosition().add(c_pose);
-
-      frameCnt += getChildrenFrames(childFrame, res);
-    }
-
-    return frameCnt;
-  }
+  // How long the SmartServo limit services wait for the control loop to restart the motion with the new limits.
+  private static final long smartServoLimitsTimeoutMs = 1000;
+  // Spline of the current goal, executed once its conversion in the background is finished. Null if none.
+  private Spline pendingSpline = null;
+  // Frames taught in the application data, listed by the GetFrames service.
+  private FrameIndex frameIndex = null;
+  // Whether action goals are queued and blended instead of replacing each other, and the blending radius in mm.
+  private boolean queueActionGoals = false;
+  private double goalBlendingRadius = 0.0;
 
   @Override
   protected void configureNodes() {
-    // Configuration for the Subscriber.
+    // Configuration for the Subscriber, not needed if it is hosted in the single ROS node.
+    if (rosNode != null) { return; }
     try {
       subscriberNodeConfiguration = configureNode("/iiwa_subscriber", addressGenerator.getNewAddress(),
           addressGenerator.getNewAddress());
@@ -139,6 +131,9 @@ public class ROSSmartServo extends ROSBaseApplication {
   protected void addNodesToExecutor(NodeMainExecutor nodeMainExecutor) {
     subscriber = new iiwaSubscriber(robot, configuration.getRobotName(), configuration.getTimeProvider(),
         configuration.getEnforceMessageSequence());
+    subscriber.setCommandSignal(controlLoopSignal);
+    subscriber.setConfiguration(configuration);
+    frameIndex = new FrameIndex(getApplicationData(), "/P", 100);
 
     // Configure the callback for the SmartServo service inside the subscriber
     // class.
@@ -163,42 +158,15 @@ public class ROSSmartServo extends ROSBaseApplication {
         });
 
 
+    // The frames are listed from an index built at the first request, without holding the control mode lock.
     subscriber
         .setGetFramesCallback(new ServiceResponseBuilder<iiwa_msgs.GetFramesRequest, iiwa_msgs.GetFramesResponse>() {
           @Override
           public void build(GetFramesRequest req, GetFramesResponse res) throws ServiceException {
-            controlModeLock.lock();
             try {
-              int frameCnt = 0;
-              int listSize = 100;
-
-              for (int i = 0; i < listSize; i++) {
-                ObjectFrame frame =getApplicationData().tryGetFrame("/P"+i);
-                if (frame == null) {
-                  continue;
-                }  
-                frameCnt++;
-
-                com.kuka.roboticsAPI.deviceModel.JointPosition jointPos = robot
-                    .getInverseKinematicFromFrameAndRedundancy(
-                        frame); 
-                JointQuantity q = publisher.getMessageGenerator().buildMessage(JointQuantity._TYPE);
-                Conversions.vectorToJointQuantity(jointPos.get(), q);
-                res.getJointPosition().add(q);
-
-                res.getFrameName().add(frame.getName());
-                res.getParentName().add(frame.getParent().getName());//res.getStatus().add()
-                
-                String status = frame.getRedundancyInformation().values().iterator().next().getAllParameters().iterator().next().value().toString();
-                res.getStatus().add(status);
-                Transformation transWorld = frame.transformationFromWorld();
-                geometry_msgs.Pose pose = publisher.getMessageGenerator().buildMessage(geometry_msgs.Pose._TYPE);
-                Conversions.kukaTransformationToRosPose(transWorld, pose);
-                res.getCartWorldPosition().add(pose);
-
-                frameCnt += getChildrenFrames(frame, res);
-              }
-              res.setFrameSize(frameCnt);
+              // The page is given by the request, so that clients paging at the same time do not interfere.
+              frameIndex.fillResponse(res, req.getNamePrefix(), req.getOffset(), req.getMaxFrames(), !req.getSkipJointPositions(), robot,
+                  publisher.getMessageGenerator());
               res.setSuccess(true);
 
             } catch (Exception e) {
@@ -209,8 +177,6 @@ public class ROSSmartServo extends ROSBaseApplication {
                 res.setError("unexpected error");
               }
               return;
-            } finally {
-              controlModeLock.unlock();
             }
           }
         });
@@ -289,24 +255,20 @@ public class ROSSmartServo extends ROSBaseApplication {
           }
         });
 
-    // TODO: doc
+    // The speed limit services only post their change, the control loop applies it at its next cycle.
     subscriber
         .setSpeedOverrideCallback(new ServiceResponseBuilder<iiwa_msgs.SetSpeedOverrideRequest, iiwa_msgs.SetSpeedOverrideResponse>() {
           @Override
           public void build(iiwa_msgs.SetSpeedOverrideRequest req, iiwa_msgs.SetSpeedOverrideResponse res)
               throws ServiceException {
-            controlModeLock.lock();
             try {
-              SpeedLimits.setOverrideReduction(req.getOverrideReduction(), true);
+              configChanges.post(SpeedLimits.overrideReductionChange(req.getOverrideReduction(), true));
               res.setSuccess(true);
             }
             catch (Exception e) {
               res.setError(e.getClass().getName() + ": " + e.getMessage());
               res.setSuccess(false);
             }
-            finally {
-              controlModeLock.unlock();
-            }
           }
         });
 
@@ -316,18 +278,14 @@ public class ROSSmartServo extends ROSBaseApplication {
           @Override
           public void build(iiwa_msgs.SetPTPCartesianSpeedLimitsRequest req,
               iiwa_msgs.SetPTPCartesianSpeedLimitsResponse res) throws ServiceException {
-            controlModeLock.lock();
             try {
-              SpeedLimits.setPTPCartesianSpeedLimits(req);
+              configChanges.post(SpeedLimits.ptpCartesianSpeedLimitsChange(req));
               res.setSuccess(true);
             }
             catch (Exception e) {
               res.setError(e.getClass().getName() + ": " + e.getMessage());
               res.setSuccess(false);
             }
-            finally {
-              controlModeLock.unlock();
-            }
           }
         });
 
@@ -337,45 +295,41 @@ public class ROSSmartServo extends ROSBaseApplication {
           @Override
           public void build(iiwa_msgs.SetPTPJointSpeedLimitsRequest req, iiwa_msgs.SetPTPJointSpeedLimitsResponse res)
               throws ServiceException {
-            controlModeLock.lock();
             try {
-              SpeedLimits.setPTPJointSpeedLimits(req);
+              configChanges.post(SpeedLimits.ptpJointSpeedLimitsChange(req));
               res.setSuccess(true);
             }
             catch (Exception e) {
               res.setError(e.getClass().getName() + ": " + e.getMessage());
               res.setSuccess(false);
             }
-            finally {
-              controlModeLock.unlock();
-            }
           }
         });
 
-    // TODO: doc
+    // The SmartServo limit services wait for the control loop to restart the motion, and report its errors.
     subscriber
         .setSmartServoLimitsCallback(new ServiceResponseBuilder<iiwa_msgs.SetSmartServoJointSpeedLimitsRequest, iiwa_msgs.SetSmartServoJointSpeedLimitsResponse>() {
           @Override
           public void build(iiwa_msgs.SetSmartServoJointSpeedLimitsRequest req,
               iiwa_msgs.SetSmartServoJointSpeedLimitsResponse res) throws ServiceException {
-            controlModeLock.lock();
             try {
-              SpeedLimits.setSmartServoJointSpeedLimits(req);
-
-              if (lastCommandType != CommandType.SMART_SERVO_CARTESIAN_POSE_LIN) {
-                iiwa_msgs.ConfigureControlModeRequest request = null;
-                motion = controlModeHandler.changeSmartServoControlMode(motion, request);
-              }
-
+              final ConfigChangeQueue.Change limits = SpeedLimits.smartServoJointSpeedLimitsChange(req);
+              configChanges.postAndWait(new ConfigChangeQueue.Change() {
+                @Override
+                public void apply() throws Exception {
+                  limits.apply();
+                  if (lastCommandType != CommandType.SMART_SERVO_CARTESIAN_POSE_LIN) {
+                    iiwa_msgs.ConfigureControlModeRequest request = null;
+                    motion = controlModeHandler.changeSmartServoControlMode(motion, request);
+                  }
+                }
+              }, smartServoLimitsTimeoutMs, TimeUnit.MILLISECONDS);
               res.setSuccess(true);
             }
             catch (Exception e) {
               res.setError(e.getClass().getName() + ": " + e.getMessage());
               res.setSuccess(false);
             }
-            finally {
-              controlModeLock.unlock();
-            }
           }
         });
 
@@ -385,24 +339,24 @@ public class ROSSmartServo extends ROSBaseApplication {
           @Override
           public void build(SetSmartServoLinSpeedLimitsRequest req, SetSmartServoLinSpeedLimitsResponse res)
               throws ServiceException {
-            controlModeLock.lock();
             try {
-              SpeedLimits.setSmartServoLinSpeedLimits(req);
-
-              if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_POSE_LIN) {
-                iiwa_msgs.ConfigureControlModeRequest request = null;
-                linearMotion = controlModeHandler.changeSmartServoControlMode(linearMotion, request);
-
-              }
+              final ConfigChangeQueue.Change limits = SpeedLimits.smartServoLinSpeedLimitsChange(req);
+              configChanges.postAndWait(new ConfigChangeQueue.Change() {
+                @Override
+                public void apply() throws Exception {
+                  limits.apply();
+                  if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_POSE_LIN) {
+                    iiwa_msgs.ConfigureControlModeRequest request = null;
+                    linearMotion = controlModeHandler.changeSmartServoControlMode(linearMotion, request);
+                  }
+                }
+              }, smartServoLimitsTimeoutMs, TimeUnit.MILLISECONDS);
               res.setSuccess(true);
             }
             catch (Exception e) {
               res.setError(e.getClass().getName() + ": " + e.getMessage());
               res.setSuccess(false);
             }
-            finally {
-              controlModeLock.unlock();
-            }
           }
         });
 
@@ -435,6 +389,7 @@ public class ROSSmartServo extends ROSBaseApplication {
                 robot.setSafetyWorkpiece(workpiece);
                 controlModeHandler.setWorkpiece(workpiece);
               }
+              frameIndex.invalidate();
 
               res.setSuccess(true);
             }
@@ -448,43 +403,29 @@ public class ROSSmartServo extends ROSBaseApplication {
           }
         });
 
-    // TODO: doc
+    // The frame is looked up here, the control loop then restarts the current SmartServo motion on it.
     subscriber
         .setEndpointFrameCallback(new ServiceResponseBuilder<iiwa_msgs.SetEndpointFrameRequest, iiwa_msgs.SetEndpointFrameResponse>() {
           @Override
-          public void build(SetEndpointFrameRequest req, SetEndpointFrameResponse res) throws ServiceException {
+          public void build(final SetEndpointFrameRequest req, SetEndpointFrameResponse res) throws ServiceException {
             try {
+              final ObjectFrame newEndpointFrame;
               if (req.getFrameId().isEmpty()) {
-                endpointFrame = toolFrame;
+                newEndpointFrame = toolFrame;
               }
               else if (req.getFrameId().equals(configuration.getRobotName() + toolFrameIDSuffix)) {
-                endpointFrame = robot.getFlange();
+                newEndpointFrame = robot.getFlange();
               }
               else {
-                endpointFrame = tool.getFrame(req.getFrameId());
-              }
-
-              motions.setEnpointFrame(endpointFrame);
-              controlModeHandler.setEndpointFrame(endpointFrame);
-              publisher.setEndpointFrame(endpointFrame);
-              publisherThread.changeEndpointFrame(endpointFrame);
-
-              // update motion
-              if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_POSE_LIN) {
-                activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION);
-                activateMotionMode(CommandType.SMART_SERVO_CARTESIAN_POSE_LIN);
-              }
-              else if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_POSE
-                  || lastCommandType == CommandType.SMART_SERVO_CARTESIAN_VELOCITY
-                  || lastCommandType == CommandType.SMART_SERVO_JOINT_POSITION
-                  || lastCommandType == CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY
-                  || lastCommandType == CommandType.SMART_SERVO_JOINT_VELOCITY) {
-                activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION);
-                CommandType currentCommandType = lastCommandType;
-                activateMotionMode(CommandType.SMART_SERVO_CARTESIAN_POSE_LIN);
-                activateMotionMode(currentCommandType);
+                newEndpointFrame = tool.getFrame(req.getFrameId());
               }
 
+              configChanges.post(new ConfigChangeQueue.Change() {
+                @Override
+                public void apply() {
+                  changeEndpointFrame(newEndpointFrame);
+                }
+              });
               res.setSuccess(true);
             }
             catch (Exception e) {
@@ -495,7 +436,7 @@ public class ROSSmartServo extends ROSBaseApplication {
         });
 
     // Execute the subscriber node.
-    nodeMainExecutor.execute(subscriber, subscriberNodeConfiguration);
+    executeNode(subscriber, subscriberNodeConfiguration);
   }
 
   @Override
@@ -506,7 +447,25 @@ public class ROSSmartServo extends ROSBaseApplication {
   @Override
   protected void beforeControlLoop() {
     motions = new Motions(robot, robotBaseFrameID, motion, endpointFrame, publisher, actionServer);
+    subscriber.setLatencyMonitor(publisher.getLatencyMonitor());
+    transformedCommandPosition = publisher.getMessageGenerator().buildMessage(PoseStamped._TYPE);
     subscriber.resetSequenceIds();
+    jointTrajectoryBuffer = subscriber.getJointTrajectoryBuffer();
+    jointTrajectoryBuffer.setPrefill(configuration.getJointPositionBatchPrefill());
+    publisher.setJointTrajectoryBuffer(jointTrajectoryBuffer);
+    motions.setCommandExtrapolation(configuration.getCommandExtrapolationHorizon(), configuration
+        .getCommandExtrapolationDecelerationTime());
+    motions.setVelocityCommandTiming(configuration.getVelocityServoPeriod(), configuration.getVelocityCommandTimeout());
+    motions.setJointCommandFilter(JointCommandFilterChain.fromConfiguration(configuration, robot.getJointCount()));
+    publisher.setCommandExtrapolators(motions.getJointPositionExtrapolator(), motions.getCartesianPositionExtrapolator());
+    queueActionGoals = configuration.getQueueActionGoals();
+    goalBlendingRadius = configuration.getGoalBlendingRadius();
+    motions.setJointSplineChunking(configuration.getJointSplineChunkSize(), configuration.getJointSplineChunkBlending());
+    motions.setJointSplineMaxJointVelocity(configuration.getJointSplineMaxJointVelocity());
+    motions.getJointSplineStreamer().setWakeupSignal(controlLoopSignal);
+    SplinePreprocessor splinePreprocessor = new SplinePreprocessor(robot, subscriber, robotBaseFrameID);
+    splinePreprocessor.setWakeupSignal(controlLoopSignal);
+    actionServer.setSplinePreprocessor(splinePreprocessor);
   }
 
   /**
@@ -515,8 +474,14 @@ public class ROSSmartServo extends ROSBaseApplication {
    * position.
    */
   private void moveRobot() {
+    CommandType copy = null;
     try {
-      if (actionServer.newGoalAvailable()) {
+      if (actionServer.newGoalAvailable() && queueActionGoals) {
+        motions.getJointSplineStreamer().stop();
+        executeQueuedGoals();
+      }
+      else if (actionServer.newGoalAvailable()) {
+        motions.getJointSplineStreamer().stop();
         while (actionServer.newGoalAvailable()) {
           actionServer.markCurrentGoalFailed("Received new goal. Dropping old task.");
           actionServer.acceptNewGoal();
@@ -550,23 +515,20 @@ public class ROSSmartServo extends ROSBaseApplication {
           }
         }
       }
-      else if (subscriber.currentCommandType != null) {
-        if (actionServer.hasCurrentGoal()) {
-          actionServer.markCurrentGoalFailed("Received new Action command. Dropping old task.");
+      else if ((copy = subscriber.takeCurrentCommandType()) != null) {
+        publisher.getLatencyMonitor().commandPickedUp(copy, subscriber.getLastCommandReceivedNs());
+        if (actionServer.hasCurrentGoal() || actionServer.hasBatchGoals()) {
+          actionServer.markAllGoalsFailed("Received new Action command. Dropping old task.");
         }
 
-        // TODO: ask Arne: Why the need to set this to null?
-        // the methods to get the last commands already check if a new one has arrived, with the exception of
-        // the velocity commands.
-        // This was the velocity commands will only run for 1 control period.
-        CommandType copy = subscriber.currentCommandType;
-        subscriber.currentCommandType = null;
-
-        if (subscriber.commandJointSpline){
-          subscriber.commandJointSpline = false;
-          moveAlongJointSpline(subscriber.getJointSpline());
-          
+        // The command type is cleared once taken, the velocity commands are then kept applied by controlLoop
+        // until they are superseded or time out.
+        iiwa_msgs.JointSpline jointSpline = subscriber.getJointSpline();
+        if (jointSpline != null) {
+          moveAlongJointSpline(jointSpline);
         } else {
+          // Any other command interrupts the joint spline being streamed.
+          motions.getJointSplineStreamer().stop();
           switch (copy) {
             case SMART_SERVO_CARTESIAN_POSE: {
               moveToCartesianPose(subscriber.getCartesianPose(), null);
@@ -592,6 +554,11 @@ public class ROSSmartServo extends ROSBaseApplication {
               moveByJointVelocity(subscriber.getJointVelocity());
               break;
             }
+            case SMART_SERVO_JOINT_POSITION_BATCH: {
+              // The buffered points are played back at every cycle by controlLoop.
+              activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION_BATCH);
+              break;
+            }
             default: {
               throw new UnsupportedControlModeException("commandType: " + copy);
             }
@@ -599,21 +566,118 @@ public class ROSSmartServo extends ROSBaseApplication {
         }
         
       }
+      movePendingSpline();
     }
     catch (Exception e) {
       Logger.error(e.getClass().getName() + ": " + e.getMessage());
       e.printStackTrace();
     }
+    finally {
+      publisher.getLatencyMonitor().commandFinished();
+    }
+  }
+
+  /**
+   * Executes the queued action goals in order. Consecutive PTP, LIN and joint position goals are sent as one
+   * motion batch blended within <i>goalBlendingRadius</i>, while the robot is still executing the previous
+   * batch if there is one. Spline goals are executed alone, once the goals before them are done.
+   */
+  private void executeQueuedGoals() throws UnsupportedControlModeException {
+    if (actionServer.hasCurrentGoal()) {
+      // A spline is being executed.
+      return;
+    }
+
+    Goal<?> nextGoal = actionServer.getNextGoal();
+    if (nextGoal.goalType == CommandType.POINT_TO_POINT_CARTESIAN_SPLINE) {
+      if (!actionServer.hasBatchGoals()) {
+        actionServer.acceptNewGoal();
+        movePointToPointCartesianSpline(((MoveAlongSplineActionGoal) nextGoal.goal).getGoal().getSpline());
+      }
+      return;
+    }
+
+    List<Goal<?>> goals = actionServer.acceptBlendableGoals();
+    List<Goal<?>> batchGoals = new ArrayList<Goal<?>>(goals.size());
+    List<RobotMotion<?>> batchMotions = new ArrayList<RobotMotion<?>>(goals.size());
+    activateMotionMode(nextGoal.goalType);
+    for (Goal<?> actionGoal : goals) {
+      RobotMotion<?> goalMotion = null;
+      switch (actionGoal.goalType) {
+        case POINT_TO_POINT_CARTESIAN_POSE:
+        case POINT_TO_POINT_CARTESIAN_POSE_LIN: {
+          CartesianPose pose = ((MoveToCartesianPoseActionGoal) actionGoal.goal).getGoal().getCartesianPose();
+          PoseStamped commandPosition = subscriber.transformPose(pose.getPoseStamped(), robotBaseFrameID);
+          if (commandPosition == null) {
+            break;
+          }
+          actionGoal.setDestination(commandPosition.getPose());
+          if (actionGoal.goalType == CommandType.POINT_TO_POINT_CARTESIAN_POSE) {
+            goalMotion = motions.createPointToPointCartesianMotion(commandPosition, pose.getRedundancy());
+          }
+          else {
+            goalMotion = motions.createPointToPointLinearCartesianMotion(commandPosition, pose.getRedundancy());
+          }
+          break;
+        }
+        case POINT_TO_POINT_JOINT_POSITION: {
+          JointPosition jointPosition = ((MoveToJointPositionActionGoal) actionGoal.goal).getGoal().getJointPosition();
+          actionGoal.setDestination(jointPosition);
+          goalMotion = motions.createPointToPointJointPositionMotion(jointPosition);
+          break;
+        }
+        default: {
+          throw new UnsupportedControlModeException("goalType: " + actionGoal.goalType);
+        }
+      }
+
+      if (goalMotion != null) {
+        batchMotions.add(goalMotion);
+        batchGoals.add(actionGoal);
+      }
+      else {
+        actionServer.markGoalFailed(actionGoal, "Invalid motion target pose.");
+      }
+    }
+    motions.pointToPointMotionBatch(batchMotions, batchGoals, goalBlendingRadius);
   }
 
   @Override
   protected void controlLoop() {
     moveRobot();
+    motions.jointSplineStreamingMotion();
+    if (lastCommandType == CommandType.SMART_SERVO_JOINT_POSITION_BATCH) {
+      moveAlongJointPositionBatch();
+    }
+    else if (lastCommandType == CommandType.SMART_SERVO_JOINT_POSITION) {
+      // Keeps the robot moving if the next command is late, or until the command filters reach the last one.
+      motions.jointPositionExtrapolationMotion(motion);
+    }
+    else if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_POSE) {
+      motions.cartesianPositionExtrapolationMotion(motion);
+    }
+    else if (lastCommandType == CommandType.SMART_SERVO_JOINT_VELOCITY) {
+      // Velocity commands are applied at every servo period until they are superseded or time out.
+      motions.jointVelocityServoMotion(motion);
+    }
+    else if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_VELOCITY) {
+      motions.cartesianVelocityServoMotion(motion);
+    }
     if (rosTool != null) {
       rosTool.moveTool();
     }
   }
 
+  @Override
+  protected boolean isStreaming() {
+    return lastCommandType == CommandType.SMART_SERVO_JOINT_POSITION_BATCH && jointTrajectoryBuffer.size() > 0;
+  }
+
+  @Override
+  protected long getNextCycleDelayNs() {
+    return motions.getNextServoDelayNs(System.nanoTime());
+  }
+
   /**
    * Checks what kind of command has been executed at last and changes the controller type if necessary.
    * 
@@ -633,6 +697,12 @@ public class ROSSmartServo extends ROSBaseApplication {
     }
 
     Logger.debug("Switching control mode from " + lastCommandType + " to " + commandType);
+    motions.resetCommandStreams();
+
+    if (lastCommandType == CommandType.SMART_SERVO_JOINT_POSITION_BATCH) {
+      // Any other command interrupts the streamed trajectory.
+      jointTrajectoryBuffer.clear();
+    }
 
     if (CommandTypes.isSmartServo(commandType)) {
       if (lastCommandType == CommandType.SMART_SERVO_CARTESIAN_POSE_LIN || lastCommandType == null) {
@@ -675,14 +745,40 @@ public class ROSSmartServo extends ROSBaseApplication {
     lastCommandType = commandType;
   }
 
+  /**
+   * Makes the given frame the endpoint frame and restarts the current SmartServo motion on it. The motion is
+   * switched once, keeping its type and control mode.
+   * 
+   * @param newEndpointFrame
+   */
+  protected void changeEndpointFrame(ObjectFrame newEndpointFrame) {
+    endpointFrame = newEndpointFrame;
+    motions.setEnpointFrame(endpointFrame);
+    controlModeHandler.setEndpointFrame(endpointFrame);
+    publisher.setEndpointFrame(endpointFrame);
+    publisherThread.changeEndpointFrame(endpointFrame);
+
+    if (CommandTypes.isSmartServoLin(lastCommandType)) {
+      linearMotion = controlModeHandler.changeSmartServoControlMode(linearMotion, linearMotion.getMode());
+    }
+    else if (CommandTypes.isSmartServo(lastCommandType)) {
+      motions.resetCommandStreams();
+      motion = controlModeHandler.changeSmartServoControlMode(motion, motion.getMode());
+    }
+  }
+
   protected void moveToJointPosition(iiwa_msgs.JointPosition commandPosition) {
     activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION);
     motions.jointPositionMotion(motion, commandPosition);
   }
 
+  protected void moveAlongJointPositionBatch() {
+    motions.jointPositionBatchMotion(motion, jointTrajectoryBuffer);
+  }
+
   protected void moveToCartesianPose(PoseStamped commandPosition, RedundancyInformation redundancy) {
     activateMotionMode(CommandType.SMART_SERVO_CARTESIAN_POSE);
-    commandPosition = subscriber.transformPose(commandPosition, robotBaseFrameID);
+    commandPosition = subscriber.transformPose(commandPosition, robotBaseFrameID, transformedCommandPosition);
     if (commandPosition != null) {
       motions.cartesianPositionMotion(motion, commandPosition, redundancy);
     }
@@ -693,7 +789,7 @@ public class ROSSmartServo extends ROSBaseApplication {
 
   protected void moveToCartesianPoseLin(PoseStamped commandPosition, RedundancyInformation redundancy) {
     activateMotionMode(CommandType.SMART_SERVO_CARTESIAN_POSE_LIN);
-    commandPosition = subscriber.transformPose(commandPosition, robotBaseFrameID);
+    commandPosition = subscriber.transformPose(commandPosition, robotBaseFrameID, transformedCommandPosition);
     if (commandPosition != null) {
       motions.cartesianPositionLinMotion(linearMotion, commandPosition, redundancy);
     }
@@ -705,6 +801,9 @@ public class ROSSmartServo extends ROSBaseApplication {
   // action
   protected void movePointToPointJointPosition(JointPosition commandPosition) {
     activateMotionMode(CommandType.POINT_TO_POINT_JOINT_POSITION);
+    if (actionServer.hasCurrentGoal() && commandPosition != null) {
+      actionServer.getCurrentGoal().setDestination(commandPosition);
+    }
     motions.pointToPointJointPositionMotion(controlModeHandler.getControlMode(), commandPosition);
   }
 
@@ -715,6 +814,9 @@ public class ROSSmartServo extends ROSBaseApplication {
     commandPosition = subscriber.transformPose(commandPosition, robotBaseFrameID);
     
     if (commandPosition != null) {
+      if (actionServer.hasCurrentGoal()) {
+        actionServer.getCurrentGoal().setDestination(commandPosition.getPose());
+      }
       motions.pointToPointCartesianMotion(controlModeHandler.getControlMode(), commandPosition, redundancy);
     }
     else {
@@ -728,6 +830,9 @@ public class ROSSmartServo extends ROSBaseApplication {
     commandPosition = subscriber.transformPose(commandPosition, robotBaseFrameID);
 
     if (commandPosition != null) {
+      if (actionServer.hasCurrentGoal()) {
+        actionServer.getCurrentGoal().setDestination(commandPosition.getPose());
+      }
       motions.pointToPointLinearCartesianMotion(controlModeHandler.getControlMode(), commandPosition, redundancy);
     }
     else {
@@ -737,15 +842,70 @@ public class ROSSmartServo extends ROSBaseApplication {
 
   // action
   protected void movePointToPointCartesianSpline(Spline spline) {
+    Goal<?> goal = getSplineGoal(spline);
+    if (goal != null && goal.preparedSpline != null && !goal.preparedSpline.isDone()) {
+      // The goal stays accepted and is executed by movePendingSpline once converted, without blocking the
+      // control loop meanwhile.
+      pendingSpline = spline;
+      return;
+    }
+    pendingSpline = null;
+
     activateMotionMode(CommandType.POINT_TO_POINT_CARTESIAN_SPLINE);
-    boolean success = motions
-        .pointToPointCartesianSplineMotion(controlModeHandler.getControlMode(), spline, subscriber);
+    SplinePreprocessor.Result preparedSpline = takePreparedSpline(goal);
+    boolean success;
+    if (preparedSpline != null) {
+      success = motions.pointToPointCartesianSplineMotion(controlModeHandler.getControlMode(), preparedSpline);
+    }
+    else {
+      success = motions.pointToPointCartesianSplineMotion(controlModeHandler.getControlMode(), spline, subscriber);
+    }
 
     if (!success && actionServer.hasCurrentGoal()) {
       actionServer.markCurrentGoalFailed("Invalid spline.");
     }
   }
 
+  /**
+   * Executes the spline of the current goal once its conversion in the background is finished. The spline is
+   * dropped if its goal has been replaced or cancelled meanwhile.
+   */
+  private void movePendingSpline() {
+    if (pendingSpline == null) { return; }
+    Goal<?> goal = getSplineGoal(pendingSpline);
+    if (goal == null) {
+      pendingSpline = null;
+    }
+    else if (goal.preparedSpline.isDone()) {
+      movePointToPointCartesianSpline(pendingSpline);
+    }
+  }
+
+  /**
+   * Returns the current goal if the given spline is the one of this goal, null otherwise.
+   */
+  private Goal<?> getSplineGoal(Spline spline) {
+    Goal<?> goal = actionServer.getCurrentGoal();
+    if (goal == null || !(goal.goal instanceof MoveAlongSplineActionGoal)
+        || ((MoveAlongSplineActionGoal) goal.goal).getGoal().getSpline() != spline) { return null; }
+    return goal;
+  }
+
+  /**
+   * Returns the spline of the given goal as converted in the background. Returns null if the goal has no
+   * converted spline or the conversion failed, the spline is then converted by the caller.
+   */
+  private SplinePreprocessor.Result takePreparedSpline(Goal<?> goal) {
+    if (goal == null || goal.preparedSpline == null) { return null; }
+    try {
+      return goal.preparedSpline.get();
+    }
+    catch (Exception e) {
+      Logger.warn("Could not convert the spline in the background: " + e.getMessage());
+      return null;
+    }
+  }
+
   protected void moveByJointPositionVelocity(iiwa_msgs.JointPositionVelocity commandPositionVelocity) {
     activateMotionMode(CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY);
     motions.jointPositionVelocityMotion(motion, commandPositionVelocity);
@@ -766,10 +926,22 @@ public class ROSSmartServo extends ROSBaseApplication {
 
   protected void moveByCartesianVelocity(geometry_msgs.TwistStamped commandVelocity) {
     activateMotionMode(CommandType.SMART_SERVO_CARTESIAN_VELOCITY);
-    motions.cartesianVelocityMotion(motion, commandVelocity, endpointFrame);
+    if (commandVelocity == null) { return; }
+    // Twists in the endpoint frame are integrated in the moving frame, others are expressed in the robot base.
+    String frameId = commandVelocity.getHeader().getFrameId();
+    boolean inToolFrame = frameId.equals(endpointFrame.getName()) || (endpointFrame == toolFrame && frameId.equals(toolFrameID));
+    if (inToolFrame) {
+      subscriber.transformTwist(commandVelocity, frameId, commandTwist);
+    }
+    else if (!subscriber.transformTwist(commandVelocity, robotBaseFrameID, commandTwist)) {
+      Logger.warn("Invalid velocity command frame: " + frameId);
+      return;
+    }
+    motions.cartesianVelocityMotion(motion, commandTwist, inToolFrame, endpointFrame);
   }
 
   protected void moveAlongJointSpline(JointSpline spline){
+    motions.resetCommandStreams();
 
     motions
         .pointToPointJointSplineMotion(controlModeHandler.getControlMode(), spline, subscriber);
@@ -27,9 +27,15 @@
 
 package de.tum.in.camp.kuka.ros;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import org.ros.message.Duration;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
@@ -64,12 +70,34 @@ public class iiwaActionServer extends AbstractNodeMain {
     public CommandType goalType = null;
     public T_ACTION_GOAL goal = null;
     public String goalId = null;
+    // Destination used for the feedback: position in the robot base frame (m) for Cartesian goals, joint
+    // position (rad) for joint position goals. Null if unknown.
+    public volatile double[] destination = null;
+    // Spline of a MoveAlongSpline goal, converted since the goal has been received. Null if not converted.
+    public Future<SplinePreprocessor.Result> preparedSpline = null;
+    // Remaining distance at the last feedback, to estimate the remaining time.
+    private double lastRemainingDistance = -1;
+    private long lastFeedbackNs = 0;
 
     public Goal(CommandType goalType, T_ACTION_GOAL goal, String goalId) {
       this.goalType = goalType;
       this.goal = goal;
       this.goalId = goalId;
     }
+
+    /**
+     * Sets the destination of a Cartesian goal, once its pose has been transformed to the robot base frame.
+     */
+    public void setDestination(geometry_msgs.Pose pose) {
+      destination = new double[] { pose.getPosition().getX(), pose.getPosition().getY(), pose.getPosition().getZ() };
+    }
+
+    /**
+     * Sets the destination of a joint position goal.
+     */
+    public void setDestination(iiwa_msgs.JointPosition jointPosition) {
+      destination = Conversions.rosJointQuantityToArray(jointPosition.getPosition());
+    }
   }
 
   public abstract class iiwaActionServerListener<T_ACTION_GOAL extends Message> implements ActionServerListener<T_ACTION_GOAL> {
@@ -94,16 +122,25 @@ public class iiwaActionServer extends AbstractNodeMain {
      */
     @Override
     public void cancelReceived(GoalID arg0) {
-      server.markCurrentGoalFailed("Goal execution canceled by client.");
+      server.cancelGoal(arg0.getId());
     }
 
     /**
-     * Goal received callback. Adds the received goal to the goal queue
+     * Goal received callback. Adds the received goal to the goal queue, after starting the conversion of its
+     * spline if it is a MoveAlongSpline goal.
      */
     @Override
     public void goalReceived(T_ACTION_GOAL goal) {
+      Goal<T_ACTION_GOAL> newGoal = new Goal<T_ACTION_GOAL>(goalType, goal, this.getGoalId(goal));
+      SplinePreprocessor preprocessor = server.splinePreprocessor;
+      if (goalType == CommandType.POINT_TO_POINT_CARTESIAN_SPLINE && preprocessor != null) {
+        newGoal.preparedSpline = preprocessor.submit(((MoveAlongSplineActionGoal) goal).getGoal().getSpline());
+      }
       synchronized (server) {
-        server.goalQueue.add(new Goal<T_ACTION_GOAL>(goalType, goal, this.getGoalId(goal)));
+        server.goalQueue.add(newGoal);
+      }
+      if (server.goalSignal != null) {
+        server.goalSignal.signal();
       }
     }
 
@@ -116,12 +153,24 @@ public class iiwaActionServer extends AbstractNodeMain {
   private ActionServer<MoveToJointPositionActionGoal, MoveToJointPositionActionFeedback, MoveToJointPositionActionResult> jointPositionServer = null;
   Queue<Goal<?>> goalQueue;
   Goal<?> currentGoal;
+  // Goals executed together as one motion batch, in execution order.
+  List<Goal<?>> batchGoals = new ArrayList<Goal<?>>();
 
   private ConnectedNode node = null;
 
+  // Signaled at every new goal, to wake up the control loop
+  private WakeupSignal goalSignal = null;
+
+  // Converts the splines of the MoveAlongSpline goals when they are received
+  private volatile SplinePreprocessor splinePreprocessor = null;
+
   // Name to use to build the name of the ROS topics
   private String iiwaName = "iiwa";
 
+  // Period of the feedback of the goal being executed, zero disables it.
+  private volatile long feedbackPeriodNs = 0;
+  private long lastFeedbackNs = 0;
+
   public iiwaActionServer(LBR robot, Configuration configuration) {
     this(robot, robot.getFlange(), configuration);
   }
@@ -181,6 +230,35 @@ public class iiwaActionServer extends AbstractNodeMain {
     jointPositionServer.finish();
     goalQueue.clear();
     goalQueue = null;
+    batchGoals.clear();
+    if (splinePreprocessor != null) {
+      splinePreprocessor.dispose();
+    }
+  }
+
+  /**
+   * Sets the signal to raise every time a new goal is received.
+   */
+  public void setGoalSignal(WakeupSignal signal) {
+    goalSignal = signal;
+  }
+
+  /**
+   * Sets the period of the feedback published for the goal being executed, see <i>publishFeedback</i>. Zero
+   * disables the feedback.
+   * 
+   * @param period : in seconds.
+   */
+  public void setFeedbackPeriod(double period) {
+    feedbackPeriodNs = (long) (period * 1e9);
+  }
+
+  /**
+   * Sets the preprocessor that converts the splines of the MoveAlongSpline goals as soon as they are
+   * received. Without it, the splines are converted when their goal is executed.
+   */
+  public void setSplinePreprocessor(SplinePreprocessor preprocessor) {
+    splinePreprocessor = preprocessor;
   }
 
   public Boolean isActive() {
@@ -215,84 +293,147 @@ public class iiwaActionServer extends AbstractNodeMain {
     markCurrentGoal(false, error_msg);
   }
 
+  /**
+   * Sets a goal of the current batch to succeeded and publishes result message
+   */
+  public synchronized void markGoalReached(Goal<?> goal) {
+    if (batchGoals.remove(goal)) {
+      Logger.debug("Publishing " + goal.goalType + " goal reached: " + goal.goalId);
+      markGoal(goal, true, "");
+    }
+  }
+
+  /**
+   * Sets a goal of the current batch to aborted and publishes result message
+   */
+  public synchronized void markGoalFailed(Goal<?> goal, String error_msg) {
+    if (batchGoals.remove(goal)) {
+      Logger.debug("Publishing " + goal.goalType + " goal failed: " + goal.goalId);
+      markGoal(goal, false, error_msg);
+    }
+  }
+
+  /**
+   * Sets the current goal and all the goals of the current batch to aborted and publishes result messages
+   */
+  public synchronized void markAllGoalsFailed(String error_msg) {
+    markCurrentGoalFailed(error_msg);
+    while (!batchGoals.isEmpty()) {
+      markGoalFailed(batchGoals.get(0), error_msg);
+    }
+  }
+
+  /**
+   * Aborts the goal with the given id, whether it is the current goal, part of the current batch or still
+   * queued. An empty id aborts the current goal.
+   */
+  public synchronized void cancelGoal(String goalId) {
+    String error_msg = "Goal execution canceled by client.";
+    if (goalId == null || goalId.isEmpty() || (hasCurrentGoal() && goalId.equals(currentGoal.goalId))) {
+      markCurrentGoalFailed(error_msg);
+      return;
+    }
+    for (Goal<?> goal : batchGoals) {
+      if (goalId.equals(goal.goalId)) {
+        markGoalFailed(goal, error_msg);
+        return;
+      }
+    }
+    if (goalQueue != null) {
+      for (Iterator<Goal<?>> it = goalQueue.iterator(); it.hasNext();) {
+        Goal<?> goal = it.next();
+        if (goalId.equals(goal.goalId)) {
+          it.remove();
+          markGoal(goal, false, error_msg);
+          return;
+        }
+      }
+    }
+  }
+
   private synchronized void markCurrentGoal(boolean succeeded, String error_msg) {
     if (hasCurrentGoal()) {
-      switch (currentGoal.goalType) {
+      markGoal(currentGoal, succeeded, error_msg);
+      currentGoal = null;
+    }
+  }
+
+  private synchronized void markGoal(Goal<?> goal, boolean succeeded, String error_msg) {
+    if (goal != null) {
+      switch (goal.goalType) {
       // TODO: Reduce similar code
         case POINT_TO_POINT_CARTESIAN_POSE: {
           MoveToCartesianPoseActionResult result = cartesianPoseServer.newResultMessage();
           result.getResult().setSuccess(succeeded);
           result.getResult().setError(error_msg);
-          result.getStatus().getGoalId().setId(currentGoal.goalId);
+          result.getStatus().getGoalId().setId(goal.goalId);
           if (succeeded) {
             result.getStatus().setStatus(GoalStatus.SUCCEEDED);
-            cartesianPoseServer.setSucceed(currentGoal.goalId);
+            cartesianPoseServer.setSucceed(goal.goalId);
           }
           else {
             result.getStatus().setStatus(GoalStatus.ABORTED);
-            cartesianPoseServer.setAborted(currentGoal.goalId);
+            cartesianPoseServer.setAborted(goal.goalId);
           }
           cartesianPoseServer.sendResult(result);
-          cartesianPoseServer.setGoalStatus(result.getStatus(), currentGoal.goalId);
+          cartesianPoseServer.setGoalStatus(result.getStatus(), goal.goalId);
           break;
         }
         case POINT_TO_POINT_CARTESIAN_POSE_LIN: {
           MoveToCartesianPoseActionResult result = cartesianPoseLinServer.newResultMessage();
           result.getResult().setSuccess(succeeded);
           result.getResult().setError(error_msg);
-          result.getStatus().getGoalId().setId(currentGoal.goalId);
+          result.getStatus().getGoalId().setId(goal.goalId);
           if (succeeded) {
             result.getStatus().setStatus(GoalStatus.SUCCEEDED);
-            cartesianPoseLinServer.setSucceed(currentGoal.goalId);
+            cartesianPoseLinServer.setSucceed(goal.goalId);
           }
           else {
             result.getStatus().setStatus(GoalStatus.ABORTED);
-            cartesianPoseLinServer.setAborted(currentGoal.goalId);
+            cartesianPoseLinServer.setAborted(goal.goalId);
           }
           cartesianPoseLinServer.sendResult(result);
-          cartesianPoseLinServer.setGoalStatus(result.getStatus(), currentGoal.goalId);
+          cartesianPoseLinServer.setGoalStatus(result.getStatus(), goal.goalId);
           break;
         }
         case POINT_TO_POINT_CARTESIAN_SPLINE: {
           MoveAlongSplineActionResult result = moveAlongSplineServer.newResultMessage();
           result.getResult().setSuccess(succeeded);
           result.getResult().setError(error_msg);
-          result.getStatus().getGoalId().setId(currentGoal.goalId);
+          result.getStatus().getGoalId().setId(goal.goalId);
           if (succeeded) {
             result.getStatus().setStatus(GoalStatus.SUCCEEDED);
-            moveAlongSplineServer.setSucceed(currentGoal.goalId);
+            moveAlongSplineServer.setSucceed(goal.goalId);
           }
           else {
             result.getStatus().setStatus(GoalStatus.ABORTED);
-            moveAlongSplineServer.setAborted(currentGoal.goalId);
+            moveAlongSplineServer.setAborted(goal.goalId);
           }
           moveAlongSplineServer.sendResult(result);
-          moveAlongSplineServer.setGoalStatus(result.getStatus(), currentGoal.goalId);
+          moveAlongSplineServer.setGoalStatus(result.getStatus(), goal.goalId);
           break;
         }
         case POINT_TO_POINT_JOINT_POSITION: {
           MoveToJointPositionActionResult result = jointPositionServer.newResultMessage();
           result.getResult().setSuccess(succeeded);
           result.getResult().setError(error_msg);
-          result.getStatus().getGoalId().setId(currentGoal.goalId);
+          result.getStatus().getGoalId().setId(goal.goalId);
           if (succeeded) {
             result.getStatus().setStatus(GoalStatus.SUCCEEDED);
-            jointPositionServer.setSucceed(currentGoal.goalId);
+            jointPositionServer.setSucceed(goal.goalId);
           }
           else {
             result.getStatus().setStatus(GoalStatus.ABORTED);
-            jointPositionServer.setAborted(currentGoal.goalId);
+            jointPositionServer.setAborted(goal.goalId);
           }
           jointPositionServer.sendResult(result);
-          jointPositionServer.setGoalStatus(result.getStatus(), currentGoal.goalId);
+          jointPositionServer.setGoalStatus(result.getStatus(), goal.goalId);
           break;
         }
         default:
-          System.out.println("Unknown goal type: " + currentGoal.goalType);
+          System.out.println("Unknown goal type: " + goal.goalType);
           break;
       }
-
-      currentGoal = null;
     }
   }
 
@@ -332,12 +473,172 @@ public class iiwaActionServer extends AbstractNodeMain {
     return currentGoal;
   }
 
+  /**
+   * Takes the goals at the head of the queue that can be blended into each other (Cartesian PTP and LIN, joint
+   * position PTP) and adds them to the current batch.
+   * 
+   * @return the accepted goals, in the order they were received
+   */
+  public synchronized List<Goal<?>> acceptBlendableGoals() {
+    List<Goal<?>> goals = new ArrayList<Goal<?>>();
+    while (goalQueue != null && !goalQueue.isEmpty() && goalQueue.peek().goalType != CommandType.POINT_TO_POINT_CARTESIAN_SPLINE) {
+      goals.add(goalQueue.poll());
+    }
+    batchGoals.addAll(goals);
+    return goals;
+  }
+
+  /**
+   * True if goals of a batch are being executed
+   * 
+   * @return
+   */
+  public synchronized boolean hasBatchGoals() {
+    return !batchGoals.isEmpty();
+  }
+
+  /**
+   * True if the feedback of the goal being executed should be published with a state sampled now. Called by
+   * the publisher at every cycle, before sampling.
+   * 
+   * @param nowNs : System.nanoTime().
+   */
+  public boolean isFeedbackDue(long nowNs) {
+    if (feedbackPeriodNs <= 0 || nowNs - lastFeedbackNs < feedbackPeriodNs) { return false; }
+    return getExecutingGoal() != null;
+  }
+
+  /**
+   * Sends the feedback of the goal being executed, computed from the state sampled by the publisher. <br>
+   * The feedback carries the current pose for Cartesian goals, the current joint position for joint position
+   * goals, the remaining distance and the remaining time, with the id of the goal and the timestamp of the
+   * sample. The current pose is left empty if it was not sampled. <br>
+   * The remaining distance is in m for Cartesian goals and is the norm of the joint differences in rad for
+   * joint position goals. The remaining time is estimated from the rate at which the remaining distance
+   * decreased since the previous feedback. Unknown values are set to -1.
+   * 
+   * @param snapshot : state sampled by the publisher, with the Cartesian pose for Cartesian goals.
+   */
+  public synchronized void publishFeedback(RobotStateSnapshot snapshot) {
+    lastFeedbackNs = snapshot.getSampleTimeNs();
+    Goal<?> goal = getExecutingGoal();
+    if (goal == null || !isActive()) { return; }
+
+    boolean jointGoal = (goal.goalType == CommandType.POINT_TO_POINT_JOINT_POSITION);
+    boolean cartesianPose = snapshot.hasSampled(RobotStateSnapshot.CARTESIAN_POSE);
+    double[] current = jointGoal ? snapshot.getJointPosition() : (cartesianPose ? snapshot.getCartesianPosition() : null);
+    double remainingDistance = -1;
+    double remainingTime = -1;
+    if (goal.destination != null && current != null && goal.destination.length == current.length) {
+      remainingDistance = distance(goal.destination, current);
+      if (goal.lastFeedbackNs != 0 && goal.lastRemainingDistance > remainingDistance) {
+        double rate = (goal.lastRemainingDistance - remainingDistance) / ((snapshot.getSampleTimeNs() - goal.lastFeedbackNs) / 1e9);
+        remainingTime = remainingDistance / rate;
+      }
+      goal.lastRemainingDistance = remainingDistance;
+      goal.lastFeedbackNs = snapshot.getSampleTimeNs();
+    }
+
+    switch (goal.goalType) {
+      case POINT_TO_POINT_CARTESIAN_POSE: {
+        MoveToCartesianPoseActionFeedback feedback = cartesianPoseServer.newFeedbackMessage();
+        fillFeedback(feedback.getHeader(), feedback.getStatus(), goal, snapshot);
+        fillCurrentPose(feedback.getFeedback().getCurrent(), snapshot);
+        feedback.getFeedback().setRemainingDistance(remainingDistance);
+        feedback.getFeedback().setRemainingTime(new Duration(remainingTime));
+        cartesianPoseServer.sendFeedback(feedback);
+        break;
+      }
+      case POINT_TO_POINT_CARTESIAN_POSE_LIN: {
+        MoveToCartesianPoseActionFeedback feedback = cartesianPoseLinServer.newFeedbackMessage();
+        fillFeedback(feedback.getHeader(), feedback.getStatus(), goal, snapshot);
+        fillCurrentPose(feedback.getFeedback().getCurrent(), snapshot);
+        feedback.getFeedback().setRemainingDistance(remainingDistance);
+        feedback.getFeedback().setRemainingTime(new Duration(remainingTime));
+        cartesianPoseLinServer.sendFeedback(feedback);
+        break;
+      }
+      case POINT_TO_POINT_CARTESIAN_SPLINE: {
+        MoveAlongSplineActionFeedback feedback = moveAlongSplineServer.newFeedbackMessage();
+        fillFeedback(feedback.getHeader(), feedback.getStatus(), goal, snapshot);
+        fillCurrentPose(feedback.getFeedback().getCurrent(), snapshot);
+        feedback.getFeedback().setRemainingDistance(remainingDistance);
+        feedback.getFeedback().setRemainingTime(new Duration(remainingTime));
+        moveAlongSplineServer.sendFeedback(feedback);
+        break;
+      }
+      case POINT_TO_POINT_JOINT_POSITION: {
+        MoveToJointPositionActionFeedback feedback = jointPositionServer.newFeedbackMessage();
+        fillFeedback(feedback.getHeader(), feedback.getStatus(), goal, snapshot);
+        fillCurrentJointPosition(feedback.getFeedback().getCurrent(), snapshot);
+        feedback.getFeedback().setRemainingDistance(remainingDistance);
+        feedback.getFeedback().setRemainingTime(new Duration(remainingTime));
+        jointPositionServer.sendFeedback(feedback);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Returns the goal the robot is moving to: the current goal, or the first goal of the current batch.
+   */
+  private synchronized Goal<?> getExecutingGoal() {
+    if (currentGoal != null) { return currentGoal; }
+    return batchGoals.isEmpty() ? null : batchGoals.get(0);
+  }
+
+  private void fillFeedback(std_msgs.Header header, GoalStatus status, Goal<?> goal, RobotStateSnapshot snapshot) {
+    header.setStamp(snapshot.getStamp());
+    if (goal.goalType != CommandType.POINT_TO_POINT_JOINT_POSITION) {
+      header.setFrameId(iiwaName + "_link_0");
+    }
+    status.getGoalId().setId(goal.goalId);
+    status.setStatus(GoalStatus.ACTIVE);
+  }
+
+  private void fillCurrentPose(geometry_msgs.PoseStamped current, RobotStateSnapshot snapshot) {
+    if (!snapshot.hasSampled(RobotStateSnapshot.CARTESIAN_POSE)) { return; }
+    current.getHeader().setStamp(snapshot.getStamp());
+    current.getHeader().setFrameId(iiwaName + "_link_0");
+    double[] position = snapshot.getCartesianPosition();
+    double[] orientation = snapshot.getCartesianOrientation();
+    current.getPose().getPosition().setX(position[0]);
+    current.getPose().getPosition().setY(position[1]);
+    current.getPose().getPosition().setZ(position[2]);
+    current.getPose().getOrientation().setX(orientation[0]);
+    current.getPose().getOrientation().setY(orientation[1]);
+    current.getPose().getOrientation().setZ(orientation[2]);
+    current.getPose().getOrientation().setW(orientation[3]);
+  }
+
+  private void fillCurrentJointPosition(iiwa_msgs.JointPosition current, RobotStateSnapshot snapshot) {
+    current.getHeader().setStamp(snapshot.getStamp());
+    Conversions.vectorToJointQuantity(snapshot.getJointPosition(), current.getPosition());
+  }
+
+  private static double distance(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += (a[i] - b[i]) * (a[i] - b[i]);
+    }
+    return Math.sqrt(sum);
+  }
+
   /**
    * Send heartbeat to action clients
    */
   public synchronized void publishCurrentState() {
+    EnumSet<CommandType> goalTypes = EnumSet.noneOf(CommandType.class);
     if (hasCurrentGoal()) {
-      switch (currentGoal.goalType) {
+      goalTypes.add(currentGoal.goalType);
+    }
+    for (Goal<?> goal : batchGoals) {
+      goalTypes.add(goal.goalType);
+    }
+    for (CommandType goalType : goalTypes) {
+      switch (goalType) {
         case POINT_TO_POINT_CARTESIAN_POSE:
           cartesianPoseServer.sendStatusTick();
           break;
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2019 Salvatore Virga - salvo.virga@tum.de
+ * Technische Universität München
+ * Chair for Computer Aided Medical Procedures and Augmented Reality
+ * Fakultät für Informatik / I16, Boltzmannstraße 3, 85748 Garching bei München, Germany
+ * http://campar.in.tum.de
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ * following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.tum.in.camp.kuka.ros;
+
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Subscriber;
+
+/**
+ * This class implements a ROS Node that receives the commands addressed to a group of robots at once. <br>
+ * Messages are received on topics in this format : <group name>/command/<command type> (e.g.
+ * MyCell/command/JointPosition)
+ * <p>
+ * The JointPosition topic carries a std_msgs/Float64MultiArray with the joint positions of all the robots of
+ * the group, one after the other in the order the robots have been configured. The application sets them as
+ * destinations of all the robots in the same control cycle.
+ */
+public class iiwaGroupSubscriber extends AbstractNodeMain {
+
+  private Subscriber<std_msgs.Float64MultiArray> jointPositionSubscriber;
+  private CommandMailbox<double[]> jointPosition = new CommandMailbox<double[]>(null);
+
+  // Name to use to build the name of the ROS topics
+  private String groupName;
+  private int jointCount;
+  private TransportSettings transportSettings = TransportSettings.DEFAULT;
+  private Configuration configuration = null;
+
+  // Signaled at every new command, to wake up the control loop
+  private WakeupSignal commandSignal = null;
+  // System.nanoTime() at which the last command has been received
+  private volatile long lastCommandReceivedNs = 0;
+
+  /**
+   * @param groupName : name of the group, it will be used for the topic names with this format : <group
+   *          name>/command/<command type>
+   * @param jointCount : total number of joints of the robots in the group.
+   */
+  public iiwaGroupSubscriber(String groupName, int jointCount) {
+    this.groupName = groupName;
+    this.jointCount = jointCount;
+  }
+
+  public String getGroupName() {
+    return groupName;
+  }
+
+  /**
+   * Sets the transport settings of the command topics, to be called before the node is started. They are
+   * used if nothing is configured on the parameter server.
+   */
+  public void setTransportSettings(TransportSettings transportSettings) {
+    this.transportSettings = transportSettings;
+  }
+
+  /**
+   * Sets the configuration from which the transport settings of the topics are read when the node starts. Its
+   * robot name must be the group name, the parameters are read under <group name>/transport.
+   */
+  public void setConfiguration(Configuration configuration) {
+    this.configuration = configuration;
+  }
+
+  /**
+   * Sets the signal to raise every time a new command is received.
+   */
+  public void setCommandSignal(WakeupSignal signal) {
+    commandSignal = signal;
+  }
+
+  /**
+   * Returns the System.nanoTime() at which the last command has been received.
+   */
+  public long getLastCommandReceivedNs() {
+    return lastCommandReceivedNs;
+  }
+
+  /**
+   * Returns the joint positions of all the robots received since the last call, null if there are none. <br>
+   * The returned array must not be modified.
+   */
+  public double[] takeJointPosition() {
+    return jointPosition.take();
+  }
+
+  /**
+   * @see org.ros.node.NodeMain#getDefaultNodeName()
+   */
+  @Override
+  public GraphName getDefaultNodeName() {
+    return GraphName.of(groupName + "/subscriber");
+  }
+
+  /**
+   * This method is called when the <i>execute</i> method from a <i>nodeMainExecutor</i> is called.<br>
+   * Do <b>NOT</b> manually call this.
+   * <p>
+   * 
+   * @see org.ros.node.AbstractNodeMain#onStart(org.ros.node.ConnectedNode)
+   */
+  @Override
+  public void onStart(ConnectedNode connectedNode) {
+    if (configuration != null) {
+      transportSettings = configuration.getTransportSettings(connectedNode.getParameterTree(), "command/JointPosition", transportSettings);
+      Logger.debug("Transport settings of " + groupName + "/command/JointPosition: " + transportSettings);
+    }
+    jointPositionSubscriber = connectedNode.newSubscriber(groupName + "/command/JointPosition", std_msgs.Float64MultiArray._TYPE, transportSettings.toTransportHints());
+
+    jointPositionSubscriber.addMessageListener(new MessageListener<std_msgs.Float64MultiArray>() {
+      @Override
+      public void onNewMessage(std_msgs.Float64MultiArray position) {
+        double[] data = position.getData();
+        if (data.length != jointCount) {
+          Logger.error("Received a group JointPosition message with " + data.length + " values, while expecting " + jointCount + " values");
+          return;
+        }
+        jointPosition.post(data);
+        lastCommandReceivedNs = System.nanoTime();
+        WakeupSignal signal = commandSignal;
+        if (signal != null) {
+          signal.signal();
+        }
+      }
+    }, transportSettings.getQueueLength());
+  }
+}
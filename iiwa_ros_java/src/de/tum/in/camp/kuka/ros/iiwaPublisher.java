@@ -27,6 +27,8 @@
 
 package de.tum.in.camp.kuka.ros;
 
+import java.util.Arrays;
+
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
@@ -61,12 +63,29 @@ public class iiwaPublisher extends AbstractNodeMain {
   private boolean publishJointState = false;
   // DestinationReachedFlag publisher
   private Publisher<std_msgs.Time> destinationReachedPublisher;
+  // JointPositionBatch buffer state publisher
+  private Publisher<std_msgs.Float64MultiArray> jointTrajectoryBufferPublisher;
+  private JointTrajectoryBuffer jointTrajectoryBuffer = null;
+  private std_msgs.Float64MultiArray jtb;
+  // SmartServo command extrapolation state publisher
+  private Publisher<std_msgs.Float64MultiArray> commandExtrapolationPublisher;
+  private CommandExtrapolator[] commandExtrapolators = null;
+  private std_msgs.Float64MultiArray ce;
+  // Chunked JointSpline progress publisher
+  private Publisher<std_msgs.Float64MultiArray> jointSplineProgressPublisher;
+  private std_msgs.Float64MultiArray jsp;
+  // Timed JointSpline tracking publisher
+  private Publisher<std_msgs.Float64MultiArray> jointSplineTimingPublisher;
+  private std_msgs.Float64MultiArray jst;
+  // Command latency diagnostics publisher
+  private Publisher<std_msgs.String> latencyDiagnosticsPublisher;
+  private final LatencyMonitor latencyMonitor = new LatencyMonitor();
   // Publishes the status of the Media Flange button.
   // private Publisher<std_msgs.Bool> mediaFlangeButtonPublisher; // MEDIAFLANGEIO
   // Name to use to build the name of the ROS topics
   private String robotName = "iiwa";
 
-  private LBR robot;
+  private RobotStateSource robot;
 
   private ObjectFrame endpointFrame = null;
 
@@ -86,6 +105,11 @@ public class iiwaPublisher extends AbstractNodeMain {
   private iiwa_msgs.JointVelocity jv;
   private std_msgs.Time t;
 
+  // State of the robot, sampled once per publishing cycle and shared by all the messages.
+  private RobotStateSnapshot snapshot;
+  // Action server whose goal feedback is published from the same snapshot.
+  private iiwaActionServer actionServer = null;
+
   // private std_msgs.Bool flangeButton; // MEDIAFLANGEIO
 
   /**
@@ -96,9 +120,22 @@ public class iiwaPublisher extends AbstractNodeMain {
    *          type> (e.g. MyIIWA/state/CartesianPosition)
    */
   public iiwaPublisher(LBR robot, String robotName, TimeProvider timeProvider) {
+    this(new LBRStateSource(robot), robot.getFlange(), robotName, timeProvider);
+  }
+
+  /**
+   * Create a ROS node with publishers for the state read from the given source, e.g. a simulated robot. <br>
+   * Node will be running when the <i>execute</i> method from a <i>nodeMainExecutor</i> is called.<br>
+   * 
+   * @param robot : where the robot state is read from.
+   * @param endpointFrame : frame of the published Cartesian information, can be null if the source ignores it.
+   * @param robotName : name of the robot, topics will be created accordingly : <robot name>/state/<iiwa_msgs
+   *          type> (e.g. MyIIWA/state/CartesianPosition)
+   */
+  public iiwaPublisher(RobotStateSource robot, ObjectFrame endpointFrame, String robotName, TimeProvider timeProvider) {
     this.robot = robot;
     this.robotName = robotName;
-    this.endpointFrame = robot.getFlange();
+    this.endpointFrame = endpointFrame;
     helper = new MessageGenerator(robotName, timeProvider);
 
     cp = helper.buildMessage(iiwa_msgs.CartesianPose._TYPE);
@@ -110,6 +147,13 @@ public class iiwaPublisher extends AbstractNodeMain {
     jv = helper.buildMessage(iiwa_msgs.JointVelocity._TYPE);
     js = helper.buildMessage(sensor_msgs.JointState._TYPE);
     t = helper.buildMessage(std_msgs.Time._TYPE);
+    jtb = helper.buildMessage(std_msgs.Float64MultiArray._TYPE);
+    jtb.setData(new double[5]);
+    ce = helper.buildMessage(std_msgs.Float64MultiArray._TYPE);
+    ce.setData(new double[4]);
+    jsp = helper.buildMessage(std_msgs.Float64MultiArray._TYPE);
+    jst = helper.buildMessage(std_msgs.Float64MultiArray._TYPE);
+    snapshot = new RobotStateSnapshot(robot.getJointCount());
     // flangeButton = helper.buildMessage(std_msgs.Bool._TYPE); // MEDIAFLANGEIO
   }
 
@@ -122,6 +166,34 @@ public class iiwaPublisher extends AbstractNodeMain {
     this.endpointFrame = frame;
   }
 
+  /**
+   * Set the buffer of the JointPositionBatch topic, whose state will be published.
+   * 
+   * @param buffer
+   */
+  public void setJointTrajectoryBuffer(JointTrajectoryBuffer buffer) {
+    this.jointTrajectoryBuffer = buffer;
+  }
+
+  /**
+   * Set the extrapolators of the SmartServo commands, whose summed state will be published.
+   * 
+   * @param extrapolators
+   */
+  public void setCommandExtrapolators(CommandExtrapolator... extrapolators) {
+    this.commandExtrapolators = extrapolators;
+  }
+
+  /**
+   * Set the action server whose goal feedback will be published with the state, at the period set in the
+   * action server.
+   * 
+   * @param actionServer
+   */
+  public void setActionServer(iiwaActionServer actionServer) {
+    this.actionServer = actionServer;
+  }
+
   /**
    * Set if also joint_states should be published
    * 
@@ -144,6 +216,13 @@ public class iiwaPublisher extends AbstractNodeMain {
     return robotName;
   }
 
+  /**
+   * Returns the robot state sampled during the last publishing cycle.
+   */
+  public RobotStateSnapshot getLastSnapshot() {
+    return snapshot;
+  }
+
 
   public MessageGenerator getMessageGenerator(){
     return helper;
@@ -181,6 +260,11 @@ public class iiwaPublisher extends AbstractNodeMain {
     jointStatesPublisher = connectedNode.newPublisher(robotName + "/joint_states", sensor_msgs.JointState._TYPE);
 
     destinationReachedPublisher = connectedNode.newPublisher(robotName + "/state/DestinationReached", std_msgs.Time._TYPE);
+    jointTrajectoryBufferPublisher = connectedNode.newPublisher(robotName + "/state/JointPositionBatchBuffer", std_msgs.Float64MultiArray._TYPE);
+    commandExtrapolationPublisher = connectedNode.newPublisher(robotName + "/state/CommandExtrapolation", std_msgs.Float64MultiArray._TYPE);
+    jointSplineProgressPublisher = connectedNode.newPublisher(robotName + "/state/JointSplineProgress", std_msgs.Float64MultiArray._TYPE);
+    jointSplineTimingPublisher = connectedNode.newPublisher(robotName + "/state/JointSplineTiming", std_msgs.Float64MultiArray._TYPE);
+    latencyDiagnosticsPublisher = connectedNode.newPublisher(robotName + "/diagnostics/latency", std_msgs.String._TYPE);
 
     // mediaFlangeButtonPublisher = connectedNode.newPublisher(robotName + "/state/MFButtonState",
     // std_msgs.Bool._TYPE); // MEDIAFLANGEIO
@@ -211,48 +295,103 @@ public class iiwaPublisher extends AbstractNodeMain {
    * @throws InterruptedException
    */
   public void publishCurrentState(ObjectFrame frame/* , MediaFlangeIOGroup mediaFlange */) throws InterruptedException { // MEDIAFLANGEIO
-    if (cartesianPosePublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentCartesianPose(cp, robot, frame);
+    boolean publishCartesianPose = cartesianPosePublisher.getNumberOfSubscribers() > 0;
+    boolean publishCartesianWrench = cartesianWrenchPublisher.getNumberOfSubscribers() > 0;
+    boolean publishJointPosition = jointPositionPublisher.getNumberOfSubscribers() > 0;
+    boolean publishJointPositionVelocity = jointPositionVelocityPublisher.getNumberOfSubscribers() > 0;
+    boolean publishJointVelocity = jointVelocityPublisher.getNumberOfSubscribers() > 0;
+    boolean publishJointTorque = jointTorquePublisher.getNumberOfSubscribers() > 0;
+    boolean publishExternalJointTorque = externalJointTorquePublisher.getNumberOfSubscribers() > 0;
+    boolean publishJointStates = publishJointState && jointStatesPublisher.getNumberOfSubscribers() > 0;
+    boolean publishActionFeedback = actionServer != null && actionServer.isFeedbackDue(System.nanoTime());
+
+    // Read from the robot only what is going to be published, and only once.
+    // The joint position is always sampled to keep the velocity estimation continuous.
+    int quantities = RobotStateSnapshot.JOINT_POSITION;
+    if (publishCartesianPose || publishActionFeedback) {
+      quantities |= RobotStateSnapshot.CARTESIAN_POSE;
+    }
+    if (publishCartesianWrench) {
+      quantities |= RobotStateSnapshot.CARTESIAN_WRENCH;
+    }
+    if (publishJointTorque || publishJointStates) {
+      quantities |= RobotStateSnapshot.MEASURED_TORQUE;
+    }
+    if (publishExternalJointTorque) {
+      quantities |= RobotStateSnapshot.EXTERNAL_TORQUE;
+    }
+    snapshot.sample(robot, frame, helper.getCurrentTime(), quantities);
+
+    if (publishCartesianPose) {
+      helper.getCurrentCartesianPose(cp, snapshot);
       helper.incrementSeqNumber(cp.getPoseStamped().getHeader());
       cartesianPosePublisher.publish(cp);
     }
-    if (cartesianWrenchPublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentCartesianWrench(cw, robot, frame);
+    if (publishCartesianWrench) {
+      helper.getCurrentCartesianWrench(cw, snapshot);
       helper.incrementSeqNumber(cw.getHeader());
       cartesianWrenchPublisher.publish(cw);
     }
-    if (jointPositionPublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentJointPosition(jp, robot);
+    if (publishJointPosition) {
+      helper.getCurrentJointPosition(jp, snapshot);
       helper.incrementSeqNumber(jp.getHeader());
       jointPositionPublisher.publish(jp);
     }
-    if (jointPositionVelocityPublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentJointPositionVelocity(jpv, robot);
+    if (publishJointPositionVelocity) {
+      helper.getCurrentJointPositionVelocity(jpv, snapshot);
       helper.incrementSeqNumber(jpv.getHeader());
       jointPositionVelocityPublisher.publish(jpv);
     }
-    if (jointVelocityPublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentJointVelocity(jv, robot);
+    if (publishJointVelocity) {
+      helper.getCurrentJointVelocity(jv, snapshot);
       helper.incrementSeqNumber(jv.getHeader());
       jointVelocityPublisher.publish(jv);
     }
-    if (jointTorquePublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentJointTorque(jt, robot);
+    if (publishJointTorque) {
+      helper.getCurrentJointTorque(jt, snapshot);
       helper.incrementSeqNumber(jt.getHeader());
       jointTorquePublisher.publish(jt);
     }
-    if (externalJointTorquePublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentExternalJointTorque(ejt, robot);
+    if (publishExternalJointTorque) {
+      helper.getCurrentExternalJointTorque(ejt, snapshot);
       helper.incrementSeqNumber(ejt.getHeader());
       externalJointTorquePublisher.publish(ejt);
     }
 
-    if (publishJointState && jointStatesPublisher.getNumberOfSubscribers() > 0) {
-      helper.getCurrentJointState(js, robot);
+    if (publishJointStates) {
+      helper.getCurrentJointState(js, snapshot);
       helper.incrementSeqNumber(js.getHeader());
       jointStatesPublisher.publish(js);
     }
 
+    if (publishActionFeedback) {
+      actionServer.publishFeedback(snapshot);
+    }
+
+    // [buffered points, capacity, buffered time in s, underruns, overflows]
+    if (jointTrajectoryBuffer != null && jointTrajectoryBufferPublisher.getNumberOfSubscribers() > 0) {
+      double[] data = jtb.getData();
+      data[0] = jointTrajectoryBuffer.size();
+      data[1] = jointTrajectoryBuffer.getCapacity();
+      data[2] = jointTrajectoryBuffer.getBufferedTime();
+      data[3] = jointTrajectoryBuffer.getUnderrunCount();
+      data[4] = jointTrajectoryBuffer.getOverflowCount();
+      jointTrajectoryBufferPublisher.publish(jtb);
+    }
+
+    // [late commands, extrapolated destinations, late commands stopped at the end of the horizon, extrapolating]
+    if (commandExtrapolators != null && commandExtrapolationPublisher.getNumberOfSubscribers() > 0) {
+      double[] data = ce.getData();
+      Arrays.fill(data, 0.0);
+      for (CommandExtrapolator extrapolator : commandExtrapolators) {
+        data[0] += extrapolator.getGapCount();
+        data[1] += extrapolator.getExtrapolatedTickCount();
+        data[2] += extrapolator.getExhaustedGapCount();
+        data[3] = extrapolator.isExtrapolating() ? 1.0 : data[3];
+      }
+      commandExtrapolationPublisher.publish(ce);
+    }
+
     // Uncomment if using a Media Flange IO. // MEDIAFLANGEIO
     // if (mediaFlange != null && mediaFlangeButtonPublisher.getNumberOfSubscribers() > 0) {
     // flangeButton.setData(mediaFlange.getUserButton());
@@ -270,6 +409,49 @@ public class iiwaPublisher extends AbstractNodeMain {
     }
   }
 
+  /**
+   * Publishes the progress of a JointSpline executed in several windows on the JointSplineProgress topic, as
+   * [finished windows, windows, executed points, points, failed].
+   */
+  public synchronized void publishJointSplineProgress(int finishedChunks, int chunkCount, int executedPoints, int pointCount, boolean failed) {
+    if (jointSplineProgressPublisher != null && jointSplineProgressPublisher.getNumberOfSubscribers() > 0) {
+      jsp.setData(new double[] { finishedChunks, chunkCount, executedPoints, pointCount, failed ? 1.0 : 0.0 });
+      jointSplineProgressPublisher.publish(jsp);
+    }
+  }
+
+  /**
+   * Publishes how closely a timed JointSpline follows its requested timing on the JointSplineTiming topic, each
+   * time the robot passes one of its points, as [passed points, requested time from start, actual time from
+   * start, delay], times in s.
+   */
+  public synchronized void publishJointSplineTiming(int passedPoints, double requestedTime, double actualTime) {
+    if (jointSplineTimingPublisher != null && jointSplineTimingPublisher.getNumberOfSubscribers() > 0) {
+      jst.setData(new double[] { passedPoints, requestedTime, actualTime, actualTime - requestedTime });
+      jointSplineTimingPublisher.publish(jst);
+    }
+  }
+
+  /**
+   * Returns the monitor of the command latencies of this robot.
+   */
+  public LatencyMonitor getLatencyMonitor() {
+    return latencyMonitor;
+  }
+
+  /**
+   * Publishes a summary of the command latencies on the diagnostics/latency topic.
+   * 
+   * @param report : the summary, as returned by LatencyMonitor.drainReport
+   */
+  public void publishLatencyDiagnostics(String report) {
+    if (latencyDiagnosticsPublisher != null && latencyDiagnosticsPublisher.getNumberOfSubscribers() > 0) {
+      final std_msgs.String msg = latencyDiagnosticsPublisher.newMessage();
+      msg.setData(report);
+      latencyDiagnosticsPublisher.publish(msg);
+    }
+  }
+
   /**
    * Publishes the event of a button on the SmartPad toolbar being <b>pressed</b>
    * 
@@ -35,11 +35,12 @@ import geometry_msgs.Point;
 import geometry_msgs.PoseStamped;
 import geometry_msgs.Quaternion;
 
-import javax.vecmath.Matrix3d;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.ros.message.MessageListener;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
@@ -47,8 +48,6 @@ import org.ros.node.ConnectedNode;
 import org.ros.node.service.ServiceResponseBuilder;
 import org.ros.node.service.ServiceServer;
 import org.ros.node.topic.Subscriber;
-import org.ros.node.topic.TransportHints;
-import org.ros.rosjava.tf.Transform;
 import org.ros.rosjava.tf.pubsub.TransformListener;
 import org.ros.time.TimeProvider;
 
@@ -124,32 +123,53 @@ public class iiwaSubscriber extends AbstractNodeMain {
   private Subscriber<iiwa_msgs.JointPositionVelocity> jointPositionVelocitySubscriber;
   private Subscriber<iiwa_msgs.JointVelocity> jointVelocitySubscriber;
   private Subscriber<iiwa_msgs.JointSpline> jointSplineSubscriber;
+  private Subscriber<std_msgs.Float64MultiArray> jointPositionBatchSubscriber;
 
   private TransformListener tfListener;
+  private TransformCache transformCache;
+
+  // Scratch objects for transformPose
+  private final Quat4d rotationScratch = new Quat4d();
+  private final Vector3d translationScratch = new Vector3d();
+  private final Matrix4d poseMatrix = new Matrix4d();
+  private final Matrix4d transformMatrix = new Matrix4d();
 
   // Object to easily build iiwa_msgs from the current robot state
   private MessageGenerator helper;
-
-  // Local iiwa_msgs to store received messages
-  private geometry_msgs.PoseStamped cp;
-  private geometry_msgs.PoseStamped cp_lin;
-  private geometry_msgs.TwistStamped cv;
-  private iiwa_msgs.JointPosition jp;
-  private iiwa_msgs.JointPositionVelocity jpv;
-  private iiwa_msgs.JointVelocity jv;
-  private iiwa_msgs.JointSpline splineMsg;
-
-  private Boolean new_jp = new Boolean("false");
-  private Boolean new_cp = new Boolean("false");
-  private Boolean new_cp_lin = new Boolean("false");
-  private Boolean new_jpv = new Boolean("false");
-  private Boolean new_jointSpline = new Boolean("false");
-
-  // Current control strategy
-  public CommandType currentCommandType = null;
-
-  // joint spline received
-  public Boolean commandJointSpline = false;
+  // Records the duration of the TF lookups and conversions of the commands
+  private LatencyMonitor latencyMonitor = new LatencyMonitor();
+
+  // Latest received messages, one mailbox per command stream
+  private CommandMailbox<geometry_msgs.PoseStamped> cp;
+  private CommandMailbox<geometry_msgs.PoseStamped> cp_lin;
+  private CommandMailbox<geometry_msgs.TwistStamped> cv;
+  private CommandMailbox<iiwa_msgs.JointPosition> jp;
+  private CommandMailbox<iiwa_msgs.JointPositionVelocity> jpv;
+  private CommandMailbox<iiwa_msgs.JointVelocity> jv;
+  private CommandMailbox<iiwa_msgs.JointSpline> splineMsg;
+
+  // Sequence numbers of the last accepted messages, kept apart from the messages since these may already be
+  // read by the control loop
+  private final MessageSequence cpSeq = new MessageSequence();
+  private final MessageSequence cpLinSeq = new MessageSequence();
+  private final MessageSequence cvSeq = new MessageSequence();
+  private final MessageSequence jpSeq = new MessageSequence();
+  private final MessageSequence jpvSeq = new MessageSequence();
+  private final MessageSequence jvSeq = new MessageSequence();
+
+  // Time-parameterized joint positions received in batches, played back by the control loop
+  private JointTrajectoryBuffer jointTrajectoryBuffer;
+  private static final int jointTrajectoryBufferCapacity = 2048;
+  // Every batch carries different points, so they are queued rather than replaced by the newest one
+  private static final TransportSettings batchTransportDefaults = new TransportSettings(false, 16);
+
+  // Control strategy of the last received command, null once taken by the control loop
+  private final AtomicReference<CommandType> currentCommandType = new AtomicReference<CommandType>(null);
+
+  // Signaled at every new command, to wake up the control loop
+  private WakeupSignal commandSignal = null;
+  // System.nanoTime() at which the last command has been received
+  private volatile long lastCommandReceivedNs = 0;
 
   // Current action type
   public CommandType currentActionType = null;
@@ -158,6 +178,8 @@ public class iiwaSubscriber extends AbstractNodeMain {
   private String iiwaName = "iiwa";
   private LBR robot = null;
   private Boolean enforceMessageSequence = false;
+  // Used to read the transport settings of the topics, if available
+  private Configuration configuration = null;
 
   /**
    * Constructs a series of ROS subscribers for messages defined by the iiwa_msgs ROS package.
@@ -186,31 +208,109 @@ public class iiwaSubscriber extends AbstractNodeMain {
    *          name>/command/<iiwa message type>
    */
   public iiwaSubscriber(LBR robot, ObjectFrame frame, String robotName, TimeProvider timeProvider, Boolean enforceMessageSequence) {
-    iiwaName = robotName;
+    this(robot.getJointCount(), robotName, timeProvider, enforceMessageSequence);
     this.robot = robot;
+  }
+
+  /**
+   * Constructs a series of ROS subscribers for messages defined by the iiwa_msgs ROS package, without a
+   * robot, e.g. to feed a simulated one. Cartesian poses with redundancy information can then not be
+   * converted to Sunrise frames.
+   * 
+   * @param jointCount : number of joints of the commanded robot.
+   * @param robotName : name of the robot, it will be used for the topic names with this format : <robot
+   *          name>/command/<iiwa message type>
+   */
+  public iiwaSubscriber(int jointCount, String robotName, TimeProvider timeProvider, Boolean enforceMessageSequence) {
+    iiwaName = robotName;
     this.enforceMessageSequence = enforceMessageSequence;
     helper = new MessageGenerator(iiwaName, timeProvider);
 
-    cp = helper.buildMessage(geometry_msgs.PoseStamped._TYPE);
-    cp_lin = helper.buildMessage(geometry_msgs.PoseStamped._TYPE);
-    cv = helper.buildMessage(geometry_msgs.TwistStamped._TYPE);
-    jp = helper.buildMessage(iiwa_msgs.JointPosition._TYPE);
-    jpv = helper.buildMessage(iiwa_msgs.JointPositionVelocity._TYPE);
-    jv = helper.buildMessage(iiwa_msgs.JointVelocity._TYPE);
-    splineMsg = helper.buildMessage(iiwa_msgs.JointSpline._TYPE);
+    cp = new CommandMailbox<geometry_msgs.PoseStamped>(helper.<geometry_msgs.PoseStamped> buildMessage(geometry_msgs.PoseStamped._TYPE));
+    cp_lin = new CommandMailbox<geometry_msgs.PoseStamped>(helper.<geometry_msgs.PoseStamped> buildMessage(geometry_msgs.PoseStamped._TYPE));
+    cv = new CommandMailbox<geometry_msgs.TwistStamped>(helper.<geometry_msgs.TwistStamped> buildMessage(geometry_msgs.TwistStamped._TYPE));
+    jp = new CommandMailbox<iiwa_msgs.JointPosition>(helper.<iiwa_msgs.JointPosition> buildMessage(iiwa_msgs.JointPosition._TYPE));
+    jpv = new CommandMailbox<iiwa_msgs.JointPositionVelocity>(helper.<iiwa_msgs.JointPositionVelocity> buildMessage(iiwa_msgs.JointPositionVelocity._TYPE));
+    jv = new CommandMailbox<iiwa_msgs.JointVelocity>(helper.<iiwa_msgs.JointVelocity> buildMessage(iiwa_msgs.JointVelocity._TYPE));
+    splineMsg = new CommandMailbox<iiwa_msgs.JointSpline>(helper.<iiwa_msgs.JointSpline> buildMessage(iiwa_msgs.JointSpline._TYPE));
+    jointTrajectoryBuffer = new JointTrajectoryBuffer(jointTrajectoryBufferCapacity, jointCount);
+  }
+
+  /**
+   * Returns the buffer filled by the JointPositionBatch topic.
+   */
+  public JointTrajectoryBuffer getJointTrajectoryBuffer() {
+    return jointTrajectoryBuffer;
   }
 
   /**
    * Resets all sequence IDs back to 0, so that new commands will be accepted
    */
   public void resetSequenceIds() {
-    cp.getHeader().setSeq(0);
-    cp_lin.getHeader().setSeq(0);
-    cv.getHeader().setSeq(0);
-    jp.getHeader().setSeq(0);
-    jpv.getHeader().setSeq(0);
-    jv.getHeader().setSeq(0);
-    // splineMsg.getHeader().setSeq(0);
+    cpSeq.reset();
+    cpLinSeq.reset();
+    cvSeq.reset();
+    jpSeq.reset();
+    jpvSeq.reset();
+    jvSeq.reset();
+  }
+
+  /**
+   * Sets the monitor recording the latencies of the commands, usually the one of the robot's iiwaPublisher.
+   */
+  public void setLatencyMonitor(LatencyMonitor latencyMonitor) {
+    this.latencyMonitor = latencyMonitor;
+  }
+
+  /**
+   * Sets the configuration from which the transport settings of the topics are read when the node starts.
+   */
+  public void setConfiguration(Configuration configuration) {
+    this.configuration = configuration;
+  }
+
+  private TransportSettings getTransportSettings(String topic) {
+    return getTransportSettings(topic, TransportSettings.DEFAULT);
+  }
+
+  private TransportSettings getTransportSettings(String topic, TransportSettings defaults) {
+    if (configuration == null) {
+      return defaults;
+    }
+    TransportSettings settings = configuration.getTransportSettings(node.getParameterTree(), topic, defaults);
+    Logger.debug("Transport settings of " + iiwaName + "/" + topic + ": " + settings);
+    return settings;
+  }
+
+  /**
+   * Sets the signal to raise every time a new command is received.
+   */
+  public void setCommandSignal(WakeupSignal signal) {
+    commandSignal = signal;
+  }
+
+  private void setCurrentCommandType(CommandType commandType) {
+    lastCommandReceivedNs = System.nanoTime();
+    currentCommandType.set(commandType);
+    WakeupSignal signal = commandSignal;
+    if (signal != null) {
+      signal.signal();
+    }
+  }
+
+  /**
+   * Returns the System.nanoTime() at which the last command has been received.
+   */
+  public long getLastCommandReceivedNs() {
+    return lastCommandReceivedNs;
+  }
+
+  /**
+   * Returns the control strategy of the last received command and clears it, so that each command is
+   * processed once. Returns null if no command has been received since the last call.
+   */
+  public CommandType takeCurrentCommandType() {
+    return currentCommandType.getAndSet(null);
   }
 
   /**
@@ -300,15 +400,7 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return the received PoseStamped message.
    */
   public geometry_msgs.PoseStamped getCartesianPose() {
-    synchronized (new_cp) {
-      if (new_cp) {
-        new_cp = false;
-        return cp;
-      }
-      else {
-        return null;
-      }
-    }
+    return cp.take();
   }
 
   /**
@@ -319,15 +411,7 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return the received PoseStamped message.
    */
   public geometry_msgs.PoseStamped getCartesianPoseLin() {
-    synchronized (new_cp_lin) {
-      if (new_cp_lin) {
-        new_cp_lin = false;
-        return cp_lin;
-      }
-      else {
-        return null;
-      }
-    }
+    return cp_lin.take();
   }
 
   /**
@@ -336,7 +420,7 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return the received PoseStamped message.
    */
   public geometry_msgs.TwistStamped getCartesianVelocity() {
-    return cv;
+    return cv.peek();
   }
 
   /**
@@ -346,25 +430,17 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return the received Joint Position message.
    */
   public iiwa_msgs.JointPosition getJointPosition() {
-    synchronized (new_jp) {
-      if (new_jp) {
-        new_jp = false;
-        return jp;
-      }
-      else {
-        return null;
-      }
-    }
+    return jp.take();
   }
 
+  /**
+   * Returns the last received Joint Spline message. Returns null if no new message is available.
+   * <p>
+   * 
+   * @return the received Joint Spline message.
+   */
   public iiwa_msgs.JointSpline getJointSpline() {
-    synchronized (new_jointSpline) {
-      if(new_jointSpline){
-        new_jointSpline = false;
-        return splineMsg;
-      }
-      return null;
-    }
+    return splineMsg.take();
   }
 
   /**
@@ -374,15 +450,7 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return the received Joint Position-Velocity message.
    */
   public iiwa_msgs.JointPositionVelocity getJointPositionVelocity() {
-    synchronized (new_jpv) {
-      if (new_jpv) {
-        new_jpv = false;
-        return jpv;
-      }
-      else {
-        return null;
-      }
-    }
+    return jpv.take();
   }
 
   /**
@@ -393,51 +461,113 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return pose transformed to target_frame
    **/
   public geometry_msgs.PoseStamped transformPose(geometry_msgs.PoseStamped pose, String targetFrame) {
+    return transformPose(pose, targetFrame, helper.<PoseStamped> buildMessage(PoseStamped._TYPE));
+  }
+
+  /**
+   * Transforms a pose to the given TF reference frame, writing the transformed pose into the given message.
+   * <br>
+   * Transformations between static frames are served from a cache, so that the TF tree is only looked up
+   * when it changed. Not thread safe: meant to be called by the control loop only.
+   * 
+   * @param pose
+   * @param targetFrame
+   * @param result : the message the transformed pose is written to.
+   * @return <i>pose</i> if it is already expressed in target_frame, <i>result</i> otherwise, null on error.
+   **/
+  public geometry_msgs.PoseStamped transformPose(geometry_msgs.PoseStamped pose, String targetFrame, geometry_msgs.PoseStamped result) {
 
     if (pose == null || pose.getHeader().getFrameId() == null || targetFrame == null) { return null; }
     if (pose.getHeader().getFrameId().equals(targetFrame)) { return pose; }
 
     long time = pose.getHeader().getStamp().totalNsecs();
 
-    PoseStamped result = helper.buildMessage(PoseStamped._TYPE);
     result.getHeader().setFrameId(targetFrame);
     result.getHeader().setSeq(pose.getHeader().getSeq());
     result.getHeader().setStamp(pose.getHeader().getStamp());
 
-    if (tfListener.getTree().canTransform(pose.getHeader().getFrameId(), targetFrame)) {
+    long lookupStart = latencyMonitor.now();
+    if (transformCache.lookup(pose.getHeader().getFrameId(), targetFrame, time, transformMatrix)) {
       Quaternion q_raw = pose.getPose().getOrientation();
       Point t_raw = pose.getPose().getPosition();
 
-      Quat4d q = new Quat4d(q_raw.getX(), q_raw.getY(), q_raw.getZ(), q_raw.getW());
-      Vector3d t = new Vector3d(t_raw.getX(), t_raw.getY(), t_raw.getZ());
-
-      Matrix4d mat = new Matrix4d(q, t, 1);
-
-      Transform transform = tfListener.getTree().lookupTransformBetween(
-          pose.getHeader().getFrameId(),
-          targetFrame, time);
+      rotationScratch.set(q_raw.getX(), q_raw.getY(), q_raw.getZ(), q_raw.getW());
+      translationScratch.set(t_raw.getX(), t_raw.getY(), t_raw.getZ());
+      poseMatrix.set(rotationScratch, translationScratch, 1);
 
-      if (transform == null) { return null; }
-      transform.invert();
+      transformMatrix.mul(poseMatrix);
 
-      Matrix4d transformed = transform.asMatrix();
-      transformed.mul(mat);
-
-      Matrix3d base = new Matrix3d(
-          transformed.getM00(), transformed.getM01(), transformed.getM02(),
-          transformed.getM10(), transformed.getM11(), transformed.getM12(),
-          transformed.getM20(), transformed.getM21(), transformed.getM22());
-      q.set(base);
-
-      result.setPose(helper.getPose(transformed));
+      helper.getPose(transformMatrix, result.getPose());
+      latencyMonitor.record(LatencyMonitor.Stage.TF_LOOKUP, lookupStart);
     }
     else {
+      result.getPose().getPosition().setX(0);
+      result.getPose().getPosition().setY(0);
+      result.getPose().getPosition().setZ(0);
+      result.getPose().getOrientation().setX(0);
+      result.getPose().getOrientation().setY(0);
+      result.getPose().getOrientation().setZ(0);
       result.getPose().getOrientation().setW(1);
     }
 
     return result;
   }
 
+
+  /**
+   * Expresses the linear and angular velocities of a twist in the given TF reference frame. <br>
+   * The velocities are only rotated: the twist is taken as the velocity of the commanded frame, expressed
+   * in the axes of its header frame. Transformations are served from the same cache as <i>transformPose</i>.
+   * Not thread safe: meant to be called by the control loop only.
+   * 
+   * @param twist
+   * @param targetFrame
+   * @param result : [linear x, y, z, angular x, y, z] in targetFrame.
+   * @return false if the header frame is not connected to targetFrame in the TF tree.
+   **/
+  public boolean transformTwist(geometry_msgs.TwistStamped twist, String targetFrame, double[] result) {
+    geometry_msgs.Vector3 linear = twist.getTwist().getLinear();
+    geometry_msgs.Vector3 angular = twist.getTwist().getAngular();
+    String frameId = twist.getHeader().getFrameId();
+    if (frameId == null || frameId.isEmpty() || frameId.equals(targetFrame)) {
+      result[0] = linear.getX();
+      result[1] = linear.getY();
+      result[2] = linear.getZ();
+      result[3] = angular.getX();
+      result[4] = angular.getY();
+      result[5] = angular.getZ();
+      return true;
+    }
+
+    long lookupStart = latencyMonitor.now();
+    if (!transformCache.lookup(frameId, targetFrame, twist.getHeader().getStamp().totalNsecs(), transformMatrix)) { return false; }
+    rotateVector(transformMatrix, linear, result, 0);
+    rotateVector(transformMatrix, angular, result, 3);
+    latencyMonitor.record(LatencyMonitor.Stage.TF_LOOKUP, lookupStart);
+    return true;
+  }
+
+  private static void rotateVector(Matrix4d transform, geometry_msgs.Vector3 vector, double[] result, int offset) {
+    for (int i = 0; i < 3; i++) {
+      result[offset + i] = transform.getElement(i, 0) * vector.getX() + transform.getElement(i, 1) * vector.getY()
+          + transform.getElement(i, 2) * vector.getZ();
+    }
+  }
+
+  /**
+   * Gets the matrix that transforms poses expressed in the source frame into the target frame, from the same
+   * cache as <i>transformPose</i>. Unlike <i>transformPose</i>, it can be called from any thread.
+   * 
+   * @param sourceFrame
+   * @param targetFrame
+   * @param time : time of the transformation in nanoseconds.
+   * @param result : the matrix to fill.
+   * @return false if the frames are not connected in the TF tree.
+   */
+  public boolean lookupTransform(String sourceFrame, String targetFrame, long time, Matrix4d result) {
+    return transformCache != null && transformCache.lookup(sourceFrame, targetFrame, time, result);
+  }
+
   /**
    * Creates a KUKA Sunrise frame from a CartesianPose message. Includes resolving TF transformation and
    * applying redundancy data.
@@ -445,17 +575,31 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @param parent: parent frame of robot base coordinate system
    * @param cartesianPose: Pose to transform
    * @param robotBaseFrame: String id of robot base frame (usually iiwa_link_0)
-   * @return
+   * @return null if the pose cannot be transformed to the robot base frame or is invalid.
    **/
   public Frame cartesianPoseToRosFrame(AbstractFrame parent, CartesianPose cartesianPose, String robotBaseFrame) {
+    std_msgs.Header header = cartesianPose.getPoseStamped().getHeader();
+    // transformPose falls back to the identity if the frame is not connected to the robot base.
+    if (header.getFrameId() != null && !header.getFrameId().equals(robotBaseFrame)
+        && !lookupTransform(header.getFrameId(), robotBaseFrame, header.getStamp().totalNsecs(), transformMatrix)) { return null; }
+
     PoseStamped poseStamped = transformPose(cartesianPose.getPoseStamped(), robotBaseFrame);
 
     if (poseStamped == null) { return null; }
 
-    Frame frame = Conversions.rosPoseToKukaFrame(parent, poseStamped.getPose());
+    long conversionStart = latencyMonitor.now();
+    Frame frame;
+    try {
+      frame = Conversions.rosPoseToKukaFrame(parent, poseStamped.getPose());
+    }
+    catch (IllegalArgumentException e) {
+      Logger.warn(e.getMessage());
+      return null;
+    }
+    latencyMonitor.record(LatencyMonitor.Stage.CONVERSION, conversionStart);
     RedundancyInformation redundancy = cartesianPose.getRedundancy();
 
-    if (redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
+    if (robot != null && redundancy.getStatus() >= 0 && redundancy.getTurn() >= 0) {
       // You can get this info from the robot Cartesian Position (SmartPad)
       // or the /iiwa/state/CartesianPose topic
       IRedundancyCollection redundantData = new LBRE1Redundancy(redundancy.getE1(), redundancy.getStatus(), redundancy.getTurn());
@@ -472,7 +616,7 @@ public class iiwaSubscriber extends AbstractNodeMain {
    * @return the received Joint Velocity message.
    */
   public iiwa_msgs.JointVelocity getJointVelocity() {
-    return jv;
+    return jv.peek();
   }
 
   /**
@@ -484,16 +628,37 @@ public class iiwaSubscriber extends AbstractNodeMain {
   }
 
   /**
-   * Checks that the given message headers are in the correct order. That is, new messages should have a
-   * larger sequence number than the last one received. True is also returned is both sequence numbers are
-   * zero, that means that probably the user is not setting them at all.
-   * 
-   * @param received_header - the newly received message header we want to compare.
-   * @param stored_header - the last received message header that was stored.
-   * @return
+   * Sequence number of the last message accepted on a command stream. Each stream is checked by its own
+   * callback thread, while the control loop may reset it at any time.
    */
-  private Boolean checkMessageSequence(std_msgs.Header received_header, std_msgs.Header stored_header) {
-    return ((received_header.getSeq() == 0 && stored_header.getSeq() == 0) || received_header.getSeq() > stored_header.getSeq());
+  private static class MessageSequence {
+    private volatile int last = 0;
+
+    /**
+     * Checks that the given message header is in the correct order, and if so stores its sequence number.
+     * That is, new messages should have a larger sequence number than the last one received. True is also
+     * returned if both sequence numbers are zero, that means that probably the user is not setting them at
+     * all.
+     * 
+     * @param received_header - the newly received message header we want to compare.
+     * @return
+     */
+    public boolean accept(std_msgs.Header received_header) {
+      int seq = received_header.getSeq();
+      if ((seq == 0 && last == 0) || seq > last) {
+        last = seq;
+        return true;
+      }
+      return false;
+    }
+
+    public int get() {
+      return last;
+    }
+
+    public void reset() {
+      last = 0;
+    }
   }
 
   /**
@@ -508,130 +673,143 @@ public class iiwaSubscriber extends AbstractNodeMain {
 
     node = connectedNode;
 
-    TransportHints hint = new TransportHints(false);
-
-    // Creating the subscribers
-    cartesianPoseSubscriber = connectedNode.newSubscriber(iiwaName + "/command/CartesianPose", geometry_msgs.PoseStamped._TYPE, hint);
-    cartesianPoseLinSubscriber = connectedNode.newSubscriber(iiwaName + "/command/CartesianPoseLin", geometry_msgs.PoseStamped._TYPE, hint);
-    cartesianVelocitySubscriber = connectedNode.newSubscriber(iiwaName + "/command/CartesianVelocity", geometry_msgs.TwistStamped._TYPE, hint);
-    jointPositionSubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointPosition", iiwa_msgs.JointPosition._TYPE, hint);
-    jointPositionVelocitySubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointPositionVelocity", iiwa_msgs.JointPositionVelocity._TYPE, hint);
-    jointVelocitySubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointVelocity", iiwa_msgs.JointVelocity._TYPE, hint);
-    jointSplineSubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointSpline", iiwa_msgs.JointSpline._TYPE, hint);
+    // Creating the subscribers, with the transport settings configured for each topic
+    TransportSettings cartesianPoseTransport = getTransportSettings("command/CartesianPose");
+    cartesianPoseSubscriber = connectedNode.newSubscriber(iiwaName + "/command/CartesianPose", geometry_msgs.PoseStamped._TYPE, cartesianPoseTransport.toTransportHints());
+    TransportSettings cartesianPoseLinTransport = getTransportSettings("command/CartesianPoseLin");
+    cartesianPoseLinSubscriber = connectedNode.newSubscriber(iiwaName + "/command/CartesianPoseLin", geometry_msgs.PoseStamped._TYPE, cartesianPoseLinTransport.toTransportHints());
+    TransportSettings cartesianVelocityTransport = getTransportSettings("command/CartesianVelocity");
+    cartesianVelocitySubscriber = connectedNode.newSubscriber(iiwaName + "/command/CartesianVelocity", geometry_msgs.TwistStamped._TYPE, cartesianVelocityTransport.toTransportHints());
+    TransportSettings jointPositionTransport = getTransportSettings("command/JointPosition");
+    jointPositionSubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointPosition", iiwa_msgs.JointPosition._TYPE, jointPositionTransport.toTransportHints());
+    TransportSettings jointPositionVelocityTransport = getTransportSettings("command/JointPositionVelocity");
+    jointPositionVelocitySubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointPositionVelocity", iiwa_msgs.JointPositionVelocity._TYPE, jointPositionVelocityTransport.toTransportHints());
+    TransportSettings jointVelocityTransport = getTransportSettings("command/JointVelocity");
+    jointVelocitySubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointVelocity", iiwa_msgs.JointVelocity._TYPE, jointVelocityTransport.toTransportHints());
+    TransportSettings jointSplineTransport = getTransportSettings("command/JointSpline");
+    jointSplineSubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointSpline", iiwa_msgs.JointSpline._TYPE, jointSplineTransport.toTransportHints());
+    TransportSettings jointPositionBatchTransport = getTransportSettings("command/JointPositionBatch", batchTransportDefaults);
+    jointPositionBatchSubscriber = connectedNode.newSubscriber(iiwaName + "/command/JointPositionBatch", std_msgs.Float64MultiArray._TYPE, jointPositionBatchTransport.toTransportHints());
     tfListener = new TransformListener(connectedNode);
+    transformCache = new TransformCache(tfListener);
 
     // Subscribers' callbacks
     cartesianPoseSubscriber.addMessageListener(new MessageListener<geometry_msgs.PoseStamped>() {
       @Override
       public void onNewMessage(geometry_msgs.PoseStamped position) {
         if (enforceMessageSequence) {
-          if (!checkMessageSequence(position.getHeader(), cp.getHeader())) {
-            Logger.error("Received a PoseStamped message with the SeqNum " + position.getHeader().getSeq() + " while expecting a SeqNum larger than " + jp.getHeader().getSeq());
+          if (!cpSeq.accept(position.getHeader())) {
+            Logger.error("Received a PoseStamped message with the SeqNum " + position.getHeader().getSeq() + " while expecting a SeqNum larger than " + cpSeq.get());
             return;
           }
         }
-        synchronized (new_cp) {
-          cp = position;
-          currentCommandType = CommandType.SMART_SERVO_CARTESIAN_POSE;
-          new_cp = true;
-        }
+        cp.post(position);
+        setCurrentCommandType(CommandType.SMART_SERVO_CARTESIAN_POSE);
       }
-    });
+    }, cartesianPoseTransport.getQueueLength());
 
     cartesianVelocitySubscriber.addMessageListener(new MessageListener<geometry_msgs.TwistStamped>() {
       @Override
       public void onNewMessage(geometry_msgs.TwistStamped velocity) {
         if (enforceMessageSequence) {
-          if (!checkMessageSequence(velocity.getHeader(), cv.getHeader())) {
-            Logger.error("Received a TwistStamped message with the SeqNum " + velocity.getHeader().getSeq() + ". while expecting a SeqNum larger than " + cv.getHeader().getSeq());
+          if (!cvSeq.accept(velocity.getHeader())) {
+            Logger.error("Received a TwistStamped message with the SeqNum " + velocity.getHeader().getSeq() + ". while expecting a SeqNum larger than " + cvSeq.get());
             return;
           }
         }
-        cv = velocity;
-        currentCommandType = CommandType.SMART_SERVO_CARTESIAN_VELOCITY;
+        cv.post(velocity);
+        setCurrentCommandType(CommandType.SMART_SERVO_CARTESIAN_VELOCITY);
       }
-    });
+    }, cartesianVelocityTransport.getQueueLength());
 
     cartesianPoseLinSubscriber.addMessageListener(new MessageListener<geometry_msgs.PoseStamped>() {
       @Override
       public void onNewMessage(geometry_msgs.PoseStamped position) {
         if (enforceMessageSequence) {
-          if (!checkMessageSequence(position.getHeader(), cp_lin.getHeader())) {
+          if (!cpLinSeq.accept(position.getHeader())) {
             Logger
-                .error("Received a PoseStamped message with the SeqNum " + position.getHeader().getSeq() + " while expecting a SeqNum larger than " + cp_lin.getHeader().getSeq());
+                .error("Received a PoseStamped message with the SeqNum " + position.getHeader().getSeq() + " while expecting a SeqNum larger than " + cpLinSeq.get());
             return;
           }
         }
-        synchronized (new_cp_lin) {
-          cp_lin = position;
-          currentCommandType = CommandType.SMART_SERVO_CARTESIAN_POSE_LIN;
-          new_cp_lin = true;
-        }
+        cp_lin.post(position);
+        setCurrentCommandType(CommandType.SMART_SERVO_CARTESIAN_POSE_LIN);
       }
-    });
+    }, cartesianPoseLinTransport.getQueueLength());
 
     jointPositionSubscriber.addMessageListener(new MessageListener<iiwa_msgs.JointPosition>() {
       @Override
       public void onNewMessage(iiwa_msgs.JointPosition position) {
         if (enforceMessageSequence) {
-          if (!checkMessageSequence(position.getHeader(), jp.getHeader())) {
-            Logger.error("Received a JointPosition message with the SeqNum " + position.getHeader().getSeq() + " while expecting a SeqNum larger than " + jp.getHeader().getSeq());
+          if (!jpSeq.accept(position.getHeader())) {
+            Logger.error("Received a JointPosition message with the SeqNum " + position.getHeader().getSeq() + " while expecting a SeqNum larger than " + jpSeq.get());
             return;
           }
         }
-        synchronized (new_jp) {
-          jp = position;
-          currentCommandType = CommandType.SMART_SERVO_JOINT_POSITION;
-          new_jp = true;
-        }
+        jp.post(position);
+        setCurrentCommandType(CommandType.SMART_SERVO_JOINT_POSITION);
       }
-    });
+    }, jointPositionTransport.getQueueLength());
 
     jointPositionVelocitySubscriber.addMessageListener(new MessageListener<iiwa_msgs.JointPositionVelocity>() {
       @Override
       public void onNewMessage(iiwa_msgs.JointPositionVelocity positionVelocity) {
         if (enforceMessageSequence) {
-          if (!checkMessageSequence(positionVelocity.getHeader(), jpv.getHeader())) {
+          if (!jpvSeq.accept(positionVelocity.getHeader())) {
             Logger.error("Received a JointPositionVelocity message with the SeqNum " + positionVelocity.getHeader().getSeq() + " while expecting a SeqNum larger than "
-                + jpv.getHeader().getSeq());
+                + jpvSeq.get());
             return;
           }
         }
-        synchronized (new_jpv) {
-          jpv = positionVelocity;
-          currentCommandType = CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY;
-          new_jpv = true;
-        }
+        jpv.post(positionVelocity);
+        setCurrentCommandType(CommandType.SMART_SERVO_JOINT_POSITION_VELOCITY);
       }
-    });
+    }, jointPositionVelocityTransport.getQueueLength());
 
     jointVelocitySubscriber.addMessageListener(new MessageListener<iiwa_msgs.JointVelocity>() {
       @Override
       public void onNewMessage(iiwa_msgs.JointVelocity velocity) {
         if (enforceMessageSequence) {
-          if (!checkMessageSequence(velocity.getHeader(), jv.getHeader())) {
-            Logger.error("Received a JointVelocity message with the SeqNum " + velocity.getHeader().getSeq() + " while expecting a SeqNum larger than " + jv.getHeader().getSeq());
+          if (!jvSeq.accept(velocity.getHeader())) {
+            Logger.error("Received a JointVelocity message with the SeqNum " + velocity.getHeader().getSeq() + " while expecting a SeqNum larger than " + jvSeq.get());
             return;
           }
         }
-        jv = velocity;
-        currentCommandType = CommandType.SMART_SERVO_JOINT_VELOCITY;
+        jv.post(velocity);
+        setCurrentCommandType(CommandType.SMART_SERVO_JOINT_VELOCITY);
       }
-    });
+    }, jointVelocityTransport.getQueueLength());
 
     jointSplineSubscriber.addMessageListener(new MessageListener<iiwa_msgs.JointSpline>() {
       @Override
       public void onNewMessage(iiwa_msgs.JointSpline spline) {
- 
-        splineMsg = spline;
+        splineMsg.post(spline);
+        setCurrentCommandType(CommandType.SMART_SERVO_JOINT_POSITION);
+      }
+    }, jointSplineTransport.getQueueLength());
 
-        synchronized (new_jointSpline) {
-          commandJointSpline = true;
-          currentCommandType = CommandType.SMART_SERVO_JOINT_POSITION;
-          new_jointSpline = true;
+    // Every row of a batch is [time from previous point in seconds, joint positions...].
+    // An empty batch marks the end of the trajectory.
+    jointPositionBatchSubscriber.addMessageListener(new MessageListener<std_msgs.Float64MultiArray>() {
+      @Override
+      public void onNewMessage(std_msgs.Float64MultiArray batch) {
+        double[] data = batch.getData();
+        int rowLength = jointTrajectoryBuffer.getJointCount() + 1;
+        if (data.length == 0) {
+          jointTrajectoryBuffer.endTrajectory();
+          return;
+        }
+        if (data.length % rowLength != 0) {
+          Logger.error("Received a JointPositionBatch message with " + data.length + " values, while expecting rows of " + rowLength + " values");
+          return;
+        }
+        int accepted = jointTrajectoryBuffer.offer(data);
+        if (accepted < data.length / rowLength) {
+          Logger.warn("JointPositionBatch buffer full, dropped " + (data.length / rowLength - accepted) + " points");
         }
+        setCurrentCommandType(CommandType.SMART_SERVO_JOINT_POSITION_BATCH);
       }
-    });
+    }, jointPositionBatchTransport.getQueueLength());
     
     // Creating EmergencyStop service if a callback has been defined.
     if (eStopCallback != null) {